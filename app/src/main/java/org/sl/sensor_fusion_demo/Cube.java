@@ -1,67 +0,0 @@
-package org.sl.sensor_fusion_demo;
-
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import javax.microedition.khronos.opengles.GL10;
-
-/**
- * A simple colour-cube that is used for drawing the current rotation of the device
- */
-public class Cube {
-  /**
-   * Buffer for the vertices
-   */
-  private FloatBuffer mVertexBuffer;
-  /**
-   * Buffer for the colours
-   */
-  private FloatBuffer mColorBuffer;
-  /**
-   * Buffer for indices
-   */
-  private ByteBuffer mIndexBuffer;
-
-  /**
-   * Initialises a new instance of the cube
-   */
-  public Cube() {
-    final float vertices[] = {-1, -1, -1, 1, -1, -1, 1, 1, -1, -1, 1, -1, -1, -1, 1, 1, -1, 1, 1, 1, 1, -1, 1, 1,};
-
-    final float colors[] = {0, 0, 0, 1, 1, 0, 0, 1, 1, 1, 0, 1, 0, 1, 0, 1, 0, 0, 1, 1, 1, 0, 1, 1, 1, 1, 1, 1, 0,
-        1, 1, 1,};
-
-    final byte indices[] = {0, 4, 5, 0, 5, 1, 1, 5, 6, 1, 6, 2, 2, 6, 7, 2, 7, 3, 3, 7, 4, 3, 4, 0, 4, 7, 6, 4, 6,
-        5, 3, 0, 1, 3, 1, 2};
-
-    ByteBuffer vbb = ByteBuffer.allocateDirect(vertices.length * 4);
-    vbb.order(ByteOrder.nativeOrder());
-    mVertexBuffer = vbb.asFloatBuffer();
-    mVertexBuffer.put(vertices);
-    mVertexBuffer.position(0);
-
-    ByteBuffer cbb = ByteBuffer.allocateDirect(colors.length * 4);
-    cbb.order(ByteOrder.nativeOrder());
-    mColorBuffer = cbb.asFloatBuffer();
-    mColorBuffer.put(colors);
-    mColorBuffer.position(0);
-
-    mIndexBuffer = ByteBuffer.allocateDirect(indices.length);
-    mIndexBuffer.put(indices);
-    mIndexBuffer.position(0);
-  }
-
-  /**
-   * Draws this cube of the given GL-Surface
-   *
-   * @param gl The GL-Surface this cube should be drawn upon.
-   */
-  public void draw(GL10 gl) {
-    gl.glEnable(GL10.GL_CULL_FACE);
-    gl.glFrontFace(GL10.GL_CW);
-    gl.glShadeModel(GL10.GL_SMOOTH);
-    gl.glVertexPointer(3, GL10.GL_FLOAT, 0, mVertexBuffer);
-    gl.glColorPointer(4, GL10.GL_FLOAT, 0, mColorBuffer);
-    gl.glDrawElements(GL10.GL_TRIANGLES, 36, GL10.GL_UNSIGNED_BYTE, mIndexBuffer);
-  }
-}
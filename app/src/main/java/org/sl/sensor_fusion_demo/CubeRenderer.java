@@ -1,27 +1,53 @@
 package org.sl.sensor_fusion_demo;
 
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.drawable.ColorDrawable;
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.GLUtils;
+import android.os.Build;
+import android.os.SystemClock;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
-import org.sl.sensor_fusion_demo.representation.Quaternion;
+import org.sl.sensor_fusion_demo.representation.Matrix;
 
 /**
  * Class that implements the rendering of a cube with the current rotation of the device that is provided by a
  * OrientationProvider
  *
+ * The cubes are drawn with OpenGL ES 2: their geometry ({@link CubeScene}) is uploaded once into a vertex and an index
+ * buffer object, and each frame draws all cubes with a single call, with the model-view-projection matrix computed
+ * on the CPU from the rotation matrix of the provider.
+ *
  * @author Stanislav Lelyuk
  */
 public class CubeRenderer implements GLSurfaceView.Renderer {
+
+  private static final String VERTEX_SHADER = ""
+      + "uniform mat4 uModelViewProjection;\n"
+      + "attribute vec4 aPosition;\n"
+      + "attribute vec4 aColor;\n"
+      + "varying vec4 vColor;\n"
+      + "void main() {\n"
+      + "  gl_Position = uModelViewProjection * aPosition;\n"
+      + "  vColor = aColor;\n"
+      + "}\n";
+  private static final String FRAGMENT_SHADER = ""
+      + "precision mediump float;\n"
+      + "varying vec4 vColor;\n"
+      + "void main() {\n"
+      + "  gl_FragColor = vColor;\n"
+      + "}\n";
+
   /**
-   * The colour-cube that is drawn repeatedly
+   * The geometry and the transformation of the colour-cubes
    */
-  private Cube mCube;
+  private final CubeScene mScene = new CubeScene();
+  private int program;
+  private int positionAttribute;
+  private int colorAttribute;
+  private int modelViewProjectionUniform;
+  private int vertexBuffer;
+  private int indexBuffer;
 
   /**
    * For updating info view.
@@ -35,12 +61,21 @@ public class CubeRenderer implements GLSurfaceView.Renderer {
    * Flag indicating whether you want to view inside out, or outside in
    */
   private boolean showCubeInsideOut = true;
+  /**
+   * The rotation matrix the current orientation is copied into for each frame
+   */
+  private final float[] rotationMatrix = new float[16];
+  /**
+   * The time in nanoseconds from drawing a frame until it is shown on the display, 0 to draw the latest orientation
+   * as it is
+   */
+  private volatile long presentationLatencyNs;
 
   /**
    * Initialises a new CubeRenderer
    */
   public CubeRenderer() {
-    mCube = new Cube();
+    Matrix.setIdentityM(rotationMatrix, 0);
   }
 
   /**
@@ -59,117 +94,113 @@ public class CubeRenderer implements GLSurfaceView.Renderer {
   }
 
   /**
-   * Perform the actual rendering of the cube for each frame
+   * Selects whether each frame shows the latest orientation, which is already some milliseconds old when the frame
+   * reaches the display, or the orientation predicted for the time the frame will be shown. Can be called from any
+   * thread. The prediction needs sensor timestamps in the {@link SystemClock#elapsedRealtimeNanos()} time base, so it
+   * is not used below API level 17.
    *
-   * @param gl The surface on which the cube should be rendered
+   * @param presentationLatencyNs The time in nanoseconds from drawing a frame until it is shown, 0 to disable the
+   * prediction
    */
-  public void onDrawFrame(GL10 gl) {
-    // clear screen
-    gl.glClear(GL10.GL_COLOR_BUFFER_BIT);
-    gl.glClearColor(255f, 255f, 255f, 1f);
-
-    // set-up modelview matrix
-    gl.glMatrixMode(GL10.GL_MODELVIEW);
-    gl.glLoadIdentity();
-
-    if (showCubeInsideOut) {
-      float dist = 3;
-      gl.glTranslatef(0, 0, -dist);
-
-      if (orientationProvider != null) {
-        // All Orientation providers deliver Quaternion as well as rotation matrix.
-        // Use your favourite representation:
-
-        // Get the rotation from the current orientationProvider as rotation matrix
-        //gl.glMultMatrixf(orientationProvider.getRotationMatrix().getMatrix(), 0);
-
-        // Get the rotation from the current orientationProvider as quaternion
-        Quaternion q = orientationProvider.getQuaternion();
-        gl.glRotatef((float) (2.0f * Math.acos(q.getW()) * 180.0f / Math.PI), q.getX(), q.getY(), q.getZ());
-      }
+  public void setPresentationLatency(long presentationLatencyNs) {
+    this.presentationLatencyNs = presentationLatencyNs;
+  }
 
-      // draw our object
-      gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
-      gl.glEnableClientState(GL10.GL_COLOR_ARRAY);
+  /**
+   * @return The time in nanoseconds the orientation is predicted ahead, 0 if the prediction is disabled
+   */
+  public long getPresentationLatency() {
+    return presentationLatencyNs;
+  }
 
-      mCube.draw(gl);
+  /**
+   * Copies the orientation to draw into the given rotation matrix
+   *
+   * @param matrix The float[16] that receives the orientation
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+  private void readOrientation(float[] matrix) {
+    long latency = presentationLatencyNs;
+    if (latency > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      orientationProvider.getPredictedOrientation(SystemClock.elapsedRealtimeNanos() + latency, null, matrix);
     } else {
-
-      if (orientationProvider != null) {
-        // All Orientation providers deliver Quaternion as well as rotation matrix.
-        // Use your favourite representation:
-
-        // Get the rotation from the current orientationProvider as rotation matrix
-        //gl.glMultMatrixf(orientationProvider.getRotationMatrix().getMatrix(), 0);
-
-        // Get the rotation from the current orientationProvider as quaternion
-        Quaternion q = orientationProvider.getQuaternion();
-        gl.glRotatef((float) (2.0f * Math.acos(q.getW()) * 180.0f / Math.PI), q.getX(), q.getY(), q.getZ());
-      }
-
-      float dist = 3;
-      drawTranslatedCube(gl, 0, 0, -dist);
-      drawTranslatedCube(gl, 0, 0, dist);
-      drawTranslatedCube(gl, 0, -dist, 0);
-      drawTranslatedCube(gl, 0, dist, 0);
-      drawTranslatedCube(gl, -dist, 0, 0);
-      drawTranslatedCube(gl, dist, 0, 0);
-    }
-
-    // draw our object
-    gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
-    gl.glEnableClientState(GL10.GL_COLOR_ARRAY);
-
-    mCube.draw(gl);
-
-    if (drawFrameListener != null) {
-      drawFrameListener.onDrawFrame();
+      orientationProvider.getRotationMatrix(matrix);
     }
   }
 
   /**
-   * Draws a translated cube
+   * Perform the actual rendering of the cube for each frame
    *
-   * @param gl the surface
-   * @param translateX x-translation
-   * @param translateY y-translation
-   * @param translateZ z-translation
+   * @param unused The surface on which the cube should be rendered; OpenGL ES 2 is called directly
    */
-  private void drawTranslatedCube(GL10 gl, float translateX, float translateY, float translateZ) {
-    gl.glPushMatrix();
-    gl.glTranslatef(translateX, translateY, translateZ);
+  public void onDrawFrame(GL10 unused) {
+    // clear screen
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
-    // draw our object
-    gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
-    gl.glEnableClientState(GL10.GL_COLOR_ARRAY);
+    if (orientationProvider != null) {
+      readOrientation(rotationMatrix);
+    }
+    boolean insideOut = showCubeInsideOut;
+    GLES20.glUseProgram(program);
+    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false,
+        mScene.getModelViewProjection(rotationMatrix, insideOut), 0);
+
+    // draw all cubes with one call from the buffers that were uploaded when the surface was created
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+    GLES20.glEnableVertexAttribArray(positionAttribute);
+    GLES20.glEnableVertexAttribArray(colorAttribute);
+    GLES20.glVertexAttribPointer(positionAttribute, 3, GLES20.GL_FLOAT, false, CubeScene.BYTES_PER_VERTEX, 0);
+    GLES20.glVertexAttribPointer(colorAttribute, 4, GLES20.GL_FLOAT, false, CubeScene.BYTES_PER_VERTEX, 3 * 4);
+    GLES20.glDrawElements(GLES20.GL_TRIANGLES, mScene.getIndexCount(insideOut), GLES20.GL_UNSIGNED_SHORT,
+        mScene.getFirstIndex(insideOut) * 2);
+    GLES20.glDisableVertexAttribArray(positionAttribute);
+    GLES20.glDisableVertexAttribArray(colorAttribute);
 
-    mCube.draw(gl);
-    gl.glPopMatrix();
+    if (drawFrameListener != null) {
+      drawFrameListener.onDrawFrame();
+    }
   }
 
   /**
    * Update view-port with the new surface
    *
-   * @param gl the surface
+   * @param unused the surface
    * @param width new width
    * @param height new height
    */
-  public void onSurfaceChanged(GL10 gl, int width, int height) {
+  public void onSurfaceChanged(GL10 unused, int width, int height) {
     // set view-port
-    gl.glViewport(0, 0, width, height);
+    GLES20.glViewport(0, 0, width, height);
     // set projection matrix
-    float ratio = (float) width / height;
-    gl.glMatrixMode(GL10.GL_PROJECTION);
-    gl.glLoadIdentity();
-    gl.glFrustumf(-ratio, ratio, -1, 1, 1, 10);
+    mScene.setViewSize(width, height);
   }
 
   @Override
-  public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+  public void onSurfaceCreated(GL10 unused, EGLConfig config) {
     // dither is enabled by default, we don't need it
-    gl.glDisable(GL10.GL_DITHER);
-    // clear screen in black
-    gl.glClearColor(0, 0, 0, 1);
+    GLES20.glDisable(GLES20.GL_DITHER);
+    // clear screen in white
+    GLES20.glClearColor(1, 1, 1, 1);
+    GLES20.glEnable(GLES20.GL_CULL_FACE);
+    GLES20.glFrontFace(GLES20.GL_CW);
+
+    program = ShaderPrograms.link(VERTEX_SHADER, FRAGMENT_SHADER);
+    positionAttribute = GLES20.glGetAttribLocation(program, "aPosition");
+    colorAttribute = GLES20.glGetAttribLocation(program, "aColor");
+    modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "uModelViewProjection");
+
+    // upload the geometry once; the buffers of a new context are created again
+    int[] buffers = new int[2];
+    GLES20.glGenBuffers(2, buffers, 0);
+    vertexBuffer = buffers[0];
+    indexBuffer = buffers[1];
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
+    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mScene.getVertices().capacity() * 4, mScene.getVertices(),
+        GLES20.GL_STATIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+    GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mScene.getIndices().capacity() * 2, mScene.getIndices(),
+        GLES20.GL_STATIC_DRAW);
   }
 
   /**
@@ -178,46 +209,4 @@ public class CubeRenderer implements GLSurfaceView.Renderer {
   public void toggleShowCubeInsideOut() {
     this.showCubeInsideOut = !showCubeInsideOut;
   }
-
-  protected void drawText(GL10 gl, String text) {
-    // Create an empty, mutable bitmap
-    Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_4444);
-    // get a canvas to paint over the bitmap
-    Canvas canvas = new Canvas(bitmap);
-    bitmap.eraseColor(0);
-
-    // get a background image from resources
-    // note the image format must match the bitmap format
-    ColorDrawable background = new ColorDrawable(0xFFFFFFFF);
-    background.setBounds(0, 0, 256, 256);
-    background.draw(canvas); // draw the background to our bitmap
-
-    // Draw the text
-    Paint textPaint = new Paint();
-    textPaint.setTextSize(32);
-    textPaint.setAntiAlias(true);
-    textPaint.setARGB(0xff, 0x00, 0x00, 0x00);
-    // draw the text centered
-    canvas.drawText(text, 16, 112, textPaint);
-
-    //Generate one texture pointer...
-    int textures[] = new int[1];
-    gl.glGenTextures(1, textures, 0);
-    //...and bind it to our array
-    gl.glBindTexture(GL10.GL_TEXTURE_2D, textures[0]);
-
-    //Create Nearest Filtered Texture
-    gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
-    gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-
-    //Different possible texture parameters, e.g. GL10.GL_CLAMP_TO_EDGE
-    gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_REPEAT);
-    gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_REPEAT);
-
-    //Use the Android GLUtils to specify a two-dimensional texture image from our bitmap
-    GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, bitmap, 0);
-
-    //Clean up
-    bitmap.recycle();
-  }
 }
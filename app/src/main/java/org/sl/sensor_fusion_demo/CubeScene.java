@@ -0,0 +1,146 @@
+package org.sl.sensor_fusion_demo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import org.sl.sensor_fusion_demo.representation.Matrix;
+
+/**
+ * The geometry and the transformation of the colour-cubes that show the current rotation of the device, prepared on
+ * the CPU for the {@link CubeRenderer}, without calling OpenGL.
+ *
+ * All cubes that are shown outside-in, six around the viewer and one at its position, are merged into one mesh, which
+ * is uploaded once and drawn with a single call; the cube that is shown inside-out is the last one of the mesh, drawn
+ * alone. Each vertex has {@link #FLOATS_PER_VERTEX} floats: the position and the RGBA colour. The cubes are in the
+ * order in which they were drawn one by one before, which matters as the cube is drawn without a depth buffer.
+ *
+ * The model-view-projection matrix is computed from the rotation matrix of the orientation provider. Inside-out, the
+ * rotated cube is moved {@link #DISTANCE} in front of the viewer; outside-in, the viewer is in the centre.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class CubeScene {
+
+  /**
+   * The distance of the cube from the viewer inside-out, and of the cubes around the viewer outside-in
+   */
+  public static final float DISTANCE = 3;
+  /**
+   * The floats of a vertex: x, y, z, red, green, blue and alpha
+   */
+  public static final int FLOATS_PER_VERTEX = 7;
+  public static final int BYTES_PER_VERTEX = FLOATS_PER_VERTEX * 4;
+  /**
+   * The number of indices of a cube, two triangles for each face
+   */
+  public static final int INDICES_PER_CUBE = 36;
+  /**
+   * The offsets of the cubes of the mesh, the one at the viewer last
+   */
+  static final float[][] CUBE_OFFSETS = {
+      {0, 0, -DISTANCE}, {0, 0, DISTANCE}, {0, -DISTANCE, 0}, {0, DISTANCE, 0}, {-DISTANCE, 0, 0}, {DISTANCE, 0, 0},
+      {0, 0, 0}};
+
+  private static final float[] CUBE_VERTICES = {-1, -1, -1, 1, -1, -1, 1, 1, -1, -1, 1, -1, -1, -1, 1, 1, -1, 1, 1,
+      1, 1, -1, 1, 1};
+  private static final float[] CUBE_COLORS = {0, 0, 0, 1, 1, 0, 0, 1, 1, 1, 0, 1, 0, 1, 0, 1, 0, 0, 1, 1, 1, 0, 1, 1,
+      1, 1, 1, 1, 0, 1, 1, 1};
+  /**
+   * The triangles of a cube, clockwise
+   */
+  private static final short[] CUBE_INDICES = {0, 4, 5, 0, 5, 1, 1, 5, 6, 1, 6, 2, 2, 6, 7, 2, 7, 3, 3, 7, 4, 3, 4,
+      0, 4, 7, 6, 4, 6, 5, 3, 0, 1, 3, 1, 2};
+
+  private final FloatBuffer vertices;
+  private final ShortBuffer indices;
+  private final float[] projection = new float[16];
+  private final float[] modelView = new float[16];
+  private final float[] modelViewProjection = new float[16];
+
+  /**
+   * Initialises a new CubeScene
+   */
+  public CubeScene() {
+    int cubeVertices = CUBE_VERTICES.length / 3;
+    vertices = ByteBuffer.allocateDirect(CUBE_OFFSETS.length * cubeVertices * BYTES_PER_VERTEX)
+        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    indices = ByteBuffer.allocateDirect(CUBE_OFFSETS.length * INDICES_PER_CUBE * 2).order(ByteOrder.nativeOrder())
+        .asShortBuffer();
+    for (int cube = 0; cube < CUBE_OFFSETS.length; cube++) {
+      for (int vertex = 0; vertex < cubeVertices; vertex++) {
+        for (int axis = 0; axis < 3; axis++) {
+          vertices.put(CUBE_VERTICES[vertex * 3 + axis] + CUBE_OFFSETS[cube][axis]);
+        }
+        vertices.put(CUBE_COLORS, vertex * 4, 4);
+      }
+      for (short index : CUBE_INDICES) {
+        indices.put((short) (cube * cubeVertices + index));
+      }
+    }
+    vertices.position(0);
+    indices.position(0);
+    Matrix.setIdentityM(projection, 0);
+  }
+
+  /**
+   * @return The vertices of all cubes, to be uploaded once
+   */
+  public FloatBuffer getVertices() {
+    return vertices;
+  }
+
+  /**
+   * @return The indices of all cubes, to be uploaded once
+   */
+  public ShortBuffer getIndices() {
+    return indices;
+  }
+
+  /**
+   * @param insideOut True for the cube that is seen from the outside, false for the cubes around the viewer
+   * @return The first index to draw
+   */
+  public int getFirstIndex(boolean insideOut) {
+    return insideOut ? (CUBE_OFFSETS.length - 1) * INDICES_PER_CUBE : 0;
+  }
+
+  /**
+   * @param insideOut True for the cube that is seen from the outside, false for the cubes around the viewer
+   * @return The number of indices to draw
+   */
+  public int getIndexCount(boolean insideOut) {
+    return insideOut ? INDICES_PER_CUBE : CUBE_OFFSETS.length * INDICES_PER_CUBE;
+  }
+
+  /**
+   * Sets up the projection for a view of the given size, with the frustum the renderer has always used
+   *
+   * @param width The width of the view in pixels
+   * @param height The height of the view in pixels
+   */
+  public void setViewSize(int width, int height) {
+    float ratio = (float) width / height;
+    Matrix.frustumM(projection, 0, -ratio, ratio, -1, 1, 1, 10);
+  }
+
+  /**
+   * Computes the model-view-projection matrix of the cubes.
+   *
+   * @param rotation The rotation matrix of the orientation provider, column-major
+   * @param insideOut True for the cube that is seen from the outside, false for the cubes around the viewer
+   * @return The matrix, column-major; it is overwritten by the next call
+   */
+  public float[] getModelViewProjection(float[] rotation, boolean insideOut) {
+    if (insideOut) {
+      Matrix.setIdentityM(modelView, 0);
+      modelView[14] = -DISTANCE;
+      Matrix.multiplyMM(modelViewProjection, 0, modelView, 0, rotation, 0);
+      System.arraycopy(modelViewProjection, 0, modelView, 0, 16);
+    } else {
+      System.arraycopy(rotation, 0, modelView, 0, 16);
+    }
+    Matrix.multiplyMM(modelViewProjection, 0, projection, 0, modelView, 0);
+    return modelViewProjection;
+  }
+}
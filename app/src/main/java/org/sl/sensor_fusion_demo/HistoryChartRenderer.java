@@ -0,0 +1,129 @@
+package org.sl.sensor_fusion_demo;
+
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * Draws the yaw, pitch and roll of an {@link OrientationHistory} as line strips with OpenGL ES 2, as a lighter
+ * alternative to the androidplot chart.
+ *
+ * Each frame, the renderer brings its own snapshot of the history up to date and uploads only the vertices of the new
+ * entries into a vertex buffer object with glBufferSubData ({@link HistoryChartVertices} keeps the ring). The three
+ * series are drawn from the same buffer with the same program, one draw call each; the vertex shader maps the time
+ * and the angle to the view, so the vertices never change once they are uploaded. The time axis spans the history
+ * from the oldest to the newest entry, the angle axis -pi to pi.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class HistoryChartRenderer implements GLSurfaceView.Renderer {
+
+  private static final String VERTEX_SHADER = ""
+      + "uniform vec3 uTransform;\n"
+      + "attribute float aTime;\n"
+      + "attribute float aAngle;\n"
+      + "void main() {\n"
+      + "  gl_Position = vec4(aTime * uTransform.x + uTransform.y, aAngle * uTransform.z, 0.0, 1.0);\n"
+      + "}\n";
+  private static final String FRAGMENT_SHADER = ""
+      + "precision mediump float;\n"
+      + "uniform vec4 uColor;\n"
+      + "void main() {\n"
+      + "  gl_FragColor = uColor;\n"
+      + "}\n";
+  /**
+   * The colours of the yaw, pitch and roll, as in the androidplot chart
+   */
+  private static final float[][] SERIES_COLORS = {
+      {100 / 255f, 100 / 255f, 200 / 255f, 1},
+      {100 / 255f, 200 / 255f, 100 / 255f, 1},
+      {200 / 255f, 100 / 255f, 100 / 255f, 1}};
+
+  private final OrientationHistory history;
+  private final OrientationHistory.Snapshot snapshot;
+  private final HistoryChartVertices vertices;
+  private final int[] uploadRanges = new int[2 * HistoryChartVertices.MAX_UPLOAD_RANGES];
+  private int program;
+  private int vertexBuffer;
+  private int timeAttribute;
+  private int angleAttribute;
+  private int transformUniform;
+  private int colorUniform;
+
+  /**
+   * Initialises a new HistoryChartRenderer
+   *
+   * @param history The history to draw
+   */
+  public HistoryChartRenderer(OrientationHistory history) {
+    this.history = history;
+    snapshot = history.createSnapshot();
+    vertices = new HistoryChartVertices(history.getCapacity());
+  }
+
+  @Override
+  public void onSurfaceCreated(GL10 unused, EGLConfig config) {
+    GLES20.glClearColor(1, 1, 1, 1);
+    GLES20.glLineWidth(2);
+
+    program = ShaderPrograms.link(VERTEX_SHADER, FRAGMENT_SHADER);
+    timeAttribute = GLES20.glGetAttribLocation(program, "aTime");
+    angleAttribute = GLES20.glGetAttribLocation(program, "aAngle");
+    transformUniform = GLES20.glGetUniformLocation(program, "uTransform");
+    colorUniform = GLES20.glGetUniformLocation(program, "uColor");
+
+    // The buffer of a new context is empty, so the whole ring is uploaded with the next frame
+    int[] buffers = new int[1];
+    GLES20.glGenBuffers(1, buffers, 0);
+    vertexBuffer = buffers[0];
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
+    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.getVertices().capacity() * 4, null, GLES20.GL_DYNAMIC_DRAW);
+    vertices.invalidate();
+  }
+
+  @Override
+  public void onSurfaceChanged(GL10 unused, int width, int height) {
+    GLES20.glViewport(0, 0, width, height);
+  }
+
+  @Override
+  public void onDrawFrame(GL10 unused) {
+    history.update(snapshot);
+    vertices.update(snapshot);
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
+    int ranges = vertices.takeUploadRanges(uploadRanges);
+    for (int i = 0; i < ranges; i++) {
+      int first = uploadRanges[2 * i];
+      int count = uploadRanges[2 * i + 1];
+      vertices.getVertices().position(first * HistoryChartVertices.FLOATS_PER_VERTEX);
+      GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, first * HistoryChartVertices.BYTES_PER_VERTEX,
+          count * HistoryChartVertices.BYTES_PER_VERTEX, vertices.getVertices());
+    }
+
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    int vertexCount = vertices.getVertexCount();
+    if (vertexCount < 2) {
+      return;
+    }
+
+    // Maps the oldest entry to the left and the newest to the right edge
+    float oldest = vertices.getOldestX();
+    float newest = vertices.getNewestX();
+    float scale = newest > oldest ? 2 / (newest - oldest) : 0;
+    GLES20.glUseProgram(program);
+    GLES20.glUniform3f(transformUniform, scale, -1 - oldest * scale, (float) (1 / Math.PI));
+    GLES20.glEnableVertexAttribArray(timeAttribute);
+    GLES20.glEnableVertexAttribArray(angleAttribute);
+    GLES20.glVertexAttribPointer(timeAttribute, 1, GLES20.GL_FLOAT, false, HistoryChartVertices.BYTES_PER_VERTEX, 0);
+    for (int angle = 0; angle < OrientationHistory.ANGLES; angle++) {
+      GLES20.glVertexAttribPointer(angleAttribute, 1, GLES20.GL_FLOAT, false, HistoryChartVertices.BYTES_PER_VERTEX,
+          (1 + angle) * 4);
+      GLES20.glUniform4fv(colorUniform, 1, SERIES_COLORS[angle], 0);
+      GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, vertices.getFirstVertex(), vertexCount);
+    }
+    GLES20.glDisableVertexAttribArray(timeAttribute);
+    GLES20.glDisableVertexAttribArray(angleAttribute);
+  }
+}
@@ -0,0 +1,216 @@
+package org.sl.sensor_fusion_demo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * The vertices of the orientation history chart that is drawn with OpenGL ES 2, kept in a ring that mirrors a vertex
+ * buffer object, and the ranges of it that have to be uploaded. It does not call OpenGL itself, see
+ * {@link HistoryChartRenderer}.
+ *
+ * Each entry of the history becomes one vertex of {@link #FLOATS_PER_VERTEX} floats: the time in seconds and the yaw,
+ * pitch and roll in radians, so the three series are drawn from the same buffer with a different attribute offset.
+ * The ring has twice as many vertices as the history keeps entries, and every vertex is written both at its slot and
+ * at its slot plus the capacity. The entries from the oldest to the newest are therefore always one contiguous range
+ * of vertices, which is drawn as one line strip, and only the entries added since the last upload have to be
+ * uploaded.
+ *
+ * The time is stored relative to a base, so that it keeps its precision as a float. When the oldest entry is
+ * {@link #REBASE_NS} after the base, it becomes the base and all vertices are written and uploaded again.
+ *
+ * Used by one thread, the GL thread of the chart.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class HistoryChartVertices {
+
+  /**
+   * The floats of a vertex: the time in seconds, the yaw, the pitch and the roll
+   */
+  public static final int FLOATS_PER_VERTEX = 4;
+  public static final int BYTES_PER_VERTEX = FLOATS_PER_VERTEX * 4;
+  /**
+   * The most ranges {@link #takeUploadRanges(int[])} returns
+   */
+  public static final int MAX_UPLOAD_RANGES = 3;
+  /**
+   * The time of the oldest entry after the base in nanoseconds from which the vertices are written again relative to
+   * a new base
+   */
+  public static final long REBASE_NS = 1000000000000L;
+
+  private final int capacity;
+  private final FloatBuffer vertices;
+  private final long[] timestamps;
+  /**
+   * The index in the history of the oldest vertex, and of the one after the newest
+   */
+  private long first;
+  private long end;
+  /**
+   * The index in the history of the oldest vertex that has not been uploaded
+   */
+  private long uploadedEnd;
+  /**
+   * True if all vertices have to be uploaded
+   */
+  private boolean invalidated = true;
+  private boolean hasBase;
+  private long baseTimestamp;
+
+  /**
+   * Initialises a new HistoryChartVertices
+   *
+   * @param capacity The number of entries the history keeps
+   */
+  public HistoryChartVertices(int capacity) {
+    this.capacity = capacity;
+    vertices = ByteBuffer.allocateDirect(2 * capacity * BYTES_PER_VERTEX).order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+    timestamps = new long[capacity];
+  }
+
+  /**
+   * Adds the entries of the snapshot that are not in the ring yet.
+   *
+   * @param snapshot A snapshot of the history, of the same capacity
+   */
+  public void update(OrientationHistory.Snapshot snapshot) {
+    int size = snapshot.size();
+    if (size == 0) {
+      return;
+    }
+    long snapshotFirst = snapshot.getFirstIndex();
+    long snapshotEnd = snapshotFirst + size;
+    if (!hasBase) {
+      baseTimestamp = snapshot.getTimestamp(0);
+      hasBase = true;
+    }
+
+    for (long i = Math.max(end, snapshotFirst); i < snapshotEnd; i++) {
+      int index = (int) (i - snapshotFirst);
+      int slot = (int) (i % capacity);
+      timestamps[slot] = snapshot.getTimestamp(index);
+      write(slot, snapshot.getAngle(index, OrientationHistory.YAW), snapshot.getAngle(index, OrientationHistory.PITCH),
+          snapshot.getAngle(index, OrientationHistory.ROLL));
+    }
+    first = snapshotFirst;
+    end = snapshotEnd;
+    uploadedEnd = Math.max(uploadedEnd, first);
+
+    if (timestamps[(int) (first % capacity)] - baseTimestamp >= REBASE_NS) {
+      rebase();
+    }
+  }
+
+  /**
+   * Writes the vertex of a slot and its mirror
+   */
+  private void write(int slot, float yaw, float pitch, float roll) {
+    float x = (timestamps[slot] - baseTimestamp) / 1e9f;
+    for (int offset = slot * FLOATS_PER_VERTEX; offset < vertices.capacity(); offset += capacity * FLOATS_PER_VERTEX) {
+      vertices.put(offset, x);
+      vertices.put(offset + 1 + OrientationHistory.YAW, yaw);
+      vertices.put(offset + 1 + OrientationHistory.PITCH, pitch);
+      vertices.put(offset + 1 + OrientationHistory.ROLL, roll);
+    }
+  }
+
+  /**
+   * Makes the oldest entry the base of the time and writes the time of all vertices again
+   */
+  private void rebase() {
+    baseTimestamp = timestamps[(int) (first % capacity)];
+    for (long i = first; i < end; i++) {
+      int slot = (int) (i % capacity);
+      int offset = slot * FLOATS_PER_VERTEX;
+      write(slot, vertices.get(offset + 1 + OrientationHistory.YAW),
+          vertices.get(offset + 1 + OrientationHistory.PITCH), vertices.get(offset + 1 + OrientationHistory.ROLL));
+    }
+    invalidated = true;
+  }
+
+  /**
+   * Makes the next {@link #takeUploadRanges(int[])} return the whole ring, e.g. after the vertex buffer object has
+   * been created again with the GL context.
+   */
+  public void invalidate() {
+    invalidated = true;
+  }
+
+  /**
+   * Returns the ranges of vertices that have changed since the last call, and takes them as uploaded.
+   *
+   * @param ranges Receives the first vertex and the number of vertices of each range, at least
+   * 2 * {@link #MAX_UPLOAD_RANGES} long
+   * @return The number of ranges
+   */
+  public int takeUploadRanges(int[] ranges) {
+    long count = end - uploadedEnd;
+    uploadedEnd = end;
+    if (invalidated || count >= capacity) {
+      invalidated = false;
+      ranges[0] = 0;
+      ranges[1] = 2 * capacity;
+      return 1;
+    }
+    if (count == 0) {
+      return 0;
+    }
+
+    int start = (int) ((end - count) % capacity);
+    int wrapped = (int) Math.max(0, start + count - capacity);
+    if (wrapped == 0) {
+      ranges[0] = start;
+      ranges[1] = (int) count;
+      ranges[2] = start + capacity;
+      ranges[3] = (int) count;
+      return 2;
+    }
+    // The end of the ring and the start of its mirror are next to each other
+    ranges[0] = 0;
+    ranges[1] = wrapped;
+    ranges[2] = start;
+    ranges[3] = capacity - start + wrapped;
+    ranges[4] = start + capacity;
+    ranges[5] = capacity - start;
+    return 3;
+  }
+
+  /**
+   * @return The vertices of the ring, to be uploaded from a position of {@link #FLOATS_PER_VERTEX} times the first
+   * vertex of a range
+   */
+  public FloatBuffer getVertices() {
+    return vertices;
+  }
+
+  /**
+   * @return The first vertex of the line strip from the oldest to the newest entry
+   */
+  public int getFirstVertex() {
+    return (int) (first % capacity);
+  }
+
+  /**
+   * @return The number of vertices of the line strip
+   */
+  public int getVertexCount() {
+    return (int) (end - first);
+  }
+
+  /**
+   * @return The time of the oldest vertex in seconds after the base
+   */
+  public float getOldestX() {
+    return vertices.get(getFirstVertex() * FLOATS_PER_VERTEX);
+  }
+
+  /**
+   * @return The time of the newest vertex in seconds after the base
+   */
+  public float getNewestX() {
+    return vertices.get((int) ((end - 1) % capacity) * FLOATS_PER_VERTEX);
+  }
+}
@@ -0,0 +1,172 @@
+package org.sl.sensor_fusion_demo;
+
+/**
+ * Reduces one angle of an {@link OrientationHistory.Snapshot} to about as many points as the chart is wide, with the
+ * Largest-Triangle-Three-Buckets algorithm (S. Steinarsson, Downsampling Time Series for Visual Representation, 2013).
+ *
+ * The entries are split into buckets of equal size. From each bucket, the entry is kept that spans the largest
+ * triangle with the entry kept from the bucket before and the mean of the bucket after, which keeps the peaks and the
+ * shape of the line. The oldest and the newest entry are always kept.
+ *
+ * The buckets are aligned to the index of the entries in the history rather than to the oldest entry of the
+ * snapshot, so the choice for a bucket does not change as the history moves on. Once the bucket after it is complete,
+ * the choice is final and kept. Each {@link #update()} therefore only looks at the entries added since the one
+ * before, plus the newest complete bucket, and the number of points stays the same for any history length.
+ *
+ * Used by the thread that owns the snapshot.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class LargestTriangleDownsampler {
+
+  private final OrientationHistory.Snapshot snapshot;
+  private final int angle;
+  private int bucketSize;
+  /**
+   * The index in the history of the entry kept from each bucket, bucket b at b % selected.length
+   */
+  private long[] selected;
+  /**
+   * The first bucket whose choice is not final
+   */
+  private long nextBucket;
+  /**
+   * The indices in the snapshot of the points, oldest first
+   */
+  private int[] points;
+  private int pointCount;
+
+  /**
+   * Initialises a new LargestTriangleDownsampler, which keeps every entry until {@link #setMaxPoints(int)} is called
+   *
+   * @param snapshot The snapshot to reduce
+   * @param angle {@link OrientationHistory#YAW}, {@link OrientationHistory#PITCH} or {@link OrientationHistory#ROLL}
+   */
+  public LargestTriangleDownsampler(OrientationHistory.Snapshot snapshot, int angle) {
+    this.snapshot = snapshot;
+    this.angle = angle;
+    setBucketSize(1);
+  }
+
+  /**
+   * Sets about how many points are kept at most, e.g. the width of the chart in pixels. The choices are made again if
+   * this changes the size of the buckets.
+   *
+   * @param maxPoints The number of points, at least 3
+   */
+  public void setMaxPoints(int maxPoints) {
+    int capacity = snapshot.getCapacity();
+    int buckets = Math.max(1, maxPoints - 2);
+    setBucketSize(Math.max(1, (capacity + buckets - 1) / buckets));
+  }
+
+  private void setBucketSize(int bucketSize) {
+    if (bucketSize == this.bucketSize) {
+      return;
+    }
+    this.bucketSize = bucketSize;
+    int buckets = snapshot.getCapacity() / bucketSize + 2;
+    selected = new long[buckets];
+    points = new int[buckets];
+    nextBucket = 0;
+    pointCount = 0;
+  }
+
+  /**
+   * @return The number of entries in a bucket
+   */
+  public int getBucketSize() {
+    return bucketSize;
+  }
+
+  /**
+   * Chooses the points of the entries in the snapshot. Call after the snapshot has been updated.
+   */
+  public void update() {
+    int size = snapshot.size();
+    pointCount = 0;
+    if (size == 0) {
+      return;
+    }
+    if (bucketSize == 1) {
+      for (int i = 0; i < size; i++) {
+        points[i] = i;
+      }
+      pointCount = size;
+      return;
+    }
+    long first = snapshot.getFirstIndex();
+    long end = first + size;
+    // The buckets that start after the oldest entry, which is always kept, up to the newest complete one
+    long firstBucket = first / bucketSize + 1;
+    long endBucket = end / bucketSize;
+
+    for (long bucket = Math.max(nextBucket, firstBucket); bucket < endBucket; bucket++) {
+      select(bucket, firstBucket, first, end);
+    }
+    // The newest complete bucket is chosen again once the bucket after it is complete
+    nextBucket = Math.max(firstBucket, endBucket - 1);
+
+    points[pointCount++] = 0;
+    for (long bucket = firstBucket; bucket < endBucket; bucket++) {
+      points[pointCount++] = (int) (selected[(int) (bucket % selected.length)] - first);
+    }
+    if (points[pointCount - 1] != size - 1) {
+      points[pointCount++] = size - 1;
+    }
+  }
+
+  /**
+   * Keeps the entry of a bucket that spans the largest triangle with the entry kept before and the mean of the bucket
+   * after, or of the newest entry if that bucket has no entries yet
+   */
+  private void select(long bucket, long firstBucket, long first, long end) {
+    long previous = bucket > firstBucket ? selected[(int) ((bucket - 1) % selected.length)] : first;
+    long previousTimestamp = snapshot.getTimestamp((int) (previous - first));
+    float previousValue = snapshot.getAngle((int) (previous - first), angle);
+
+    long nextStart = (bucket + 1) * bucketSize;
+    long nextEnd = Math.min(nextStart + bucketSize, end);
+    if (nextStart >= nextEnd) {
+      nextStart = end - 1;
+      nextEnd = end;
+    }
+    double nextX = 0;
+    double nextY = 0;
+    for (long i = nextStart; i < nextEnd; i++) {
+      nextX += snapshot.getTimestamp((int) (i - first)) - previousTimestamp;
+      nextY += snapshot.getAngle((int) (i - first), angle) - previousValue;
+    }
+    nextX /= nextEnd - nextStart;
+    nextY /= nextEnd - nextStart;
+
+    // Twice the area of the triangle, with the previous entry at the origin
+    long best = bucket * bucketSize;
+    double bestArea = -1;
+    for (long i = bucket * bucketSize; i < (bucket + 1) * bucketSize; i++) {
+      double x = snapshot.getTimestamp((int) (i - first)) - previousTimestamp;
+      double y = snapshot.getAngle((int) (i - first), angle) - previousValue;
+      double area = Math.abs(x * nextY - nextX * y);
+      if (area > bestArea) {
+        bestArea = area;
+        best = i;
+      }
+    }
+    selected[(int) (bucket % selected.length)] = best;
+  }
+
+  /**
+   * @return The number of points
+   */
+  public int size() {
+    return pointCount;
+  }
+
+  /**
+   * @param point The index of the point, 0 for the oldest
+   * @return The index of its entry in the snapshot
+   */
+  public int getIndex(int point) {
+    return points[point];
+  }
+}
@@ -0,0 +1,192 @@
+package org.sl.sensor_fusion_demo;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size history of yaw, pitch and roll with timestamps, written by one thread (the GL thread, once per frame)
+ * and read by others (the chart's render thread).
+ *
+ * The entries are kept in a ring of primitive arrays, so adding one costs the same for any capacity and allocates
+ * nothing. The writer stores an entry in the slot of the oldest one and then publishes the new count; readers never
+ * block it. A reader copies the entries into its own {@link Snapshot}, which only copies the entries added since its
+ * previous copy. If the writer overwrote a slot while it was being copied, which the count read after copying tells,
+ * that entry is left out of the snapshot. As in the orientation the providers publish, the values are stored as raw
+ * float bits in atomic arrays, whose ordered stores and volatile loads make the check valid under the Java memory
+ * model.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class OrientationHistory {
+
+  /**
+   * The indices of the angles in an entry
+   */
+  public static final int YAW = 0;
+  public static final int PITCH = 1;
+  public static final int ROLL = 2;
+  /**
+   * The number of angles in an entry
+   */
+  public static final int ANGLES = 3;
+
+  private final int capacity;
+  /**
+   * The number of slots, one more than the capacity for the entry that is being added
+   */
+  private final int slots;
+  private final AtomicLongArray timestamps;
+  /**
+   * The angles of each slot as raw float bits, yaw, pitch and roll one after another
+   */
+  private final AtomicIntegerArray angles;
+  /**
+   * The number of entries added so far; entry i is in slot i % slots
+   */
+  private final AtomicLong count = new AtomicLong();
+
+  /**
+   * Initialises a new OrientationHistory
+   *
+   * @param capacity The number of entries kept
+   */
+  public OrientationHistory(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1");
+    }
+    this.capacity = capacity;
+    slots = capacity + 1;
+    timestamps = new AtomicLongArray(slots);
+    angles = new AtomicIntegerArray(slots * ANGLES);
+  }
+
+  /**
+   * Adds an entry, replacing the oldest one once the history is full. Must only be called from one thread at a time.
+   *
+   * @param timestamp The time of the entry in nanoseconds
+   * @param yaw The yaw (azimuth) in radians
+   * @param pitch The pitch in radians
+   * @param roll The roll in radians
+   */
+  public void add(long timestamp, float yaw, float pitch, float roll) {
+    long index = count.get();
+    int slot = (int) (index % slots);
+    timestamps.lazySet(slot, timestamp);
+    angles.lazySet(slot * ANGLES + YAW, Float.floatToRawIntBits(yaw));
+    angles.lazySet(slot * ANGLES + PITCH, Float.floatToRawIntBits(pitch));
+    angles.lazySet(slot * ANGLES + ROLL, Float.floatToRawIntBits(roll));
+    count.lazySet(index + 1);
+  }
+
+  /**
+   * @return The number of entries kept
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return The number of entries added since the history was created, including those that were replaced
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Brings a snapshot up to date with the entries added since it was last updated.
+   *
+   * @param snapshot The snapshot, which must have been created for this history and belongs to the calling thread
+   * @return The number of entries that were copied
+   */
+  public int update(Snapshot snapshot) {
+    long end = count.get();
+    long start = Math.max(snapshot.end, end - capacity);
+    for (long i = start; i < end; i++) {
+      int slot = (int) (i % slots);
+      snapshot.timestamps[slot] = timestamps.get(slot);
+      snapshot.angles[slot * ANGLES + YAW] = Float.intBitsToFloat(angles.get(slot * ANGLES + YAW));
+      snapshot.angles[slot * ANGLES + PITCH] = Float.intBitsToFloat(angles.get(slot * ANGLES + PITCH));
+      snapshot.angles[slot * ANGLES + ROLL] = Float.intBitsToFloat(angles.get(slot * ANGLES + ROLL));
+    }
+
+    // The writer may have started to overwrite the entry a full ring before the one it is adding now
+    long firstIntact = count.get() - slots + 1;
+    snapshot.first = Math.max(Math.max(snapshot.first, end - capacity), Math.min(firstIntact, end));
+    snapshot.end = end;
+    return (int) (end - start);
+  }
+
+  /**
+   * @return A new, empty snapshot of this history
+   */
+  public Snapshot createSnapshot() {
+    return new Snapshot(slots);
+  }
+
+  /**
+   * A copy of the entries of a history that belongs to one reading thread. The entries are indexed from 0 (the
+   * oldest) to {@link #size()} - 1 (the newest).
+   */
+  public static final class Snapshot {
+    private final int slots;
+    private final long[] timestamps;
+    private final float[] angles;
+    /**
+     * The index in the history of the oldest entry in the snapshot, and of the one after the newest
+     */
+    private long first;
+    private long end;
+
+    private Snapshot(int slots) {
+      this.slots = slots;
+      timestamps = new long[slots];
+      angles = new float[slots * ANGLES];
+    }
+
+    /**
+     * @return The number of entries the history keeps
+     */
+    public int getCapacity() {
+      return slots - 1;
+    }
+
+    /**
+     * @return The index in the history of the oldest entry, which counts all entries ever added
+     */
+    public long getFirstIndex() {
+      return first;
+    }
+
+    /**
+     * @return The number of entries
+     */
+    public int size() {
+      return (int) (end - first);
+    }
+
+    /**
+     * @param index The index of the entry, 0 for the oldest
+     * @return The time of the entry in nanoseconds
+     */
+    public long getTimestamp(int index) {
+      return timestamps[(int) ((first + index) % slots)];
+    }
+
+    /**
+     * @param index The index of the entry, 0 for the oldest
+     * @param angle {@link #YAW}, {@link #PITCH} or {@link #ROLL}
+     * @return The angle in radians
+     */
+    public float getAngle(int index, int angle) {
+      return angles[(int) ((first + index) % slots) * ANGLES + angle];
+    }
+
+    /**
+     * @return The time of the newest entry in nanoseconds, 0 if the snapshot is empty
+     */
+    public long getLatestTimestamp() {
+      return end == first ? 0 : timestamps[(int) ((end - 1) % slots)];
+    }
+  }
+}
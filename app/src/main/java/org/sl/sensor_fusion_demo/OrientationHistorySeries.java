@@ -0,0 +1,78 @@
+package org.sl.sensor_fusion_demo;
+
+import android.graphics.Canvas;
+import com.androidplot.Plot;
+import com.androidplot.PlotListener;
+import com.androidplot.xy.XYSeries;
+
+/**
+ * Shows one angle of an {@link OrientationHistory} in a chart. The x values are the seconds before the newest entry,
+ * the y values the angle in degrees.
+ *
+ * The series reads its own snapshot of the history, which it brings up to date before each time the plot is drawn, so
+ * it has to be added to the plot as a listener as well. The plot reads the series on the thread that draws it, while
+ * the history keeps being written on another one. The values are only boxed as they are read.
+ *
+ * A long history is reduced to about one point per pixel of the plot's width by a
+ * {@link LargestTriangleDownsampler}, so drawing the series costs the same for any history length.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class OrientationHistorySeries implements XYSeries, PlotListener {
+
+  private final String title;
+  private final OrientationHistory history;
+  private final OrientationHistory.Snapshot snapshot;
+  private final int angle;
+  private final LargestTriangleDownsampler downsampler;
+  private long latestTimestamp;
+
+  /**
+   * Initialises a new OrientationHistorySeries
+   *
+   * @param title The title of the series in the legend
+   * @param history The history to show
+   * @param angle {@link OrientationHistory#YAW}, {@link OrientationHistory#PITCH} or {@link OrientationHistory#ROLL}
+   */
+  public OrientationHistorySeries(String title, OrientationHistory history, int angle) {
+    this.title = title;
+    this.history = history;
+    this.angle = angle;
+    snapshot = history.createSnapshot();
+    downsampler = new LargestTriangleDownsampler(snapshot, angle);
+  }
+
+  @Override
+  public void onBeforeDraw(Plot source, Canvas canvas) {
+    history.update(snapshot);
+    if (source.getWidth() > 0) {
+      downsampler.setMaxPoints(source.getWidth());
+    }
+    downsampler.update();
+    latestTimestamp = snapshot.getLatestTimestamp();
+  }
+
+  @Override
+  public void onAfterDraw(Plot source, Canvas canvas) {
+  }
+
+  @Override
+  public String getTitle() {
+    return title;
+  }
+
+  @Override
+  public int size() {
+    return downsampler.size();
+  }
+
+  @Override
+  public Number getX(int index) {
+    return (snapshot.getTimestamp(downsampler.getIndex(index)) - latestTimestamp) / 1e9f;
+  }
+
+  @Override
+  public Number getY(int index) {
+    return (float) Math.toDegrees(snapshot.getAngle(downsampler.getIndex(index), angle));
+  }
+}
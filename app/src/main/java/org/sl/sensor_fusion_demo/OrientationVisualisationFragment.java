@@ -5,33 +5,50 @@ import android.graphics.Paint;
 import android.hardware.SensorManager;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnLongClickListener;
 import android.view.ViewGroup;
+import android.widget.Toast;
 import com.androidplot.Plot;
 import com.androidplot.util.PlotStatistics;
 import com.androidplot.util.Redrawer;
 import com.androidplot.xy.BoundaryMode;
 import com.androidplot.xy.LineAndPointFormatter;
-import com.androidplot.xy.SimpleXYSeries;
 import com.androidplot.xy.XYPlot;
 import com.androidplot.xy.XYStepMode;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.sl.sensor_fusion_demo.orientationProvider.AccelerometerCompassProvider;
 import org.sl.sensor_fusion_demo.orientationProvider.CalibratedGyroscopeProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.ErrorStateKalmanFilterProvider;
 import org.sl.sensor_fusion_demo.orientationProvider.GravityCompassProvider;
 import org.sl.sensor_fusion_demo.orientationProvider.ImprovedOrientationSensor1Provider;
 import org.sl.sensor_fusion_demo.orientationProvider.ImprovedOrientationSensor2Provider;
+import org.sl.sensor_fusion_demo.orientationProvider.MadgwickProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.MahonyProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationChangeListener;
 import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
 import org.sl.sensor_fusion_demo.orientationProvider.RotationVectorProvider;
-import org.sl.sensor_fusion_demo.representation.EulerAngles;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorFanOut;
+import org.sl.sensor_fusion_demo.orientationProvider.StillnessRateController;
+import org.sl.sensor_fusion_demo.trace.ColumnarTraceFormat;
+import org.sl.sensor_fusion_demo.trace.ColumnarTraceWriter;
+import org.sl.sensor_fusion_demo.trace.SensorEventRecorder;
 
 /**
  * A fragment that contains the same visualisation for different orientation providers
  */
-public class OrientationVisualisationFragment extends Fragment implements OnDrawFrameListener {
+public class OrientationVisualisationFragment extends Fragment implements OnDrawFrameListener,
+    OrientationChangeListener {
   public static final String ARG_SECTION_TITLE = "section_title";
   /**
    * The fragment argument representing the section number for this
@@ -39,14 +56,37 @@ public class OrientationVisualisationFragment extends Fragment implements OnDraw
    */
   public static final String ARG_SECTION_NUMBER = "section_number";
   /**
-   * The chart that will show values from sensor
+   * The number of frames whose orientation is kept in the history chart, about a minute at 60 frames per second; the
+   * chart reduces them to about one point per pixel
    */
-  //	private GLSurfaceView mChartGLSurfaceView;
-  private static final int HISTORY_SIZE = 300;
+  private static final int HISTORY_SIZE = 3600;
+  /**
+   * The number of display refreshes from drawing a frame until it is shown (the frame is queued behind the one that is
+   * currently scanned out)
+   */
+  private static final int FRAMES_TO_DISPLAY = 2;
+  /**
+   * The angle in radians the orientation has to turn by before the cube is drawn again when it is only drawn on
+   * changes, about the angle by which the picture of the cube moves by a pixel on a phone
+   */
+  private static final float RENDER_THRESHOLD_RAD = (float) Math.toRadians(0.1);
+  /**
+   * The sections whose providers run side by side when comparing, those that are shown in the menu
+   */
+  private static final int[] COMPARED_SECTIONS = {R.id.action_section1, R.id.action_section4, R.id.action_section5,
+      R.id.action_section6, R.id.action_section7, R.id.action_section8, R.id.action_section9};
+  /**
+   * The time in milliseconds between two logs of the queues and the processing times when comparing
+   */
+  private static final long FAN_OUT_LOG_INTERVAL_MS = 5000;
   /**
    * The surface that will be drawn upon
    */
   private GLSurfaceView mGLSurfaceView;
+  /**
+   * The surface the history chart is drawn upon with OpenGL instead of the androidplot chart, if visible
+   */
+  private GLSurfaceView mChartGLSurfaceView;
   /**
    * The class that renders the cube
    */
@@ -56,11 +96,44 @@ public class OrientationVisualisationFragment extends Fragment implements OnDraw
    */
   private OrientationProvider currentOrientationProvider;
   private XYPlot aprHistoryPlot = null;
-  private SimpleXYSeries azimuthHistorySeries = null;
-  //	private SimpleXYSeries pitchHistorySeries = null;
-  //	private SimpleXYSeries rollHistorySeries = null;
+  /**
+   * The yaw, pitch and roll of each frame, written on the GL thread and read by the chart's series
+   */
+  private final OrientationHistory orientationHistory = new OrientationHistory(HISTORY_SIZE);
 
   private Redrawer redrawer;
+  /**
+   * The number of frames the cube has been drawn since {@link #framesCountedSinceMs}
+   */
+  private final AtomicInteger renderedFrames = new AtomicInteger();
+  private long framesCountedSinceMs;
+  /**
+   * The yaw, pitch and roll the current orientation is copied into for each frame
+   */
+  private final float[] eulerAngles = new float[3];
+  /**
+   * Records the sensor events of the current orientation provider, null if not recording
+   */
+  private SensorEventRecorder traceRecorder;
+  /**
+   * The file the sensor events are recorded to
+   */
+  private File traceFile;
+  /**
+   * Runs the providers of all sections on the same sensor data while comparing, null otherwise. The current provider
+   * is one of them, so the cube keeps showing it.
+   */
+  private SensorFanOut sensorFanOut;
+  /**
+   * Logs the queues and the processing times of the compared providers every {@link #FAN_OUT_LOG_INTERVAL_MS}
+   */
+  private final Runnable fanOutLogger = new Runnable() {
+    @Override
+    public void run() {
+      Log.d("OrientationVisualisation", sensorFanOut.toString());
+      mGLSurfaceView.postDelayed(this, FAN_OUT_LOG_INTERVAL_MS);
+    }
+  };
 
   @Override
   public void onResume() {
@@ -68,6 +141,7 @@ public class OrientationVisualisationFragment extends Fragment implements OnDraw
     // to take appropriate action when the activity looses focus
     super.onResume();
     mGLSurfaceView.onResume();
+    mChartGLSurfaceView.onResume();
   }
 
   @Override
@@ -77,52 +151,29 @@ public class OrientationVisualisationFragment extends Fragment implements OnDraw
     super.onPause();
     //		currentOrientationProvider.stop();
     mGLSurfaceView.onPause();
+    mChartGLSurfaceView.onPause();
   }
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
     // Initialise the orientationProvider
-    switch (getArguments().getInt(ARG_SECTION_NUMBER)) {
-      case R.id.action_section1:
-        currentOrientationProvider = new ImprovedOrientationSensor1Provider((SensorManager) getActivity()
-            .getSystemService(SensorSelectionActivity.SENSOR_SERVICE));
-        break;
-      case R.id.action_section2:
-        currentOrientationProvider = new ImprovedOrientationSensor2Provider((SensorManager) getActivity()
-            .getSystemService(SensorSelectionActivity.SENSOR_SERVICE));
-        break;
-      case R.id.action_section3:
-        currentOrientationProvider = new RotationVectorProvider((SensorManager) getActivity().getSystemService(
-            SensorSelectionActivity.SENSOR_SERVICE));
-        break;
-      case R.id.action_section4:
-        currentOrientationProvider = new CalibratedGyroscopeProvider((SensorManager) getActivity()
-            .getSystemService(SensorSelectionActivity.SENSOR_SERVICE));
-        break;
-      case R.id.action_section5:
-        currentOrientationProvider = new GravityCompassProvider((SensorManager) getActivity().getSystemService(
-            SensorSelectionActivity.SENSOR_SERVICE));
-        break;
-      case R.id.action_section6:
-        currentOrientationProvider = new AccelerometerCompassProvider((SensorManager) getActivity()
-            .getSystemService(SensorSelectionActivity.SENSOR_SERVICE));
-        break;
-      default:
-        break;
-    }
+    currentOrientationProvider = createProvider(getArguments().getInt(ARG_SECTION_NUMBER));
 
     View v = inflater.inflate(R.layout.fragment_visualization, container, false);
 
-    //		mChartGLSurfaceView = (GLSurfaceView) v.findViewById(R.id.glChartSurfaceView);
-    //		mChartGLSurfaceView.setEGLContextClientVersion(2);
-    //		mChartGLSurfaceView.setPreserveEGLContextOnPause(true);
-    //		mChartGLSurfaceView.setRenderer(new ChartRenderer());
+    // The chart is drawn when there is a new entry in the history
+    mChartGLSurfaceView = (GLSurfaceView) v.findViewById(R.id.glChartSurfaceView);
+    mChartGLSurfaceView.setEGLContextClientVersion(2);
+    mChartGLSurfaceView.setPreserveEGLContextOnPause(true);
+    mChartGLSurfaceView.setRenderer(new HistoryChartRenderer(orientationHistory));
+    mChartGLSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
 
     // Create our Preview view and set it as the content of our Activity
     mRenderer = new CubeRenderer();
     mRenderer.setOrientationProvider(currentOrientationProvider);
     mRenderer.setDrawFrameListener(this);
     mGLSurfaceView = (GLSurfaceView) v.findViewById(R.id.glSurfaceView);
+    mGLSurfaceView.setEGLContextClientVersion(2);
     mGLSurfaceView.setRenderer(mRenderer);
 
     mGLSurfaceView.setOnLongClickListener(new OnLongClickListener() {
@@ -130,6 +181,7 @@ public class OrientationVisualisationFragment extends Fragment implements OnDraw
       @Override
       public boolean onLongClick(View v) {
         mRenderer.toggleShowCubeInsideOut();
+        mGLSurfaceView.requestRender();
         return true;
       }
     });
@@ -139,32 +191,67 @@ public class OrientationVisualisationFragment extends Fragment implements OnDraw
     return v;
   }
 
+  /**
+   * @param section The menu item id of the section
+   * @return A new instance of the orientation provider of the section, null for an unknown section
+   */
+  private OrientationProvider createProvider(int section) {
+    SensorManager sensorManager = (SensorManager) getActivity().getSystemService(
+        SensorSelectionActivity.SENSOR_SERVICE);
+    switch (section) {
+      case R.id.action_section1:
+        return new ImprovedOrientationSensor1Provider(sensorManager);
+      case R.id.action_section2:
+        return new ImprovedOrientationSensor2Provider(sensorManager);
+      case R.id.action_section3:
+        return new RotationVectorProvider(sensorManager);
+      case R.id.action_section4:
+        return new CalibratedGyroscopeProvider(sensorManager);
+      case R.id.action_section5:
+        return new GravityCompassProvider(sensorManager);
+      case R.id.action_section6:
+        return new AccelerometerCompassProvider(sensorManager);
+      case R.id.action_section7:
+        return new ErrorStateKalmanFilterProvider(sensorManager);
+      case R.id.action_section8:
+        return new MadgwickProvider(sensorManager);
+      case R.id.action_section9:
+        return new MahonyProvider(sensorManager);
+      default:
+        return null;
+    }
+  }
+
   private void setupChart(View v) {
     aprHistoryPlot = (XYPlot) v.findViewById(R.id.aprHistoryPlot);
 
-    azimuthHistorySeries = new SimpleXYSeries("Значення відносного позиціонування");
-    azimuthHistorySeries.useImplicitXVals();
-    //		pitchHistorySeries = new SimpleXYSeries("Pitch");
-    //		pitchHistorySeries.useImplicitXVals();
-    //		rollHistorySeries = new SimpleXYSeries("Roll");
-    //		rollHistorySeries.useImplicitXVals();
+    OrientationHistorySeries azimuthHistorySeries = new OrientationHistorySeries("Azimuth", orientationHistory,
+        OrientationHistory.YAW);
+    OrientationHistorySeries pitchHistorySeries = new OrientationHistorySeries("Pitch", orientationHistory,
+        OrientationHistory.PITCH);
+    OrientationHistorySeries rollHistorySeries = new OrientationHistorySeries("Roll", orientationHistory,
+        OrientationHistory.ROLL);
 
     aprHistoryPlot.setTitle(getArguments().getString(ARG_SECTION_TITLE));
-    aprHistoryPlot.setRangeBoundaries(-1, 1, BoundaryMode.AUTO);
-    aprHistoryPlot.setDomainBoundaries(0, HISTORY_SIZE, BoundaryMode.AUTO);
+    aprHistoryPlot.setRangeBoundaries(-180, 180, BoundaryMode.AUTO);
+    aprHistoryPlot.setDomainBoundaries(-1, 0, BoundaryMode.AUTO);
     aprHistoryPlot.addSeries(azimuthHistorySeries,
         new LineAndPointFormatter(
             Color.rgb(100, 100, 200), null, null, null));
-    //		aprHistoryPlot.addSeries(pitchHistorySeries,
-    //				new LineAndPointFormatter(
-    //						Color.rgb(100, 200, 100), null, null, null));
-    //		aprHistoryPlot.addSeries(rollHistorySeries,
-    //				new LineAndPointFormatter(
-    //						Color.rgb(200, 100, 100), null, null, null));
+    aprHistoryPlot.addSeries(pitchHistorySeries,
+        new LineAndPointFormatter(
+            Color.rgb(100, 200, 100), null, null, null));
+    aprHistoryPlot.addSeries(rollHistorySeries,
+        new LineAndPointFormatter(
+            Color.rgb(200, 100, 100), null, null, null));
+    // The series bring their snapshots of the history up to date before each time the plot is drawn
+    aprHistoryPlot.addListener(azimuthHistorySeries);
+    aprHistoryPlot.addListener(pitchHistorySeries);
+    aprHistoryPlot.addListener(rollHistorySeries);
     aprHistoryPlot.setDomainStepMode(XYStepMode.INCREMENT_BY_VAL);
-    aprHistoryPlot.setDomainStepValue(HISTORY_SIZE / 15);
+    aprHistoryPlot.setDomainStepValue(10);
     aprHistoryPlot.setTicksPerRangeLabel(3);
-    //		aprHistoryPlot.setDomainLabel("Sample Index");
+    //		aprHistoryPlot.setDomainLabel("Time (s)");
     //		aprHistoryPlot.getDomainLabelWidget().pack();
     //		aprHistoryPlot.setRangeLabel("Angle (Degs)");
     //		aprHistoryPlot.getRangeLabelWidget().pack();
@@ -199,18 +286,211 @@ public class OrientationVisualisationFragment extends Fragment implements OnDraw
 
   @Override
   public void onDrawFrame() {
-    // get rid the oldest sample in history:
-    if (azimuthHistorySeries.size() > HISTORY_SIZE) {
-      //			rollHistorySeries.removeFirst();
-      //			pitchHistorySeries.removeFirst();
-      azimuthHistorySeries.removeFirst();
+    renderedFrames.incrementAndGet();
+    // add the latest history sample, replacing the oldest one:
+    currentOrientationProvider.getEulerAngles(eulerAngles);
+    orientationHistory.add(System.nanoTime(), eulerAngles[0], eulerAngles[1], eulerAngles[2]);
+    mChartGLSurfaceView.requestRender();
+  }
+
+  /**
+   * Starts recording the sensor events of the current orientation provider to a trace file in the app's external
+   * files directory, or stops recording if it is already running.
+   *
+   * @return True if recording is running now
+   */
+  public boolean toggleTraceRecording() {
+    if (traceRecorder != null) {
+      stopTraceRecording();
+      return false;
     }
 
-    // add the latest history sample:
-    EulerAngles values = currentOrientationProvider.getEulerAngles();
-    azimuthHistorySeries.addLast(null, (values.getYaw() + values.getPitch() + values.getRoll()) / 3);
-    //		pitchHistorySeries.addLast(null, values.getPitch());
-    //		rollHistorySeries.addLast(null, values.getRoll());
+    File directory = getActivity().getExternalFilesDir(null);
+    if (directory == null) {
+      Toast.makeText(getActivity(), R.string.trace_failed, Toast.LENGTH_LONG).show();
+      return false;
+    }
+    traceFile = new File(directory, "trace-" + System.currentTimeMillis() + ColumnarTraceFormat.FILE_EXTENSION);
+    try {
+      traceRecorder = ColumnarTraceWriter.create(traceFile);
+    } catch (IOException e) {
+      Log.e("OrientationVisualisation", "Could not start recording to " + traceFile, e);
+      Toast.makeText(getActivity(), R.string.trace_failed, Toast.LENGTH_LONG).show();
+      return false;
+    }
+    currentOrientationProvider.setTraceRecorder(traceRecorder);
+    return true;
+  }
+
+  /**
+   * Toggles whether the cube is drawn with the orientation predicted for the time the frame reaches the display, which
+   * compensates for the latency from the sensors to the display, or with the latest orientation.
+   *
+   * @return True if the prediction is enabled now
+   */
+  public boolean togglePrediction() {
+    if (mRenderer.getPresentationLatency() > 0) {
+      mRenderer.setPresentationLatency(0);
+      return false;
+    }
+    float refreshRate = getActivity().getWindowManager().getDefaultDisplay().getRefreshRate();
+    mRenderer.setPresentationLatency((long) (FRAMES_TO_DISPLAY * 1e9 / refreshRate));
+    return true;
+  }
+
+  /**
+   * Toggles whether the sensors of the current orientation provider run at a low rate while the device is still.
+   * Restarts the provider, as the rate controller can only be changed while it is stopped.
+   *
+   * @return True if the adaptive rate is enabled now
+   */
+  public boolean toggleAdaptiveRate() {
+    boolean enable = currentOrientationProvider.getRateController() == null;
+    if (sensorFanOut != null) {
+      // Takes effect once the comparison has stopped
+      currentOrientationProvider.setRateController(enable ? new StillnessRateController() : null);
+      return enable;
+    }
+    currentOrientationProvider.stop();
+    currentOrientationProvider.setRateController(enable ? new StillnessRateController() : null);
+    currentOrientationProvider.start();
+    return enable;
+  }
+
+  /**
+   * Toggles whether the providers of all sections run side by side on the same sensor data, with each sensor
+   * registered once, so that their queues and their processing times can be compared in the log. The cube keeps
+   * showing the current provider. While comparing, the adaptive rate does not apply and no sensor events are recorded.
+   *
+   * @return True if the providers are compared now
+   */
+  public boolean toggleFanOut() {
+    if (sensorFanOut != null) {
+      mGLSurfaceView.removeCallbacks(fanOutLogger);
+      sensorFanOut.stop();
+      sensorFanOut = null;
+      currentOrientationProvider.start();
+      return false;
+    }
+
+    int currentSection = getArguments().getInt(ARG_SECTION_NUMBER);
+    List<OrientationProvider> providers = new ArrayList<OrientationProvider>();
+    providers.add(currentOrientationProvider);
+    for (int section : COMPARED_SECTIONS) {
+      if (section != currentSection) {
+        providers.add(createProvider(section));
+      }
+    }
+    currentOrientationProvider.stop();
+    sensorFanOut = new SensorFanOut((SensorManager) getActivity().getSystemService(
+        SensorSelectionActivity.SENSOR_SERVICE), providers, SensorFanOut.DEFAULT_QUEUE_CAPACITY);
+    sensorFanOut.start();
+    mGLSurfaceView.postDelayed(fanOutLogger, FAN_OUT_LOG_INTERVAL_MS);
+    return true;
+  }
+
+  /**
+   * Toggles whether the history chart is drawn with OpenGL, which only uploads the new entries to the GPU each frame,
+   * or by androidplot, which draws every point on the canvas.
+   *
+   * @return True if the chart is drawn with OpenGL now
+   */
+  public boolean toggleGlChart() {
+    boolean enable = mChartGLSurfaceView.getVisibility() != View.VISIBLE;
+    if (enable) {
+      redrawer.pause();
+      aprHistoryPlot.setVisibility(View.GONE);
+      mChartGLSurfaceView.setVisibility(View.VISIBLE);
+    } else {
+      mChartGLSurfaceView.setVisibility(View.GONE);
+      aprHistoryPlot.setVisibility(View.VISIBLE);
+      redrawer.start();
+    }
+    return enable;
+  }
+
+  /**
+   * Toggles whether the cube is drawn only when the orientation has turned by more than {@link #RENDER_THRESHOLD_RAD},
+   * or continuously at the display rate. The frames drawn per minute in the mode that ends are logged.
+   *
+   * @return True if the cube is drawn only on changes now
+   */
+  public boolean toggleRenderWhenDirty() {
+    boolean enable = mGLSurfaceView.getRenderMode() == GLSurfaceView.RENDERMODE_CONTINUOUSLY;
+    logRenderedFrames();
+    if (enable) {
+      mGLSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+      currentOrientationProvider.setOrientationChangeListener(this, RENDER_THRESHOLD_RAD);
+    } else {
+      currentOrientationProvider.setOrientationChangeListener(null, 0);
+      mGLSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+    }
+    return enable;
+  }
+
+  /**
+   * Toggles whether the sensor events of the current orientation provider are delivered and fused on the main thread
+   * or on its dedicated sensor thread. Restarts the provider, which logs the sample-to-callback and callback-to-publish
+   * latencies of the mode that ends, so that both modes can be compared.
+   *
+   * @return True if the sensor events are fused on the main thread now
+   */
+  public boolean toggleMainLooper() {
+    boolean enable = currentOrientationProvider.isUsingSensorThread();
+    if (sensorFanOut != null) {
+      // Takes effect once the comparison has stopped
+      currentOrientationProvider.setUseSensorThread(!enable);
+      return enable;
+    }
+    currentOrientationProvider.stop();
+    currentOrientationProvider.setUseSensorThread(!enable);
+    currentOrientationProvider.start();
+    return enable;
+  }
+
+  @Override
+  public void onOrientationChanged() {
+    // Called on the sensor thread. The GL thread draws once for all requests made since it last drew, and a frame
+    // waits for the display to take the previous one, so any number of updates leads to at most one frame per vsync.
+    mGLSurfaceView.requestRender();
+  }
+
+  /**
+   * Logs how many frames per minute the cube was drawn since the last call, and starts counting again
+   */
+  private void logRenderedFrames() {
+    long now = SystemClock.elapsedRealtime();
+    int frames = renderedFrames.getAndSet(0);
+    long elapsedMs = now - framesCountedSinceMs;
+    framesCountedSinceMs = now;
+    if (elapsedMs > 0) {
+      String mode = mGLSurfaceView.getRenderMode() == GLSurfaceView.RENDERMODE_CONTINUOUSLY ? "continuously"
+          : "on changes";
+      Log.d("OrientationVisualisation", String.format(Locale.US, "Drawn %s: %d frames in %.1f s, %.0f per minute",
+          mode, frames, elapsedMs / 1e3, frames * 60e3 / elapsedMs));
+    }
+  }
+
+  /**
+   * Stops recording the sensor events and closes the trace file, if recording
+   */
+  private void stopTraceRecording() {
+    if (traceRecorder == null) {
+      return;
+    }
+    currentOrientationProvider.setTraceRecorder(null);
+    try {
+      traceRecorder.close();
+      if (traceRecorder.getDroppedEvents() > 0) {
+        Log.w("OrientationVisualisation", "Dropped " + traceRecorder.getDroppedEvents() + " sensor events");
+      }
+      Toast.makeText(getActivity(), getString(R.string.trace_recorded, traceRecorder.getRecordedEvents(),
+          traceFile.getAbsolutePath()), Toast.LENGTH_LONG).show();
+    } catch (IOException e) {
+      Log.e("OrientationVisualisation", "Could not write " + traceFile, e);
+      Toast.makeText(getActivity(), R.string.trace_failed, Toast.LENGTH_LONG).show();
+    }
+    traceRecorder = null;
   }
 
   @Override
@@ -221,16 +501,34 @@ public class OrientationVisualisationFragment extends Fragment implements OnDraw
   @Override
   public void onStart() {
     super.onStart();
-    currentOrientationProvider.start();
+    if (sensorFanOut != null) {
+      sensorFanOut.start();
+      mGLSurfaceView.postDelayed(fanOutLogger, FAN_OUT_LOG_INTERVAL_MS);
+    } else {
+      currentOrientationProvider.start();
+    }
     mGLSurfaceView.onResume();
-    redrawer.start();
+    mChartGLSurfaceView.onResume();
+    if (aprHistoryPlot.getVisibility() == View.VISIBLE) {
+      redrawer.start();
+    }
+    renderedFrames.set(0);
+    framesCountedSinceMs = SystemClock.elapsedRealtime();
   }
 
   @Override
   public void onStop() {
+    logRenderedFrames();
+    stopTraceRecording();
     redrawer.pause();
-    currentOrientationProvider.stop();
+    if (sensorFanOut != null) {
+      mGLSurfaceView.removeCallbacks(fanOutLogger);
+      sensorFanOut.stop();
+    } else {
+      currentOrientationProvider.stop();
+    }
     mGLSurfaceView.onPause();
+    mChartGLSurfaceView.onPause();
     super.onStop();
   }
 }
\ No newline at end of file
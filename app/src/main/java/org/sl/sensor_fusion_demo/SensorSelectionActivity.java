@@ -30,6 +30,72 @@ public class SensorSelectionActivity extends AppCompatActivity {
     mToolbar.setOnMenuItemClickListener(new Toolbar.OnMenuItemClickListener() {
       @Override
       public boolean onMenuItemClick(MenuItem item) {
+        if (item.getItemId() == R.id.action_record_trace) {
+          OrientationVisualisationFragment fragment = (OrientationVisualisationFragment) getSupportFragmentManager()
+              .findFragmentByTag("fragment_sensors");
+          if (fragment != null) {
+            item.setChecked(fragment.toggleTraceRecording());
+          }
+          return true;
+        }
+        if (item.getItemId() == R.id.action_predict_orientation) {
+          OrientationVisualisationFragment fragment = (OrientationVisualisationFragment) getSupportFragmentManager()
+              .findFragmentByTag("fragment_sensors");
+          if (fragment != null) {
+            item.setChecked(fragment.togglePrediction());
+          }
+          return true;
+        }
+        if (item.getItemId() == R.id.action_adaptive_rate) {
+          OrientationVisualisationFragment fragment = (OrientationVisualisationFragment) getSupportFragmentManager()
+              .findFragmentByTag("fragment_sensors");
+          if (fragment != null) {
+            item.setChecked(fragment.toggleAdaptiveRate());
+          }
+          return true;
+        }
+        if (item.getItemId() == R.id.action_fan_out) {
+          OrientationVisualisationFragment fragment = (OrientationVisualisationFragment) getSupportFragmentManager()
+              .findFragmentByTag("fragment_sensors");
+          if (fragment != null) {
+            item.setChecked(fragment.toggleFanOut());
+          }
+          return true;
+        }
+        if (item.getItemId() == R.id.action_gl_chart) {
+          OrientationVisualisationFragment fragment = (OrientationVisualisationFragment) getSupportFragmentManager()
+              .findFragmentByTag("fragment_sensors");
+          if (fragment != null) {
+            item.setChecked(fragment.toggleGlChart());
+          }
+          return true;
+        }
+        if (item.getItemId() == R.id.action_render_when_dirty) {
+          OrientationVisualisationFragment fragment = (OrientationVisualisationFragment) getSupportFragmentManager()
+              .findFragmentByTag("fragment_sensors");
+          if (fragment != null) {
+            item.setChecked(fragment.toggleRenderWhenDirty());
+          }
+          return true;
+        }
+        if (item.getItemId() == R.id.action_main_looper) {
+          OrientationVisualisationFragment fragment = (OrientationVisualisationFragment) getSupportFragmentManager()
+              .findFragmentByTag("fragment_sensors");
+          if (fragment != null) {
+            item.setChecked(fragment.toggleMainLooper());
+          }
+          return true;
+        }
+
+        // The recording, the prediction, the adaptive rate, the comparison, the OpenGL chart, the drawing on changes
+        // and the fusion on the main thread stop together with the fragment
+        mToolbar.getMenu().findItem(R.id.action_record_trace).setChecked(false);
+        mToolbar.getMenu().findItem(R.id.action_predict_orientation).setChecked(false);
+        mToolbar.getMenu().findItem(R.id.action_adaptive_rate).setChecked(false);
+        mToolbar.getMenu().findItem(R.id.action_fan_out).setChecked(false);
+        mToolbar.getMenu().findItem(R.id.action_gl_chart).setChecked(false);
+        mToolbar.getMenu().findItem(R.id.action_render_when_dirty).setChecked(false);
+        mToolbar.getMenu().findItem(R.id.action_main_looper).setChecked(false);
         getSupportFragmentManager().beginTransaction()
             .replace(R.id.container, getItem(item.getItemId()), "fragment_sensors")
             .commit();
@@ -93,6 +159,12 @@ public class SensorSelectionActivity extends AppCompatActivity {
         return getString(R.string.title_section5).toUpperCase(l);
       case R.id.action_section6:
         return getString(R.string.title_section6).toUpperCase(l);
+      case R.id.action_section7:
+        return getString(R.string.title_section7).toUpperCase(l);
+      case R.id.action_section8:
+        return getString(R.string.title_section8).toUpperCase(l);
+      case R.id.action_section9:
+        return getString(R.string.title_section9).toUpperCase(l);
     }
     return null;
   }
@@ -0,0 +1,48 @@
+package org.sl.sensor_fusion_demo;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Compiles and links the OpenGL ES 2 shader programs of the renderers
+ *
+ * @author Stanislav Lelyuk
+ */
+final class ShaderPrograms {
+
+  private ShaderPrograms() {
+  }
+
+  /**
+   * Compiles the shaders and links them into a program. Must be called on a GL thread with a current context. Errors
+   * are logged; the program then draws nothing.
+   *
+   * @param vertexShader The source of the vertex shader
+   * @param fragmentShader The source of the fragment shader
+   * @return The program
+   */
+  static int link(String vertexShader, String fragmentShader) {
+    int program = GLES20.glCreateProgram();
+    GLES20.glAttachShader(program, compile(GLES20.GL_VERTEX_SHADER, vertexShader));
+    GLES20.glAttachShader(program, compile(GLES20.GL_FRAGMENT_SHADER, fragmentShader));
+    GLES20.glLinkProgram(program);
+    int[] status = new int[1];
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+    if (status[0] == 0) {
+      Log.e("ShaderPrograms", "Could not link a program: " + GLES20.glGetProgramInfoLog(program));
+    }
+    return program;
+  }
+
+  private static int compile(int type, String source) {
+    int shader = GLES20.glCreateShader(type);
+    GLES20.glShaderSource(shader, source);
+    GLES20.glCompileShader(shader);
+    int[] status = new int[1];
+    GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+    if (status[0] == 0) {
+      Log.e("ShaderPrograms", "Could not compile a shader: " + GLES20.glGetShaderInfoLog(shader));
+    }
+    return shader;
+  }
+}
@@ -1,26 +1,49 @@
 package org.sl.sensor_fusion_demo.orientationProvider;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
 import android.hardware.SensorManager;
 
 /**
  * The orientation provider that delivers the current orientation from the {@link Sensor#TYPE_ACCELEROMETER
  * Accelerometer} and {@link Sensor#TYPE_MAGNETIC_FIELD Compass}.
+ * The compass samples are corrected for the hard- and soft-iron distortion of the device by the
+ * {@link MagnetometerCalibrator}.
  *
  * @author Stanislav Lelyuk
  */
 public class AccelerometerCompassProvider extends OrientationProvider {
 
   /**
-   * Compass values
+   * The number of samples kept per sensor for the synchronisation
    */
-  private float[] magnitudeValues = new float[3];
+  private static final int SYNCHRONISER_CAPACITY = 8;
+  /**
+   * How far a sensor is extrapolated beyond its newest sample to the timestamp of a sample of the other sensor. Both
+   * sensors are noisy compared to how far the device turns between two samples, and extrapolating amplifies the noise
+   * more than it reduces the lag, so the newest sample is held unless a newer one brackets the timestamp.
+   */
+  private static final long MAX_EXTRAPOLATION_NS = 0;
+
+  /**
+   * Interpolates each sensor onto the timestamps of the samples of the other one
+   */
+  private final SensorSynchroniser synchroniser = new SensorSynchroniser(SYNCHRONISER_CAPACITY,
+      MAX_EXTRAPOLATION_NS);
+
+  /**
+   * Compass values at the timestamp of the last fused sample
+   */
+  private final float[] magnitudeValues = new float[3];
+
+  /**
+   * Accelerometer values at the timestamp of the last fused sample
+   */
+  private final float[] accelerometerValues = new float[3];
 
   /**
-   * Accelerometer values
+   * Receives the inclination matrix, which is not used
    */
-  private float[] accelerometerValues = new float[3];
+  private final float[] inclinationMatrix = new float[16];
 
   /**
    * Initialises a new AccelerometerCompassProvider
@@ -33,27 +56,35 @@ public class AccelerometerCompassProvider extends OrientationProvider {
     //Add the compass and the accelerometer
     sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER));
     sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD));
+    synchroniser.addVectorSensor(Sensor.TYPE_ACCELEROMETER, 3);
+    synchroniser.addVectorSensor(Sensor.TYPE_MAGNETIC_FIELD, 3);
+    // Differentiating the noisy orientation makes the prediction worse than no prediction
+    disableAngularVelocityEstimation();
   }
 
   @Override
-  public void onSensorChanged(SensorEvent event) {
+  public void onSensorSample(int sensorType, long timestamp, float[] values) {
 
     // we received a sensor event. it is a good practice to check
     // that we received the proper event
-    if (event.sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
-      magnitudeValues = event.values.clone();
-    } else if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-      accelerometerValues = event.values.clone();
+    if (sensorType != Sensor.TYPE_MAGNETIC_FIELD && sensorType != Sensor.TYPE_ACCELEROMETER) {
+      return;
     }
+    if (sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
+      values = correctMagnetometer(timestamp, values);
+    }
+    synchroniser.add(sensorType, timestamp, values);
 
-    if (magnitudeValues != null && accelerometerValues != null) {
-      float[] i = new float[16];
-
+    // Fuse this sample with the other sensor at the same time, once both have delivered a sample
+    if (synchroniser.get(Sensor.TYPE_ACCELEROMETER, timestamp, accelerometerValues)
+        && synchroniser.get(Sensor.TYPE_MAGNETIC_FIELD, timestamp, magnitudeValues)) {
       // Fuse accelerometer with compass
-      SensorManager.getRotationMatrix(currentOrientationRotationMatrix.matrix, i, accelerometerValues,
+      SensorManager.getRotationMatrix(currentOrientationRotationMatrix.matrix, inclinationMatrix, accelerometerValues,
           magnitudeValues);
       // Transform rotation matrix to quaternion
       currentOrientationQuaternion.setRowMajor(currentOrientationRotationMatrix.matrix);
+
+      publishOrientation();
     }
   }
 }
@@ -0,0 +1,502 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+
+/**
+ * The orientation provider that delivers the absolute orientation by fusing the {@link Sensor#TYPE_GYROSCOPE
+ * Gyroscope}, {@link Sensor#TYPE_ACCELEROMETER Accelerometer} and {@link Sensor#TYPE_MAGNETIC_FIELD Compass} with an
+ * error-state (multiplicative) Kalman filter.
+ *
+ * The nominal state is the orientation quaternion and the gyroscope bias. The gyroscope drives the prediction; the
+ * filter itself only tracks the small error of that nominal state (three attitude error angles in device coordinates
+ * and three bias errors) and their 6x6 covariance. The direction of gravity measured by the accelerometer corrects
+ * pitch and roll, the horizontal direction of the magnetic field corrects the heading. After each correction the error
+ * is moved into the nominal state and reset to zero. Unlike the slerp based providers this also estimates the
+ * gyroscope bias, so the orientation does not drift while the absolute sensors are rejected.
+ *
+ * All state lives in preallocated fixed-size arrays, so processing an event does not allocate.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class ErrorStateKalmanFilterProvider extends OrientationProvider {
+
+  /**
+   * Constant specifying the factor between a Nano-second and a second
+   */
+  private static final float NS2S = 1.0f / 1000000000.0f;
+  /**
+   * Noise density of the gyroscope in rad/s/sqrt(Hz). Determines how fast the attitude uncertainty grows between two
+   * corrections.
+   */
+  private static final float GYROSCOPE_NOISE = 0.005f;
+  /**
+   * Random walk of the gyroscope bias in rad/s^2/sqrt(Hz). Determines how fast the bias estimate may follow a
+   * changing bias.
+   */
+  private static final float GYROSCOPE_BIAS_RANDOM_WALK = 0.0002f;
+  /**
+   * Standard deviation of the measured gravity direction (a unit vector). Much larger than the actual sensor noise,
+   * because small linear accelerations of the device also end up in it.
+   */
+  private static final float ACCELEROMETER_NOISE = 0.1f;
+  /**
+   * Accelerometer samples whose magnitude differs by more than this from gravity (in m/s^2) are not used, because
+   * the device is accelerating and they do not show the direction of gravity.
+   */
+  private static final float ACCELEROMETER_GATE = 1.5f;
+  /**
+   * Standard deviation of the heading measured by the compass in radians
+   */
+  private static final float MAGNETOMETER_NOISE = 0.15f;
+  /**
+   * Compass samples whose magnitude (in micro Tesla) lies outside of this range are not used, as they are disturbed.
+   */
+  private static final float MAGNETOMETER_MIN = 15f;
+  private static final float MAGNETOMETER_MAX = 100f;
+  /**
+   * Initial standard deviation of the attitude error in radians
+   */
+  private static final float INITIAL_ATTITUDE_ERROR = 0.1f;
+  /**
+   * Initial standard deviation of the gyroscope bias in rad/s
+   */
+  private static final float INITIAL_BIAS_ERROR = 0.05f;
+
+  /**
+   * The nominal orientation, rotating from device to world coordinates
+   */
+  private float qw = 1;
+  private float qx;
+  private float qy;
+  private float qz;
+  /**
+   * The estimated gyroscope bias in rad/s
+   */
+  private final float[] bias = new float[3];
+  /**
+   * The 6x6 covariance of the error state (attitude error, bias error), row-major
+   */
+  private final float[] covariance = new float[36];
+  /**
+   * The error state estimated by the current correction (attitude error, bias error)
+   */
+  private final float[] errorState = new float[6];
+  /**
+   * The measurement row of the current scalar correction
+   */
+  private final float[] measurementRow = new float[6];
+  /**
+   * The covariance times the measurement row of the current scalar correction
+   */
+  private final float[] covarianceTimesRow = new float[6];
+  /**
+   * Scratch 3x3 matrices for the covariance prediction
+   */
+  private final float[] transition = new float[9];
+  private final float[] attitudeProduct = new float[9];
+  private final float[] crossProduct = new float[9];
+  /**
+   * The device to world rotation matrix (3x3, row-major) of the nominal orientation
+   */
+  private final float[] rotation = new float[9];
+  /**
+   * The latest accelerometer and compass samples, used for the initial orientation
+   */
+  private final float[] accelerometerValues = new float[3];
+  private final float[] magneticValues = new float[3];
+  private boolean hasAccelerometer;
+  private boolean hasMagnetic;
+  /**
+   * Flag indicating whether the orientation was initialised from accelerometer and compass
+   */
+  private boolean initialised;
+  /**
+   * The time-stamp being used to record the time when the last gyroscope event occurred.
+   */
+  private long timestamp;
+
+  /**
+   * Initialises a new ErrorStateKalmanFilterProvider
+   *
+   * @param sensorManager The android sensor manager
+   */
+  public ErrorStateKalmanFilterProvider(SensorManager sensorManager) {
+    super(sensorManager);
+
+    //Add the gyroscope, the accelerometer and the compass
+    sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE));
+    sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER));
+    sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD));
+  }
+
+  /**
+   * @param output The float[3] that receives the estimated gyroscope bias in rad/s, on top of the bias that the
+   * {@link #getGyroscopeBiasEstimator() calibration} removes
+   */
+  public void getGyroscopeBias(float[] output) {
+    output[0] = bias[0];
+    output[1] = bias[1];
+    output[2] = bias[2];
+  }
+
+  @Override
+  protected void onGyroscopeBiasChanged(float changeX, float changeY, float changeZ) {
+    bias[0] -= changeX;
+    bias[1] -= changeY;
+    bias[2] -= changeZ;
+  }
+
+  @Override
+  public void onSensorSample(int sensorType, long eventTimestamp, float[] values) {
+    if (sensorType == Sensor.TYPE_GYROSCOPE) {
+      float[] rate = correctGyroscope(eventTimestamp, values);
+      if (initialised && timestamp != 0) {
+        predict(rate[0], rate[1], rate[2], (eventTimestamp - timestamp) * NS2S);
+        setAngularVelocity(rate[0] - bias[0], rate[1] - bias[1], rate[2] - bias[2]);
+        publishOrientation(qw, qx, qy, qz);
+      }
+      timestamp = eventTimestamp;
+    } else if (sensorType == Sensor.TYPE_ACCELEROMETER) {
+      observeAccelerometer(eventTimestamp, values);
+      accelerometerValues[0] = values[0];
+      accelerometerValues[1] = values[1];
+      accelerometerValues[2] = values[2];
+      hasAccelerometer = true;
+      if (initialised) {
+        correctWithAccelerometer(values[0], values[1], values[2]);
+      } else {
+        initialise();
+      }
+    } else if (sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
+      float[] field = correctMagnetometer(eventTimestamp, values);
+      magneticValues[0] = field[0];
+      magneticValues[1] = field[1];
+      magneticValues[2] = field[2];
+      hasMagnetic = true;
+      if (initialised) {
+        correctWithMagnetometer(field[0], field[1], field[2]);
+      } else {
+        initialise();
+      }
+    }
+  }
+
+  /**
+   * Initialises the orientation from the latest accelerometer and compass samples (the same construction as
+   * {@link SensorManager#getRotationMatrix}) and the covariance with the initial uncertainties.
+   */
+  private void initialise() {
+    if (!hasAccelerometer || !hasMagnetic) {
+      return;
+    }
+
+    // Up, east and north in device coordinates are the rows of the device to world rotation
+    float ax = accelerometerValues[0];
+    float ay = accelerometerValues[1];
+    float az = accelerometerValues[2];
+    float ex = magneticValues[1] * az - magneticValues[2] * ay;
+    float ey = magneticValues[2] * ax - magneticValues[0] * az;
+    float ez = magneticValues[0] * ay - magneticValues[1] * ax;
+    float normA = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+    float normE = (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+    if (normA < 0.1f || normE < 0.1f) {
+      // Free fall or compass parallel to gravity
+      return;
+    }
+    ax /= normA;
+    ay /= normA;
+    az /= normA;
+    ex /= normE;
+    ey /= normE;
+    ez /= normE;
+
+    float[] r = rotation;
+    r[0] = ex;
+    r[1] = ey;
+    r[2] = ez;
+    r[3] = ay * ez - az * ey;
+    r[4] = az * ex - ax * ez;
+    r[5] = ax * ey - ay * ex;
+    r[6] = ax;
+    r[7] = ay;
+    r[8] = az;
+    setQuaternionFromRotation();
+
+    for (int i = 0; i < 36; i++) {
+      covariance[i] = 0;
+    }
+    for (int i = 0; i < 3; i++) {
+      covariance[i * 7] = INITIAL_ATTITUDE_ERROR * INITIAL_ATTITUDE_ERROR;
+      covariance[(i + 3) * 7] = INITIAL_BIAS_ERROR * INITIAL_BIAS_ERROR;
+      bias[i] = 0;
+    }
+
+    initialised = true;
+    publishOrientation(qw, qx, qy, qz);
+  }
+
+  /**
+   * Moves the nominal orientation by the bias corrected gyroscope sample and propagates the covariance.
+   *
+   * @param gx The angular speed around x in rad/s
+   * @param gy The angular speed around y in rad/s
+   * @param gz The angular speed around z in rad/s
+   * @param dT The time since the last gyroscope sample in seconds
+   */
+  private void predict(float gx, float gy, float gz, float dT) {
+    float wx = (gx - bias[0]) * dT;
+    float wy = (gy - bias[1]) * dT;
+    float wz = (gz - bias[2]) * dT;
+
+    // q = q * exp(w / 2)
+    float angle = (float) Math.sqrt(wx * wx + wy * wy + wz * wz);
+    float dw;
+    float scale;
+    if (angle > 1e-6f) {
+      dw = (float) Math.cos(angle / 2);
+      scale = (float) Math.sin(angle / 2) / angle;
+    } else {
+      dw = 1;
+      scale = 0.5f;
+    }
+    multiplyNominal(dw, wx * scale, wy * scale, wz * scale);
+
+    // The error transition is F = [A, -dT * I; 0, I] with A = I - [w]x, so
+    // P' = [A Paa A' - dT (A Pab + (A Pab)') + dT^2 Pbb, A Pab - dT Pbb; ..., Pbb]
+    float[] p = covariance;
+    float[] a = transition;
+    a[0] = 1;
+    a[1] = wz;
+    a[2] = -wy;
+    a[3] = -wz;
+    a[4] = 1;
+    a[5] = wx;
+    a[6] = wy;
+    a[7] = -wx;
+    a[8] = 1;
+
+    float[] aPaa = attitudeProduct;
+    float[] aPab = crossProduct;
+    for (int i = 0; i < 3; i++) {
+      for (int j = 0; j < 3; j++) {
+        aPaa[i * 3 + j] = a[i * 3] * p[j] + a[i * 3 + 1] * p[6 + j] + a[i * 3 + 2] * p[12 + j];
+        aPab[i * 3 + j] = a[i * 3] * p[3 + j] + a[i * 3 + 1] * p[9 + j] + a[i * 3 + 2] * p[15 + j];
+      }
+    }
+
+    float dT2 = dT * dT;
+    for (int i = 0; i < 3; i++) {
+      for (int j = i; j < 3; j++) {
+        float value = aPaa[i * 3] * a[j * 3] + aPaa[i * 3 + 1] * a[j * 3 + 1] + aPaa[i * 3 + 2] * a[j * 3 + 2]
+            - dT * (aPab[i * 3 + j] + aPab[j * 3 + i]) + dT2 * p[(i + 3) * 6 + j + 3];
+        p[i * 6 + j] = value;
+        p[j * 6 + i] = value;
+      }
+    }
+    for (int i = 0; i < 3; i++) {
+      for (int j = 0; j < 3; j++) {
+        float value = aPab[i * 3 + j] - dT * p[(i + 3) * 6 + j + 3];
+        p[i * 6 + j + 3] = value;
+        p[(j + 3) * 6 + i] = value;
+      }
+    }
+
+    float attitudeNoise = GYROSCOPE_NOISE * GYROSCOPE_NOISE * dT;
+    float biasNoise = GYROSCOPE_BIAS_RANDOM_WALK * GYROSCOPE_BIAS_RANDOM_WALK * dT;
+    for (int i = 0; i < 3; i++) {
+      p[i * 7] += attitudeNoise;
+      p[(i + 3) * 7] += biasNoise;
+    }
+  }
+
+  /**
+   * Corrects pitch and roll with the direction of gravity.
+   *
+   * The predicted measurement is the world up axis in device coordinates, v = R' * up. An attitude error e changes
+   * it to v + [v]x * e, so each of the three components is a scalar measurement with a row of [v]x.
+   */
+  private void correctWithAccelerometer(float ax, float ay, float az) {
+    float norm = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+    if (Math.abs(norm - SensorManager.GRAVITY_EARTH) > ACCELEROMETER_GATE) {
+      return;
+    }
+    ax /= norm;
+    ay /= norm;
+    az /= norm;
+
+    updateRotation();
+    float vx = rotation[6];
+    float vy = rotation[7];
+    float vz = rotation[8];
+    float variance = ACCELEROMETER_NOISE * ACCELEROMETER_NOISE;
+
+    clearErrorState();
+    setMeasurementRow(0, -vz, vy);
+    scalarUpdate(ax - vx, variance);
+    setMeasurementRow(vz, 0, -vx);
+    scalarUpdate(ay - vy, variance);
+    setMeasurementRow(-vy, vx, 0);
+    scalarUpdate(az - vz, variance);
+    injectErrorState();
+  }
+
+  /**
+   * Corrects the heading with the horizontal direction of the magnetic field, so that magnetic disturbances cannot
+   * tilt the orientation.
+   *
+   * With the nominal orientation, the field in world coordinates should point north (x = 0). The angle between its
+   * horizontal part and north is the heading error, which an attitude error e changes by (R' * up) . e.
+   */
+  private void correctWithMagnetometer(float mx, float my, float mz) {
+    float norm = (float) Math.sqrt(mx * mx + my * my + mz * mz);
+    if (norm < MAGNETOMETER_MIN || norm > MAGNETOMETER_MAX) {
+      return;
+    }
+
+    updateRotation();
+    float[] r = rotation;
+    float east = r[0] * mx + r[1] * my + r[2] * mz;
+    float north = r[3] * mx + r[4] * my + r[5] * mz;
+    if (east * east + north * north < 1e-6f) {
+      return;
+    }
+    float headingError = (float) Math.atan2(east, north);
+
+    clearErrorState();
+    setMeasurementRow(r[6], r[7], r[8]);
+    scalarUpdate(headingError, MAGNETOMETER_NOISE * MAGNETOMETER_NOISE);
+    injectErrorState();
+  }
+
+  /**
+   * Sets the attitude part of the measurement row; measurements never depend directly on the bias.
+   */
+  private void setMeasurementRow(float h0, float h1, float h2) {
+    measurementRow[0] = h0;
+    measurementRow[1] = h1;
+    measurementRow[2] = h2;
+    measurementRow[3] = 0;
+    measurementRow[4] = 0;
+    measurementRow[5] = 0;
+  }
+
+  /**
+   * Kalman update of the error state with one scalar measurement. The measurements of a vector sensor have
+   * independent noise, so updating with them one after the other is exact and avoids inverting a matrix.
+   *
+   * @param innovation The measured minus the predicted value of the nominal state
+   * @param variance The variance of the measurement
+   */
+  private void scalarUpdate(float innovation, float variance) {
+    float[] p = covariance;
+    float[] h = measurementRow;
+    float[] ph = covarianceTimesRow;
+
+    // h has no bias part, so only the first three columns of P contribute to P h'
+    float s = variance;
+    float residual = innovation;
+    for (int i = 0; i < 6; i++) {
+      ph[i] = p[i * 6] * h[0] + p[i * 6 + 1] * h[1] + p[i * 6 + 2] * h[2];
+      s += h[i] * ph[i];
+      residual -= h[i] * errorState[i];
+    }
+
+    float inverse = 1 / s;
+    for (int i = 0; i < 6; i++) {
+      errorState[i] += ph[i] * inverse * residual;
+    }
+    // P = P - K h P = P - (P h')(P h')' / s
+    for (int i = 0; i < 6; i++) {
+      float phi = ph[i] * inverse;
+      for (int j = 0; j < 6; j++) {
+        p[i * 6 + j] -= phi * ph[j];
+      }
+    }
+  }
+
+  /**
+   * Resets the error state before a correction
+   */
+  private void clearErrorState() {
+    for (int i = 0; i < 6; i++) {
+      errorState[i] = 0;
+    }
+  }
+
+  /**
+   * Moves the estimated error into the nominal orientation and bias
+   */
+  private void injectErrorState() {
+    float[] e = errorState;
+    multiplyNominal(1, e[0] / 2, e[1] / 2, e[2] / 2);
+    bias[0] += e[3];
+    bias[1] += e[4];
+    bias[2] += e[5];
+  }
+
+  /**
+   * Multiplies the nominal orientation from the right with the given rotation (in device coordinates) and normalises
+   * it.
+   */
+  private void multiplyNominal(float dw, float dx, float dy, float dz) {
+    float w = qw * dw - qx * dx - qy * dy - qz * dz;
+    float x = qw * dx + qx * dw + qy * dz - qz * dy;
+    float y = qw * dy - qx * dz + qy * dw + qz * dx;
+    float z = qw * dz + qx * dy - qy * dx + qz * dw;
+    float norm = (float) Math.sqrt(w * w + x * x + y * y + z * z);
+    qw = w / norm;
+    qx = x / norm;
+    qy = y / norm;
+    qz = z / norm;
+  }
+
+  /**
+   * Computes the 3x3 device to world rotation matrix of the nominal orientation
+   */
+  private void updateRotation() {
+    float[] r = rotation;
+    r[0] = 1 - 2 * (qy * qy + qz * qz);
+    r[1] = 2 * (qx * qy - qw * qz);
+    r[2] = 2 * (qx * qz + qw * qy);
+    r[3] = 2 * (qx * qy + qw * qz);
+    r[4] = 1 - 2 * (qx * qx + qz * qz);
+    r[5] = 2 * (qy * qz - qw * qx);
+    r[6] = 2 * (qx * qz - qw * qy);
+    r[7] = 2 * (qy * qz + qw * qx);
+    r[8] = 1 - 2 * (qx * qx + qy * qy);
+  }
+
+  /**
+   * Sets the nominal orientation from the 3x3 device to world rotation matrix
+   */
+  private void setQuaternionFromRotation() {
+    float[] r = rotation;
+    float trace = r[0] + r[4] + r[8];
+    if (trace > 0) {
+      float s = (float) Math.sqrt(trace + 1) * 2;
+      qw = 0.25f * s;
+      qx = (r[7] - r[5]) / s;
+      qy = (r[2] - r[6]) / s;
+      qz = (r[3] - r[1]) / s;
+    } else if (r[0] > r[4] && r[0] > r[8]) {
+      float s = (float) Math.sqrt(1 + r[0] - r[4] - r[8]) * 2;
+      qw = (r[7] - r[5]) / s;
+      qx = 0.25f * s;
+      qy = (r[1] + r[3]) / s;
+      qz = (r[2] + r[6]) / s;
+    } else if (r[4] > r[8]) {
+      float s = (float) Math.sqrt(1 + r[4] - r[0] - r[8]) * 2;
+      qw = (r[2] - r[6]) / s;
+      qx = (r[1] + r[3]) / s;
+      qy = 0.25f * s;
+      qz = (r[5] + r[7]) / s;
+    } else {
+      float s = (float) Math.sqrt(1 + r[8] - r[0] - r[4]) * 2;
+      qw = (r[3] - r[1]) / s;
+      qx = (r[2] + r[6]) / s;
+      qy = (r[5] + r[7]) / s;
+      qz = 0.25f * s;
+    }
+  }
+}
@@ -1,26 +1,49 @@
 package org.sl.sensor_fusion_demo.orientationProvider;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
 import android.hardware.SensorManager;
 
 /**
  * The orientation provider that delivers the current orientation from the {@link Sensor#TYPE_GRAVITY
  * Gravity} and {@link Sensor#TYPE_MAGNETIC_FIELD Compass}.
+ * The compass samples are corrected for the hard- and soft-iron distortion of the device by the
+ * {@link MagnetometerCalibrator}.
  *
  * @author Stanislav Lelyuk
  */
 public class GravityCompassProvider extends OrientationProvider {
 
   /**
-   * Compass values
+   * The number of samples kept per sensor for the synchronisation
    */
-  private float[] magnitudeValues = new float[3];
+  private static final int SYNCHRONISER_CAPACITY = 8;
+  /**
+   * How far a sensor is extrapolated beyond its newest sample to the timestamp of a sample of the other sensor. Both
+   * sensors are noisy compared to how far the device turns between two samples, and extrapolating amplifies the noise
+   * more than it reduces the lag, so the newest sample is held unless a newer one brackets the timestamp.
+   */
+  private static final long MAX_EXTRAPOLATION_NS = 0;
+
+  /**
+   * Interpolates each sensor onto the timestamps of the samples of the other one
+   */
+  private final SensorSynchroniser synchroniser = new SensorSynchroniser(SYNCHRONISER_CAPACITY,
+      MAX_EXTRAPOLATION_NS);
+
+  /**
+   * Compass values at the timestamp of the last fused sample
+   */
+  private final float[] magnitudeValues = new float[3];
+
+  /**
+   * Gravity values at the timestamp of the last fused sample
+   */
+  private final float[] gravityValues = new float[3];
 
   /**
-   * Gravity values
+   * Receives the inclination matrix, which is not used
    */
-  private float[] gravityValues = new float[3];
+  private final float[] inclinationMatrix = new float[16];
 
   /**
    * Initialises a new GravityCompassProvider
@@ -33,26 +56,35 @@ public class GravityCompassProvider extends OrientationProvider {
     //Add the compass and the gravity sensor
     sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY));
     sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD));
+    synchroniser.addVectorSensor(Sensor.TYPE_GRAVITY, 3);
+    synchroniser.addVectorSensor(Sensor.TYPE_MAGNETIC_FIELD, 3);
+    // Differentiating the noisy orientation makes the prediction worse than no prediction
+    disableAngularVelocityEstimation();
   }
 
   @Override
-  public void onSensorChanged(SensorEvent event) {
+  public void onSensorSample(int sensorType, long timestamp, float[] values) {
 
     // we received a sensor event. it is a good practice to check
     // that we received the proper event
-    if (event.sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
-      magnitudeValues = event.values.clone();
-    } else if (event.sensor.getType() == Sensor.TYPE_GRAVITY) {
-      gravityValues = event.values.clone();
+    if (sensorType != Sensor.TYPE_MAGNETIC_FIELD && sensorType != Sensor.TYPE_GRAVITY) {
+      return;
     }
+    if (sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
+      values = correctMagnetometer(timestamp, values);
+    }
+    synchroniser.add(sensorType, timestamp, values);
 
-    if (magnitudeValues != null && gravityValues != null) {
-      float[] i = new float[16];
-
+    // Fuse this sample with the other sensor at the same time, once both have delivered a sample
+    if (synchroniser.get(Sensor.TYPE_GRAVITY, timestamp, gravityValues)
+        && synchroniser.get(Sensor.TYPE_MAGNETIC_FIELD, timestamp, magnitudeValues)) {
       // Fuse gravity-sensor (virtual sensor) with compass
-      SensorManager.getRotationMatrix(currentOrientationRotationMatrix.matrix, i, gravityValues, magnitudeValues);
+      SensorManager.getRotationMatrix(currentOrientationRotationMatrix.matrix, inclinationMatrix, gravityValues,
+          magnitudeValues);
       // Transform rotation matrix to quaternion
       currentOrientationQuaternion.setRowMajor(currentOrientationRotationMatrix.matrix);
+
+      publishOrientation();
     }
   }
 }
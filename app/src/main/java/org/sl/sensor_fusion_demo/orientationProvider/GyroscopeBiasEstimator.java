@@ -0,0 +1,242 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+/**
+ * Estimates the bias of the gyroscope while the device is stationary and removes it from every gyroscope sample.
+ *
+ * The samples are collected in windows of {@link #WINDOW_NS}. For each window, the mean and the variance of every
+ * axis are updated incrementally (Welford's algorithm), so the memory and the cost per sample are constant. A window
+ * is stationary if the standard deviation of every gyroscope axis is below {@link #GYROSCOPE_STILL_DEVIATION}, the
+ * mean angular speed is below {@link #MAX_BIAS}, and, if the provider also hands over accelerometer samples, the
+ * accelerometer stays within {@link #ACCELEROMETER_STILL_DEVIATION}. The accelerometer catches a slow rotation at a
+ * steady rate, which looks like a bias to the gyroscope alone. The mean of a stationary window is averaged into the
+ * bias, the latest windows weighted most, so that the estimate follows a bias that drifts with the temperature.
+ *
+ * Used by the thread that fuses the samples; the bias may be read from any other thread, where it may be slightly out
+ * of date.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class GyroscopeBiasEstimator {
+
+  /**
+   * The length of a window in nanoseconds
+   */
+  public static final long WINDOW_NS = 1000000000L;
+  /**
+   * The standard deviation in rad/s of a gyroscope axis up to which a window can be stationary
+   */
+  public static final float GYROSCOPE_STILL_DEVIATION = 0.02f;
+  /**
+   * The standard deviation in m/s^2 of an accelerometer axis up to which a window can be stationary
+   */
+  public static final float ACCELEROMETER_STILL_DEVIATION = 0.1f;
+  /**
+   * The largest bias in rad/s that is accepted; a window whose mean angular speed is higher is motion
+   */
+  public static final float MAX_BIAS = 0.05f;
+  /**
+   * The number of gyroscope samples a window needs to be used
+   */
+  private static final int MIN_WINDOW_SAMPLES = 10;
+  /**
+   * The bias is the mean of the stationary windows until there are this many; after that, each new window gets this
+   * weight inverted
+   */
+  private static final int MAX_AVERAGED_WINDOWS = 10;
+
+  private final WindowStatistics gyroscopeWindow = new WindowStatistics();
+  private final WindowStatistics accelerometerWindow = new WindowStatistics();
+  /**
+   * The timestamp of the first gyroscope sample of the current window, 0 before the first sample
+   */
+  private long windowStart;
+  private boolean hasAccelerometer;
+  private float biasX;
+  private float biasY;
+  private float biasZ;
+  /**
+   * How much the bias changed with the last stationary window
+   */
+  private float changeX;
+  private float changeY;
+  private float changeZ;
+  private volatile boolean enabled = true;
+  private volatile long stationaryWindows;
+  private volatile long windows;
+
+  /**
+   * Enables or disables the correction. While disabled, the samples are passed through and the bias is not updated.
+   * Should be called while the provider is stopped: a provider that also estimates the bias itself has to converge
+   * again when the correction suddenly appears or disappears.
+   *
+   * @param enabled True to remove the bias (the default)
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * @return True if the bias is removed from the gyroscope samples
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Adds an accelerometer sample to the stationarity check of the current window.
+   *
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param values The acceleration in m/s^2
+   */
+  public void addAccelerometer(long timestamp, float[] values) {
+    if (!enabled) {
+      return;
+    }
+    hasAccelerometer = true;
+    accelerometerWindow.add(values[0], values[1], values[2]);
+  }
+
+  /**
+   * Updates the estimate with a gyroscope sample and removes the bias from it.
+   *
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param values The angular speed in rad/s
+   * @param output Receives the angular speed without the bias; may be the values
+   * @return True if the sample completed a stationary window, so that the bias has changed by
+   * {@link #getLastChange(float[])} before it was removed from this sample
+   */
+  public boolean correct(long timestamp, float[] values, float[] output) {
+    if (!enabled) {
+      output[0] = values[0];
+      output[1] = values[1];
+      output[2] = values[2];
+      return false;
+    }
+
+    if (windowStart == 0 || timestamp < windowStart) {
+      windowStart = timestamp;
+    }
+    gyroscopeWindow.add(values[0], values[1], values[2]);
+    boolean changed = false;
+    if (timestamp - windowStart >= WINDOW_NS) {
+      changed = endWindow();
+      windowStart = timestamp;
+    }
+
+    output[0] = values[0] - biasX;
+    output[1] = values[1] - biasY;
+    output[2] = values[2] - biasZ;
+    return changed;
+  }
+
+  /**
+   * Averages the window into the bias if it was stationary, and starts a new one
+   *
+   * @return True if the window was stationary
+   */
+  private boolean endWindow() {
+    WindowStatistics gyroscope = gyroscopeWindow;
+    WindowStatistics accelerometer = accelerometerWindow;
+    float gyroscopeLimit = GYROSCOPE_STILL_DEVIATION * GYROSCOPE_STILL_DEVIATION;
+    float accelerometerLimit = ACCELEROMETER_STILL_DEVIATION * ACCELEROMETER_STILL_DEVIATION;
+    double meanSpeed = Math.sqrt(gyroscope.meanX * gyroscope.meanX + gyroscope.meanY * gyroscope.meanY
+        + gyroscope.meanZ * gyroscope.meanZ);
+
+    boolean stationary = gyroscope.count >= MIN_WINDOW_SAMPLES && gyroscope.getMaxVariance() < gyroscopeLimit
+        && meanSpeed < MAX_BIAS
+        && (!hasAccelerometer || (accelerometer.count >= 2 && accelerometer.getMaxVariance() < accelerometerLimit));
+    if (stationary) {
+      long count = stationaryWindows + 1;
+      float weight = 1f / Math.min(count, MAX_AVERAGED_WINDOWS);
+      changeX = weight * (gyroscope.meanX - biasX);
+      changeY = weight * (gyroscope.meanY - biasY);
+      changeZ = weight * (gyroscope.meanZ - biasZ);
+      biasX += changeX;
+      biasY += changeY;
+      biasZ += changeZ;
+      stationaryWindows = count;
+    }
+    windows++;
+    gyroscope.reset();
+    accelerometer.reset();
+    return stationary;
+  }
+
+  /**
+   * @param output The float[3] that receives the estimated bias in rad/s
+   */
+  public void getBias(float[] output) {
+    output[0] = biasX;
+    output[1] = biasY;
+    output[2] = biasZ;
+  }
+
+  /**
+   * @param output The float[3] that receives how much the bias changed in rad/s with the last stationary window
+   */
+  public void getLastChange(float[] output) {
+    output[0] = changeX;
+    output[1] = changeY;
+    output[2] = changeZ;
+  }
+
+  /**
+   * @return The number of windows that were stationary and went into the bias
+   */
+  public long getStationaryWindows() {
+    return stationaryWindows;
+  }
+
+  /**
+   * @return The number of windows that were completed
+   */
+  public long getWindows() {
+    return windows;
+  }
+
+  /**
+   * The running mean and sum of squared deviations per axis of the samples of a window
+   */
+  private static class WindowStatistics {
+    int count;
+    float meanX;
+    float meanY;
+    float meanZ;
+    float squaresX;
+    float squaresY;
+    float squaresZ;
+
+    void add(float x, float y, float z) {
+      count++;
+      float dx = x - meanX;
+      float dy = y - meanY;
+      float dz = z - meanZ;
+      meanX += dx / count;
+      meanY += dy / count;
+      meanZ += dz / count;
+      squaresX += dx * (x - meanX);
+      squaresY += dy * (y - meanY);
+      squaresZ += dz * (z - meanZ);
+    }
+
+    /**
+     * @return The largest variance of the three axes
+     */
+    float getMaxVariance() {
+      if (count < 2) {
+        return 0;
+      }
+      return Math.max(squaresX, Math.max(squaresY, squaresZ)) / (count - 1);
+    }
+
+    void reset() {
+      count = 0;
+      meanX = 0;
+      meanY = 0;
+      meanZ = 0;
+      squaresX = 0;
+      squaresY = 0;
+      squaresZ = 0;
+    }
+  }
+}
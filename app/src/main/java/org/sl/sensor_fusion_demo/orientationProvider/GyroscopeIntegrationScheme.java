@@ -0,0 +1,33 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+/**
+ * How the gyroscope providers integrate the angular rate between two gyroscope samples into the orientation. The
+ * higher order schemes use the previous sample as well, so they lose less accuracy when the gyroscope runs at a low
+ * rate.
+ *
+ * @author Stanislav Lelyuk
+ */
+public enum GyroscopeIntegrationScheme {
+
+  /**
+   * Rotates around the axis of the current sample by its angular speed times the timestep. Exact for a constant
+   * rotation, but lags behind when the rate changes.
+   */
+  FIRST_ORDER,
+  /**
+   * Rotates by the average of the previous and the current sample, i.e. assumes that the rate changed linearly
+   * between them.
+   */
+  MIDPOINT,
+  /**
+   * Integrates the quaternion kinematics with the classic fourth order Runge-Kutta method over a rate that changes
+   * linearly between the previous and the current sample, then normalises the result.
+   */
+  RUNGE_KUTTA_4,
+  /**
+   * Like {@link #MIDPOINT}, but adds the two-sample coning correction (one twelfth of the cross product of the
+   * previous and the current rotation increment), which accounts for the rotation axis itself turning during the
+   * timestep.
+   */
+  CONING
+}
@@ -0,0 +1,201 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Integrates gyroscope samples into an orientation quaternion that is stored the way the providers store
+ * {@link OrientationProvider#currentOrientationQuaternion} (with an inverted w).
+ *
+ * With the {@link GyroscopeIntegrationScheme#FIRST_ORDER first order} scheme, each sample is turned into a delta
+ * rotation around the sample's axis by the angular speed times the timestep, which is then multiplied into the
+ * orientation. The other schemes also use the previous sample; see {@link GyroscopeIntegrationScheme}. Does not
+ * allocate.
+ *
+ * @author Stanislav Lelyuk
+ */
+final class GyroscopeIntegrator {
+
+  /**
+   * The quaternion that stores the difference that is obtained by the gyroscope.
+   * Basically it contains a rotational difference encoded into a quaternion.
+   */
+  private final Quaternion deltaQuaternion = new Quaternion();
+  /**
+   * Can be changed while the sensor thread integrates
+   */
+  private volatile GyroscopeIntegrationScheme scheme = GyroscopeIntegrationScheme.FIRST_ORDER;
+  /**
+   * The angular speed of the last integrated sample
+   */
+  private double rotationVelocity;
+  /**
+   * The previous sample in rad/s, valid if hasPreviousSample
+   */
+  private float previousX;
+  private float previousY;
+  private float previousZ;
+  private boolean hasPreviousSample;
+  /**
+   * The rotation increment of the previous timestep in rad, for the coning correction
+   */
+  private double previousIncrementX;
+  private double previousIncrementY;
+  private double previousIncrementZ;
+  /**
+   * The Runge-Kutta stages, as [w, x, y, z] derivatives of the (not inverted) orientation
+   */
+  private final double[] k1 = new double[4];
+  private final double[] k2 = new double[4];
+  private final double[] k3 = new double[4];
+  private final double[] k4 = new double[4];
+
+  /**
+   * Sets how the samples are integrated. Can be changed while running.
+   *
+   * @param scheme The integration scheme, {@link GyroscopeIntegrationScheme#FIRST_ORDER} by default
+   */
+  void setScheme(GyroscopeIntegrationScheme scheme) {
+    if (scheme == null) {
+      throw new IllegalArgumentException("scheme must not be null");
+    }
+    this.scheme = scheme;
+  }
+
+  /**
+   * @return How the samples are integrated
+   */
+  GyroscopeIntegrationScheme getScheme() {
+    return scheme;
+  }
+
+  /**
+   * Rotates the orientation by the given angular speed over the timestep.
+   *
+   * @param axisX The angular speed around the x axis of the device in rad/s
+   * @param axisY The angular speed around the y axis of the device in rad/s
+   * @param axisZ The angular speed around the z axis of the device in rad/s
+   * @param dT The timestep in seconds
+   * @param orientation The orientation to rotate, with an inverted w
+   */
+  void integrate(float axisX, float axisY, float axisZ, float dT, Quaternion orientation) {
+    if (!hasPreviousSample) {
+      // Nothing to interpolate from, so the first timestep assumes a constant rate
+      previousX = axisX;
+      previousY = axisY;
+      previousZ = axisZ;
+      previousIncrementX = axisX * dT;
+      previousIncrementY = axisY * dT;
+      previousIncrementZ = axisZ * dT;
+      hasPreviousSample = true;
+    }
+
+    // The average rate over the timestep, if it changed linearly since the previous sample
+    float meanX = (previousX + axisX) * 0.5f;
+    float meanY = (previousY + axisY) * 0.5f;
+    float meanZ = (previousZ + axisZ) * 0.5f;
+    double incrementX = meanX * (double) dT;
+    double incrementY = meanY * (double) dT;
+    double incrementZ = meanZ * (double) dT;
+
+    switch (scheme) {
+      case MIDPOINT:
+        rotate(meanX, meanY, meanZ, dT, orientation);
+        break;
+      case RUNGE_KUTTA_4:
+        integrateRungeKutta(axisX, axisY, axisZ, dT, orientation);
+        break;
+      case CONING:
+        // The rotation vector of the timestep: increment + previous increment x increment / 12
+        double rotationX = incrementX + (previousIncrementY * incrementZ - previousIncrementZ * incrementY) / 12;
+        double rotationY = incrementY + (previousIncrementZ * incrementX - previousIncrementX * incrementZ) / 12;
+        double rotationZ = incrementZ + (previousIncrementX * incrementY - previousIncrementY * incrementX) / 12;
+        rotate((float) (rotationX / dT), (float) (rotationY / dT), (float) (rotationZ / dT), dT, orientation);
+        break;
+      default:
+        rotate(axisX, axisY, axisZ, dT, orientation);
+        break;
+    }
+
+    rotationVelocity = Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+    previousX = axisX;
+    previousY = axisY;
+    previousZ = axisZ;
+    previousIncrementX = incrementX;
+    previousIncrementY = incrementY;
+    previousIncrementZ = incrementZ;
+  }
+
+  /**
+   * Rotates the orientation around the axis of the angular speed by the angular speed times the timestep
+   */
+  private void rotate(float axisX, float axisY, float axisZ, float dT, Quaternion orientation) {
+    // Calculate the angular speed of the sample
+    double angularSpeed = Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+
+    // Normalize the rotation vector if it's big enough to get the axis
+    if (angularSpeed > 0) {
+      axisX /= angularSpeed;
+      axisY /= angularSpeed;
+      axisZ /= angularSpeed;
+    }
+
+    // Integrate around this axis with the angular speed by the timestep
+    // in order to get a delta rotation from this sample over the timestep
+    double thetaOverTwo = angularSpeed * dT / 2.0f;
+    double sinThetaOverTwo = Math.sin(thetaOverTwo);
+    double cosThetaOverTwo = Math.cos(thetaOverTwo);
+    deltaQuaternion.setX((float) (sinThetaOverTwo * axisX));
+    deltaQuaternion.setY((float) (sinThetaOverTwo * axisY));
+    deltaQuaternion.setZ((float) (sinThetaOverTwo * axisZ));
+    deltaQuaternion.setW(-(float) cosThetaOverTwo);
+
+    deltaQuaternion.multiplyByQuat(orientation, orientation);
+  }
+
+  /**
+   * Integrates dq/dt = q * (0, rate) / 2 with the rate changing linearly from the previous sample to the given one
+   */
+  private void integrateRungeKutta(float sampleX, float sampleY, float sampleZ, float dT, Quaternion orientation) {
+    double w = -orientation.getW();
+    double x = orientation.getX();
+    double y = orientation.getY();
+    double z = orientation.getZ();
+    double midX = (previousX + sampleX) * 0.5;
+    double midY = (previousY + sampleY) * 0.5;
+    double midZ = (previousZ + sampleZ) * 0.5;
+    double halfStep = dT * 0.5;
+
+    derivative(w, x, y, z, previousX, previousY, previousZ, k1);
+    derivative(w + halfStep * k1[0], x + halfStep * k1[1], y + halfStep * k1[2], z + halfStep * k1[3], midX, midY,
+        midZ, k2);
+    derivative(w + halfStep * k2[0], x + halfStep * k2[1], y + halfStep * k2[2], z + halfStep * k2[3], midX, midY,
+        midZ, k3);
+    derivative(w + dT * k3[0], x + dT * k3[1], y + dT * k3[2], z + dT * k3[3], sampleX, sampleY, sampleZ, k4);
+
+    double sixth = dT / 6.0;
+    w += sixth * (k1[0] + 2 * k2[0] + 2 * k3[0] + k4[0]);
+    x += sixth * (k1[1] + 2 * k2[1] + 2 * k3[1] + k4[1]);
+    y += sixth * (k1[2] + 2 * k2[2] + 2 * k3[2] + k4[2]);
+    z += sixth * (k1[3] + 2 * k2[3] + 2 * k3[3] + k4[3]);
+    double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+    orientation.setXYZW((float) (x / norm), (float) (y / norm), (float) (z / norm), (float) (-w / norm));
+  }
+
+  /**
+   * Computes the derivative of the [w, x, y, z] orientation for the rate in device coordinates, q * (0, rate) / 2
+   */
+  private static void derivative(double w, double x, double y, double z, double rateX, double rateY, double rateZ,
+      double[] output) {
+    output[0] = -0.5 * (x * rateX + y * rateY + z * rateZ);
+    output[1] = 0.5 * (w * rateX + y * rateZ - z * rateY);
+    output[2] = 0.5 * (w * rateY + z * rateX - x * rateZ);
+    output[3] = 0.5 * (w * rateZ + x * rateY - y * rateX);
+  }
+
+  /**
+   * @return The angular speed of the last integrated sample in rad/s
+   */
+  double getRotationVelocity() {
+    return rotationVelocity;
+  }
+}
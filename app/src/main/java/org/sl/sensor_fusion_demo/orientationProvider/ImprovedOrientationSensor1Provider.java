@@ -1,7 +1,6 @@
 package org.sl.sensor_fusion_demo.orientationProvider;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
 import android.hardware.SensorManager;
 import android.util.Log;
 import org.sl.sensor_fusion_demo.representation.Quaternion;
@@ -22,69 +21,59 @@ public class ImprovedOrientationSensor1Provider extends OrientationProvider {
    */
   private static final float NS2S = 1.0f / 1000000000.0f;
   /**
-   * This is a filter-threshold for discarding Gyroscope measurements that are below a certain level and
-   * potentially are only noise and not real motion. Values from the gyroscope are usually between 0 (stop) and
-   * 10 (rapid rotation), so 0.1 seems to be a reasonable threshold to filter noise (usually smaller than 0.1) and
-   * real motion (usually > 0.1). Note that there is a chance of missing real motion, if the use is turning the
-   * device really slowly, so this value has to find a balance between accepting noise (threshold = 0) and missing
-   * slow user-action (threshold > 0.5). 0.1 seems to work fine for most applications.
+   * The fusion parameters unless others are given: the rotation vector corrects the gyroscope orientation with a
+   * static weight of 0.005 per gyroscope sample; it is an outlier if the dot product with the gyroscope orientation
+   * falls below 0.85, and after more than 60 consecutive outliers below 0.65 the gyroscope has probably failed and
+   * the orientation is reset to the rotation vector.
    */
-  private static final double EPSILON = 0.1f;
+  public static final RotationVectorFusionConfig DEFAULT_CONFIG = new RotationVectorFusionConfig(0.005f, 0.85f,
+      0.65f, 60);
   /**
-   * This weight determines directly how much the rotation sensor will be used to correct (in
-   * Sensor-fusion-scenario 1 - SensorSelection.GyroscopeAndRotationVector). Must be a value between 0 and 1.
-   * 0 means that the system entirely relies on the gyroscope, whereas 1 means that the system relies entirely on
-   * the rotationVector.
+   * The number of rotation vector samples kept for the synchronisation with the gyroscope
    */
-  private static final float DIRECT_INTERPOLATION_WEIGHT = 0.005f;
+  private static final int SYNCHRONISER_CAPACITY = 8;
   /**
-   * The threshold that indicates an outlier of the rotation vector. If the dot-product between the two vectors
-   * (gyroscope orientation and rotationVector orientation) falls below this threshold (ideally it should be 1,
-   * if they are exactly the same) the system falls back to the gyroscope values only and just ignores the
-   * rotation vector.
-   *
-   * This value should be quite high (> 0.7) to filter even the slightest discrepancies that causes jumps when
-   * tiling the device. Possible values are between 0 and 1, where a value close to 1 means that even a very small
-   * difference between the two sensors will be treated as outlier, whereas a value close to zero means that the
-   * almost any discrepancy between the two sensors is tolerated.
+   * How far the rotation vector is extrapolated beyond its newest sample to the timestamp of a gyroscope sample. The
+   * rotation vector usually runs at a lower rate than the gyroscope, so without extrapolation each gyroscope sample
+   * would be corrected towards an orientation that lags behind by up to one rotation vector period.
    */
-  private static final float OUTLIER_THRESHOLD = 0.85f;
+  private static final long MAX_EXTRAPOLATION_NS = 20000000L;
+  private final RotationVectorFusionConfig config;
   /**
-   * The threshold that indicates a massive discrepancy between the rotation vector and the gyroscope orientation.
-   * If the dot-product between the two vectors
-   * (gyroscope orientation and rotationVector orientation) falls below this threshold (ideally it should be 1, if
-   * they are exactly the same), the system will start increasing the panic counter (that probably indicates a
-   * gyroscope failure).
-   *
-   * This value should be lower than OUTLIER_THRESHOLD (0.5 - 0.7) to only start increasing the panic counter,
-   * when there is a
-   * huge discrepancy between the two fused sensors.
+   * Rotates the gyroscope orientation by each gyroscope sample
    */
-  private static final float OUTLIER_PANIC_THRESHOLD = 0.65f;
+  private final GyroscopeIntegrator gyroscopeIntegrator = new GyroscopeIntegrator();
   /**
-   * The threshold that indicates that a chaos state has been established rather than just a temporary peak in the
-   * rotation vector (caused by exploding angled during fast tilting).
-   *
-   * If the chaosCounter is bigger than this threshold, the current position will be reset to whatever the
-   * rotation vector indicates.
+   * The Quaternions that contain the current rotation (Angle and axis in Quaternion format) of the Gyroscope
    */
-  private static final int PANIC_THRESHOLD = 60;
+  private Quaternion quaternionGyroscope = new Quaternion();
   /**
-   * The quaternion that stores the difference that is obtained by the gyroscope.
-   * Basically it contains a rotational difference encoded into a quaternion.
-   *
-   * To obtain the absolute orientation one must add this into an initial position by
-   * multiplying it with another quaternion
+   * Interpolates the rotation vector orientation onto the timestamps of the gyroscope samples
    */
-  private final Quaternion deltaQuaternion = new Quaternion();
+  private final SensorSynchroniser synchroniser = new SensorSynchroniser(SYNCHRONISER_CAPACITY,
+      MAX_EXTRAPOLATION_NS);
   /**
-   * The Quaternions that contain the current rotation (Angle and axis in Quaternion format) of the Gyroscope
+   * The [x, y, z, w] rotation vector orientation that is added to and read from the synchroniser
    */
-  private Quaternion quaternionGyroscope = new Quaternion();
+  private final float[] synchronisedQuaternion = new float[SensorSynchroniser.QUATERNION_VALUES];
   /**
-   * The quaternion that contains the absolute orientation as obtained by the rotationVector sensor.
+   * The quaternion that contains the absolute orientation as obtained by the rotationVector sensor, at the timestamp
+   * of the last fused sample.
    */
   private Quaternion quaternionRotationVector = new Quaternion();
+  /**
+   * The quaternion that receives the interpolation between the gyroscope and the rotation vector orientation.
+   * Kept as a field so that fusing a gyroscope sample does not allocate.
+   */
+  private final Quaternion interpolatedQuaternion = new Quaternion();
+  /**
+   * Buffer receiving the [w, x, y, z] quaternion of each rotation vector event.
+   */
+  private final float[] rotationVectorQuaternion = new float[4];
+  /**
+   * Buffer receiving the [x, y, z, w] rotation vector that is handed to the rotation matrix conversion.
+   */
+  private final float[] correctedQuaternion = new float[4];
   /**
    * The time-stamp being used to record the time when the last gyroscope event occurred.
    */
@@ -112,80 +101,103 @@ public class ImprovedOrientationSensor1Provider extends OrientationProvider {
   private int panicCounter;
 
   /**
-   * Initialises a new ImprovedOrientationSensor1Provider
+   * Initialises a new ImprovedOrientationSensor1Provider with the {@link #DEFAULT_CONFIG}
    *
    * @param sensorManager The android sensor manager
    */
   public ImprovedOrientationSensor1Provider(SensorManager sensorManager) {
+    this(sensorManager, DEFAULT_CONFIG);
+  }
+
+  /**
+   * Initialises a new ImprovedOrientationSensor1Provider
+   *
+   * @param sensorManager The android sensor manager
+   * @param config The fusion parameters
+   */
+  public ImprovedOrientationSensor1Provider(SensorManager sensorManager, RotationVectorFusionConfig config) {
     super(sensorManager);
+    this.config = config;
 
     //Add the gyroscope and rotation Vector
     sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE));
     sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR));
+    synchroniser.addOrientationSensor(Sensor.TYPE_ROTATION_VECTOR);
+  }
+
+  /**
+   * @return The fusion parameters
+   */
+  public RotationVectorFusionConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * @return How the gyroscope samples are integrated
+   */
+  public GyroscopeIntegrationScheme getIntegrationScheme() {
+    return gyroscopeIntegrator.getScheme();
+  }
+
+  /**
+   * Sets how the gyroscope samples are integrated. The higher order schemes keep the accuracy at lower gyroscope
+   * rates. Can be changed while running.
+   *
+   * @param scheme The integration scheme, {@link GyroscopeIntegrationScheme#FIRST_ORDER} by default
+   */
+  public void setIntegrationScheme(GyroscopeIntegrationScheme scheme) {
+    gyroscopeIntegrator.setScheme(scheme);
   }
 
   @Override
-  public void onSensorChanged(SensorEvent event) {
+  public void onSensorSample(int sensorType, long eventTimestamp, float[] values) {
 
-    if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
+    if (sensorType == Sensor.TYPE_ROTATION_VECTOR) {
       // Process rotation vector (just safe it)
 
-      float[] q = new float[4];
+      float[] q = rotationVectorQuaternion;
       // Calculate angle. Starting with API_18, Android will provide this value as event.values[3], but if not, we have to calculate it manually.
-      SensorManager.getQuaternionFromVector(q, event.values);
+      SensorManager.getQuaternionFromVector(q, values);
 
       // Store in quaternion
       quaternionRotationVector.setXYZW(q[1], q[2], q[3], -q[0]);
+      synchronisedQuaternion[0] = q[1];
+      synchronisedQuaternion[1] = q[2];
+      synchronisedQuaternion[2] = q[3];
+      synchronisedQuaternion[3] = -q[0];
+      synchroniser.add(Sensor.TYPE_ROTATION_VECTOR, eventTimestamp, synchronisedQuaternion);
       if (!positionInitialised) {
         // Override
         quaternionGyroscope.set(quaternionRotationVector);
         positionInitialised = true;
       }
-    } else if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
+    } else if (sensorType == Sensor.TYPE_GYROSCOPE) {
       // Process Gyroscope and perform fusion
+      float[] rate = correctGyroscope(eventTimestamp, values);
 
       // This timestep's delta rotation to be multiplied by the current rotation
       // after computing it from the gyro sample data.
       if (timestamp != 0) {
-        final float dT = (event.timestamp - timestamp) * NS2S;
-        // Axis of the rotation sample, not normalized yet.
-        float axisX = event.values[0];
-        float axisY = event.values[1];
-        float axisZ = event.values[2];
-
-        // Calculate the angular speed of the sample
-        gyroscopeRotationVelocity = Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+        final float dT = (eventTimestamp - timestamp) * NS2S;
+        // Move current gyro orientation
+        gyroscopeIntegrator.integrate(rate[0], rate[1], rate[2], dT, quaternionGyroscope);
+        gyroscopeRotationVelocity = gyroscopeIntegrator.getRotationVelocity();
+        setAngularVelocity(rate[0], rate[1], rate[2]);
 
-        // Normalize the rotation vector if it's big enough to get the axis
-        if (gyroscopeRotationVelocity > EPSILON) {
-          axisX /= gyroscopeRotationVelocity;
-          axisY /= gyroscopeRotationVelocity;
-          axisZ /= gyroscopeRotationVelocity;
+        // Compare with the rotation vector at the time of this sample rather than at the time of its last sample
+        if (synchroniser.get(Sensor.TYPE_ROTATION_VECTOR, eventTimestamp, synchronisedQuaternion)) {
+          quaternionRotationVector.setXYZW(synchronisedQuaternion[0], synchronisedQuaternion[1],
+              synchronisedQuaternion[2], synchronisedQuaternion[3]);
         }
 
-        // Integrate around this axis with the angular speed by the timestep
-        // in order to get a delta rotation from this sample over the timestep
-        // We will convert this axis-angle representation of the delta rotation
-        // into a quaternion before turning it into the rotation matrix.
-        double thetaOverTwo = gyroscopeRotationVelocity * dT / 2.0f;
-        double sinThetaOverTwo = Math.sin(thetaOverTwo);
-        double cosThetaOverTwo = Math.cos(thetaOverTwo);
-        deltaQuaternion.setX((float) (sinThetaOverTwo * axisX));
-        deltaQuaternion.setY((float) (sinThetaOverTwo * axisY));
-        deltaQuaternion.setZ((float) (sinThetaOverTwo * axisZ));
-        deltaQuaternion.setW(-(float) cosThetaOverTwo);
-
-        // Move current gyro orientation
-        deltaQuaternion.multiplyByQuat(quaternionGyroscope, quaternionGyroscope);
-
         // Calculate dot-product to calculate whether the two orientation sensors have diverged
         // (if the dot-product is closer to 0 than to 1), because it should be close to 1 if both are the same.
         float dotProd = quaternionGyroscope.dotProduct(quaternionRotationVector);
 
         // If they have diverged, rely on gyroscope only (this happens on some devices when the rotation vector "jumps").
-        if (Math.abs(dotProd) < OUTLIER_THRESHOLD) {
+        if (Math.abs(dotProd) < config.getOutlierThreshold()) {
           // Increase panic counter
-          if (Math.abs(dotProd) < OUTLIER_PANIC_THRESHOLD) {
+          if (Math.abs(dotProd) < config.getOutlierPanicThreshold()) {
             panicCounter++;
           }
 
@@ -196,8 +208,8 @@ public class ImprovedOrientationSensor1Provider extends OrientationProvider {
 
           // Interpolate with a fixed weight between the two absolute quaternions obtained from gyro and rotation vector sensors
           // The weight should be quite low, so the rotation vector corrects the gyro only slowly, and the output keeps responsive.
-          Quaternion interpolate = new Quaternion();
-          quaternionGyroscope.slerp(quaternionRotationVector, interpolate, DIRECT_INTERPOLATION_WEIGHT);
+          Quaternion interpolate = interpolatedQuaternion;
+          quaternionGyroscope.slerp(quaternionRotationVector, interpolate, config.getInterpolationWeight());
 
           // Use the interpolated value between gyro and rotationVector
           setOrientationQuaternionAndMatrix(interpolate);
@@ -208,7 +220,7 @@ public class ImprovedOrientationSensor1Provider extends OrientationProvider {
           panicCounter = 0;
         }
 
-        if (panicCounter > PANIC_THRESHOLD) {
+        if (panicCounter > config.getPanicThreshold()) {
           Log.d("Rotation Vector",
               "Panic counter is bigger than threshold; this indicates a Gyroscope failure. Panic reset is imminent.");
 
@@ -230,27 +242,29 @@ public class ImprovedOrientationSensor1Provider extends OrientationProvider {
           }
         }
       }
-      timestamp = event.timestamp;
+      timestamp = eventTimestamp;
     }
   }
 
   /**
-   * Sets the output quaternion and matrix with the provided quaternion and synchronises the setting
+   * Sets the output quaternion and matrix with the provided quaternion and publishes them
    *
    * @param quaternion The Quaternion to set (the result of the sensor fusion)
    */
   private void setOrientationQuaternionAndMatrix(Quaternion quaternion) {
-    Quaternion correctedQuat = quaternion.clone();
     // We inverted w in the deltaQuaternion, because currentOrientationQuaternion required it.
     // Before converting it back to matrix representation, we need to revert this process
-    correctedQuat.w(-correctedQuat.w());
+    correctedQuaternion[0] = quaternion.x();
+    correctedQuaternion[1] = quaternion.y();
+    correctedQuaternion[2] = quaternion.z();
+    correctedQuaternion[3] = -quaternion.w();
 
-    synchronized (syncToken) {
-      // Use gyro only
-      currentOrientationQuaternion.copyVec4(quaternion);
+    // Use gyro only
+    currentOrientationQuaternion.copyVec4(quaternion);
 
-      // Set the rotation matrix as well to have both representations
-      SensorManager.getRotationMatrixFromVector(currentOrientationRotationMatrix.matrix, correctedQuat.ToArray());
-    }
+    // Set the rotation matrix as well to have both representations
+    SensorManager.getRotationMatrixFromVector(currentOrientationRotationMatrix.matrix, correctedQuaternion);
+
+    publishOrientation();
   }
 }
@@ -0,0 +1,89 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import java.util.Locale;
+
+/**
+ * Running statistics of a latency in nanoseconds (count, mean and maximum) that can be updated without allocating.
+ *
+ * Updated by a single thread; values read from another thread while it is updating may be slightly out of date.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class LatencyStatistics {
+
+  /**
+   * Name of the measured latency, used for logging
+   */
+  private final String name;
+  /**
+   * Number of measurements
+   */
+  private volatile long count;
+  /**
+   * Sum of all measurements in nanoseconds
+   */
+  private volatile long totalNs;
+  /**
+   * Largest measurement in nanoseconds
+   */
+  private volatile long maxNs;
+
+  /**
+   * Initialises new LatencyStatistics
+   *
+   * @param name The name of the measured latency
+   */
+  public LatencyStatistics(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Adds a measurement
+   *
+   * @param latencyNs The latency in nanoseconds
+   */
+  public void add(long latencyNs) {
+    totalNs += latencyNs;
+    if (latencyNs > maxNs) {
+      maxNs = latencyNs;
+    }
+    count++;
+  }
+
+  /**
+   * Removes all measurements
+   */
+  public void reset() {
+    count = 0;
+    totalNs = 0;
+    maxNs = 0;
+  }
+
+  /**
+   * @return The number of measurements
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return The mean latency in nanoseconds, or 0 if nothing was measured
+   */
+  public long getMeanNs() {
+    long n = count;
+    return n == 0 ? 0 : totalNs / n;
+  }
+
+  /**
+   * @return The largest latency in nanoseconds
+   */
+  public long getMaxNs() {
+    return maxNs;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US, "%s: %d samples, mean %.3f ms, max %.3f ms", name, getCount(),
+        getMeanNs() / 1e6, getMaxNs() / 1e6);
+  }
+}
@@ -0,0 +1,335 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * The orientation provider that delivers the absolute orientation from the {@link Sensor#TYPE_GYROSCOPE Gyroscope},
+ * {@link Sensor#TYPE_ACCELEROMETER Accelerometer} and optionally the {@link Sensor#TYPE_MAGNETIC_FIELD Compass} with
+ * Madgwick's gradient descent filter.
+ *
+ * Each gyroscope sample is integrated and then corrected by one gradient descent step that turns the orientation
+ * towards the one in which gravity (and the horizontal part of the magnetic field) are measured where they are
+ * expected. The step size is the gain beta. This is much cheaper than the Android rotation vector or a Kalman filter,
+ * which makes it a good fit for low-end devices. Without the compass, the heading is relative to the start.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class MadgwickProvider extends OrientationProvider {
+
+  /**
+   * Constant specifying the factor between a Nano-second and a second
+   */
+  private static final float NS2S = 1.0f / 1000000000.0f;
+  /**
+   * The default gain of the gradient descent step. Higher values converge faster but let more accelerometer noise and
+   * linear acceleration through; Madgwick suggests sqrt(3/4) times the gyroscope error in rad/s.
+   */
+  public static final float DEFAULT_BETA = 0.05f;
+  /**
+   * The gain used right after start, so that the orientation converges from the identity within a second
+   */
+  private static final float STARTUP_BETA = 2.5f;
+  /**
+   * The time in nanoseconds during which the startup gain is used
+   */
+  private static final long STARTUP_DURATION = 1000000000L;
+  /**
+   * Rotates Madgwick's earth frame (x pointing north, z up) into Android's world frame (x pointing east, y north):
+   * a rotation by 90 degrees around z.
+   */
+  private static final float SQRT_HALF = (float) Math.sqrt(0.5);
+
+  /**
+   * The orientation estimated by the filter (in Madgwick's earth frame), rotating from device to earth coordinates
+   */
+  private final Quaternion estimate = new Quaternion();
+  /**
+   * The rotation from Madgwick's earth frame into Android's world frame
+   */
+  private final Quaternion northToEast = new Quaternion();
+  /**
+   * The estimate rotated into Android's world frame
+   */
+  private final Quaternion worldEstimate = new Quaternion();
+  /**
+   * Whether the compass is used
+   */
+  private final boolean useMagnetometer;
+  /**
+   * The gain of the gradient descent step
+   */
+  private volatile float beta = DEFAULT_BETA;
+  /**
+   * The latest accelerometer and compass samples
+   */
+  private float ax;
+  private float ay;
+  private float az;
+  private float mx;
+  private float my;
+  private float mz;
+  private boolean hasAccelerometer;
+  private boolean hasMagnetic;
+  /**
+   * The time-stamp being used to record the time when the last gyroscope event occurred.
+   */
+  private long timestamp;
+  /**
+   * The time-stamp of the first gyroscope event, which starts the startup phase
+   */
+  private long startTimestamp;
+
+  /**
+   * Initialises a new MadgwickProvider that uses the compass
+   *
+   * @param sensorManager The android sensor manager
+   */
+  public MadgwickProvider(SensorManager sensorManager) {
+    this(sensorManager, true);
+  }
+
+  /**
+   * Initialises a new MadgwickProvider
+   *
+   * @param sensorManager The android sensor manager
+   * @param useMagnetometer True to correct the heading with the compass, false to only use gyroscope and
+   * accelerometer
+   */
+  public MadgwickProvider(SensorManager sensorManager, boolean useMagnetometer) {
+    super(sensorManager);
+    this.useMagnetometer = useMagnetometer;
+    northToEast.setXYZW(0, 0, SQRT_HALF, SQRT_HALF);
+
+    //Add the gyroscope, the accelerometer and the compass
+    sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE));
+    sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER));
+    if (useMagnetometer) {
+      sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD));
+    }
+  }
+
+  /**
+   * @return The gain of the gradient descent step
+   */
+  public float getBeta() {
+    return beta;
+  }
+
+  /**
+   * Sets the gain of the gradient descent step. Can be changed while running.
+   *
+   * @param beta The gain, e.g. {@link #DEFAULT_BETA}
+   */
+  public void setBeta(float beta) {
+    this.beta = beta;
+  }
+
+  @Override
+  public void onSensorSample(int sensorType, long eventTimestamp, float[] values) {
+    if (sensorType == Sensor.TYPE_ACCELEROMETER) {
+      observeAccelerometer(eventTimestamp, values);
+      ax = values[0];
+      ay = values[1];
+      az = values[2];
+      hasAccelerometer = true;
+    } else if (sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
+      float[] field = correctMagnetometer(eventTimestamp, values);
+      mx = field[0];
+      my = field[1];
+      mz = field[2];
+      hasMagnetic = true;
+    } else if (sensorType == Sensor.TYPE_GYROSCOPE) {
+      float[] rate = correctGyroscope(eventTimestamp, values);
+      if (timestamp != 0 && hasAccelerometer) {
+        if (startTimestamp == 0) {
+          startTimestamp = eventTimestamp;
+        }
+        float gain = eventTimestamp - startTimestamp < STARTUP_DURATION ? STARTUP_BETA : beta;
+        final float dT = (eventTimestamp - timestamp) * NS2S;
+
+        if (useMagnetometer && hasMagnetic) {
+          updateMarg(rate[0], rate[1], rate[2], dT, gain);
+        } else {
+          updateImu(rate[0], rate[1], rate[2], dT, gain);
+        }
+
+        northToEast.multiplyByQuat(estimate, worldEstimate);
+        setAngularVelocity(rate[0], rate[1], rate[2]);
+        publishOrientation(worldEstimate.getW(), worldEstimate.getX(), worldEstimate.getY(), worldEstimate.getZ());
+      }
+      timestamp = eventTimestamp;
+    }
+  }
+
+  /**
+   * One filter step with gyroscope and accelerometer
+   */
+  private void updateImu(float gx, float gy, float gz, float dT, float gain) {
+    float q0 = estimate.getW();
+    float q1 = estimate.getX();
+    float q2 = estimate.getY();
+    float q3 = estimate.getZ();
+
+    // Rate of change of quaternion from gyroscope
+    float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+    float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+    float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+    float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+    float normA = ax * ax + ay * ay + az * az;
+    if (normA > 0) {
+      float recipNorm = invSqrt(normA);
+      float nax = ax * recipNorm;
+      float nay = ay * recipNorm;
+      float naz = az * recipNorm;
+
+      float _2q0 = 2.0f * q0;
+      float _2q1 = 2.0f * q1;
+      float _2q2 = 2.0f * q2;
+      float _2q3 = 2.0f * q3;
+      float _4q0 = 4.0f * q0;
+      float _4q1 = 4.0f * q1;
+      float _4q2 = 4.0f * q2;
+      float _8q1 = 8.0f * q1;
+      float _8q2 = 8.0f * q2;
+      float q0q0 = q0 * q0;
+      float q1q1 = q1 * q1;
+      float q2q2 = q2 * q2;
+      float q3q3 = q3 * q3;
+
+      // Gradient of the error between estimated and measured direction of gravity
+      float s0 = _4q0 * q2q2 + _2q2 * nax + _4q0 * q1q1 - _2q1 * nay;
+      float s1 = _4q1 * q3q3 - _2q3 * nax + 4.0f * q0q0 * q1 - _2q0 * nay - _4q1 + _8q1 * q1q1 + _8q1 * q2q2
+          + _4q1 * naz;
+      float s2 = 4.0f * q0q0 * q2 + _2q0 * nax + _4q2 * q3q3 - _2q3 * nay - _4q2 + _8q2 * q1q1 + _8q2 * q2q2
+          + _4q2 * naz;
+      float s3 = 4.0f * q1q1 * q3 - _2q1 * nax + 4.0f * q2q2 * q3 - _2q2 * nay;
+
+      float normS = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+      if (normS > 0) {
+        recipNorm = invSqrt(normS);
+        qDot1 -= gain * s0 * recipNorm;
+        qDot2 -= gain * s1 * recipNorm;
+        qDot3 -= gain * s2 * recipNorm;
+        qDot4 -= gain * s3 * recipNorm;
+      }
+    }
+
+    integrate(q0, q1, q2, q3, qDot1, qDot2, qDot3, qDot4, dT);
+  }
+
+  /**
+   * One filter step with gyroscope, accelerometer and compass
+   */
+  private void updateMarg(float gx, float gy, float gz, float dT, float gain) {
+    float normA = ax * ax + ay * ay + az * az;
+    float normM = mx * mx + my * my + mz * mz;
+    if (normA == 0 || normM == 0) {
+      updateImu(gx, gy, gz, dT, gain);
+      return;
+    }
+
+    float q0 = estimate.getW();
+    float q1 = estimate.getX();
+    float q2 = estimate.getY();
+    float q3 = estimate.getZ();
+
+    // Rate of change of quaternion from gyroscope
+    float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+    float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+    float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+    float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+    float recipNorm = invSqrt(normA);
+    float nax = ax * recipNorm;
+    float nay = ay * recipNorm;
+    float naz = az * recipNorm;
+    recipNorm = invSqrt(normM);
+    float nmx = mx * recipNorm;
+    float nmy = my * recipNorm;
+    float nmz = mz * recipNorm;
+
+    float _2q0mx = 2.0f * q0 * nmx;
+    float _2q0my = 2.0f * q0 * nmy;
+    float _2q0mz = 2.0f * q0 * nmz;
+    float _2q1mx = 2.0f * q1 * nmx;
+    float _2q0 = 2.0f * q0;
+    float _2q1 = 2.0f * q1;
+    float _2q2 = 2.0f * q2;
+    float _2q3 = 2.0f * q3;
+    float _2q0q2 = 2.0f * q0 * q2;
+    float _2q2q3 = 2.0f * q2 * q3;
+    float q0q0 = q0 * q0;
+    float q0q1 = q0 * q1;
+    float q0q2 = q0 * q2;
+    float q0q3 = q0 * q3;
+    float q1q1 = q1 * q1;
+    float q1q2 = q1 * q2;
+    float q1q3 = q1 * q3;
+    float q2q2 = q2 * q2;
+    float q2q3 = q2 * q3;
+    float q3q3 = q3 * q3;
+
+    // Reference direction of the magnetic field in the earth frame (only north and up)
+    float hx = nmx * q0q0 - _2q0my * q3 + _2q0mz * q2 + nmx * q1q1 + _2q1 * nmy * q2 + _2q1 * nmz * q3 - nmx * q2q2
+        - nmx * q3q3;
+    float hy = _2q0mx * q3 + nmy * q0q0 - _2q0mz * q1 + _2q1mx * q2 - nmy * q1q1 + nmy * q2q2 + _2q2 * nmz * q3
+        - nmy * q3q3;
+    float _2bx = (float) Math.sqrt(hx * hx + hy * hy);
+    float _2bz = -_2q0mx * q2 + _2q0my * q1 + nmz * q0q0 + _2q1mx * q3 - nmz * q1q1 + _2q2 * nmy * q3 - nmz * q2q2
+        + nmz * q3q3;
+    float _4bx = 2.0f * _2bx;
+    float _4bz = 2.0f * _2bz;
+
+    // Errors of the estimated directions of gravity and magnetic field
+    float ex = 2.0f * q1q3 - _2q0q2 - nax;
+    float ey = 2.0f * q0q1 + _2q2q3 - nay;
+    float ez = 1 - 2.0f * q1q1 - 2.0f * q2q2 - naz;
+    float emx = _2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - nmx;
+    float emy = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - nmy;
+    float emz = _2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - nmz;
+
+    // Gradient of the errors
+    float s0 = -_2q2 * ex + _2q1 * ey - _2bz * q2 * emx + (-_2bx * q3 + _2bz * q1) * emy + _2bx * q2 * emz;
+    float s1 = _2q3 * ex + _2q0 * ey - 4.0f * q1 * ez + _2bz * q3 * emx + (_2bx * q2 + _2bz * q0) * emy
+        + (_2bx * q3 - _4bz * q1) * emz;
+    float s2 = -_2q0 * ex + _2q3 * ey - 4.0f * q2 * ez + (-_4bx * q2 - _2bz * q0) * emx
+        + (_2bx * q1 + _2bz * q3) * emy + (_2bx * q0 - _4bz * q2) * emz;
+    float s3 = _2q1 * ex + _2q2 * ey + (-_4bx * q3 + _2bz * q1) * emx + (-_2bx * q0 + _2bz * q2) * emy
+        + _2bx * q1 * emz;
+
+    float normS = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+    if (normS > 0) {
+      recipNorm = invSqrt(normS);
+      qDot1 -= gain * s0 * recipNorm;
+      qDot2 -= gain * s1 * recipNorm;
+      qDot3 -= gain * s2 * recipNorm;
+      qDot4 -= gain * s3 * recipNorm;
+    }
+
+    integrate(q0, q1, q2, q3, qDot1, qDot2, qDot3, qDot4, dT);
+  }
+
+  /**
+   * Integrates the rate of change of the quaternion and stores the normalised result in the estimate
+   */
+  private void integrate(float q0, float q1, float q2, float q3, float qDot1, float qDot2, float qDot3, float qDot4,
+      float dT) {
+    q0 += qDot1 * dT;
+    q1 += qDot2 * dT;
+    q2 += qDot3 * dT;
+    q3 += qDot4 * dT;
+
+    float recipNorm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+    estimate.setXYZW(q1 * recipNorm, q2 * recipNorm, q3 * recipNorm, q0 * recipNorm);
+  }
+
+  /**
+   * @return 1 / sqrt(x)
+   */
+  private static float invSqrt(float x) {
+    return (float) (1.0 / Math.sqrt(x));
+  }
+}
@@ -0,0 +1,760 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import java.util.Locale;
+
+/**
+ * Calibrates the magnetometer online for the hard-iron offset and the soft-iron distortion of the device, and removes
+ * both from every magnetometer sample.
+ *
+ * Near magnetised parts, the field that is measured while the device turns does not lie on a sphere around the
+ * origin but on an ellipsoid around an offset. Every sample adds its products of coordinates to the sums of the
+ * normal equations of an algebraic least-squares fit of that ellipsoid (ten terms, 55 sums), so no samples are kept
+ * and a sample costs the same however long the calibration runs. A sample is only added if it is at least
+ * {@link #MIN_SAMPLE_DISTANCE} away from the previous added one, so that a device lying still does not outweigh all
+ * other directions, and the sums fade with a time constant of {@link #MEMORY_NS}, so that the calibration follows a
+ * changed environment.
+ *
+ * Every {@link #SOLVE_INTERVAL_NS} the sums are handed to a background thread that solves the fit: the offset is the
+ * centre of the ellipsoid, and the soft-iron matrix the symmetric matrix that maps the ellipsoid onto a sphere with
+ * the radius of the mean field strength. A fit is only applied if the samples span enough directions
+ * ({@link #MIN_COVERAGE}), fit an ellipsoid well ({@link #MAX_RESIDUAL}) and give a plausible field strength; until
+ * then, the samples are passed through. Applying the correction to a sample needs no allocation.
+ *
+ * Used by the thread that fuses the samples; the metrics may be read from any other thread, where they may be
+ * slightly out of date.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class MagnetometerCalibrator {
+
+  /**
+   * The time in nanoseconds between two fits
+   */
+  public static final long SOLVE_INTERVAL_NS = 1000000000L;
+  /**
+   * The time constant in nanoseconds with which old samples fade from the fit
+   */
+  public static final long MEMORY_NS = 120000000000L;
+  /**
+   * The distance in micro Tesla a sample must have from the previous added one to be added to the fit
+   */
+  public static final float MIN_SAMPLE_DISTANCE = 2f;
+  /**
+   * The (faded) number of samples a fit needs
+   */
+  public static final float MIN_SAMPLES = 100f;
+  /**
+   * The smallest ratio of the shortest to the longest axis of the spread of the samples with which a fit is applied.
+   * 1 for samples from all directions, close to 0 if the device was only turned around one axis, which leaves the
+   * ellipsoid undetermined.
+   */
+  public static final float MIN_COVERAGE = 0.3f;
+  /**
+   * The largest RMS deviation of the corrected field strength relative to the mean with which a fit is applied
+   */
+  public static final float MAX_RESIDUAL = 0.08f;
+  /**
+   * The range of field strengths in micro Tesla a fit may find; the earth's field is between 25 and 65
+   */
+  public static final float MIN_FIELD_STRENGTH = 15f;
+  public static final float MAX_FIELD_STRENGTH = 100f;
+  /**
+   * The samples are divided by this before they are added to the fit, so that the sums are of the order of 1
+   */
+  private static final float SCALE = 50f;
+  /**
+   * The number of terms of the fit: x^2, y^2, z^2, 2yz, 2xz, 2xy, 2x, 2y, 2z, 1
+   */
+  private static final int TERMS = 10;
+  private static final int SUMS = TERMS * (TERMS + 1) / 2;
+  /**
+   * The ridge added to the diagonal of the normal equations, relative to their trace
+   */
+  private static final double RIDGE = 1e-10;
+  /**
+   * The weight of a sample in the running mean of the squared relative error of the corrected field strength
+   */
+  private static final float MAGNITUDE_ERROR_WEIGHT = 0.01f;
+  /**
+   * The states of the hand-over between the fusion thread and the solver
+   */
+  private static final int IDLE = 0;
+  private static final int SOLVING = 1;
+  private static final int SOLVED = 2;
+
+  /**
+   * The terms of the last added sample and the sums of their products, upper triangle row by row
+   */
+  private final double[] terms = new double[TERMS];
+  private final double[] sums = new double[SUMS];
+  private final float[] lastAdded = new float[3];
+  private boolean hasAdded;
+  /**
+   * The timestamp of the last hand-over to the solver, 0 before the first sample
+   */
+  private long solveTimestamp;
+
+  /**
+   * The correction that is applied, only touched by the fusion thread apart from the metrics getters
+   */
+  private final float[] offset = new float[3];
+  private final float[] matrix = new float[9];
+  private volatile boolean calibrated;
+
+  /**
+   * The sums handed to the solver, and its result. Written by the fusion thread while the state is IDLE and by the
+   * solver while it is SOLVING; the volatile state orders the accesses.
+   */
+  private final double[] pendingSums = new double[SUMS];
+  private final float[] solvedOffset = new float[3];
+  private final float[] solvedMatrix = new float[9];
+  private boolean solvedAccepted;
+  private float solvedFieldStrength;
+  private float solvedResidual;
+  private float solvedCoverage;
+  private volatile int state = IDLE;
+
+  /**
+   * Working memory of the solver
+   */
+  private final double[] normalMatrix = new double[TERMS * TERMS];
+  private final double[] normalVector = new double[TERMS];
+  private final double[] coefficients = new double[TERMS];
+  private final double[] shape = new double[9];
+  private final double[] centre = new double[3];
+  private final double[] eigenvalues = new double[3];
+  private final double[] eigenvectors = new double[9];
+
+  private volatile boolean enabled = true;
+  private boolean useBackgroundThread = true;
+  private Thread solverThread;
+
+  private volatile long sampleCount;
+  private volatile long addedSamples;
+  private volatile long fits;
+  private volatile long rejectedFits;
+  private volatile float fieldStrength;
+  private volatile float residual;
+  private volatile float coverage;
+  private volatile float lastCoverage;
+  private volatile float lastResidual;
+  private volatile float meanSquaredMagnitudeError;
+
+  /**
+   * Enables or disables the correction. While disabled, the samples are passed through and not added to the fit.
+   *
+   * @param enabled True to correct the samples (the default)
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * @return True if the samples are corrected
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Sets whether the fit is solved on a background thread (the default) or on the thread that fuses the samples, e.g.
+   * to get the same result every time a recording is replayed. Must be called before the first sample.
+   *
+   * @param useBackgroundThread True to solve on a background thread
+   */
+  public void setUseBackgroundThread(boolean useBackgroundThread) {
+    this.useBackgroundThread = useBackgroundThread;
+  }
+
+  /**
+   * Adds a magnetometer sample to the fit and removes the hard-iron offset and the soft-iron distortion from it.
+   *
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param values The magnetic field in micro Tesla
+   * @param output Receives the corrected field; may be the values
+   * @return True if a new calibration is applied from this sample on
+   */
+  public boolean correct(long timestamp, float[] values, float[] output) {
+    if (!enabled) {
+      output[0] = values[0];
+      output[1] = values[1];
+      output[2] = values[2];
+      return false;
+    }
+    sampleCount++;
+    add(values);
+
+    boolean changed = false;
+    if (state == SOLVED) {
+      changed = adoptSolution();
+    }
+    if (solveTimestamp == 0 || timestamp < solveTimestamp) {
+      solveTimestamp = timestamp;
+    } else if (timestamp - solveTimestamp >= SOLVE_INTERVAL_NS && state == IDLE) {
+      requestSolve(timestamp);
+      if (state == SOLVED) {
+        changed |= adoptSolution();
+      }
+    }
+
+    if (!calibrated) {
+      output[0] = values[0];
+      output[1] = values[1];
+      output[2] = values[2];
+      return changed;
+    }
+    float x = values[0] - offset[0];
+    float y = values[1] - offset[1];
+    float z = values[2] - offset[2];
+    output[0] = matrix[0] * x + matrix[1] * y + matrix[2] * z;
+    output[1] = matrix[3] * x + matrix[4] * y + matrix[5] * z;
+    output[2] = matrix[6] * x + matrix[7] * y + matrix[8] * z;
+
+    float magnitude = (float) Math.sqrt(output[0] * output[0] + output[1] * output[1] + output[2] * output[2]);
+    float error = magnitude / fieldStrength - 1;
+    meanSquaredMagnitudeError += MAGNITUDE_ERROR_WEIGHT * (error * error - meanSquaredMagnitudeError);
+    return changed;
+  }
+
+  /**
+   * Adds the products of the terms of a sample to the sums, unless it is too close to the previous added one
+   */
+  private void add(float[] values) {
+    if (hasAdded) {
+      float dx = values[0] - lastAdded[0];
+      float dy = values[1] - lastAdded[1];
+      float dz = values[2] - lastAdded[2];
+      if (dx * dx + dy * dy + dz * dz < MIN_SAMPLE_DISTANCE * MIN_SAMPLE_DISTANCE) {
+        return;
+      }
+    }
+    hasAdded = true;
+    System.arraycopy(values, 0, lastAdded, 0, 3);
+    addedSamples++;
+
+    double x = values[0] / SCALE;
+    double y = values[1] / SCALE;
+    double z = values[2] / SCALE;
+    double[] d = terms;
+    d[0] = x * x;
+    d[1] = y * y;
+    d[2] = z * z;
+    d[3] = 2 * y * z;
+    d[4] = 2 * x * z;
+    d[5] = 2 * x * y;
+    d[6] = 2 * x;
+    d[7] = 2 * y;
+    d[8] = 2 * z;
+    d[9] = 1;
+    int k = 0;
+    for (int i = 0; i < TERMS; i++) {
+      double di = d[i];
+      for (int j = i; j < TERMS; j++) {
+        sums[k++] += di * d[j];
+      }
+    }
+  }
+
+  /**
+   * Fades the sums by the time since the last hand-over and hands them to the solver
+   */
+  private void requestSolve(long timestamp) {
+    double fade = Math.exp(-(double) (timestamp - solveTimestamp) / MEMORY_NS);
+    solveTimestamp = timestamp;
+    for (int i = 0; i < SUMS; i++) {
+      sums[i] *= fade;
+    }
+    System.arraycopy(sums, 0, pendingSums, 0, SUMS);
+    state = SOLVING;
+
+    if (!useBackgroundThread) {
+      solve();
+      return;
+    }
+    synchronized (this) {
+      startSolverThread();
+      notifyAll();
+    }
+  }
+
+  /**
+   * Starts the background thread, e.g. when the provider is started, so that the thread that fuses the samples does
+   * not have to. Without this, the first fit starts it.
+   */
+  public synchronized void start() {
+    if (useBackgroundThread) {
+      startSolverThread();
+    }
+  }
+
+  private void startSolverThread() {
+    if (solverThread != null) {
+      return;
+    }
+    solverThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runSolver();
+      }
+    }, "MagnetometerCalibrator");
+    solverThread.setDaemon(true);
+    solverThread.setPriority(Thread.MIN_PRIORITY);
+    solverThread.start();
+  }
+
+  /**
+   * Solves the fits that are handed over until the thread is stopped, run by the solver thread
+   */
+  private void runSolver() {
+    while (true) {
+      synchronized (this) {
+        while (state != SOLVING && solverThread == Thread.currentThread()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (solverThread != Thread.currentThread()) {
+          return;
+        }
+      }
+      solve();
+    }
+  }
+
+  /**
+   * Stops the background thread, e.g. when the provider is stopped. A fit that was handed over but not solved yet is
+   * dropped.
+   */
+  public void stop() {
+    Thread thread;
+    synchronized (this) {
+      thread = solverThread;
+      solverThread = null;
+      notifyAll();
+    }
+    if (thread == null) {
+      return;
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        thread.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (state == SOLVING) {
+      state = IDLE;
+    }
+  }
+
+  /**
+   * Applies the solved fit if it was accepted, run by the fusion thread
+   *
+   * @return True if it was accepted
+   */
+  private boolean adoptSolution() {
+    boolean accepted = solvedAccepted;
+    if (accepted) {
+      System.arraycopy(solvedOffset, 0, offset, 0, 3);
+      System.arraycopy(solvedMatrix, 0, matrix, 0, 9);
+      fieldStrength = solvedFieldStrength;
+      residual = solvedResidual;
+      coverage = solvedCoverage;
+      calibrated = true;
+    }
+    state = IDLE;
+    return accepted;
+  }
+
+  /**
+   * Solves the fit for the pending sums and decides whether to accept it
+   */
+  private void solve() {
+    double[] s = pendingSums;
+    double count = s[index(9, 9)];
+    solvedAccepted = false;
+
+    // The spread of the samples: the covariance of the scaled samples from the sums with the constant term
+    double meanX = s[index(6, 9)] / (2 * count);
+    double meanY = s[index(7, 9)] / (2 * count);
+    double meanZ = s[index(8, 9)] / (2 * count);
+    double[] m = shape;
+    m[0] = s[index(0, 9)] / count - meanX * meanX;
+    m[4] = s[index(1, 9)] / count - meanY * meanY;
+    m[8] = s[index(2, 9)] / count - meanZ * meanZ;
+    m[5] = m[7] = s[index(3, 9)] / (2 * count) - meanY * meanZ;
+    m[2] = m[6] = s[index(4, 9)] / (2 * count) - meanX * meanZ;
+    m[1] = m[3] = s[index(5, 9)] / (2 * count) - meanX * meanY;
+    eigen(m, eigenvalues, eigenvectors);
+    double smallest = Math.min(eigenvalues[0], Math.min(eigenvalues[1], eigenvalues[2]));
+    double largest = Math.max(eigenvalues[0], Math.max(eigenvalues[1], eigenvalues[2]));
+    float spread = largest > 0 ? (float) Math.sqrt(Math.max(0, smallest) / largest) : 0;
+    lastCoverage = spread;
+
+    if (count < MIN_SAMPLES || !fitEllipsoid(s)) {
+      lastResidual = Float.NaN;
+      rejectedFits++;
+      state = SOLVED;
+      return;
+    }
+
+    // The quadric v^T d = 0 is (p - c)^T A (p - c) = k, with the shape A, the centre c = -A^-1 b and k = c^T A c - v9
+    double[] v = coefficients;
+    m[0] = v[0];
+    m[4] = v[1];
+    m[8] = v[2];
+    m[5] = m[7] = v[3];
+    m[2] = m[6] = v[4];
+    m[1] = m[3] = v[5];
+    double k = -v[9] + centre[0] * (m[0] * centre[0] + m[1] * centre[1] + m[2] * centre[2])
+        + centre[1] * (m[3] * centre[0] + m[4] * centre[1] + m[5] * centre[2])
+        + centre[2] * (m[6] * centre[0] + m[7] * centre[1] + m[8] * centre[2]);
+    for (int i = 0; i < 9; i++) {
+      m[i] /= k;
+    }
+    eigen(m, eigenvalues, eigenvectors);
+    if (k <= 0 || eigenvalues[0] <= 0 || eigenvalues[1] <= 0 || eigenvalues[2] <= 0) {
+      lastResidual = Float.NaN;
+      rejectedFits++;
+      state = SOLVED;
+      return;
+    }
+
+    // The residual of a sample is k ((|corrected| / strength)^2 - 1), about 2 k times its relative error
+    double squares = 0;
+    int n = 0;
+    for (int i = 0; i < TERMS; i++) {
+      for (int j = i; j < TERMS; j++) {
+        squares += (i == j ? 1 : 2) * v[i] * v[j] * s[n++];
+      }
+    }
+    float fitResidual = (float) (Math.sqrt(Math.max(0, squares) / count) / (2 * k));
+    lastResidual = fitResidual;
+
+    // The square root of the shape maps the ellipsoid onto the unit sphere; scale it to the mean field strength
+    double radius = Math.pow(eigenvalues[0] * eigenvalues[1] * eigenvalues[2], -1.0 / 6);
+    double[] e = eigenvectors;
+    for (int row = 0; row < 3; row++) {
+      for (int column = 0; column < 3; column++) {
+        double value = 0;
+        for (int i = 0; i < 3; i++) {
+          value += e[row * 3 + i] * Math.sqrt(eigenvalues[i]) * e[column * 3 + i];
+        }
+        solvedMatrix[row * 3 + column] = (float) (radius * value);
+      }
+    }
+    for (int i = 0; i < 3; i++) {
+      solvedOffset[i] = (float) (centre[i] * SCALE);
+    }
+    solvedFieldStrength = (float) (radius * SCALE);
+    solvedResidual = fitResidual;
+    solvedCoverage = spread;
+
+    solvedAccepted = spread >= MIN_COVERAGE && fitResidual <= MAX_RESIDUAL
+        && solvedFieldStrength >= MIN_FIELD_STRENGTH && solvedFieldStrength <= MAX_FIELD_STRENGTH;
+    if (solvedAccepted) {
+      fits++;
+    } else {
+      rejectedFits++;
+    }
+    state = SOLVED;
+  }
+
+  /**
+   * Solves for the coefficients of the quadric and its centre. The sum of the squared residuals v^T S v is minimised
+   * under the constraint that the quadratic coefficients add up to 1, which gives v = S^-1 (1, 1, 1, 0, ...) scaled to
+   * that sum. Unlike fixing the constant term, this also works when the ellipsoid passes through the origin, which a
+   * large offset does.
+   *
+   * @return False if they are singular
+   */
+  private boolean fitEllipsoid(double[] s) {
+    // Samples without noise lie exactly on the ellipsoid, which makes S singular; a tiny ridge keeps it solvable
+    double ridge = 0;
+    for (int i = 0; i < TERMS; i++) {
+      ridge += s[index(i, i)];
+    }
+    ridge *= RIDGE;
+    for (int i = 0; i < TERMS; i++) {
+      for (int j = 0; j < TERMS; j++) {
+        normalMatrix[i * TERMS + j] = s[index(i, j)] + (i == j ? ridge : 0);
+      }
+      normalVector[i] = i < 3 ? 1 : 0;
+    }
+    if (!solveLinear(normalMatrix, normalVector, TERMS, coefficients)) {
+      return false;
+    }
+    double[] v = coefficients;
+    double trace = v[0] + v[1] + v[2];
+    if (trace == 0) {
+      return false;
+    }
+    for (int i = 0; i < TERMS; i++) {
+      v[i] /= trace;
+    }
+
+    double[] a = normalMatrix;
+    a[0] = v[0];
+    a[4] = v[1];
+    a[8] = v[2];
+    a[5] = a[7] = v[3];
+    a[2] = a[6] = v[4];
+    a[1] = a[3] = v[5];
+    normalVector[0] = -v[6];
+    normalVector[1] = -v[7];
+    normalVector[2] = -v[8];
+    return solveLinear(a, normalVector, 3, centre);
+  }
+
+  /**
+   * @return The index of the sum of the products of the terms i and j in the packed upper triangle
+   */
+  private static int index(int i, int j) {
+    if (i > j) {
+      int swap = i;
+      i = j;
+      j = swap;
+    }
+    return i * TERMS - i * (i - 1) / 2 + j - i;
+  }
+
+  /**
+   * Solves a linear system by Gaussian elimination with partial pivoting. Destroys the matrix and the vector.
+   *
+   * @param a The row-major size x size matrix
+   * @param b The right hand side
+   * @param size The number of unknowns
+   * @param x Receives the solution
+   * @return False if the matrix is singular
+   */
+  private static boolean solveLinear(double[] a, double[] b, int size, double[] x) {
+    double scale = 0;
+    for (int i = 0; i < size * size; i++) {
+      scale = Math.max(scale, Math.abs(a[i]));
+    }
+    for (int column = 0; column < size; column++) {
+      int pivot = column;
+      for (int row = column + 1; row < size; row++) {
+        if (Math.abs(a[row * size + column]) > Math.abs(a[pivot * size + column])) {
+          pivot = row;
+        }
+      }
+      if (Math.abs(a[pivot * size + column]) <= scale * 1e-12) {
+        return false;
+      }
+      if (pivot != column) {
+        for (int j = 0; j < size; j++) {
+          double swap = a[column * size + j];
+          a[column * size + j] = a[pivot * size + j];
+          a[pivot * size + j] = swap;
+        }
+        double swap = b[column];
+        b[column] = b[pivot];
+        b[pivot] = swap;
+      }
+      for (int row = column + 1; row < size; row++) {
+        double factor = a[row * size + column] / a[column * size + column];
+        for (int j = column; j < size; j++) {
+          a[row * size + j] -= factor * a[column * size + j];
+        }
+        b[row] -= factor * b[column];
+      }
+    }
+    for (int row = size - 1; row >= 0; row--) {
+      double value = b[row];
+      for (int j = row + 1; j < size; j++) {
+        value -= a[row * size + j] * x[j];
+      }
+      x[row] = value / a[row * size + row];
+    }
+    return true;
+  }
+
+  /**
+   * Computes the eigenvalues and eigenvectors of a symmetric 3x3 matrix with Jacobi rotations. Destroys the matrix.
+   *
+   * @param a The row-major matrix
+   * @param values Receives the eigenvalues
+   * @param vectors Receives the eigenvectors as the columns of a row-major matrix
+   */
+  private static void eigen(double[] a, double[] values, double[] vectors) {
+    for (int i = 0; i < 9; i++) {
+      vectors[i] = i % 4 == 0 ? 1 : 0;
+    }
+    for (int sweep = 0; sweep < 50; sweep++) {
+      double off = a[1] * a[1] + a[2] * a[2] + a[5] * a[5];
+      double diagonal = a[0] * a[0] + a[4] * a[4] + a[8] * a[8];
+      if (off <= diagonal * 1e-30) {
+        break;
+      }
+      for (int p = 0; p < 2; p++) {
+        for (int q = p + 1; q < 3; q++) {
+          double apq = a[p * 3 + q];
+          if (apq == 0) {
+            continue;
+          }
+          double theta = (a[q * 4] - a[p * 4]) / (2 * apq);
+          double t = (theta >= 0 ? 1 : -1) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+          double c = 1 / Math.sqrt(t * t + 1);
+          double s = t * c;
+          for (int k = 0; k < 3; k++) {
+            double akp = a[k * 3 + p];
+            double akq = a[k * 3 + q];
+            a[k * 3 + p] = c * akp - s * akq;
+            a[k * 3 + q] = s * akp + c * akq;
+          }
+          for (int k = 0; k < 3; k++) {
+            double apk = a[p * 3 + k];
+            double aqk = a[q * 3 + k];
+            a[p * 3 + k] = c * apk - s * aqk;
+            a[q * 3 + k] = s * apk + c * aqk;
+          }
+          for (int k = 0; k < 3; k++) {
+            double vkp = vectors[k * 3 + p];
+            double vkq = vectors[k * 3 + q];
+            vectors[k * 3 + p] = c * vkp - s * vkq;
+            vectors[k * 3 + q] = s * vkp + c * vkq;
+          }
+        }
+      }
+    }
+    values[0] = a[0];
+    values[1] = a[4];
+    values[2] = a[8];
+  }
+
+  /**
+   * Forgets the fit and the calibration, e.g. when the device was moved into a different environment. Must be called
+   * by the thread that fuses the samples or while the provider is stopped.
+   */
+  public void reset() {
+    stop();
+    for (int i = 0; i < SUMS; i++) {
+      sums[i] = 0;
+    }
+    hasAdded = false;
+    solveTimestamp = 0;
+    calibrated = false;
+    state = IDLE;
+    sampleCount = 0;
+    addedSamples = 0;
+    fits = 0;
+    rejectedFits = 0;
+    fieldStrength = 0;
+    residual = 0;
+    coverage = 0;
+    lastCoverage = 0;
+    lastResidual = 0;
+    meanSquaredMagnitudeError = 0;
+  }
+
+  /**
+   * @return True if a fit has been accepted and the samples are corrected
+   */
+  public boolean isCalibrated() {
+    return calibrated;
+  }
+
+  /**
+   * @param output The float[3] that receives the hard-iron offset in micro Tesla that is removed from the samples
+   */
+  public void getOffset(float[] output) {
+    System.arraycopy(offset, 0, output, 0, 3);
+  }
+
+  /**
+   * @param output The float[9] that receives the row-major soft-iron matrix that is applied to the samples after the
+   * offset is removed
+   */
+  public void getSoftIronMatrix(float[] output) {
+    System.arraycopy(matrix, 0, output, 0, 9);
+  }
+
+  /**
+   * @return The field strength in micro Tesla of the applied calibration, which all corrected samples should have
+   */
+  public float getFieldStrength() {
+    return fieldStrength;
+  }
+
+  /**
+   * @return The RMS deviation of the field strength from the applied fit relative to its mean, over the samples it
+   * was fitted to
+   */
+  public float getResidual() {
+    return residual;
+  }
+
+  /**
+   * @return The ratio of the shortest to the longest axis of the spread of the samples of the applied fit, between 0
+   * and 1 for samples from all directions
+   */
+  public float getCoverage() {
+    return coverage;
+  }
+
+  /**
+   * @return The coverage of the samples at the last fit, whether it was accepted or not
+   */
+  public float getLastCoverage() {
+    return lastCoverage;
+  }
+
+  /**
+   * @return The residual of the last fit, whether it was accepted or not; NaN if it could not be solved
+   */
+  public float getLastResidual() {
+    return lastResidual;
+  }
+
+  /**
+   * @return The running RMS deviation of the field strength of the corrected samples relative to the field strength
+   * of the calibration, which grows when the environment no longer matches the calibration
+   */
+  public float getMagnitudeError() {
+    return (float) Math.sqrt(meanSquaredMagnitudeError);
+  }
+
+  /**
+   * @return The number of samples seen
+   */
+  public long getSampleCount() {
+    return sampleCount;
+  }
+
+  /**
+   * @return The number of samples added to the fit
+   */
+  public long getAddedSamples() {
+    return addedSamples;
+  }
+
+  /**
+   * @return The number of fits that were accepted
+   */
+  public long getFits() {
+    return fits;
+  }
+
+  /**
+   * @return The number of fits that were rejected
+   */
+  public long getRejectedFits() {
+    return rejectedFits;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US, "Magnetometer calibration: %s, %.1f uT, offset %.1f %.1f %.1f uT, residual "
+            + "%.1f%%, coverage %.2f, magnitude error %.1f%%, %d/%d fits, %d of %d samples",
+        calibrated ? "on" : "off", fieldStrength, offset[0], offset[1], offset[2], 100 * residual, coverage,
+        100 * getMagnitudeError(), fits, fits + rejectedFits, addedSamples, sampleCount);
+  }
+}
@@ -0,0 +1,244 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+
+/**
+ * The orientation provider that delivers the absolute orientation from the {@link Sensor#TYPE_GYROSCOPE Gyroscope},
+ * {@link Sensor#TYPE_ACCELEROMETER Accelerometer} and optionally the {@link Sensor#TYPE_MAGNETIC_FIELD Compass} with
+ * Mahony's nonlinear complementary filter.
+ *
+ * The gyroscope is integrated like in the {@link CalibratedGyroscopeProvider}, but before each step the angular speed
+ * is corrected by the error between the measured and the estimated direction of gravity (and of magnetic north):
+ * proportionally, which pulls the orientation towards the measurement, and integrally, which converges to the
+ * gyroscope bias and removes the drift. Without the compass, the heading is relative to the start and its bias is not
+ * corrected.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class MahonyProvider extends OrientationProvider {
+
+  /**
+   * Constant specifying the factor between a Nano-second and a second
+   */
+  private static final float NS2S = 1.0f / 1000000000.0f;
+  /**
+   * The default proportional gain; with it, an orientation error decays with a time constant of about one second
+   */
+  public static final float DEFAULT_PROPORTIONAL_GAIN = 1.0f;
+  /**
+   * The default integral gain; the bias estimate settles within about half a minute
+   */
+  public static final float DEFAULT_INTEGRAL_GAIN = 0.1f;
+  /**
+   * The proportional gain used right after start, so that the orientation converges from the identity within a
+   * second. The integral feedback is paused meanwhile, so the large initial error does not wind it up.
+   */
+  private static final float STARTUP_PROPORTIONAL_GAIN = 10f;
+  /**
+   * The time in nanoseconds during which the startup gain is used
+   */
+  private static final long STARTUP_DURATION = 1000000000L;
+
+  /**
+   * Integrates the corrected angular speed into the orientation
+   */
+  private final GyroscopeIntegrator gyroscopeIntegrator = new GyroscopeIntegrator();
+  /**
+   * Whether the compass is used
+   */
+  private final boolean useMagnetometer;
+  /**
+   * The gains of the error feedback
+   */
+  private volatile float proportionalGain = DEFAULT_PROPORTIONAL_GAIN;
+  private volatile float integralGain = DEFAULT_INTEGRAL_GAIN;
+  /**
+   * The integral of the error times the integral gain, which is the negative gyroscope bias in rad/s
+   */
+  private final float[] integralFeedback = new float[3];
+  /**
+   * The latest accelerometer and compass samples
+   */
+  private float ax;
+  private float ay;
+  private float az;
+  private float mx;
+  private float my;
+  private float mz;
+  private boolean hasAccelerometer;
+  private boolean hasMagnetic;
+  /**
+   * The time-stamp being used to record the time when the last gyroscope event occurred.
+   */
+  private long timestamp;
+  /**
+   * The time-stamp of the first gyroscope event, which starts the startup phase
+   */
+  private long startTimestamp;
+
+  /**
+   * Initialises a new MahonyProvider that uses the compass
+   *
+   * @param sensorManager The android sensor manager
+   */
+  public MahonyProvider(SensorManager sensorManager) {
+    this(sensorManager, true);
+  }
+
+  /**
+   * Initialises a new MahonyProvider
+   *
+   * @param sensorManager The android sensor manager
+   * @param useMagnetometer True to correct the heading with the compass, false to only use gyroscope and
+   * accelerometer
+   */
+  public MahonyProvider(SensorManager sensorManager, boolean useMagnetometer) {
+    super(sensorManager);
+    this.useMagnetometer = useMagnetometer;
+
+    //Add the gyroscope, the accelerometer and the compass
+    sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE));
+    sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER));
+    if (useMagnetometer) {
+      sensorList.add(sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD));
+    }
+  }
+
+  /**
+   * Sets the gains of the error feedback. Can be changed while running.
+   *
+   * @param proportionalGain The proportional gain in 1/s, e.g. {@link #DEFAULT_PROPORTIONAL_GAIN}
+   * @param integralGain The integral gain in 1/s^2, e.g. {@link #DEFAULT_INTEGRAL_GAIN}; 0 disables the bias correction
+   */
+  public void setGains(float proportionalGain, float integralGain) {
+    this.proportionalGain = proportionalGain;
+    this.integralGain = integralGain;
+  }
+
+  /**
+   * @return The proportional gain
+   */
+  public float getProportionalGain() {
+    return proportionalGain;
+  }
+
+  /**
+   * @return The integral gain
+   */
+  public float getIntegralGain() {
+    return integralGain;
+  }
+
+  /**
+   * Copies the current estimate of the gyroscope bias, on top of the bias that the
+   * {@link #getGyroscopeBiasEstimator() calibration} removes. Only the bias around axes that the accelerometer (and
+   * the compass) can observe converges.
+   *
+   * @param bias The float[3] that receives the bias in rad/s
+   */
+  public void getGyroscopeBias(float[] bias) {
+    bias[0] = -integralFeedback[0];
+    bias[1] = -integralFeedback[1];
+    bias[2] = -integralFeedback[2];
+  }
+
+  @Override
+  protected void onGyroscopeBiasChanged(float changeX, float changeY, float changeZ) {
+    // The integral feedback is the negative bias
+    integralFeedback[0] += changeX;
+    integralFeedback[1] += changeY;
+    integralFeedback[2] += changeZ;
+  }
+
+  @Override
+  public void onSensorSample(int sensorType, long eventTimestamp, float[] values) {
+    if (sensorType == Sensor.TYPE_ACCELEROMETER) {
+      observeAccelerometer(eventTimestamp, values);
+      ax = values[0];
+      ay = values[1];
+      az = values[2];
+      hasAccelerometer = true;
+    } else if (sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
+      float[] field = correctMagnetometer(eventTimestamp, values);
+      mx = field[0];
+      my = field[1];
+      mz = field[2];
+      hasMagnetic = true;
+    } else if (sensorType == Sensor.TYPE_GYROSCOPE) {
+      float[] rate = correctGyroscope(eventTimestamp, values);
+      if (timestamp != 0 && hasAccelerometer) {
+        if (startTimestamp == 0) {
+          startTimestamp = eventTimestamp;
+        }
+        boolean startup = eventTimestamp - startTimestamp < STARTUP_DURATION;
+        final float dT = (eventTimestamp - timestamp) * NS2S;
+        float[] matrix = currentOrientationRotationMatrix.matrix;
+
+        // The estimated direction of gravity in device coordinates is the last row of the rotation matrix
+        float vx = matrix[8];
+        float vy = matrix[9];
+        float vz = matrix[10];
+
+        // The error is the rotation that turns the estimated into the measured direction
+        float ex = 0;
+        float ey = 0;
+        float ez = 0;
+        float normA = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        if (normA > 0) {
+          float nax = ax / normA;
+          float nay = ay / normA;
+          float naz = az / normA;
+          ex = nay * vz - naz * vy;
+          ey = naz * vx - nax * vz;
+          ez = nax * vy - nay * vx;
+        }
+
+        float normM = (float) Math.sqrt(mx * mx + my * my + mz * mz);
+        if (useMagnetometer && hasMagnetic && normM > 0) {
+          float nmx = mx / normM;
+          float nmy = my / normM;
+          float nmz = mz / normM;
+
+          // The field in world coordinates, reduced to its north and up components, is the reference
+          float hx = matrix[0] * nmx + matrix[1] * nmy + matrix[2] * nmz;
+          float hy = matrix[4] * nmx + matrix[5] * nmy + matrix[6] * nmz;
+          float hz = matrix[8] * nmx + matrix[9] * nmy + matrix[10] * nmz;
+          float by = (float) Math.sqrt(hx * hx + hy * hy);
+
+          // The estimated direction of the field in device coordinates
+          float wx = by * matrix[4] + hz * matrix[8];
+          float wy = by * matrix[5] + hz * matrix[9];
+          float wz = by * matrix[6] + hz * matrix[10];
+          ex += nmy * wz - nmz * wy;
+          ey += nmz * wx - nmx * wz;
+          ez += nmx * wy - nmy * wx;
+        }
+
+        float kp = startup ? STARTUP_PROPORTIONAL_GAIN : proportionalGain;
+        float ki = integralGain;
+        if (ki > 0 && !startup) {
+          integralFeedback[0] += ki * ex * dT;
+          integralFeedback[1] += ki * ey * dT;
+          integralFeedback[2] += ki * ez * dT;
+        } else if (ki <= 0) {
+          integralFeedback[0] = 0;
+          integralFeedback[1] = 0;
+          integralFeedback[2] = 0;
+        }
+
+        gyroscopeIntegrator.integrate(rate[0] + kp * ex + integralFeedback[0],
+            rate[1] + kp * ey + integralFeedback[1], rate[2] + kp * ez + integralFeedback[2], dT,
+            currentOrientationQuaternion);
+
+        // The bias corrected rate, without the feedback that pulls the estimate towards the measured directions
+        setAngularVelocity(rate[0] + integralFeedback[0], rate[1] + integralFeedback[1],
+            rate[2] + integralFeedback[2]);
+        // The integrated quaternion has an inverted w
+        publishOrientation(-currentOrientationQuaternion.getW(), currentOrientationQuaternion.getX(),
+            currentOrientationQuaternion.getY(), currentOrientationQuaternion.getZ());
+      }
+      timestamp = eventTimestamp;
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+/**
+ * Notified by an {@link OrientationProvider} when the orientation it publishes has turned by more than a threshold
+ * since the last notification, e.g. to draw a view only when it would look different.
+ *
+ * @author Stanislav Lelyuk
+ */
+public interface OrientationChangeListener {
+
+  /**
+   * Called on the thread that delivers the sensor events, right after the new orientation has been published. Must
+   * return quickly, as the fusion waits for it.
+   */
+  void onOrientationChanged();
+}
@@ -3,14 +3,23 @@
  */
 package org.sl.sensor_fusion_demo.orientationProvider;
 
+import android.annotation.TargetApi;
 import android.hardware.Sensor;
+import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 import java.util.ArrayList;
 import java.util.List;
 import org.sl.sensor_fusion_demo.representation.EulerAngles;
 import org.sl.sensor_fusion_demo.representation.Matrixf4x4;
 import org.sl.sensor_fusion_demo.representation.Quaternion;
+import org.sl.sensor_fusion_demo.trace.SensorEventRecorder;
 
 /**
  * Classes implementing this interface provide an orientation of the device
@@ -21,20 +30,34 @@ import org.sl.sensor_fusion_demo.representation.Quaternion;
  *
  * @author Stanislav Lelyuk
  */
-public abstract class OrientationProvider implements SensorEventListener {
+public abstract class OrientationProvider implements SensorEventListener, SensorSampleListener {
   /**
-   * Sync-token for syncing read/write to sensor-data from sensor manager and
-   * fusion algorithm
+   * The maximum time in nanoseconds the orientation is extrapolated by the prediction
    */
-  protected final Object syncToken = new Object();
+  public static final long MAX_PREDICTION_NS = 100000000L;
   /**
-   * The matrix that holds the current rotation
+   * The weight of a new angular velocity that is estimated from two consecutive orientations, for providers that do
+   * not measure it. The estimate is smoothed because it differentiates the noise of the orientation.
+   */
+  private static final float ANGULAR_VELOCITY_SMOOTHING = 0.2f;
+  /**
+   * The matrix that holds the current rotation. It is only touched by the thread that delivers sensor events; readers
+   * get the value that was last published by {@link #publishOrientation()}.
    */
   protected final Matrixf4x4 currentOrientationRotationMatrix;
   /**
-   * The quaternion that holds the current rotation
+   * The quaternion that holds the current rotation. It is only touched by the thread that delivers sensor events;
+   * readers get the value that was last published by {@link #publishOrientation()}.
    */
   protected final Quaternion currentOrientationQuaternion;
+  /**
+   * The orientation as last published to the readers
+   */
+  private final PublishedOrientation publishedOrientation = new PublishedOrientation();
+  /**
+   * Buffer for the [x, y, z, w] rotation vector handed to the rotation matrix conversion
+   */
+  private final float[] rotationVector = new float[4];
   /**
    * The list of sensors used by this provider
    */
@@ -43,6 +66,128 @@ public abstract class OrientationProvider implements SensorEventListener {
    * The sensor manager for accessing android sensors
    */
   protected SensorManager sensorManager;
+  /**
+   * The sampling period in microseconds the sensors are registered with in batching mode
+   */
+  private int samplingPeriodUs;
+  /**
+   * The maximum report latency in microseconds the sensors are registered with in batching mode. Zero if batching is
+   * disabled.
+   */
+  private int maxReportLatencyUs;
+  /**
+   * Merges the bursts delivered by the sensor FIFOs into one ordered stream while batching, null otherwise
+   */
+  private SensorBatchMerger batchMerger;
+  /**
+   * Flag indicating whether sensor events are delivered and fused on a dedicated thread (the default) or on the main
+   * looper
+   */
+  private boolean useSensorThread = true;
+  /**
+   * The thread that receives the sensor events and runs the fusion while started, null if the main looper is used
+   */
+  private HandlerThread sensorThread;
+  /**
+   * The handler of the sensor thread, null if the main looper is used
+   */
+  private Handler sensorHandler;
+  /**
+   * Time from when a sample was taken until its sensor event callback runs
+   */
+  private final LatencyStatistics deliveryLatency = new LatencyStatistics("Sample to callback");
+  /**
+   * Time from the start of a sensor event callback until the resulting orientation is published
+   */
+  private final LatencyStatistics publishLatency = new LatencyStatistics("Callback to publish");
+  /**
+   * The System.nanoTime() at which the current sensor event callback started, 0 outside of callbacks
+   */
+  private long callbackStartNs;
+  /**
+   * Records every sensor event that is delivered, null if not recording
+   */
+  private volatile SensorEventRecorder traceRecorder;
+  /**
+   * Lowers the sampling rate while the device is still, null to always register the sensors with SENSOR_DELAY_GAME
+   */
+  private StillnessRateController rateController;
+  /**
+   * Guards the registration of the sensors, so that the rate controller cannot register them again from a callback
+   * while {@link #stop()} unregisters them
+   */
+  private final Object registrationLock = new Object();
+  /**
+   * Whether the sensors are registered; only touched while holding {@link #registrationLock}
+   */
+  private boolean sensorsRegistered;
+  /**
+   * Estimates the gyroscope bias while the device is stationary, for the providers that use a gyroscope
+   */
+  private final GyroscopeBiasEstimator gyroscopeBiasEstimator = new GyroscopeBiasEstimator();
+  /**
+   * The last gyroscope sample without the bias
+   */
+  private final float[] correctedGyroscope = new float[3];
+  /**
+   * How much the removed gyroscope bias has changed
+   */
+  private final float[] gyroscopeBiasChange = new float[3];
+  /**
+   * Removes the hard- and soft-iron distortion from the magnetometer, for the providers that use one
+   */
+  private final MagnetometerCalibrator magnetometerCalibrator = new MagnetometerCalibrator();
+  /**
+   * The last magnetometer sample without the distortion
+   */
+  private final float[] correctedMagnetometer = new float[3];
+  /**
+   * The timestamp of the sample that is being fused, 0 if the sample was not delivered through onSensorChanged
+   */
+  private long sampleTimestamp;
+  /**
+   * The angular velocity of the device in rad/s in device coordinates that is published with the orientation
+   */
+  private float angularVelocityX;
+  private float angularVelocityY;
+  private float angularVelocityZ;
+  /**
+   * Whether the subclass measures the angular velocity; if not, it is estimated from the published orientations
+   */
+  private boolean angularVelocityMeasured;
+  /**
+   * Whether the angular velocity is estimated from the published orientations if the subclass does not measure it
+   */
+  private boolean angularVelocityEstimated = true;
+  /**
+   * The previously published orientation and its timestamp, for estimating the angular velocity
+   */
+  private final Quaternion previousQuaternion = new Quaternion();
+  private long previousTimestamp;
+  /**
+   * Notified when the published orientation has turned by more than the threshold, null if none
+   */
+  private volatile OrientationChangeListener orientationChangeListener;
+  /**
+   * The square of the cosine of half the threshold angle; written before the listener is
+   */
+  private double orientationChangeCosSquared;
+  /**
+   * The listener that was notified last and the orientation it was notified of, only touched by the thread that
+   * delivers sensor events
+   */
+  private OrientationChangeListener notifiedListener;
+  private final Quaternion notifiedQuaternion = new Quaternion();
+  /**
+   * Hands the samples released by the batch merger to the fusion along with their timestamps
+   */
+  private final SensorSampleListener batchListener = new SensorSampleListener() {
+    @Override
+    public void onSensorSample(int sensorType, long timestamp, float[] values) {
+      sampleTimestamp = timestamp;
+      OrientationProvider.this.onSensorSample(sensorType, timestamp, values);
+    }
+  };
 
   /**
    * Initialises a new OrientationProvider
@@ -59,17 +204,281 @@ public abstract class OrientationProvider implements SensorEventListener {
     currentOrientationQuaternion = new Quaternion();
   }
 
+  /**
+   * Enables the batching mode: the sensors are registered with the given sampling period and maximum report latency,
+   * so that the hardware FIFO collects samples and delivers them in bursts instead of waking the application for
+   * every sample. Each burst is merged by timestamp across sensors and then runs through the fusion in one pass.
+   *
+   * A higher latency means fewer wake-ups, but the orientation is also published up to that much later. The FIFO must
+   * be able to hold {@link #getSamplesPerBatch()} samples, otherwise the sensor hub will deliver earlier.
+   *
+   * Has to be called while the provider is stopped. Batching requires API level 19; on older devices the sensors
+   * are still registered with the sampling period, but without the report latency.
+   *
+   * @param samplingPeriodUs The sampling period in microseconds
+   * @param maxReportLatencyUs The maximum time in microseconds a sample may be held back in the FIFO
+   */
+  public void setBatching(int samplingPeriodUs, int maxReportLatencyUs) {
+    if (samplingPeriodUs <= 0 || maxReportLatencyUs <= 0) {
+      throw new IllegalArgumentException("Sampling period and report latency must be positive");
+    }
+    this.samplingPeriodUs = samplingPeriodUs;
+    this.maxReportLatencyUs = maxReportLatencyUs;
+  }
+
+  /**
+   * Disables the batching mode, so that every sample is delivered and fused as it arrives (the default). Has to be
+   * called while the provider is stopped.
+   */
+  public void disableBatching() {
+    this.samplingPeriodUs = 0;
+    this.maxReportLatencyUs = 0;
+  }
+
+  /**
+   * @return True if the sensors are registered in batching mode
+   */
+  public boolean isBatching() {
+    return maxReportLatencyUs > 0;
+  }
+
+  /**
+   * @return The number of samples per sensor that are collected in the FIFO for one burst in batching mode
+   */
+  public int getSamplesPerBatch() {
+    return isBatching() ? maxReportLatencyUs / samplingPeriodUs : 1;
+  }
+
+  /**
+   * Selects whether sensor events are delivered and fused on a dedicated high-priority thread (the default), so that
+   * work on the UI thread does not delay the fusion and vice versa, or on the main looper. Has to be called while the
+   * provider is stopped.
+   *
+   * @param useSensorThread True to use a dedicated thread, false to use the main looper
+   */
+  public void setUseSensorThread(boolean useSensorThread) {
+    this.useSensorThread = useSensorThread;
+  }
+
+  /**
+   * @return True if sensor events are delivered and fused on a dedicated thread, false if on the main looper
+   */
+  public boolean isUsingSensorThread() {
+    return useSensorThread;
+  }
+
+  /**
+   * Lets the sampling rate of the sensors follow the stillness of the device: while it is still, the sensors are
+   * registered with a low rate, which saves CPU time and battery, and as soon as it moves again with the full rate.
+   * Has to be called while the provider is stopped. Has no effect in batching mode.
+   *
+   * @param rateController The controller that decides the rate, or null to always use SENSOR_DELAY_GAME (the default)
+   */
+  public void setRateController(StillnessRateController rateController) {
+    this.rateController = rateController;
+  }
+
+  /**
+   * @return The controller that decides the sampling rate, whose metrics show how long the sensors ran at the low
+   * rate; null if the rate is fixed
+   */
+  public StillnessRateController getRateController() {
+    return rateController;
+  }
+
+  /**
+   * @return The estimator of the gyroscope bias that is removed from the gyroscope samples; unused by providers
+   * without a gyroscope
+   */
+  public GyroscopeBiasEstimator getGyroscopeBiasEstimator() {
+    return gyroscopeBiasEstimator;
+  }
+
+  /**
+   * @return The calibration that removes the hard- and soft-iron distortion from the magnetometer samples, whose
+   * metrics show how well it fits; unused by providers without a magnetometer
+   */
+  public MagnetometerCalibrator getMagnetometerCalibrator() {
+    return magnetometerCalibrator;
+  }
+
+  /**
+   * Sets the listener that is notified whenever the published orientation has turned by more than the threshold since
+   * it was last notified, so that small changes add up until they pass it. The listener is notified with the next
+   * published orientation in any case. Can be called while running from any thread.
+   *
+   * @param listener The listener, or null to notify none
+   * @param thresholdRad The rotation angle in radians the orientation has to turn by
+   */
+  public void setOrientationChangeListener(OrientationChangeListener listener, float thresholdRad) {
+    double cosHalfThreshold = Math.cos(thresholdRad / 2);
+    orientationChangeCosSquared = cosHalfThreshold * cosHalfThreshold;
+    orientationChangeListener = listener;
+  }
+
+  /**
+   * @return The time from when a sample was taken until its sensor event callback ran. Only meaningful on devices whose
+   * sensor timestamps use the {@link SystemClock#elapsedRealtimeNanos()} time base (API level 17 and above).
+   */
+  public LatencyStatistics getDeliveryLatency() {
+    return deliveryLatency;
+  }
+
+  /**
+   * @return The time from the start of a sensor event callback until the resulting orientation was published
+   */
+  public LatencyStatistics getPublishLatency() {
+    return publishLatency;
+  }
+
   /**
    * Starts the sensor fusion (e.g. when resuming the activity)
    */
   public void start() {
-    // enable our sensor when the activity is resumed, ask for
-    // 10 ms updates.
-    for (Sensor sensor : sensorList) {
+    startFusion();
+    startSensorThread();
+
+    synchronized (registrationLock) {
+      sensorsRegistered = true;
+      if (isBatching()) {
+        startBatching();
+        return;
+      }
+
+      if (rateController != null) {
+        rateController.reset();
+        registerSensors(rateController.getSamplingPeriodUs());
+        return;
+      }
+
       // enable our sensors when the activity is resumed, ask for
       // 20 ms updates (Sensor_delay_game)
-      sensorManager.registerListener(this, sensor,
-          SensorManager.SENSOR_DELAY_GAME);
+      registerSensors(SensorManager.SENSOR_DELAY_GAME);
+    }
+  }
+
+  /**
+   * Starts the sensor fusion without registering the sensors, for a {@link SensorFanOut} that registers them once for
+   * several providers and hands their samples to {@link #onDispatchedSample(int, long, float[])}. The batching mode
+   * and the rate controller do not apply.
+   */
+  void startDispatched() {
+    startFusion();
+  }
+
+  /**
+   * Resets the statistics and the state that must not carry over from the previous start
+   */
+  private void startFusion() {
+    deliveryLatency.reset();
+    publishLatency.reset();
+    previousTimestamp = 0;
+    for (Sensor sensor : sensorList) {
+      if (sensor != null && sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
+        magnetometerCalibrator.start();
+      }
+    }
+  }
+
+  /**
+   * Registers all sensors for delivery to the sensor thread
+   *
+   * @param samplingPeriod The sampling period in microseconds or one of the SENSOR_DELAY constants
+   */
+  private void registerSensors(int samplingPeriod) {
+    for (Sensor sensor : sensorList) {
+      sensorManager.registerListener(this, sensor, samplingPeriod, sensorHandler);
+    }
+  }
+
+  /**
+   * Registers the sensors again with the sampling period the rate controller asks for. Called from the sensor
+   * callback, which the sensor manager allows. Does nothing if {@link #stop()} has unregistered the sensors while the
+   * callback was running, as they would otherwise stay registered to the quit sensor thread.
+   */
+  private void changeSamplingPeriod() {
+    synchronized (registrationLock) {
+      if (!sensorsRegistered) {
+        return;
+      }
+      for (Sensor sensor : sensorList) {
+        sensorManager.unregisterListener(this, sensor);
+      }
+      registerSensors(rateController.getSamplingPeriodUs());
+    }
+    Log.d("OrientationProvider", rateController.toString());
+  }
+
+  /**
+   * Starts the dedicated thread that sensor events are delivered to, if enabled
+   */
+  private void startSensorThread() {
+    if (useSensorThread) {
+      sensorThread = new HandlerThread("OrientationProvider", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+      sensorThread.start();
+      sensorHandler = new Handler(sensorThread.getLooper());
+    }
+  }
+
+  /**
+   * Stops the dedicated sensor thread and waits until it has finished the event it is currently fusing
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+  private void stopSensorThread() {
+    if (sensorThread == null) {
+      return;
+    }
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      sensorThread.quitSafely();
+    } else {
+      sensorThread.quit();
+    }
+    try {
+      sensorThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sensorThread = null;
+    sensorHandler = null;
+  }
+
+  /**
+   * Registers the sensors with a maximum report latency and sets up the merging of their bursts
+   */
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private void startBatching() {
+    // Sensors the device does not have are null and neither registered nor waited for
+    int available = 0;
+    for (Sensor sensor : sensorList) {
+      if (sensor != null) {
+        available++;
+      }
+    }
+    int[] sensorTypes = new int[available];
+    int index = 0;
+    for (Sensor sensor : sensorList) {
+      if (sensor != null) {
+        sensorTypes[index++] = sensor.getType();
+      }
+    }
+    // Room for two bursts, as a burst of one sensor is held back until the other sensors have delivered theirs
+    int capacity = 2 * getSamplesPerBatch() + 16;
+    batchMerger = new SensorBatchMerger(sensorTypes, capacity, maxReportLatencyUs * 1000L, batchListener);
+
+    for (Sensor sensor : sensorList) {
+      if (sensor == null) {
+        continue;
+      }
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+        if (sensor.getFifoMaxEventCount() < getSamplesPerBatch()) {
+          Log.w("OrientationProvider", "FIFO of " + sensor.getName() + " only holds " + sensor.getFifoMaxEventCount()
+              + " samples, bursts will be delivered before the report latency of " + maxReportLatencyUs + " us");
+        }
+        sensorManager.registerListener(this, sensor, samplingPeriodUs, maxReportLatencyUs, sensorHandler);
+      } else {
+        sensorManager.registerListener(this, sensor, samplingPeriodUs, sensorHandler);
+      }
     }
   }
 
@@ -78,43 +487,386 @@ public abstract class OrientationProvider implements SensorEventListener {
    */
   public void stop() {
     // make sure to turn our sensors off when the activity is paused
-    for (Sensor sensor : sensorList) {
-      sensorManager.unregisterListener(this, sensor);
+    synchronized (registrationLock) {
+      sensorsRegistered = false;
+      for (Sensor sensor : sensorList) {
+        sensorManager.unregisterListener(this, sensor);
+      }
+    }
+    // After this, no callback is running anymore, so the remaining state can be touched from this thread
+    stopSensorThread();
+    magnetometerCalibrator.stop();
+
+    if (batchMerger != null) {
+      // Fuse what is left of the last burst
+      batchMerger.flush();
+      batchMerger = null;
+    }
+    logStatistics();
+  }
+
+  /**
+   * Stops the sensor fusion that was started with {@link #startDispatched()}, once no more samples are dispatched
+   */
+  void stopDispatched() {
+    magnetometerCalibrator.stop();
+    logStatistics();
+  }
+
+  /**
+   * Logs the latencies and the state of the rate controller and the magnetometer calibration
+   */
+  private void logStatistics() {
+    Log.d("OrientationProvider", deliveryLatency + "; " + publishLatency);
+    if (rateController != null) {
+      Log.d("OrientationProvider", rateController.toString());
+    }
+    if (magnetometerCalibrator.getSampleCount() > 0) {
+      Log.d("OrientationProvider", magnetometerCalibrator.toString());
     }
   }
 
+  /**
+   * Starts or stops recording the sensor events the provider receives, e.g. to replay them into a provider on a
+   * desktop. Can be called while running from any thread. The recorder is not closed when recording stops.
+   *
+   * @param traceRecorder The recorder, or null to stop recording
+   */
+  public void setTraceRecorder(SensorEventRecorder traceRecorder) {
+    this.traceRecorder = traceRecorder;
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+  @Override
+  public void onSensorChanged(SensorEvent event) {
+    callbackStartNs = System.nanoTime();
+    SensorEventRecorder recorder = traceRecorder;
+    if (recorder != null) {
+      recorder.record(event.sensor.getType(), event.accuracy, event.timestamp, event.values);
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      long age = SystemClock.elapsedRealtimeNanos() - event.timestamp;
+      if (age >= 0) {
+        deliveryLatency.add(age);
+      }
+    }
+
+    if (batchMerger != null) {
+      batchMerger.add(event.sensor.getType(), event.timestamp, event.values);
+    } else {
+      sampleTimestamp = event.timestamp;
+      onSensorSample(event.sensor.getType(), event.timestamp, event.values);
+      if (rateController != null && rateController.onSample(event.sensor.getType(), event.timestamp, event.values)) {
+        changeSamplingPeriod();
+      }
+    }
+    callbackStartNs = 0;
+    sampleTimestamp = 0;
+  }
+
+  /**
+   * Fuses a sample that a {@link SensorFanOut} has taken from a sensor it registered for several providers, on the
+   * worker thread of this provider. The time from when the sample was taken counts as its delivery latency, which
+   * includes the time it waited in the queue of the worker.
+   *
+   * @param sensorType The sensor type of the sample
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param values The values of the sample
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+  void onDispatchedSample(int sensorType, long timestamp, float[] values) {
+    callbackStartNs = System.nanoTime();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      long age = SystemClock.elapsedRealtimeNanos() - timestamp;
+      if (age >= 0) {
+        deliveryLatency.add(age);
+      }
+    }
+
+    sampleTimestamp = timestamp;
+    onSensorSample(sensorType, timestamp, values);
+    callbackStartNs = 0;
+    sampleTimestamp = 0;
+  }
+
   @Override
   public void onAccuracyChanged(Sensor sensor, int accuracy) {
     // Not doing anything
   }
 
   /**
-   * @return Returns the current rotation of the device in the rotation matrix format (4x4 matrix)
+   * Publishes the current quaternion and rotation matrix to the readers. Subclasses call this once they have updated
+   * both representations for a sensor event.
    */
-  public Matrixf4x4 getRotationMatrix() {
-    synchronized (syncToken) {
-      return currentOrientationRotationMatrix;
+  protected void publishOrientation() {
+    if (!angularVelocityMeasured && angularVelocityEstimated) {
+      estimateAngularVelocity();
+    }
+    publishedOrientation.write(currentOrientationQuaternion, currentOrientationRotationMatrix.matrix, sampleTimestamp,
+        angularVelocityX, angularVelocityY, angularVelocityZ);
+    if (callbackStartNs != 0) {
+      publishLatency.add(System.nanoTime() - callbackStartNs);
+    }
+
+    OrientationChangeListener listener = orientationChangeListener;
+    if (listener == null) {
+      notifiedListener = null;
+    } else if (listener != notifiedListener || hasTurnedSinceNotification()) {
+      notifiedListener = listener;
+      notifiedQuaternion.copyVec4(currentOrientationQuaternion);
+      listener.onOrientationChanged();
     }
   }
 
   /**
-   * @return Returns the current rotation of the device in the quaternion format (vector4f)
+   * @return True if the current orientation has turned by more than the threshold since the orientation the listener
+   * was last notified of. The angle between two unit quaternions is 2 * acos(|a . b|); the comparison is done on the
+   * squares, divided by the squared norms, so that it needs no square root and holds for quaternions that have drifted
+   * slightly off unit length. It is done in double, as the cosine of half a small angle is close to 1.
    */
-  public Quaternion getQuaternion() {
-    synchronized (syncToken) {
-      return currentOrientationQuaternion.clone();
+  private boolean hasTurnedSinceNotification() {
+    Quaternion a = notifiedQuaternion;
+    Quaternion b = currentOrientationQuaternion;
+    double dot = (double) a.getX() * b.getX() + (double) a.getY() * b.getY() + (double) a.getZ() * b.getZ()
+        + (double) a.getW() * b.getW();
+    double normA = (double) a.getX() * a.getX() + (double) a.getY() * a.getY() + (double) a.getZ() * a.getZ()
+        + (double) a.getW() * a.getW();
+    double normB = (double) b.getX() * b.getX() + (double) b.getY() * b.getY() + (double) b.getZ() * b.getZ()
+        + (double) b.getW() * b.getW();
+    return dot * dot < orientationChangeCosSquared * normA * normB;
+  }
+
+  /**
+   * Removes the estimated bias from a gyroscope sample and updates the estimate with it. Providers that use a
+   * gyroscope fuse the returned values instead of the sample.
+   *
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param values The gyroscope sample in rad/s
+   * @return The sample without the bias; the array is reused by the next call
+   */
+  protected float[] correctGyroscope(long timestamp, float[] values) {
+    if (gyroscopeBiasEstimator.correct(timestamp, values, correctedGyroscope)) {
+      gyroscopeBiasEstimator.getLastChange(gyroscopeBiasChange);
+      onGyroscopeBiasChanged(gyroscopeBiasChange[0], gyroscopeBiasChange[1], gyroscopeBiasChange[2]);
+    }
+    return correctedGyroscope;
+  }
+
+  /**
+   * Called by {@link #correctGyroscope(long, float[])} when the removed gyroscope bias has changed. Providers that
+   * also estimate the bias themselves hand the change over from their own estimate, which then only holds what the
+   * calibration has not removed, instead of removing it twice.
+   *
+   * @param changeX The change of the bias around the x axis in rad/s
+   * @param changeY The change of the bias around the y axis in rad/s
+   * @param changeZ The change of the bias around the z axis in rad/s
+   */
+  protected void onGyroscopeBiasChanged(float changeX, float changeY, float changeZ) {
+  }
+
+  /**
+   * Hands an accelerometer sample to the gyroscope bias estimation, which then only takes windows in which the
+   * accelerometer was still as well.
+   *
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param values The accelerometer sample in m/s^2
+   */
+  protected void observeAccelerometer(long timestamp, float[] values) {
+    gyroscopeBiasEstimator.addAccelerometer(timestamp, values);
+  }
+
+  /**
+   * Removes the hard-iron offset and the soft-iron distortion from a magnetometer sample and adds it to the
+   * calibration. Providers that use a magnetometer fuse the returned values instead of the sample.
+   *
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param values The magnetometer sample in micro Tesla
+   * @return The corrected sample; the array is reused by the next call
+   */
+  protected float[] correctMagnetometer(long timestamp, float[] values) {
+    magnetometerCalibrator.correct(timestamp, values, correctedMagnetometer);
+    return correctedMagnetometer;
+  }
+
+  /**
+   * Sets the angular velocity that is published with the next orientations, for the prediction. Providers that use a
+   * gyroscope call this with the (bias corrected) sample they fuse; for the other providers the angular velocity is
+   * estimated from consecutive orientations.
+   *
+   * @param x The angular velocity around the x axis of the device in rad/s
+   * @param y The angular velocity around the y axis of the device in rad/s
+   * @param z The angular velocity around the z axis of the device in rad/s
+   */
+  protected void setAngularVelocity(float x, float y, float z) {
+    angularVelocityX = x;
+    angularVelocityY = y;
+    angularVelocityZ = z;
+    angularVelocityMeasured = true;
+  }
+
+  /**
+   * Stops estimating the angular velocity from consecutive orientations, so that the prediction keeps the latest
+   * orientation. For providers whose orientation is too noisy to be differentiated.
+   */
+  protected void disableAngularVelocityEstimation() {
+    angularVelocityEstimated = false;
+  }
+
+  /**
+   * Estimates the angular velocity from the rotation between the previously published and the current orientation
+   */
+  private void estimateAngularVelocity() {
+    long timestamp = sampleTimestamp;
+    if (previousTimestamp != 0 && timestamp > previousTimestamp) {
+      // The rotation in device coordinates previous^-1 * current, on the quaternions with w not inverted
+      Quaternion a = previousQuaternion;
+      Quaternion b = currentOrientationQuaternion;
+      float aw = -a.getW();
+      float bw = -b.getW();
+      float w = aw * bw + a.getX() * b.getX() + a.getY() * b.getY() + a.getZ() * b.getZ();
+      float x = aw * b.getX() - a.getX() * bw - a.getY() * b.getZ() + a.getZ() * b.getY();
+      float y = aw * b.getY() + a.getX() * b.getZ() - a.getY() * bw - a.getZ() * b.getX();
+      float z = aw * b.getZ() - a.getX() * b.getY() + a.getY() * b.getX() - a.getZ() * bw;
+      if (w < 0) {
+        w = -w;
+        x = -x;
+        y = -y;
+        z = -z;
+      }
+      double sinHalfAngle = Math.sqrt(x * x + y * y + z * z);
+      // angle / sin(angle / 2) / dt turns the vector part into the angular velocity
+      double scale = (sinHalfAngle > 1e-6 ? 2 * Math.atan2(sinHalfAngle, w) / sinHalfAngle : 2)
+          / ((timestamp - previousTimestamp) * 1e-9);
+      angularVelocityX += ANGULAR_VELOCITY_SMOOTHING * (x * scale - angularVelocityX);
+      angularVelocityY += ANGULAR_VELOCITY_SMOOTHING * (y * scale - angularVelocityY);
+      angularVelocityZ += ANGULAR_VELOCITY_SMOOTHING * (z * scale - angularVelocityZ);
+    }
+    if (timestamp != 0) {
+      previousQuaternion.copyVec4(currentOrientationQuaternion);
+      previousTimestamp = timestamp;
     }
   }
 
+  /**
+   * Sets both representations of the current orientation from a unit quaternion that rotates from the device to the
+   * world coordinate system (the rotation that the rotation vector sensor describes) and publishes them. Does not
+   * allocate.
+   *
+   * @param w The w component of the quaternion
+   * @param x The x component of the quaternion
+   * @param y The y component of the quaternion
+   * @param z The z component of the quaternion
+   */
+  protected void publishOrientation(float w, float x, float y, float z) {
+    // Same convention as the rotation vector based providers, which store the quaternion with an inverted w
+    currentOrientationQuaternion.setXYZW(x, y, z, -w);
+
+    rotationVector[0] = x;
+    rotationVector[1] = y;
+    rotationVector[2] = z;
+    rotationVector[3] = w;
+    SensorManager.getRotationMatrixFromVector(currentOrientationRotationMatrix.matrix, rotationVector);
+
+    publishOrientation();
+  }
+
+  /**
+   * @return Returns a copy of the current rotation of the device in the rotation matrix format (4x4 matrix)
+   */
+  public Matrixf4x4 getRotationMatrix() {
+    Matrixf4x4 matrix = new Matrixf4x4();
+    getRotationMatrix(matrix.matrix);
+    return matrix;
+  }
+
+  /**
+   * Copies the current rotation of the device in the rotation matrix format (4x4 matrix) into the given buffer
+   *
+   * @param matrix The float[16] that receives the rotation matrix
+   */
+  public void getRotationMatrix(float[] matrix) {
+    publishedOrientation.read(null, matrix);
+  }
+
+  /**
+   * @return Returns a copy of the current rotation of the device in the quaternion format (vector4f)
+   */
+  public Quaternion getQuaternion() {
+    Quaternion quaternion = new Quaternion();
+    getQuaternion(quaternion);
+    return quaternion;
+  }
+
+  /**
+   * Copies the current rotation of the device in the quaternion format (vector4f) into the given quaternion
+   *
+   * @param quaternion The quaternion that receives the rotation
+   */
+  public void getQuaternion(Quaternion quaternion) {
+    publishedOrientation.read(quaternion, null);
+  }
+
+  /**
+   * Copies the current rotation of the device into the given quaternion and matrix. Both are guaranteed to come from
+   * the same update.
+   *
+   * @param quaternion The quaternion that receives the rotation
+   * @param matrix The float[16] that receives the rotation matrix
+   */
+  public void getOrientation(Quaternion quaternion, float[] matrix) {
+    publishedOrientation.read(quaternion, matrix);
+  }
+
+  /**
+   * @return The timestamp in nanoseconds of the sensor sample the current orientation was fused from, 0 if it was not
+   * delivered through {@link #onSensorChanged(SensorEvent)}
+   */
+  public long getOrientationTimestamp() {
+    return publishedOrientation.readTimestamp();
+  }
+
+  /**
+   * Predicts the rotation of the device at the given time by extrapolating the current rotation with the current
+   * angular velocity, and copies it into the given quaternion. E.g. a renderer asks for the time at which its frame
+   * will be shown, which compensates for the time from the sensor sample to the display. The rotation is extrapolated
+   * by at most {@link #MAX_PREDICTION_NS}, and not at all if its timestamp is unknown.
+   *
+   * @param timestamp The time in nanoseconds, in the time base of the sensor timestamps
+   * ({@link SystemClock#elapsedRealtimeNanos()} on most devices)
+   * @param quaternion The quaternion that receives the predicted rotation
+   * @return The time in nanoseconds the rotation was extrapolated by
+   */
+  public long getPredictedQuaternion(long timestamp, Quaternion quaternion) {
+    return publishedOrientation.predict(timestamp, MAX_PREDICTION_NS, quaternion, null);
+  }
+
+  /**
+   * Like {@link #getPredictedQuaternion(long, Quaternion)}, but also copies the predicted rotation matrix.
+   *
+   * @param timestamp The time in nanoseconds, in the time base of the sensor timestamps
+   * @param quaternion The quaternion that receives the predicted rotation, may be null
+   * @param matrix The float[16] that receives the predicted rotation matrix, may be null
+   * @return The time in nanoseconds the rotation was extrapolated by
+   */
+  public long getPredictedOrientation(long timestamp, Quaternion quaternion, float[] matrix) {
+    return publishedOrientation.predict(timestamp, MAX_PREDICTION_NS, quaternion, matrix);
+  }
+
   /**
    * @return Returns the current rotation of the device in the Euler-Angles
    */
   public EulerAngles getEulerAngles() {
-    synchronized (syncToken) {
+    float[] angles = new float[3];
+    getEulerAngles(angles);
+    return new EulerAngles(angles[0], angles[1], angles[2]);
+  }
 
-      float[] angles = new float[3];
-      SensorManager.getOrientation(currentOrientationRotationMatrix.matrix, angles);
-      return new EulerAngles(angles[0], angles[1], angles[2]);
-    }
+  /**
+   * Copies the current rotation of the device in Euler-Angles into the given buffer
+   *
+   * @param angles The float[3] that receives yaw (azimuth), pitch and roll in radians
+   */
+  public void getEulerAngles(float[] angles) {
+    publishedOrientation.readEulerAngles(angles);
   }
 }
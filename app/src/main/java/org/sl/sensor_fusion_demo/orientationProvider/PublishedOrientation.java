@@ -0,0 +1,266 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * The orientation that an {@link OrientationProvider} has published to its readers (e.g. the GL thread and the chart).
+ *
+ * The quaternion and the rotation matrix are published together with the timestamp of the sensor sample they belong
+ * to and the angular velocity of the device at that time, which lets readers extrapolate the orientation to a later
+ * time (see {@link #predict(long, long, Quaternion, float[])}). All of them are published through a sequence lock: the single writer (the
+ * thread that delivers sensor events) bumps the sequence to an odd value, writes all values and bumps it to the next
+ * even value. Readers copy the values and retry if the sequence was odd or changed while they were copying, so they
+ * always see values from the same update. The writer never waits and readers never block the
+ * writer.
+ *
+ * The values are stored as raw float bits in an {@link AtomicIntegerArray} instead of a plain float array: the
+ * ordered stores of the writer and the volatile loads of the readers are what makes the sequence check valid under the
+ * Java memory model.
+ *
+ * @author Stanislav Lelyuk
+ */
+final class PublishedOrientation {
+
+  /**
+   * Offset of the [x, y, z, w] quaternion in the published values
+   */
+  private static final int QUATERNION_OFFSET = 0;
+  /**
+   * Offset of the 4x4 rotation matrix in the published values
+   */
+  private static final int MATRIX_OFFSET = 4;
+  /**
+   * Offset of the [x, y, z] angular velocity in rad/s in device coordinates in the published values
+   */
+  private static final int ANGULAR_VELOCITY_OFFSET = MATRIX_OFFSET + 16;
+  /**
+   * Offset of the high and the low half of the timestamp in the published values
+   */
+  private static final int TIMESTAMP_OFFSET = ANGULAR_VELOCITY_OFFSET + 3;
+  /**
+   * Number of published values
+   */
+  private static final int SIZE = TIMESTAMP_OFFSET + 2;
+  /**
+   * Below this rotation angle in rad, the prediction uses the series expansion of sin(angle) / angle
+   */
+  private static final double SMALL_ANGLE = 1e-6;
+
+  /**
+   * The sequence counter; odd while the writer is updating the values
+   */
+  private final AtomicInteger sequence = new AtomicInteger();
+  /**
+   * The published values as raw float bits
+   */
+  private final AtomicIntegerArray values = new AtomicIntegerArray(SIZE);
+
+  /**
+   * Initialises the published orientation with the identity rotation
+   */
+  PublishedOrientation() {
+    Quaternion identity = new Quaternion();
+    float[] identityMatrix = new float[16];
+    identityMatrix[0] = identityMatrix[5] = identityMatrix[10] = identityMatrix[15] = 1;
+    write(identity, identityMatrix, 0, 0, 0, 0);
+  }
+
+  /**
+   * Publishes a new orientation. Must only be called from one thread at a time.
+   *
+   * @param quaternion The quaternion to publish
+   * @param matrix The 4x4 rotation matrix to publish
+   * @param timestamp The timestamp of the sensor sample in nanoseconds, 0 if unknown
+   * @param angularVelocityX The angular velocity around the x axis of the device in rad/s
+   * @param angularVelocityY The angular velocity around the y axis of the device in rad/s
+   * @param angularVelocityZ The angular velocity around the z axis of the device in rad/s
+   */
+  void write(Quaternion quaternion, float[] matrix, long timestamp, float angularVelocityX, float angularVelocityY,
+      float angularVelocityZ) {
+    int seq = sequence.get();
+    sequence.lazySet(seq + 1);
+
+    values.lazySet(QUATERNION_OFFSET, Float.floatToRawIntBits(quaternion.getX()));
+    values.lazySet(QUATERNION_OFFSET + 1, Float.floatToRawIntBits(quaternion.getY()));
+    values.lazySet(QUATERNION_OFFSET + 2, Float.floatToRawIntBits(quaternion.getZ()));
+    values.lazySet(QUATERNION_OFFSET + 3, Float.floatToRawIntBits(quaternion.getW()));
+    for (int i = 0; i < 16; i++) {
+      values.lazySet(MATRIX_OFFSET + i, Float.floatToRawIntBits(matrix[i]));
+    }
+    values.lazySet(ANGULAR_VELOCITY_OFFSET, Float.floatToRawIntBits(angularVelocityX));
+    values.lazySet(ANGULAR_VELOCITY_OFFSET + 1, Float.floatToRawIntBits(angularVelocityY));
+    values.lazySet(ANGULAR_VELOCITY_OFFSET + 2, Float.floatToRawIntBits(angularVelocityZ));
+    values.lazySet(TIMESTAMP_OFFSET, (int) (timestamp >>> 32));
+    values.lazySet(TIMESTAMP_OFFSET + 1, (int) timestamp);
+
+    sequence.lazySet(seq + 2);
+  }
+
+  /**
+   * Copies the latest published orientation into the given buffers. Either of them may be null.
+   *
+   * @param quaternion The quaternion that receives the orientation
+   * @param matrix The float[16] that receives the rotation matrix
+   */
+  void read(Quaternion quaternion, float[] matrix) {
+    float x;
+    float y;
+    float z;
+    float w;
+    int seq;
+    do {
+      seq = awaitStableSequence();
+      x = Float.intBitsToFloat(values.get(QUATERNION_OFFSET));
+      y = Float.intBitsToFloat(values.get(QUATERNION_OFFSET + 1));
+      z = Float.intBitsToFloat(values.get(QUATERNION_OFFSET + 2));
+      w = Float.intBitsToFloat(values.get(QUATERNION_OFFSET + 3));
+      if (matrix != null) {
+        for (int i = 0; i < 16; i++) {
+          matrix[i] = Float.intBitsToFloat(values.get(MATRIX_OFFSET + i));
+        }
+      }
+    } while (sequence.get() != seq);
+
+    if (quaternion != null) {
+      quaternion.setXYZW(x, y, z, w);
+    }
+  }
+
+  /**
+   * @return The timestamp in nanoseconds of the sensor sample the latest published orientation belongs to, 0 if unknown
+   */
+  long readTimestamp() {
+    long timestamp;
+    int seq;
+    do {
+      seq = awaitStableSequence();
+      timestamp = ((long) values.get(TIMESTAMP_OFFSET) << 32) | (values.get(TIMESTAMP_OFFSET + 1) & 0xFFFFFFFFL);
+    } while (sequence.get() != seq);
+    return timestamp;
+  }
+
+  /**
+   * Extrapolates the latest published orientation to the given time, assuming that the device keeps turning with the
+   * published angular velocity, and copies it into the given buffers. Either of them may be null. If the timestamp of
+   * the published orientation is unknown, the orientation is copied as it is.
+   *
+   * @param timestamp The time to predict the orientation for, in the time base of the sensor timestamps
+   * @param maxHorizonNs The maximum time the orientation is extrapolated by; it is never extrapolated backwards
+   * @param quaternion The quaternion that receives the orientation
+   * @param matrix The float[16] that receives the rotation matrix
+   * @return The time in nanoseconds the orientation was extrapolated by
+   */
+  long predict(long timestamp, long maxHorizonNs, Quaternion quaternion, float[] matrix) {
+    float x;
+    float y;
+    float z;
+    float w;
+    float rateX;
+    float rateY;
+    float rateZ;
+    long publishedTimestamp;
+    int seq;
+    do {
+      seq = awaitStableSequence();
+      x = Float.intBitsToFloat(values.get(QUATERNION_OFFSET));
+      y = Float.intBitsToFloat(values.get(QUATERNION_OFFSET + 1));
+      z = Float.intBitsToFloat(values.get(QUATERNION_OFFSET + 2));
+      w = Float.intBitsToFloat(values.get(QUATERNION_OFFSET + 3));
+      rateX = Float.intBitsToFloat(values.get(ANGULAR_VELOCITY_OFFSET));
+      rateY = Float.intBitsToFloat(values.get(ANGULAR_VELOCITY_OFFSET + 1));
+      rateZ = Float.intBitsToFloat(values.get(ANGULAR_VELOCITY_OFFSET + 2));
+      publishedTimestamp = ((long) values.get(TIMESTAMP_OFFSET) << 32)
+          | (values.get(TIMESTAMP_OFFSET + 1) & 0xFFFFFFFFL);
+    } while (sequence.get() != seq);
+
+    long horizon = publishedTimestamp == 0 ? 0 : Math.max(0, Math.min(timestamp - publishedTimestamp, maxHorizonNs));
+
+    // Rotate by the angular velocity times the horizon around the axes of the device: q * (cos(a/2), sin(a/2) * axis),
+    // on the quaternion with w not inverted
+    double qw = -w;
+    double dt = horizon * 1e-9;
+    double halfAngle = 0.5 * Math.sqrt(rateX * rateX + rateY * rateY + rateZ * rateZ) * dt;
+    double cos = Math.cos(halfAngle);
+    // sin(a/2) * axis = sin(a/2) / (a/2) * rate * dt / 2
+    double scale = (halfAngle < SMALL_ANGLE ? 1 - halfAngle * halfAngle / 6 : Math.sin(halfAngle) / halfAngle) * dt
+        * 0.5;
+    double dx = rateX * scale;
+    double dy = rateY * scale;
+    double dz = rateZ * scale;
+    double pw = qw * cos - x * dx - y * dy - z * dz;
+    double px = qw * dx + x * cos + y * dz - z * dy;
+    double py = qw * dy - x * dz + y * cos + z * dx;
+    double pz = qw * dz + x * dy - y * dx + z * cos;
+    double norm = Math.sqrt(pw * pw + px * px + py * py + pz * pz);
+    pw /= norm;
+    px /= norm;
+    py /= norm;
+    pz /= norm;
+
+    if (quaternion != null) {
+      quaternion.setXYZW((float) px, (float) py, (float) pz, (float) -pw);
+    }
+    if (matrix != null) {
+      // The same matrix as SensorManager.getRotationMatrixFromVector
+      matrix[0] = (float) (1 - 2 * py * py - 2 * pz * pz);
+      matrix[1] = (float) (2 * px * py - 2 * pz * pw);
+      matrix[2] = (float) (2 * px * pz + 2 * py * pw);
+      matrix[3] = 0;
+      matrix[4] = (float) (2 * px * py + 2 * pz * pw);
+      matrix[5] = (float) (1 - 2 * px * px - 2 * pz * pz);
+      matrix[6] = (float) (2 * py * pz - 2 * px * pw);
+      matrix[7] = 0;
+      matrix[8] = (float) (2 * px * pz - 2 * py * pw);
+      matrix[9] = (float) (2 * py * pz + 2 * px * pw);
+      matrix[10] = (float) (1 - 2 * px * px - 2 * py * py);
+      matrix[11] = 0;
+      matrix[12] = 0;
+      matrix[13] = 0;
+      matrix[14] = 0;
+      matrix[15] = 1;
+    }
+    return horizon;
+  }
+
+  /**
+   * Computes the Euler angles of the latest published orientation the same way
+   * {@link android.hardware.SensorManager#getOrientation(float[], float[]) SensorManager.getOrientation} does, but
+   * only reads the matrix elements it needs.
+   *
+   * @param angles The float[3] that receives azimuth, pitch and roll in radians
+   */
+  void readEulerAngles(float[] angles) {
+    float r1;
+    float r5;
+    float r8;
+    float r9;
+    float r10;
+    int seq;
+    do {
+      seq = awaitStableSequence();
+      r1 = Float.intBitsToFloat(values.get(MATRIX_OFFSET + 1));
+      r5 = Float.intBitsToFloat(values.get(MATRIX_OFFSET + 5));
+      r8 = Float.intBitsToFloat(values.get(MATRIX_OFFSET + 8));
+      r9 = Float.intBitsToFloat(values.get(MATRIX_OFFSET + 9));
+      r10 = Float.intBitsToFloat(values.get(MATRIX_OFFSET + 10));
+    } while (sequence.get() != seq);
+
+    angles[0] = (float) Math.atan2(r1, r5);
+    angles[1] = (float) Math.asin(-r9);
+    angles[2] = (float) Math.atan2(-r8, r10);
+  }
+
+  /**
+   * @return The current sequence, once the writer is not in the middle of an update
+   */
+  private int awaitStableSequence() {
+    int seq = sequence.get();
+    while ((seq & 1) != 0) {
+      Thread.yield();
+      seq = sequence.get();
+    }
+    return seq;
+  }
+}
@@ -0,0 +1,95 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import java.util.Locale;
+
+/**
+ * The tuning parameters of the fusion of the gyroscope with the rotation vector in
+ * {@link ImprovedOrientationSensor1Provider} and {@link ImprovedOrientationSensor2Provider}, e.g. to search for
+ * better values on recorded sensor data. The defaults of each provider are its DEFAULT_CONFIG.
+ *
+ * The thresholds are compared with the absolute dot product of the gyroscope and the rotation vector orientation,
+ * which is 1 if they are the same and the cosine of half the angle between them otherwise.
+ *
+ * Instances cannot be changed, so one can be shared by any number of providers on any threads.
+ *
+ * @author Stanislav Lelyuk
+ */
+public final class RotationVectorFusionConfig {
+
+  private final float interpolationWeight;
+  private final float outlierThreshold;
+  private final float outlierPanicThreshold;
+  private final int panicThreshold;
+
+  /**
+   * Initialises a new RotationVectorFusionConfig
+   *
+   * @param interpolationWeight How much the rotation vector corrects the gyroscope orientation per gyroscope sample,
+   * between 0 (not at all) and 1 (replaces it). {@link ImprovedOrientationSensor1Provider} slerps by this weight
+   * directly; {@link ImprovedOrientationSensor2Provider} multiplies it by the rotation velocity of the gyroscope,
+   * which is up to about 25 when the device is shaken, so that it corrects more while the device moves.
+   * @param outlierThreshold The dot product below which the rotation vector is an outlier and the gyroscope
+   * orientation is used alone, between 0 and 1; should be high (> 0.7) to catch even small jumps of the rotation
+   * vector
+   * @param outlierPanicThreshold The dot product below which an outlier counts towards a panic reset, at most the
+   * outlier threshold
+   * @param panicThreshold The number of consecutive panic outliers after which the orientation is reset to the
+   * rotation vector, as the gyroscope has probably failed
+   * @throws IllegalArgumentException If a parameter is out of its range
+   */
+  public RotationVectorFusionConfig(float interpolationWeight, float outlierThreshold, float outlierPanicThreshold,
+      int panicThreshold) {
+    if (!(interpolationWeight >= 0 && interpolationWeight <= 1)) {
+      throw new IllegalArgumentException("Interpolation weight must be between 0 and 1: " + interpolationWeight);
+    }
+    if (!(outlierThreshold >= 0 && outlierThreshold <= 1)) {
+      throw new IllegalArgumentException("Outlier threshold must be between 0 and 1: " + outlierThreshold);
+    }
+    if (!(outlierPanicThreshold >= 0 && outlierPanicThreshold <= outlierThreshold)) {
+      throw new IllegalArgumentException("Outlier panic threshold must be between 0 and the outlier threshold: "
+          + outlierPanicThreshold);
+    }
+    if (panicThreshold < 0) {
+      throw new IllegalArgumentException("Panic threshold must not be negative: " + panicThreshold);
+    }
+    this.interpolationWeight = interpolationWeight;
+    this.outlierThreshold = outlierThreshold;
+    this.outlierPanicThreshold = outlierPanicThreshold;
+    this.panicThreshold = panicThreshold;
+  }
+
+  /**
+   * @return How much the rotation vector corrects the gyroscope orientation per gyroscope sample; per unit of
+   * rotation velocity for {@link ImprovedOrientationSensor2Provider}
+   */
+  public float getInterpolationWeight() {
+    return interpolationWeight;
+  }
+
+  /**
+   * @return The dot product below which the rotation vector is an outlier
+   */
+  public float getOutlierThreshold() {
+    return outlierThreshold;
+  }
+
+  /**
+   * @return The dot product below which an outlier counts towards a panic reset
+   */
+  public float getOutlierPanicThreshold() {
+    return outlierPanicThreshold;
+  }
+
+  /**
+   * @return The number of consecutive panic outliers after which the orientation is reset to the rotation vector
+   */
+  public int getPanicThreshold() {
+    return panicThreshold;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US, "weight %.5f, outlier %.3f, panic outlier %.3f, panic after %d",
+        interpolationWeight, outlierThreshold, outlierPanicThreshold, panicThreshold);
+  }
+}
@@ -1,7 +1,6 @@
 package org.sl.sensor_fusion_demo.orientationProvider;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
 import android.hardware.SensorManager;
 
 /**
@@ -25,20 +24,22 @@ public class RotationVectorProvider extends OrientationProvider {
   }
 
   @Override
-  public void onSensorChanged(SensorEvent event) {
+  public void onSensorSample(int sensorType, long timestamp, float[] values) {
     // we received a sensor event. it is a good practice to check
     // that we received the proper event
-    if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
+    if (sensorType == Sensor.TYPE_ROTATION_VECTOR) {
       // convert the rotation-vector to a 4x4 matrix. the matrix
       // is interpreted by Open GL as the inverse of the
       // rotation-vector, which is what we want.
-      SensorManager.getRotationMatrixFromVector(currentOrientationRotationMatrix.matrix, event.values);
+      SensorManager.getRotationMatrixFromVector(currentOrientationRotationMatrix.matrix, values);
 
       // Get Quaternion
       float[] q = new float[4];
       // Calculate angle. Starting with API_18, Android will provide this value as event.values[3], but if not, we have to calculate it manually.
-      SensorManager.getQuaternionFromVector(q, event.values);
+      SensorManager.getQuaternionFromVector(q, values);
       currentOrientationQuaternion.setXYZW(q[1], q[2], q[3], -q[0]);
+
+      publishOrientation();
     }
   }
 }
@@ -0,0 +1,252 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+/**
+ * Merges the samples of several sensors into one stream that is ordered by timestamp.
+ *
+ * When sensors are registered with a maximum report latency, the hardware FIFO delivers them in bursts: first all
+ * buffered samples of one sensor, then all samples of the next one. Fusing them in arrival order would apply e.g. a
+ * whole second of gyroscope samples before the rotation vector samples of the same second. This class keeps one
+ * primitive queue per sensor (every sensor delivers its own samples in order) and releases a sample to the listener
+ * as soon as every other sensor has delivered a sample that is at least as new, or once it is older than the maximum
+ * delay. Releasing always takes the oldest head among the queues, so each burst goes through the fusion in one
+ * ordered pass without sorting and without allocating.
+ *
+ * This class does not depend on Android and is not thread-safe; it is meant to be driven by the thread that delivers
+ * the sensor events.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class SensorBatchMerger {
+
+  /**
+   * The maximum number of values per sample that are kept (the rotation vector delivers up to 5)
+   */
+  public static final int MAX_VALUES = 6;
+
+  /**
+   * The sensor types whose samples are merged
+   */
+  private final int[] sensorTypes;
+  /**
+   * One queue per sensor type, at the same index as in sensorTypes
+   */
+  private final SampleQueue[] queues;
+  /**
+   * Samples older than the newest timestamp minus this delay are released even if another sensor is lagging
+   */
+  private final long maxDelayNs;
+  /**
+   * The listener that receives the merged samples
+   */
+  private final SensorSampleListener listener;
+  /**
+   * Buffers that are handed to the listener, one per number of values so that the listener sees the original length
+   */
+  private final float[][] valueBuffers = new float[MAX_VALUES + 1][];
+  /**
+   * The newest timestamp that has been added
+   */
+  private long newestTimestamp = Long.MIN_VALUE;
+
+  /**
+   * Initialises a new SensorBatchMerger
+   *
+   * @param sensorTypes The sensor types to merge; samples of other types are passed through immediately
+   * @param capacityPerSensor The number of samples that can be buffered per sensor
+   * @param maxDelayNs The maximum time in nanoseconds a sample is held back waiting for other sensors
+   * @param listener The listener that receives the merged samples
+   */
+  public SensorBatchMerger(int[] sensorTypes, int capacityPerSensor, long maxDelayNs, SensorSampleListener listener) {
+    this.sensorTypes = sensorTypes.clone();
+    this.queues = new SampleQueue[sensorTypes.length];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new SampleQueue(sensorTypes[i], capacityPerSensor);
+    }
+    this.maxDelayNs = maxDelayNs;
+    this.listener = listener;
+    for (int i = 0; i <= MAX_VALUES; i++) {
+      valueBuffers[i] = new float[i];
+    }
+  }
+
+  /**
+   * Adds a sample and releases all samples that can no longer be preceded by a sample of another sensor.
+   *
+   * @param sensorType The sensor type of the sample
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param values The values of the sample; they are copied
+   */
+  public void add(int sensorType, long timestamp, float[] values) {
+    SampleQueue queue = queueFor(sensorType);
+    if (queue == null || values.length > MAX_VALUES) {
+      listener.onSensorSample(sensorType, timestamp, values);
+      return;
+    }
+
+    // Make room by releasing the oldest samples, which keeps the output ordered as far as possible
+    while (queue.count == queue.capacity) {
+      releaseOldest();
+    }
+    queue.add(timestamp, values);
+    if (timestamp > newestTimestamp) {
+      newestTimestamp = timestamp;
+    }
+
+    release();
+  }
+
+  /**
+   * Releases all buffered samples in timestamp order, e.g. when the sensors are unregistered.
+   */
+  public void flush() {
+    while (releaseOldest()) {
+      // keep releasing
+    }
+  }
+
+  /**
+   * Drops all buffered samples without releasing them.
+   */
+  public void clear() {
+    for (SampleQueue queue : queues) {
+      queue.head = 0;
+      queue.count = 0;
+      queue.lastTimestamp = Long.MIN_VALUE;
+    }
+    newestTimestamp = Long.MIN_VALUE;
+  }
+
+  /**
+   * @return The number of samples that are currently held back
+   */
+  public int size() {
+    int size = 0;
+    for (SampleQueue queue : queues) {
+      size += queue.count;
+    }
+    return size;
+  }
+
+  /**
+   * Releases samples as long as the oldest one can be released.
+   */
+  private void release() {
+    while (true) {
+      SampleQueue oldest = oldestQueue();
+      if (oldest == null) {
+        return;
+      }
+      long timestamp = oldest.headTimestamp();
+      if (timestamp > watermark() && timestamp > newestTimestamp - maxDelayNs) {
+        return;
+      }
+      dispatchHead(oldest);
+    }
+  }
+
+  /**
+   * Releases the oldest buffered sample.
+   *
+   * @return True if a sample was released, false if all queues are empty
+   */
+  private boolean releaseOldest() {
+    SampleQueue oldest = oldestQueue();
+    if (oldest == null) {
+      return false;
+    }
+    dispatchHead(oldest);
+    return true;
+  }
+
+  /**
+   * @return The timestamp up to which all sensors have delivered their samples
+   */
+  private long watermark() {
+    long watermark = Long.MAX_VALUE;
+    for (SampleQueue queue : queues) {
+      if (queue.lastTimestamp < watermark) {
+        watermark = queue.lastTimestamp;
+      }
+    }
+    return watermark;
+  }
+
+  /**
+   * @return The non-empty queue with the oldest head sample, or null if all queues are empty
+   */
+  private SampleQueue oldestQueue() {
+    SampleQueue oldest = null;
+    for (SampleQueue queue : queues) {
+      if (queue.count > 0 && (oldest == null || queue.headTimestamp() < oldest.headTimestamp())) {
+        oldest = queue;
+      }
+    }
+    return oldest;
+  }
+
+  /**
+   * @param sensorType The sensor type
+   * @return The queue of the sensor type or null, if the type is not merged
+   */
+  private SampleQueue queueFor(int sensorType) {
+    for (int i = 0; i < sensorTypes.length; i++) {
+      if (sensorTypes[i] == sensorType) {
+        return queues[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes the head sample of the queue and hands it to the listener
+   *
+   * @param queue The queue
+   */
+  private void dispatchHead(SampleQueue queue) {
+    int sensorType = queue.sensorType;
+    int index = queue.head;
+    long timestamp = queue.timestamps[index];
+    float[] values = valueBuffers[queue.lengths[index]];
+    System.arraycopy(queue.values, index * MAX_VALUES, values, 0, values.length);
+
+    queue.head = (queue.head + 1) % queue.capacity;
+    queue.count--;
+
+    listener.onSensorSample(sensorType, timestamp, values);
+  }
+
+  /**
+   * A ring buffer of the samples of one sensor
+   */
+  private static class SampleQueue {
+    final int sensorType;
+    final int capacity;
+    final long[] timestamps;
+    final int[] lengths;
+    final float[] values;
+    int head;
+    int count;
+    long lastTimestamp = Long.MIN_VALUE;
+
+    SampleQueue(int sensorType, int capacity) {
+      this.sensorType = sensorType;
+      this.capacity = capacity;
+      this.timestamps = new long[capacity];
+      this.lengths = new int[capacity];
+      this.values = new float[capacity * MAX_VALUES];
+    }
+
+    long headTimestamp() {
+      return timestamps[head];
+    }
+
+    void add(long timestamp, float[] sample) {
+      int index = (head + count) % capacity;
+      timestamps[index] = timestamp;
+      lengths[index] = sample.length;
+      System.arraycopy(sample, 0, values, index * MAX_VALUES, sample.length);
+      count++;
+      lastTimestamp = timestamp;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import android.annotation.TargetApi;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs several orientation providers side by side on the same sensor data, e.g. to compare them.
+ *
+ * Each sensor that any of the providers uses is registered once, with SENSOR_DELAY_GAME, on a dedicated thread. That
+ * thread only copies every event into a {@link SensorSampleQueue} per provider that uses its sensor; each provider
+ * has its own worker thread that takes the samples from its queue and fuses them. So all providers see exactly the
+ * same samples in the same order, and a slow provider neither delays the others nor the delivery of the events. When
+ * the queue of a provider is full, its samples are dropped and counted rather than waited for.
+ *
+ * The queue depths, the dropped samples and the time each provider takes per sample can be read while running.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class SensorFanOut implements SensorEventListener {
+
+  /**
+   * The number of samples the queue of each provider holds by default, about a second of all sensors
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 256;
+  /**
+   * The maximum number of samples a worker takes from its queue before it checks whether it should stop
+   */
+  private static final int DRAIN_BATCH = 64;
+
+  private final SensorManager sensorManager;
+  private final Worker[] workers;
+  /**
+   * Every sensor the providers use, once
+   */
+  private final List<Sensor> sensors = new ArrayList<Sensor>();
+  /**
+   * The thread that receives the sensor events while started
+   */
+  private HandlerThread sensorThread;
+
+  /**
+   * Initialises a new SensorFanOut
+   *
+   * @param sensorManager The android sensor manager, which the providers were created with
+   * @param providers The providers to run; they must not be started themselves
+   * @param queueCapacity The number of samples the queue of each provider holds
+   */
+  public SensorFanOut(SensorManager sensorManager, List<OrientationProvider> providers, int queueCapacity) {
+    this.sensorManager = sensorManager;
+    workers = new Worker[providers.size()];
+    for (int i = 0; i < workers.length; i++) {
+      OrientationProvider provider = providers.get(i);
+      workers[i] = new Worker(provider, new SensorSampleQueue(queueCapacity));
+      for (Sensor sensor : provider.sensorList) {
+        if (sensor != null && !sensors.contains(sensor)) {
+          sensors.add(sensor);
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts the workers of the providers and registers the sensors
+   */
+  public void start() {
+    for (Worker worker : workers) {
+      worker.provider.startDispatched();
+      worker.processingTime.reset();
+      worker.running = true;
+      worker.thread = new Thread(worker, "SensorFanOut-" + worker.provider.getClass().getSimpleName());
+      worker.thread.start();
+    }
+
+    sensorThread = new HandlerThread("SensorFanOut", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+    sensorThread.start();
+    Handler handler = new Handler(sensorThread.getLooper());
+    for (Sensor sensor : sensors) {
+      sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_GAME, handler);
+    }
+  }
+
+  /**
+   * Unregisters the sensors and stops the workers once they have fused the samples left in their queues
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+  public void stop() {
+    for (Sensor sensor : sensors) {
+      sensorManager.unregisterListener(this, sensor);
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      sensorThread.quitSafely();
+    } else {
+      sensorThread.quit();
+    }
+    join(sensorThread);
+    sensorThread = null;
+
+    for (Worker worker : workers) {
+      worker.running = false;
+      LockSupport.unpark(worker.thread);
+      join(worker.thread);
+      worker.thread = null;
+      worker.provider.stopDispatched();
+    }
+    Log.d("SensorFanOut", toString());
+  }
+
+  private static void join(Thread thread) {
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void onSensorChanged(SensorEvent event) {
+    int sensorType = event.sensor.getType();
+    for (Worker worker : workers) {
+      if (worker.uses(sensorType) && worker.queue.offer(sensorType, event.timestamp, event.values)) {
+        // Sets the permit if the worker is not parked, so it cannot miss the sample
+        LockSupport.unpark(worker.thread);
+      }
+    }
+  }
+
+  @Override
+  public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    // Not doing anything
+  }
+
+  /**
+   * @return The number of providers
+   */
+  public int getProviderCount() {
+    return workers.length;
+  }
+
+  /**
+   * @param index The index of the provider, in the order they were given
+   * @return The provider
+   */
+  public OrientationProvider getProvider(int index) {
+    return workers[index].provider;
+  }
+
+  /**
+   * @param index The index of the provider, in the order they were given
+   * @return The queue of the provider, whose size, maximum size and dropped samples can be read while running
+   */
+  public SensorSampleQueue getQueue(int index) {
+    return workers[index].queue;
+  }
+
+  /**
+   * @param index The index of the provider, in the order they were given
+   * @return The time the provider took to fuse each sample
+   */
+  public LatencyStatistics getProcessingTime(int index) {
+    return workers[index].processingTime;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Worker worker : workers) {
+      if (builder.length() > 0) {
+        builder.append('\n');
+      }
+      builder.append(String.format(Locale.US, "%s: queue %d (max %d of %d), %d dropped; %s",
+          worker.provider.getClass().getSimpleName(), worker.queue.size(), worker.queue.getMaxSize(),
+          worker.queue.getCapacity(), worker.queue.getDropped(), worker.processingTime));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Takes the samples of one provider from its queue and fuses them on its own thread
+   */
+  private static final class Worker implements Runnable, SensorSampleListener {
+    private final OrientationProvider provider;
+    private final SensorSampleQueue queue;
+    /**
+     * The sensor types the provider uses
+     */
+    private final int[] sensorTypes;
+    private final LatencyStatistics processingTime;
+    private volatile boolean running;
+    private Thread thread;
+
+    private Worker(OrientationProvider provider, SensorSampleQueue queue) {
+      this.provider = provider;
+      this.queue = queue;
+      int types = 0;
+      for (Sensor sensor : provider.sensorList) {
+        if (sensor != null) {
+          types++;
+        }
+      }
+      sensorTypes = new int[types];
+      types = 0;
+      for (Sensor sensor : provider.sensorList) {
+        if (sensor != null) {
+          sensorTypes[types++] = sensor.getType();
+        }
+      }
+      processingTime = new LatencyStatistics(provider.getClass().getSimpleName() + " per sample");
+    }
+
+    private boolean uses(int sensorType) {
+      for (int type : sensorTypes) {
+        if (type == sensorType) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void run() {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+      while (running) {
+        if (queue.drain(this, DRAIN_BATCH) == 0) {
+          // Returns at once if a sample was offered since the last time the worker was parked
+          LockSupport.park(this);
+        }
+      }
+      // The sensors are unregistered, fuse what is left
+      while (queue.drain(this, DRAIN_BATCH) > 0) {
+        // keep fusing
+      }
+    }
+
+    @Override
+    public void onSensorSample(int sensorType, long timestamp, float[] values) {
+      long start = System.nanoTime();
+      provider.onDispatchedSample(sensorType, timestamp, values);
+      processingTime.add(System.nanoTime() - start);
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+/**
+ * Receives single sensor samples, decoupled from Android's {@link android.hardware.SensorEvent}, so that samples can
+ * be reordered, batched or replayed before they reach the sensor fusion.
+ *
+ * @author Stanislav Lelyuk
+ */
+public interface SensorSampleListener {
+
+  /**
+   * Called for each sensor sample. As with {@link android.hardware.SensorEvent}, the values array is owned by the
+   * caller and must not be kept after the call returns.
+   *
+   * @param sensorType The {@link android.hardware.Sensor} type, e.g. {@link android.hardware.Sensor#TYPE_GYROSCOPE}
+   * @param timestamp The time in nanoseconds at which the sample was taken
+   * @param values The values of the sample
+   */
+  void onSensorSample(int sensorType, long timestamp, float[] values);
+}
@@ -0,0 +1,154 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of sensor samples between one producing and one consuming thread, without locks.
+ *
+ * The samples are kept in a ring of primitive arrays, so neither side allocates. The producer writes a sample into
+ * the slot after the tail and then publishes the new tail; the consumer hands the samples up to the published tail
+ * to a listener and then publishes the new head, which frees the slots for the producer. If the queue is full, the
+ * producer's sample is dropped and counted instead of waiting, so a slow consumer never holds up the producer.
+ *
+ * This class does not depend on Android. {@link #offer(int, long, float[])} must only be called from one thread at a
+ * time and {@link #drain(SensorSampleListener, int)} from one other thread at a time.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class SensorSampleQueue {
+
+  /**
+   * The maximum number of values per sample that are kept; further values are cut off
+   */
+  public static final int MAX_VALUES = SensorBatchMerger.MAX_VALUES;
+
+  private final int capacity;
+  private final int[] sensorTypes;
+  private final long[] timestamps;
+  private final int[] lengths;
+  private final float[] values;
+  /**
+   * Buffers that are handed to the listener, one per number of values so that the listener sees the original length
+   */
+  private final float[][] valueBuffers = new float[MAX_VALUES + 1][];
+  /**
+   * The number of samples taken out by the consumer and the number of samples put in by the producer; sample i is in
+   * slot i % capacity
+   */
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  /**
+   * Only written by the producer
+   */
+  private volatile long dropped;
+  private volatile int maxSize;
+
+  /**
+   * Initialises a new SensorSampleQueue
+   *
+   * @param capacity The number of samples the queue holds
+   */
+  public SensorSampleQueue(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1");
+    }
+    this.capacity = capacity;
+    sensorTypes = new int[capacity];
+    timestamps = new long[capacity];
+    lengths = new int[capacity];
+    values = new float[capacity * MAX_VALUES];
+    for (int i = 0; i <= MAX_VALUES; i++) {
+      valueBuffers[i] = new float[i];
+    }
+  }
+
+  /**
+   * Adds a sample, unless the queue is full. Called by the producer.
+   *
+   * @param sensorType The sensor type of the sample
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param sampleValues The values of the sample; they are copied
+   * @return True if the sample was added, false if it was dropped
+   */
+  public boolean offer(int sensorType, long timestamp, float[] sampleValues) {
+    long index = tail.get();
+    int size = (int) (index - head.get());
+    if (size == capacity) {
+      dropped++;
+      return false;
+    }
+
+    int slot = (int) (index % capacity);
+    int length = Math.min(sampleValues.length, MAX_VALUES);
+    sensorTypes[slot] = sensorType;
+    timestamps[slot] = timestamp;
+    lengths[slot] = length;
+    System.arraycopy(sampleValues, 0, values, slot * MAX_VALUES, length);
+    // A volatile store rather than an ordered one: a consumer that is about to park reads the tail after announcing
+    // it, and must not miss this sample
+    tail.set(index + 1);
+
+    if (size + 1 > maxSize) {
+      maxSize = size + 1;
+    }
+    return true;
+  }
+
+  /**
+   * Hands the oldest samples to the listener in order and removes them. Called by the consumer.
+   *
+   * @param listener The listener; the values array it receives must not be kept after the call returns
+   * @param maxSamples The maximum number of samples to hand over
+   * @return The number of samples handed over
+   */
+  public int drain(SensorSampleListener listener, int maxSamples) {
+    long first = head.get();
+    long end = Math.min(tail.get(), first + maxSamples);
+    for (long index = first; index < end; index++) {
+      int slot = (int) (index % capacity);
+      float[] buffer = valueBuffers[lengths[slot]];
+      System.arraycopy(values, slot * MAX_VALUES, buffer, 0, buffer.length);
+      int sensorType = sensorTypes[slot];
+      long timestamp = timestamps[slot];
+      // Frees the slot before the listener runs, so the producer does not drop samples while the fusion is busy
+      head.lazySet(index + 1);
+      listener.onSensorSample(sensorType, timestamp, buffer);
+    }
+    return (int) (end - first);
+  }
+
+  /**
+   * @return The number of samples in the queue; may be out of date as soon as it is returned
+   */
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  /**
+   * @return The number of samples the queue holds
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return The largest number of samples that were in the queue at once
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return The number of samples that were dropped because the queue was full
+   */
+  public long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * @return The number of samples that were added
+   */
+  public long getAdded() {
+    return tail.get();
+  }
+}
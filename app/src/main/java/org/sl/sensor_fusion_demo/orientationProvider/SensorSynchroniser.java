@@ -0,0 +1,265 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+/**
+ * Aligns the samples of several sensors in time, so that a provider can fuse the sample of one sensor with the values
+ * the other sensors had at the same timestamp rather than with whatever sample of them happened to arrive last.
+ *
+ * Every sensor keeps its latest samples in a primitive ring buffer. {@link #get(int, long, float[])} interpolates a
+ * sensor onto the timestamp of the sample that is being fused: vectors linearly, orientations (quaternions) by slerp.
+ * Since the samples of the other sensors usually precede the fused one, a timestamp after the newest sample is
+ * extrapolated from the two newest samples, but by no more than the maximum extrapolation; beyond that the value is
+ * held. A timestamp before the oldest buffered sample gets the oldest sample.
+ *
+ * Adding a sample is O(1). The lookup walks back from the newest sample, which is amortised O(1) because the fused
+ * timestamps are close to the newest samples. The memory is fixed when the sensors are added; nothing is allocated
+ * afterwards. This class does not depend on Android and is not thread-safe; it is meant to be used by the thread that
+ * fuses the samples.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class SensorSynchroniser {
+
+  /**
+   * The number of values of an orientation sample, a quaternion [x, y, z, w]
+   */
+  public static final int QUATERNION_VALUES = 4;
+  /**
+   * Below this angle between two orientations, they are interpolated linearly and normalised instead of slerped
+   */
+  private static final double SLERP_THRESHOLD = 1e-4;
+
+  /**
+   * The number of samples kept per sensor
+   */
+  private final int capacityPerSensor;
+  /**
+   * How far a sensor is extrapolated beyond its newest sample, in nanoseconds
+   */
+  private final long maxExtrapolationNs;
+  private SampleRing[] rings = new SampleRing[0];
+
+  /**
+   * Initialises a new SensorSynchroniser
+   *
+   * @param capacityPerSensor The number of samples kept per sensor, at least 2
+   * @param maxExtrapolationNs How far in nanoseconds a sensor is extrapolated beyond its newest sample; 0 holds the
+   * newest sample
+   */
+  public SensorSynchroniser(int capacityPerSensor, long maxExtrapolationNs) {
+    if (capacityPerSensor < 2) {
+      throw new IllegalArgumentException("capacityPerSensor must be at least 2");
+    }
+    this.capacityPerSensor = capacityPerSensor;
+    this.maxExtrapolationNs = maxExtrapolationNs;
+  }
+
+  /**
+   * Adds a sensor whose samples are interpolated linearly, e.g. an accelerometer.
+   *
+   * @param sensorType The sensor type
+   * @param valueCount The number of values that are kept per sample
+   */
+  public void addVectorSensor(int sensorType, int valueCount) {
+    addSensor(new SampleRing(sensorType, valueCount, false, capacityPerSensor));
+  }
+
+  /**
+   * Adds a sensor whose samples are orientations, quaternions given as [x, y, z, w], which are interpolated by slerp.
+   * The quaternions may use either sign of w, as long as a sensor uses the same convention for all of its samples.
+   *
+   * @param sensorType The sensor type
+   */
+  public void addOrientationSensor(int sensorType) {
+    addSensor(new SampleRing(sensorType, QUATERNION_VALUES, true, capacityPerSensor));
+  }
+
+  private void addSensor(SampleRing ring) {
+    if (ringFor(ring.sensorType) != null) {
+      throw new IllegalArgumentException("Sensor type " + ring.sensorType + " has already been added");
+    }
+    SampleRing[] newRings = new SampleRing[rings.length + 1];
+    System.arraycopy(rings, 0, newRings, 0, rings.length);
+    newRings[rings.length] = ring;
+    rings = newRings;
+  }
+
+  /**
+   * Adds a sample of a sensor. Samples that are older than the newest sample of the sensor are dropped; a sample with
+   * the same timestamp replaces it.
+   *
+   * @param sensorType The sensor type
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param values The values of the sample; the number of values of the sensor is copied
+   * @return False if the sensor type has not been added or the sample is out of order
+   */
+  public boolean add(int sensorType, long timestamp, float[] values) {
+    SampleRing ring = ringFor(sensorType);
+    if (ring == null) {
+      return false;
+    }
+    return ring.add(timestamp, values);
+  }
+
+  /**
+   * Interpolates the values of a sensor at a timestamp.
+   *
+   * @param sensorType The sensor type
+   * @param timestamp The timestamp in nanoseconds
+   * @param output Receives the values of the sensor; must hold the number of values of the sensor
+   * @return False if the sensor has no samples yet (the output is not changed)
+   */
+  public boolean get(int sensorType, long timestamp, float[] output) {
+    SampleRing ring = ringFor(sensorType);
+    if (ring == null || ring.count == 0) {
+      return false;
+    }
+    ring.get(timestamp, maxExtrapolationNs, output);
+    return true;
+  }
+
+  /**
+   * @param sensorType The sensor type
+   * @return The timestamp of the newest sample of the sensor, or Long.MIN_VALUE if there is none
+   */
+  public long getNewestTimestamp(int sensorType) {
+    SampleRing ring = ringFor(sensorType);
+    return ring == null || ring.count == 0 ? Long.MIN_VALUE : ring.timestamps[ring.newest];
+  }
+
+  /**
+   * Drops all samples, e.g. when the sensors are unregistered.
+   */
+  public void clear() {
+    for (SampleRing ring : rings) {
+      ring.count = 0;
+    }
+  }
+
+  private SampleRing ringFor(int sensorType) {
+    for (SampleRing ring : rings) {
+      if (ring.sensorType == sensorType) {
+        return ring;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Interpolates between two samples.
+   *
+   * @param values The values of the ring
+   * @param from The offset of the first sample
+   * @param to The offset of the second sample
+   * @param length The number of values per sample
+   * @param orientation True to slerp the quaternions, false to interpolate linearly
+   * @param fraction 0 for the first sample, 1 for the second, more than 1 extrapolates
+   * @param output Receives the interpolated values
+   */
+  private static void interpolate(float[] values, int from, int to, int length, boolean orientation, double fraction,
+      float[] output) {
+    if (!orientation) {
+      for (int i = 0; i < length; i++) {
+        output[i] = (float) (values[from + i] + fraction * (values[to + i] - values[from + i]));
+      }
+      return;
+    }
+
+    double dot = 0;
+    for (int i = 0; i < QUATERNION_VALUES; i++) {
+      dot += values[from + i] * values[to + i];
+    }
+    // Take the shorter way around
+    double sign = dot < 0 ? -1 : 1;
+    dot = Math.abs(dot);
+    double weightFrom;
+    double weightTo;
+    if (dot < 1 - SLERP_THRESHOLD) {
+      double theta = Math.acos(dot);
+      double sinTheta = Math.sin(theta);
+      weightFrom = Math.sin((1 - fraction) * theta) / sinTheta;
+      weightTo = Math.sin(fraction * theta) / sinTheta;
+    } else {
+      weightFrom = 1 - fraction;
+      weightTo = fraction;
+    }
+    double x = weightFrom * values[from] + sign * weightTo * values[to];
+    double y = weightFrom * values[from + 1] + sign * weightTo * values[to + 1];
+    double z = weightFrom * values[from + 2] + sign * weightTo * values[to + 2];
+    double w = weightFrom * values[from + 3] + sign * weightTo * values[to + 3];
+    double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+    output[0] = (float) (x / norm);
+    output[1] = (float) (y / norm);
+    output[2] = (float) (z / norm);
+    output[3] = (float) (w / norm);
+  }
+
+  /**
+   * A ring buffer of the latest samples of one sensor
+   */
+  private static class SampleRing {
+    final int sensorType;
+    final int length;
+    final boolean orientation;
+    final int capacity;
+    final long[] timestamps;
+    final float[] values;
+    /**
+     * The index of the newest sample
+     */
+    int newest = -1;
+    int count;
+
+    SampleRing(int sensorType, int length, boolean orientation, int capacity) {
+      this.sensorType = sensorType;
+      this.length = length;
+      this.orientation = orientation;
+      this.capacity = capacity;
+      this.timestamps = new long[capacity];
+      this.values = new float[capacity * length];
+    }
+
+    boolean add(long timestamp, float[] sample) {
+      if (count > 0 && timestamp < timestamps[newest]) {
+        return false;
+      }
+      if (count == 0 || timestamp != timestamps[newest]) {
+        newest = (newest + 1) % capacity;
+        if (count < capacity) {
+          count++;
+        }
+      }
+      timestamps[newest] = timestamp;
+      System.arraycopy(sample, 0, values, newest * length, length);
+      return true;
+    }
+
+    void get(long timestamp, long maxExtrapolationNs, float[] output) {
+      int index = newest;
+      if (count == 1 || timestamp >= timestamps[index]) {
+        long newestTimestamp = timestamps[index];
+        long extrapolation = Math.min(timestamp - newestTimestamp, maxExtrapolationNs);
+        int previous = (index - 1 + capacity) % capacity;
+        if (count == 1 || extrapolation <= 0 || newestTimestamp == timestamps[previous]) {
+          System.arraycopy(values, index * length, output, 0, length);
+        } else {
+          double fraction = 1 + (double) extrapolation / (newestTimestamp - timestamps[previous]);
+          interpolate(values, previous * length, index * length, length, orientation, fraction, output);
+        }
+        return;
+      }
+
+      // Walk back to the newest sample that is not after the timestamp
+      for (int i = 1; i < count; i++) {
+        int previous = (index - 1 + capacity) % capacity;
+        if (timestamps[previous] <= timestamp) {
+          double fraction = (double) (timestamp - timestamps[previous]) / (timestamps[index] - timestamps[previous]);
+          interpolate(values, previous * length, index * length, length, orientation, fraction, output);
+          return;
+        }
+        index = previous;
+      }
+      // Older than all samples
+      System.arraycopy(values, index * length, output, 0, length);
+    }
+  }
+}
@@ -0,0 +1,279 @@
+package org.sl.sensor_fusion_demo.orientationProvider;
+
+import android.hardware.Sensor;
+import java.util.Locale;
+
+/**
+ * Decides the sampling period of the sensors of a provider: a low rate while the device is still, e.g. lying on a
+ * desk, and the full rate as soon as it moves again.
+ *
+ * The device is considered still when the angular speed of the gyroscope stays below
+ * {@link #GYROSCOPE_STILL_THRESHOLD} and the accelerometer stays within {@link #ACCELEROMETER_STILL_THRESHOLD} (RMS)
+ * of its running mean for the still time. A single sample beyond the higher motion thresholds switches back to the
+ * moving sampling period, so with a gyroscope the full rate is requested at most one still sampling period after the
+ * motion starts, plus the time the sensor hub takes to apply the new rate; with only an accelerometer, once the tilt
+ * has changed the measured gravity by the motion threshold. The gap between the thresholds keeps sensor noise from
+ * flapping the rate. Providers that use neither a gyroscope nor an accelerometer stay at the moving rate.
+ *
+ * The controller only decides; {@link OrientationProvider} re-registers its sensors when
+ * {@link #onSample(int, long, float[])} reports a change. It is updated by the thread that fuses the samples; the
+ * metrics may be read from any other thread, where they may be slightly out of date.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class StillnessRateController {
+
+  /**
+   * The angular speed in rad/s below which the gyroscope counts as still
+   */
+  public static final float GYROSCOPE_STILL_THRESHOLD = 0.05f;
+  /**
+   * The angular speed in rad/s above which a single gyroscope sample counts as motion
+   */
+  public static final float GYROSCOPE_MOTION_THRESHOLD = 0.1f;
+  /**
+   * The RMS deviation in m/s^2 from the running mean below which the accelerometer counts as still
+   */
+  public static final float ACCELEROMETER_STILL_THRESHOLD = 0.15f;
+  /**
+   * The deviation in m/s^2 from the running mean above which a single accelerometer sample counts as motion
+   */
+  public static final float ACCELEROMETER_MOTION_THRESHOLD = 0.3f;
+  /**
+   * The sampling period of SensorManager.SENSOR_DELAY_GAME in microseconds, which the providers use by default
+   */
+  public static final int DEFAULT_MOVING_SAMPLING_PERIOD_US = 20000;
+  /**
+   * The default sampling period in microseconds while still; also the bound on the time to notice motion
+   */
+  public static final int DEFAULT_STILL_SAMPLING_PERIOD_US = 50000;
+  /**
+   * The default time in nanoseconds the device has to be still before the rate is lowered
+   */
+  public static final long DEFAULT_STILL_TIME_NS = 2000000000L;
+  /**
+   * The time constant in nanoseconds of the running mean and deviation of the accelerometer
+   */
+  private static final long ACCELEROMETER_TIME_CONSTANT_NS = 250000000L;
+
+  private final int movingSamplingPeriodUs;
+  private final int stillSamplingPeriodUs;
+  private final long stillTimeNs;
+
+  /**
+   * The running mean of the accelerometer and the running mean of its squared deviation from it
+   */
+  private final float[] accelerometerMean = new float[3];
+  private float accelerometerVariance;
+  private long accelerometerTimestamp;
+  private boolean hasAccelerometer;
+  /**
+   * The timestamp of the last sample that was not still
+   */
+  private long motionTimestamp;
+  /**
+   * The latest timestamp seen, 0 before the first sample
+   */
+  private long lastTimestamp;
+
+  private volatile boolean still;
+  private volatile long stillTransitions;
+  private volatile long movingTransitions;
+  private volatile long sampleCount;
+  private volatile long totalTimeNs;
+  private volatile long timeStillNs;
+
+  /**
+   * Initialises a new StillnessRateController with the default sampling periods and still time
+   */
+  public StillnessRateController() {
+    this(DEFAULT_MOVING_SAMPLING_PERIOD_US, DEFAULT_STILL_SAMPLING_PERIOD_US, DEFAULT_STILL_TIME_NS);
+  }
+
+  /**
+   * Initialises a new StillnessRateController
+   *
+   * @param movingSamplingPeriodUs The sampling period in microseconds while the device moves
+   * @param stillSamplingPeriodUs The sampling period in microseconds while the device is still, which bounds the time
+   * until motion is noticed
+   * @param stillTimeNs The time in nanoseconds the device has to be still before the rate is lowered
+   */
+  public StillnessRateController(int movingSamplingPeriodUs, int stillSamplingPeriodUs, long stillTimeNs) {
+    if (movingSamplingPeriodUs <= 0 || stillSamplingPeriodUs < movingSamplingPeriodUs || stillTimeNs < 0) {
+      throw new IllegalArgumentException("Invalid sampling periods or still time");
+    }
+    this.movingSamplingPeriodUs = movingSamplingPeriodUs;
+    this.stillSamplingPeriodUs = stillSamplingPeriodUs;
+    this.stillTimeNs = stillTimeNs;
+  }
+
+  /**
+   * Updates the stillness with a sample. Samples of sensors other than the gyroscope and the accelerometer only
+   * advance the time.
+   *
+   * @param sensorType The sensor type
+   * @param timestamp The timestamp of the sample in nanoseconds
+   * @param values The values of the sample
+   * @return True if the sampling period has changed, so that the sensors have to be registered with
+   * {@link #getSamplingPeriodUs()}
+   */
+  public boolean onSample(int sensorType, long timestamp, float[] values) {
+    if (lastTimestamp == 0) {
+      lastTimestamp = timestamp;
+      motionTimestamp = timestamp;
+    } else if (timestamp > lastTimestamp) {
+      long elapsed = timestamp - lastTimestamp;
+      totalTimeNs += elapsed;
+      if (still) {
+        timeStillNs += elapsed;
+      }
+      lastTimestamp = timestamp;
+    }
+    sampleCount++;
+
+    boolean quiet;
+    boolean motion;
+    if (sensorType == Sensor.TYPE_GYROSCOPE) {
+      float angularSpeed = (float) Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]);
+      quiet = angularSpeed < GYROSCOPE_STILL_THRESHOLD;
+      motion = angularSpeed > GYROSCOPE_MOTION_THRESHOLD;
+    } else if (sensorType == Sensor.TYPE_ACCELEROMETER) {
+      float deviation = updateAccelerometer(timestamp, values);
+      quiet = Math.sqrt(accelerometerVariance) < ACCELEROMETER_STILL_THRESHOLD;
+      motion = deviation > ACCELEROMETER_MOTION_THRESHOLD;
+    } else {
+      return false;
+    }
+
+    if (still) {
+      if (motion) {
+        still = false;
+        motionTimestamp = timestamp;
+        movingTransitions++;
+        return true;
+      }
+      return false;
+    }
+
+    if (!quiet) {
+      motionTimestamp = timestamp;
+    } else if (timestamp - motionTimestamp >= stillTimeNs) {
+      still = true;
+      stillTransitions++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Updates the running mean and variance of the accelerometer
+   *
+   * @return The deviation of the sample from the mean before the update
+   */
+  private float updateAccelerometer(long timestamp, float[] values) {
+    if (!hasAccelerometer) {
+      hasAccelerometer = true;
+      System.arraycopy(values, 0, accelerometerMean, 0, 3);
+      accelerometerVariance = 0;
+      accelerometerTimestamp = timestamp;
+      return 0;
+    }
+    // The weight of the sample depends on the time since the previous one, so that it works at both rates
+    float weight = Math.min(1, (float) (timestamp - accelerometerTimestamp) / ACCELEROMETER_TIME_CONSTANT_NS);
+    accelerometerTimestamp = timestamp;
+    float dx = values[0] - accelerometerMean[0];
+    float dy = values[1] - accelerometerMean[1];
+    float dz = values[2] - accelerometerMean[2];
+    float squaredDeviation = dx * dx + dy * dy + dz * dz;
+    accelerometerMean[0] += weight * dx;
+    accelerometerMean[1] += weight * dy;
+    accelerometerMean[2] += weight * dz;
+    accelerometerVariance += weight * (squaredDeviation - accelerometerVariance);
+    return (float) Math.sqrt(squaredDeviation);
+  }
+
+  /**
+   * Forgets the stillness and the metrics, e.g. when the sensors are registered again. Starts with the moving rate.
+   */
+  public void reset() {
+    hasAccelerometer = false;
+    lastTimestamp = 0;
+    still = false;
+    stillTransitions = 0;
+    movingTransitions = 0;
+    sampleCount = 0;
+    totalTimeNs = 0;
+    timeStillNs = 0;
+  }
+
+  /**
+   * @return The sampling period in microseconds the sensors should be registered with now
+   */
+  public int getSamplingPeriodUs() {
+    return still ? stillSamplingPeriodUs : movingSamplingPeriodUs;
+  }
+
+  /**
+   * @return The sampling period in microseconds while the device moves
+   */
+  public int getMovingSamplingPeriodUs() {
+    return movingSamplingPeriodUs;
+  }
+
+  /**
+   * @return The sampling period in microseconds while the device is still
+   */
+  public int getStillSamplingPeriodUs() {
+    return stillSamplingPeriodUs;
+  }
+
+  /**
+   * @return True if the device is still and the sensors run at the low rate
+   */
+  public boolean isStill() {
+    return still;
+  }
+
+  /**
+   * @return The number of times the rate was lowered
+   */
+  public long getStillTransitions() {
+    return stillTransitions;
+  }
+
+  /**
+   * @return The number of times the rate was raised again
+   */
+  public long getMovingTransitions() {
+    return movingTransitions;
+  }
+
+  /**
+   * @return The number of samples seen
+   */
+  public long getSampleCount() {
+    return sampleCount;
+  }
+
+  /**
+   * @return The time in nanoseconds covered by the samples seen
+   */
+  public long getTotalTimeNs() {
+    return totalTimeNs;
+  }
+
+  /**
+   * @return The time in nanoseconds the sensors ran at the low rate
+   */
+  public long getStillTimeNs() {
+    return timeStillNs;
+  }
+
+  @Override
+  public String toString() {
+    long total = totalTimeNs;
+    return String.format(Locale.US, "Sensor rate: %s, %d us, still %.1f%% of %.1f s, %d/%d transitions, %d samples",
+        still ? "still" : "moving", getSamplingPeriodUs(), total == 0 ? 0 : 100.0 * timeStillNs / total,
+        total / 1e9, stillTransitions, movingTransitions, sampleCount);
+  }
+}
@@ -33,7 +33,7 @@ public class Quaternion extends Vector4f {
   /**
    * Rotation matrix that contains the same rotation as the Quaternion in a 4x4 homogenised rotation matrix.
    * Remember that for performance reasons, this matrix is only updated, when it is accessed and not on every change
-   * of the quaternion-values.
+   * of the quaternion-values. It is also only allocated on first access, as most quaternions never need it.
    */
   private Matrixf4x4 matrix;
   /**
@@ -49,7 +49,6 @@ public class Quaternion extends Vector4f {
    */
   public Quaternion() {
     super();
-    matrix = new Matrixf4x4();
     loadIdentityQuat();
   }
 
@@ -89,34 +88,26 @@ public class Quaternion extends Vector4f {
   }
 
   /**
-   * Multiply this quaternion by the input quaternion and store the result in the out quaternion
+   * Multiply this quaternion by the input quaternion and store the result in the out quaternion. The input and output
+   * quaternion may be the same object.
    */
   public void multiplyByQuat(Quaternion input, Quaternion output) {
-    Vector4f inputCopy = new Vector4f();
-    if (input != output) {
-      output.points[3] = (points[3] * input.points[3] - points[0] * input.points[0] - points[1] * input.points[1] - points[2]
-          * input.points[2]); //w = w1w2 - x1x2 - y1y2 - z1z2
-      output.points[0] = (points[3] * input.points[0] + points[0] * input.points[3] + points[1] * input.points[2] - points[2]
-          * input.points[1]); //x = w1x2 + x1w2 + y1z2 - z1y2
-      output.points[1] = (points[3] * input.points[1] + points[1] * input.points[3] + points[2] * input.points[0] - points[0]
-          * input.points[2]); //y = w1y2 + y1w2 + z1x2 - x1z2
-      output.points[2] = (points[3] * input.points[2] + points[2] * input.points[3] + points[0] * input.points[1] - points[1]
-          * input.points[0]); //z = w1z2 + z1w2 + x1y2 - y1x2
-    } else {
-      inputCopy.points[0] = input.points[0];
-      inputCopy.points[1] = input.points[1];
-      inputCopy.points[2] = input.points[2];
-      inputCopy.points[3] = input.points[3];
-
-      output.points[3] = (points[3] * inputCopy.points[3] - points[0] * inputCopy.points[0] - points[1]
-          * inputCopy.points[1] - points[2] * inputCopy.points[2]); //w = w1w2 - x1x2 - y1y2 - z1z2
-      output.points[0] = (points[3] * inputCopy.points[0] + points[0] * inputCopy.points[3] + points[1]
-          * inputCopy.points[2] - points[2] * inputCopy.points[1]); //x = w1x2 + x1w2 + y1z2 - z1y2
-      output.points[1] = (points[3] * inputCopy.points[1] + points[1] * inputCopy.points[3] + points[2]
-          * inputCopy.points[0] - points[0] * inputCopy.points[2]); //y = w1y2 + y1w2 + z1x2 - x1z2
-      output.points[2] = (points[3] * inputCopy.points[2] + points[2] * inputCopy.points[3] + points[0]
-          * inputCopy.points[1] - points[1] * inputCopy.points[0]); //z = w1z2 + z1w2 + x1y2 - y1x2
-    }
+    // Read the input into locals first, so that input == output does not need a copy
+    float inX = input.points[0];
+    float inY = input.points[1];
+    float inZ = input.points[2];
+    float inW = input.points[3];
+
+    float x = points[0];
+    float y = points[1];
+    float z = points[2];
+    float w = points[3];
+
+    output.points[3] = w * inW - x * inX - y * inY - z * inZ; //w = w1w2 - x1x2 - y1y2 - z1z2
+    output.points[0] = w * inX + x * inW + y * inZ - z * inY; //x = w1x2 + x1w2 + y1z2 - z1y2
+    output.points[1] = w * inY + y * inW + z * inX - x * inZ; //y = w1y2 + y1w2 + z1x2 - x1z2
+    output.points[2] = w * inZ + z * inW + x * inY - y * inX; //z = w1z2 + z1w2 + x1y2 - y1x2
+    output.dirty = true;
   }
 
   public void multiplyByQuat(Quaternion input) {
@@ -190,6 +181,8 @@ public class Quaternion extends Vector4f {
    * {@link Quaternion#getMatrix4x4 getMatrix4x4}
    */
   private void convertQuatToMatrix() {
+    ensureMatrix();
+
     float x = points[0];
     float y = points[1];
     float z = points[2];
@@ -359,6 +352,7 @@ public class Quaternion extends Vector4f {
    */
   public void setColumnMajor(float[] matrix) {
 
+    ensureMatrix();
     this.matrix.setMatrix(matrix);
     this.matrix.setColumnMajor(true);
 
@@ -373,6 +367,7 @@ public class Quaternion extends Vector4f {
    */
   public void setRowMajor(float[] matrix) {
 
+    ensureMatrix();
     this.matrix.setMatrix(matrix);
     this.matrix.setColumnMajor(false);
 
@@ -434,12 +429,21 @@ public class Quaternion extends Vector4f {
     dirty = true;
   }
 
+  /**
+   * Allocates the rotation matrix representation on first use.
+   */
+  private void ensureMatrix() {
+    if (matrix == null) {
+      matrix = new Matrixf4x4();
+    }
+  }
+
   /**
    * @return Returns this Quaternion in the Rotation Matrix representation
    */
   public Matrixf4x4 getMatrix4x4() {
     //toMatrixColMajor();
-    if (dirty) {
+    if (dirty || matrix == null) {
       convertQuatToMatrix();
       dirty = false;
     }
@@ -461,18 +465,14 @@ public class Quaternion extends Vector4f {
   public void slerp(Quaternion input, Quaternion output, float t) {
     // Calculate angle between them.
     //double cosHalftheta = this.dotProduct(input);
-    Quaternion bufferQuat = null;
+    // Instead of negating the input into a buffer quaternion when the two are on opposite hemispheres, the sign
+    // is folded into the interpolation ratio, so that this method never allocates and output may alias either side.
+    float inputSign = 1;
     float cosHalftheta = this.dotProduct(input);
 
     if (cosHalftheta < 0) {
-      bufferQuat = new Quaternion();
+      inputSign = -1;
       cosHalftheta = -cosHalftheta;
-      bufferQuat.points[0] = (-input.points[0]);
-      bufferQuat.points[1] = (-input.points[1]);
-      bufferQuat.points[2] = (-input.points[2]);
-      bufferQuat.points[3] = (-input.points[3]);
-    } else {
-      bufferQuat = input;
     }
     /**
      * if(dot < 0.95f){
@@ -512,15 +512,20 @@ public class Quaternion extends Vector4f {
       double halfTheta = Math.acos(cosHalftheta);
 
       double ratioA = Math.sin((1 - t) * halfTheta) / sinHalfTheta;
-      double ratioB = Math.sin(t * halfTheta) / sinHalfTheta;
+      double ratioB = inputSign * Math.sin(t * halfTheta) / sinHalfTheta;
 
       //Calculate Quaternion
-      output.points[3] = ((float) (points[3] * ratioA + bufferQuat.points[3] * ratioB));
-      output.points[0] = ((float) (this.points[0] * ratioA + bufferQuat.points[0] * ratioB));
-      output.points[1] = ((float) (this.points[1] * ratioA + bufferQuat.points[1] * ratioB));
-      output.points[2] = ((float) (this.points[2] * ratioA + bufferQuat.points[2] * ratioB));
+      float inX = input.points[0];
+      float inY = input.points[1];
+      float inZ = input.points[2];
+      float inW = input.points[3];
+      output.points[3] = ((float) (points[3] * ratioA + inW * ratioB));
+      output.points[0] = ((float) (this.points[0] * ratioA + inX * ratioB));
+      output.points[1] = ((float) (this.points[1] * ratioA + inY * ratioB));
+      output.points[2] = ((float) (this.points[2] * ratioA + inZ * ratioB));
 
       //}
     }
+    output.dirty = true;
   }
 }
@@ -0,0 +1,166 @@
+package org.sl.sensor_fusion_demo.trace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes buffers to a stream on a background thread, so that the thread that fills them (the one delivering the
+ * sensor events) never waits for I/O.
+ *
+ * The buffers are preallocated and circulate between the two threads: {@link #acquire()} hands out a free buffer,
+ * {@link #submit(ByteBuffer)} queues a filled one, and the background thread writes it from position 0 to its
+ * position and returns it to the free buffers.
+ *
+ * @author Stanislav Lelyuk
+ */
+final class AsyncBufferWriter {
+
+  /**
+   * Handed to the writer thread to make it finish
+   */
+  private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+  private final BlockingQueue<ByteBuffer> freeBuffers;
+  private final BlockingQueue<ByteBuffer> filledBuffers;
+  private final OutputStream out;
+  private final Thread writerThread;
+  /**
+   * Whether acquiring waits for a free buffer instead of returning null
+   */
+  private final boolean blockWhenFull;
+  private volatile IOException writeError;
+  private boolean closed;
+
+  /**
+   * Initialises a new AsyncBufferWriter and starts its thread
+   *
+   * @param out The stream to write to; it is closed by {@link #close()}
+   * @param bufferSize The size of each buffer in bytes
+   * @param bufferCount The number of buffers
+   * @param blockWhenFull True to let {@link #acquire()} wait for the stream when it cannot keep up, false to return
+   * null
+   * @param name The name of the writer thread
+   */
+  AsyncBufferWriter(OutputStream out, int bufferSize, int bufferCount, boolean blockWhenFull, String name) {
+    this.out = out;
+    this.blockWhenFull = blockWhenFull;
+    freeBuffers = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+    filledBuffers = new ArrayBlockingQueue<ByteBuffer>(bufferCount + 1);
+    for (int i = 0; i < bufferCount; i++) {
+      freeBuffers.add(ByteBuffer.allocate(bufferSize));
+    }
+
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeBuffers();
+      }
+    }, name);
+    writerThread.start();
+  }
+
+  /**
+   * @return An empty buffer, or null if none is free and the writer does not block (or was interrupted)
+   */
+  ByteBuffer acquire() {
+    if (!blockWhenFull) {
+      return freeBuffers.poll();
+    }
+    return acquireWaiting();
+  }
+
+  /**
+   * @return An empty buffer once one is free, or null if the thread was interrupted
+   */
+  ByteBuffer acquireWaiting() {
+    try {
+      return freeBuffers.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Queues a buffer that was obtained from {@link #acquire()} to be written
+   *
+   * @param buffer The buffer, filled from 0 to its position
+   */
+  void submit(ByteBuffer buffer) {
+    filledBuffers.add(buffer);
+  }
+
+  /**
+   * Writes all submitted buffers, waits for the writer thread and closes the stream.
+   *
+   * @throws IOException If writing failed at any point
+   */
+  void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    filledBuffers.add(END_OF_STREAM);
+
+    boolean interrupted = false;
+    while (true) {
+      try {
+        writerThread.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      out.close();
+    } catch (IOException e) {
+      if (writeError == null) {
+        writeError = e;
+      }
+    }
+    if (writeError != null) {
+      throw writeError;
+    }
+  }
+
+  /**
+   * Writes the filled buffers until the end of the stream, run by the writer thread
+   */
+  private void writeBuffers() {
+    while (true) {
+      ByteBuffer buffer;
+      try {
+        buffer = filledBuffers.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (buffer == END_OF_STREAM) {
+        try {
+          out.flush();
+        } catch (IOException e) {
+          if (writeError == null) {
+            writeError = e;
+          }
+        }
+        return;
+      }
+
+      if (writeError == null) {
+        try {
+          out.write(buffer.array(), 0, buffer.position());
+        } catch (IOException e) {
+          writeError = e;
+        }
+      }
+      buffer.clear();
+      freeBuffers.add(buffer);
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package org.sl.sensor_fusion_demo.trace;
+
+/**
+ * Receives the events of a {@link ColumnarTrace} without copying them out of the mapped file.
+ *
+ * @author Stanislav Lelyuk
+ */
+public interface ColumnarSampleListener {
+
+  /**
+   * Called for each event in timestamp order.
+   *
+   * @param sample A view of the event in the mapped file; it is reused for the next event, so it must not be kept
+   */
+  void onSample(ColumnarTrace.Sample sample);
+}
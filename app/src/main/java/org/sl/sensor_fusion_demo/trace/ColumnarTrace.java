@@ -0,0 +1,713 @@
+package org.sl.sensor_fusion_demo.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorSampleListener;
+
+/**
+ * A trace in the {@link ColumnarTraceFormat}, read through memory-mapped buffers instead of being decoded into the
+ * heap, so that it can be larger than the heap (or 2 GB).
+ *
+ * Only the block index is loaded when the trace is opened. A time window is found by binary searches over the index
+ * and the timestamp column of the first block, and its events are handed to a listener in timestamp order straight
+ * from the mapped file. The checksum of a block is verified the first time a window reaches it.
+ *
+ * The events of each sensor type are expected in timestamp order, as a sensor delivers them. Events of different
+ * types with the same timestamp are handed over in the order in which their types first appear in the file.
+ *
+ * A ColumnarTrace is not thread-safe. The mapped buffers are released by the garbage collector, not by
+ * {@link #close()}.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class ColumnarTrace implements Closeable {
+
+  /**
+   * The size of the file regions that are mapped at once; each mapping extends by one block beyond it, so that no
+   * block is split between two mappings
+   */
+  static final long SEGMENT_SIZE = 1L << 30;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long segmentSize;
+  private final int blockCapacity;
+  private final long dataEnd;
+  private final boolean indexRebuilt;
+  private final CRC32 crc = new CRC32();
+  private final byte[] crcScratch = new byte[8192];
+
+  /**
+   * The block index, in file order
+   */
+  private long[] blockOffsets;
+  private long[] blockFirstTimestamps;
+  private long[] blockLastTimestamps;
+  private int[] blockSensorTypes;
+  private int[] blockEventCounts;
+  private int blockCount;
+  private final BitSet verifiedBlocks = new BitSet();
+
+  /**
+   * One cursor per sensor type, in the order the types first appear
+   */
+  private Sample[] cursors;
+  private final MappedByteBuffer[] segments;
+  /**
+   * Duplicates of the segments, whose position is moved to compute checksums
+   */
+  private final ByteBuffer[] checksumViews;
+  private boolean verifyChecksums = true;
+
+  /**
+   * Hands the events of a window to a {@link SensorSampleListener}
+   */
+  private final SampleCopier copier = new SampleCopier();
+
+  /**
+   * Opens a trace file.
+   *
+   * @param file The file
+   * @return The trace
+   * @throws IOException If the file cannot be read or is not a columnar trace
+   */
+  public static ColumnarTrace open(File file) throws IOException {
+    return open(file, SEGMENT_SIZE);
+  }
+
+  static ColumnarTrace open(File file, long segmentSize) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      return new ColumnarTrace(randomAccessFile, segmentSize);
+    } catch (IOException e) {
+      randomAccessFile.close();
+      throw e;
+    } catch (RuntimeException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Initialises a new ColumnarTrace and loads or rebuilds its block index
+   *
+   * @param file The opened file
+   * @param segmentSize The size of the regions that are mapped at once
+   * @throws IOException If the file cannot be read or is not a columnar trace
+   */
+  private ColumnarTrace(RandomAccessFile file, long segmentSize) throws IOException {
+    this.file = file;
+    this.channel = file.getChannel();
+    this.segmentSize = segmentSize;
+
+    long length = channel.size();
+    ByteBuffer header = readFully(0, ColumnarTraceFormat.HEADER_SIZE, length);
+    if (header == null || header.getInt(0) != ColumnarTraceFormat.MAGIC) {
+      throw new IOException("Not a columnar sensor trace");
+    }
+    short version = header.getShort(4);
+    if (version != ColumnarTraceFormat.VERSION) {
+      throw new IOException("Unsupported columnar sensor trace version " + version);
+    }
+    blockCapacity = header.getInt(8);
+    if (blockCapacity <= 0) {
+      throw new IOException("Corrupt columnar sensor trace: block capacity " + blockCapacity);
+    }
+
+    blockOffsets = new long[64];
+    blockFirstTimestamps = new long[64];
+    blockLastTimestamps = new long[64];
+    blockSensorTypes = new int[64];
+    blockEventCounts = new int[64];
+    long indexOffset = loadIndex(length);
+    indexRebuilt = indexOffset < 0;
+    dataEnd = indexRebuilt ? rebuildIndex(length) : indexOffset;
+
+    int segmentCount = (int) ((dataEnd + segmentSize - 1) / segmentSize);
+    segments = new MappedByteBuffer[segmentCount];
+    checksumViews = new ByteBuffer[segmentCount];
+    createCursors();
+  }
+
+  /**
+   * Loads the index written at the end of the file.
+   *
+   * @return The offset of the index, which is where the blocks end, or -1 if there is no valid index
+   */
+  private long loadIndex(long length) throws IOException {
+    if (length < ColumnarTraceFormat.HEADER_SIZE + ColumnarTraceFormat.TRAILER_SIZE) {
+      return -1;
+    }
+    ByteBuffer trailer = readFully(length - ColumnarTraceFormat.TRAILER_SIZE, ColumnarTraceFormat.TRAILER_SIZE,
+        length);
+    long indexOffset = trailer.getLong(0);
+    int entryCount = trailer.getInt(8);
+    int indexCrc = trailer.getInt(12);
+    if (trailer.getInt(16) != ColumnarTraceFormat.INDEX_MAGIC || entryCount < 0
+        || indexOffset < ColumnarTraceFormat.HEADER_SIZE
+        || indexOffset + (long) entryCount * ColumnarTraceFormat.INDEX_ENTRY_SIZE
+        != length - ColumnarTraceFormat.TRAILER_SIZE) {
+      return -1;
+    }
+
+    crc.reset();
+    ByteBuffer chunk = ByteBuffer.allocate(ColumnarTraceFormat.INDEX_ENTRY_SIZE * 2048);
+    long position = indexOffset;
+    int entry = 0;
+    while (entry < entryCount) {
+      int entries = Math.min(entryCount - entry, chunk.capacity() / ColumnarTraceFormat.INDEX_ENTRY_SIZE);
+      chunk.clear();
+      chunk.limit(entries * ColumnarTraceFormat.INDEX_ENTRY_SIZE);
+      readFully(position, chunk);
+      crc.update(chunk.array(), 0, chunk.limit());
+      for (int i = 0; i < entries; i++) {
+        int base = i * ColumnarTraceFormat.INDEX_ENTRY_SIZE;
+        addBlock(chunk.getLong(base), chunk.getLong(base + 8), chunk.getLong(base + 16), chunk.getInt(base + 24),
+            chunk.getInt(base + 28));
+      }
+      position += chunk.limit();
+      entry += entries;
+    }
+
+    if ((int) crc.getValue() != indexCrc) {
+      blockCount = 0;
+      return -1;
+    }
+    return indexOffset;
+  }
+
+  /**
+   * Rebuilds the index by walking the block headers, up to the first block that is not complete.
+   *
+   * @return The offset after the last complete block
+   */
+  private long rebuildIndex(long length) throws IOException {
+    long position = ColumnarTraceFormat.HEADER_SIZE;
+    ByteBuffer header = ByteBuffer.allocate(ColumnarTraceFormat.BLOCK_HEADER_SIZE);
+    while (position + ColumnarTraceFormat.BLOCK_HEADER_SIZE <= length) {
+      header.clear();
+      readFully(position, header);
+      int eventCount = header.getInt(ColumnarTraceFormat.BLOCK_EVENT_COUNT);
+      int valueCount = header.getInt(ColumnarTraceFormat.BLOCK_VALUE_COUNT);
+      if (header.getInt(0) != ColumnarTraceFormat.BLOCK_MAGIC || eventCount <= 0 || eventCount > blockCapacity
+          || valueCount < 0 || valueCount > ColumnarTraceFormat.MAX_VALUES) {
+        break;
+      }
+      int payloadSize = header.getInt(ColumnarTraceFormat.BLOCK_PAYLOAD_SIZE);
+      long end = position + ColumnarTraceFormat.BLOCK_HEADER_SIZE + payloadSize;
+      if (payloadSize != ColumnarTraceFormat.payloadSize(eventCount, valueCount) || end > length) {
+        break;
+      }
+      addBlock(position, header.getLong(ColumnarTraceFormat.BLOCK_FIRST_TIMESTAMP),
+          header.getLong(ColumnarTraceFormat.BLOCK_LAST_TIMESTAMP),
+          header.getInt(ColumnarTraceFormat.BLOCK_SENSOR_TYPE), eventCount);
+      position = end;
+    }
+    return position;
+  }
+
+  private void addBlock(long offset, long firstTimestamp, long lastTimestamp, int sensorType, int eventCount) {
+    if (blockCount == blockOffsets.length) {
+      int capacity = blockCount * 2;
+      blockOffsets = Arrays.copyOf(blockOffsets, capacity);
+      blockFirstTimestamps = Arrays.copyOf(blockFirstTimestamps, capacity);
+      blockLastTimestamps = Arrays.copyOf(blockLastTimestamps, capacity);
+      blockSensorTypes = Arrays.copyOf(blockSensorTypes, capacity);
+      blockEventCounts = Arrays.copyOf(blockEventCounts, capacity);
+    }
+    blockOffsets[blockCount] = offset;
+    blockFirstTimestamps[blockCount] = firstTimestamp;
+    blockLastTimestamps[blockCount] = lastTimestamp;
+    blockSensorTypes[blockCount] = sensorType;
+    blockEventCounts[blockCount] = eventCount;
+    blockCount++;
+  }
+
+  /**
+   * Groups the blocks by sensor type, with one cursor per type
+   */
+  private void createCursors() {
+    int[] types = new int[0];
+    int[] counts = new int[0];
+    for (int i = 0; i < blockCount; i++) {
+      int type = indexOfType(types, blockSensorTypes[i]);
+      if (type < 0) {
+        types = Arrays.copyOf(types, types.length + 1);
+        counts = Arrays.copyOf(counts, counts.length + 1);
+        type = types.length - 1;
+        types[type] = blockSensorTypes[i];
+      }
+      counts[type]++;
+    }
+
+    cursors = new Sample[types.length];
+    for (int type = 0; type < types.length; type++) {
+      cursors[type] = new Sample(types[type], new int[counts[type]]);
+    }
+    int[] filled = new int[types.length];
+    for (int i = 0; i < blockCount; i++) {
+      int type = indexOfType(types, blockSensorTypes[i]);
+      cursors[type].blocks[filled[type]++] = i;
+    }
+  }
+
+  private static int indexOfType(int[] types, int sensorType) {
+    for (int i = 0; i < types.length; i++) {
+      if (types[i] == sensorType) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * @param verifyChecksums True to verify the checksum of each block before its events are handed over (the default)
+   */
+  public void setVerifyChecksums(boolean verifyChecksums) {
+    this.verifyChecksums = verifyChecksums;
+  }
+
+  /**
+   * @return Whether the index was missing or damaged and had to be rebuilt from the blocks
+   */
+  public boolean isIndexRebuilt() {
+    return indexRebuilt;
+  }
+
+  /**
+   * @return The maximum number of events per block
+   */
+  public int getBlockCapacity() {
+    return blockCapacity;
+  }
+
+  /**
+   * @return The file offset after the last block
+   */
+  public long getDataEnd() {
+    return dataEnd;
+  }
+
+  /**
+   * @return The number of events
+   */
+  public long size() {
+    long size = 0;
+    for (int i = 0; i < blockCount; i++) {
+      size += blockEventCounts[i];
+    }
+    return size;
+  }
+
+  /**
+   * @return The sensor types in the trace, in the order they first appear
+   */
+  public int[] getSensorTypes() {
+    int[] types = new int[cursors.length];
+    for (int i = 0; i < types.length; i++) {
+      types[i] = cursors[i].type;
+    }
+    return types;
+  }
+
+  /**
+   * @return The timestamp of the first event in nanoseconds, or Long.MAX_VALUE if the trace is empty
+   */
+  public long getStartTimestamp() {
+    long start = Long.MAX_VALUE;
+    for (int i = 0; i < blockCount; i++) {
+      start = Math.min(start, blockFirstTimestamps[i]);
+    }
+    return start;
+  }
+
+  /**
+   * @return The timestamp of the last event in nanoseconds, or Long.MIN_VALUE if the trace is empty
+   */
+  public long getEndTimestamp() {
+    long end = Long.MIN_VALUE;
+    for (int i = 0; i < blockCount; i++) {
+      end = Math.max(end, blockLastTimestamps[i]);
+    }
+    return end;
+  }
+
+  /**
+   * @return The number of blocks
+   */
+  public int getBlockCount() {
+    return blockCount;
+  }
+
+  /**
+   * @param block The index of the block, in file order
+   * @return The file offset of the block
+   */
+  public long getBlockOffset(int block) {
+    return blockOffsets[block];
+  }
+
+  /**
+   * @param block The index of the block, in file order
+   * @return The timestamp of the first event of the block
+   */
+  public long getBlockFirstTimestamp(int block) {
+    return blockFirstTimestamps[block];
+  }
+
+  /**
+   * @param block The index of the block, in file order
+   * @return The timestamp of the last event of the block
+   */
+  public long getBlockLastTimestamp(int block) {
+    return blockLastTimestamps[block];
+  }
+
+  /**
+   * @param block The index of the block, in file order
+   * @return The sensor type of the events in the block
+   */
+  public int getBlockSensorType(int block) {
+    return blockSensorTypes[block];
+  }
+
+  /**
+   * @param block The index of the block, in file order
+   * @return The number of events in the block
+   */
+  public int getBlockEventCount(int block) {
+    return blockEventCounts[block];
+  }
+
+  /**
+   * Verifies the checksums of all blocks.
+   *
+   * @return The number of blocks whose checksum does not match
+   * @throws IOException If the file cannot be mapped
+   */
+  public int verify() throws IOException {
+    int corrupt = 0;
+    for (int i = 0; i < blockCount; i++) {
+      if (!checksumMatches(i)) {
+        corrupt++;
+      }
+    }
+    return corrupt;
+  }
+
+  /**
+   * Hands the events with from <= timestamp < to to the listener in timestamp order, as views of the mapped file.
+   *
+   * @param from The first timestamp of the window in nanoseconds
+   * @param to The timestamp after the window in nanoseconds
+   * @param listener The listener
+   * @return The number of events handed over
+   * @throws IOException If the file cannot be mapped or a block checksum does not match
+   */
+  public long stream(long from, long to, ColumnarSampleListener listener) throws IOException {
+    for (Sample cursor : cursors) {
+      seek(cursor, from, to);
+    }
+
+    long count = 0;
+    while (true) {
+      // The cursor with the oldest event, as there are only a few sensor types a linear search is the fastest
+      Sample next = null;
+      for (Sample cursor : cursors) {
+        if (cursor.block >= 0 && (next == null || cursor.timestamp < next.timestamp)) {
+          next = cursor;
+        }
+      }
+      if (next == null) {
+        return count;
+      }
+      listener.onSample(next);
+      count++;
+      advance(next, to);
+    }
+  }
+
+  /**
+   * Hands the events with from <= timestamp < to to the listener in timestamp order, e.g. to replay part of a long
+   * recording into an orientation provider. The values are copied into arrays that are reused for every event.
+   *
+   * @param from The first timestamp of the window in nanoseconds
+   * @param to The timestamp after the window in nanoseconds
+   * @param listener The listener
+   * @param timestampOffset Added to every timestamp that is handed over
+   * @return The number of events handed over
+   * @throws IOException If the file cannot be mapped or a block checksum does not match
+   */
+  public long stream(long from, long to, SensorSampleListener listener, long timestampOffset) throws IOException {
+    copier.listener = listener;
+    copier.timestampOffset = timestampOffset;
+    try {
+      return stream(from, to, copier);
+    } finally {
+      copier.listener = null;
+    }
+  }
+
+  /**
+   * Moves a cursor to the first event of its type at or after from, or ends it if there is none before to
+   */
+  private void seek(Sample cursor, long from, long to) throws IOException {
+    int[] blocks = cursor.blocks;
+    // The first block that ends at or after from
+    int low = 0;
+    int high = blocks.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (blockLastTimestamps[blocks[middle]] < from) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    if (low == blocks.length) {
+      cursor.block = -1;
+      return;
+    }
+
+    enterBlock(cursor, low);
+    // The first row of the block at or after from
+    int first = 0;
+    int last = cursor.count;
+    while (first < last) {
+      int middle = (first + last) >>> 1;
+      if (cursor.buffer.getLong(cursor.payload + 8 * middle) < from) {
+        first = middle + 1;
+      } else {
+        last = middle;
+      }
+    }
+    setRow(cursor, first, to);
+  }
+
+  /**
+   * Moves a cursor to its next event, or ends it if there is none before to
+   */
+  private void advance(Sample cursor, long to) throws IOException {
+    if (cursor.row + 1 < cursor.count) {
+      setRow(cursor, cursor.row + 1, to);
+      return;
+    }
+    int next = cursor.blockPosition + 1;
+    if (next == cursor.blocks.length || blockFirstTimestamps[cursor.blocks[next]] >= to) {
+      cursor.block = -1;
+      return;
+    }
+    enterBlock(cursor, next);
+    setRow(cursor, 0, to);
+  }
+
+  private void setRow(Sample cursor, int row, long to) {
+    cursor.row = row;
+    cursor.timestamp = cursor.buffer.getLong(cursor.payload + 8 * row);
+    if (cursor.timestamp >= to) {
+      cursor.block = -1;
+    }
+  }
+
+  /**
+   * Points a cursor at one of the blocks of its type, after verifying the block's checksum if needed
+   */
+  private void enterBlock(Sample cursor, int blockPosition) throws IOException {
+    int block = cursor.blocks[blockPosition];
+    if (verifyChecksums && !verifiedBlocks.get(block)) {
+      if (!checksumMatches(block)) {
+        throw new IOException("Corrupt columnar sensor trace: checksum mismatch in block at offset "
+            + blockOffsets[block]);
+      }
+      verifiedBlocks.set(block);
+    }
+
+    int segment = segmentOf(block);
+    ByteBuffer buffer = segment(segment);
+    int position = (int) (blockOffsets[block] - segment * segmentSize);
+    cursor.block = block;
+    cursor.blockPosition = blockPosition;
+    cursor.buffer = buffer;
+    cursor.count = blockEventCounts[block];
+    cursor.valueCount = buffer.getInt(position + ColumnarTraceFormat.BLOCK_VALUE_COUNT);
+    cursor.payload = position + ColumnarTraceFormat.BLOCK_HEADER_SIZE;
+  }
+
+  private boolean checksumMatches(int block) throws IOException {
+    int segment = segmentOf(block);
+    segment(segment);
+    ByteBuffer view = checksumViews[segment];
+    int position = (int) (blockOffsets[block] - segment * segmentSize);
+    int payloadSize = view.getInt(position + ColumnarTraceFormat.BLOCK_PAYLOAD_SIZE);
+    int expected = view.getInt(position + ColumnarTraceFormat.BLOCK_CRC);
+
+    crc.reset();
+    view.position(position + ColumnarTraceFormat.BLOCK_HEADER_SIZE);
+    int remaining = payloadSize;
+    while (remaining > 0) {
+      int length = Math.min(remaining, crcScratch.length);
+      view.get(crcScratch, 0, length);
+      crc.update(crcScratch, 0, length);
+      remaining -= length;
+    }
+    return (int) crc.getValue() == expected;
+  }
+
+  private int segmentOf(int block) {
+    return (int) (blockOffsets[block] / segmentSize);
+  }
+
+  /**
+   * @return The mapping of a segment, which is created the first time it is needed
+   */
+  private ByteBuffer segment(int segment) throws IOException {
+    MappedByteBuffer buffer = segments[segment];
+    if (buffer == null) {
+      long start = segment * segmentSize;
+      long size = Math.min(segmentSize + ColumnarTraceFormat.maxBlockSize(blockCapacity), dataEnd - start);
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+      segments[segment] = buffer;
+      checksumViews[segment] = buffer.duplicate();
+    }
+    return buffer;
+  }
+
+  /**
+   * Reads bytes at a position of the file.
+   *
+   * @return The bytes, or null if the file ends before
+   */
+  private ByteBuffer readFully(long position, int size, long length) throws IOException {
+    if (position + size > length) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    readFully(position, buffer);
+    return buffer;
+  }
+
+  private void readFully(long position, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("Unexpected end of columnar sensor trace");
+      }
+      position += read;
+    }
+  }
+
+  /**
+   * An event of the trace, read from the mapped file when its fields are asked for. The same instance moves on to
+   * the next event of its sensor type.
+   */
+  public static final class Sample {
+    private final int type;
+    /**
+     * The blocks of this sensor type, in time order
+     */
+    private final int[] blocks;
+    /**
+     * The current block, or -1 if there are no more events
+     */
+    private int block = -1;
+    private int blockPosition;
+    private ByteBuffer buffer;
+    /**
+     * The buffer position of the payload of the current block
+     */
+    private int payload;
+    private int count;
+    private int valueCount;
+    private int row;
+    private long timestamp;
+
+    private Sample(int type, int[] blocks) {
+      this.type = type;
+      this.blocks = blocks;
+    }
+
+    /**
+     * @return The sensor type of the event
+     */
+    public int getType() {
+      return type;
+    }
+
+    /**
+     * @return The timestamp of the event in nanoseconds
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * @return The accuracy of the event
+     */
+    public int getAccuracy() {
+      return buffer.get(payload + count * (8 + 4 * valueCount) + row);
+    }
+
+    /**
+     * @return The number of values of the event
+     */
+    public int getValueCount() {
+      return valueCount;
+    }
+
+    /**
+     * @param index The index of the value, less than {@link #getValueCount()}
+     * @return The value
+     */
+    public float getValue(int index) {
+      return buffer.getFloat(payload + 8 * count + 4 * (index * count + row));
+    }
+
+    /**
+     * Copies the values of the event.
+     *
+     * @param output The array that receives the values; it must hold at least {@link #getValueCount()} values
+     */
+    public void getValues(float[] output) {
+      int offset = payload + 8 * count + 4 * row;
+      for (int i = 0; i < valueCount; i++) {
+        output[i] = buffer.getFloat(offset);
+        offset += 4 * count;
+      }
+    }
+  }
+
+  /**
+   * Copies the values of each sample into a reused array and hands them to a {@link SensorSampleListener}
+   */
+  private static final class SampleCopier implements ColumnarSampleListener {
+    private final float[][] valueBuffers = new float[ColumnarTraceFormat.MAX_VALUES + 1][];
+    private SensorSampleListener listener;
+    private long timestampOffset;
+
+    SampleCopier() {
+      for (int i = 0; i < valueBuffers.length; i++) {
+        valueBuffers[i] = new float[i];
+      }
+    }
+
+    @Override
+    public void onSample(Sample sample) {
+      float[] values = valueBuffers[sample.getValueCount()];
+      sample.getValues(values);
+      listener.onSensorSample(sample.getType(), sample.getTimestamp() + timestampOffset, values);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package org.sl.sensor_fusion_demo.trace;
+
+/**
+ * The columnar trace format for long recordings, as written by {@link ColumnarTraceWriter} and read by
+ * {@link ColumnarTrace}. Unlike the compact {@link SensorTraceFormat}, it can be memory-mapped and read without
+ * parsing, searched by time and appended to.
+ *
+ * All numbers are big-endian. The file starts with a header:
+ * <pre>
+ * int   magic           'S' 'F' 'T' 'C'
+ * short version         {@link #VERSION}
+ * short reserved        0
+ * int   block capacity  the maximum number of events per block
+ * int   reserved        0
+ * </pre>
+ * followed by blocks. Each block holds up to block capacity events of one sensor type that all have the same number
+ * of values, in columns:
+ * <pre>
+ * int    magic            'S' 'F' 'B' 'K'
+ * int    sensor type
+ * int    event count n
+ * int    value count m
+ * long   first timestamp
+ * long   last timestamp
+ * int    payload size     in bytes, a multiple of 8
+ * int    payload CRC32
+ * long   reserved         0
+ * long[n]   timestamps
+ * float[n]  value 0 of every event, then value 1 and so on up to value m - 1
+ * byte[n]   accuracies
+ *           padding to a multiple of 8
+ * </pre>
+ * The blocks of one sensor type follow each other in time, blocks of different types interleave. When the recording
+ * is closed, an index of all blocks and a trailer are appended:
+ * <pre>
+ * per block:
+ * long  offset of the block
+ * long  first timestamp
+ * long  last timestamp
+ * int   sensor type
+ * int   event count
+ * trailer:
+ * long  offset of the index
+ * int   number of index entries
+ * int   CRC32 of the index
+ * int   magic           'S' 'F' 'I' 'X'
+ * int   reserved        0
+ * </pre>
+ * If the trailer is missing (e.g. because the app was killed while recording), the index is rebuilt by walking the
+ * block headers, and a block that was cut off is ignored. Appending removes the index and writes a new one on close.
+ *
+ * @author Stanislav Lelyuk
+ */
+public final class ColumnarTraceFormat {
+
+  public static final int MAGIC = ('S' << 24) | ('F' << 16) | ('T' << 8) | 'C';
+  public static final int BLOCK_MAGIC = ('S' << 24) | ('F' << 16) | ('B' << 8) | 'K';
+  public static final int INDEX_MAGIC = ('S' << 24) | ('F' << 16) | ('I' << 8) | 'X';
+  public static final short VERSION = 1;
+  public static final int HEADER_SIZE = 16;
+  public static final int BLOCK_HEADER_SIZE = 48;
+  public static final int INDEX_ENTRY_SIZE = 32;
+  public static final int TRAILER_SIZE = 24;
+  /**
+   * The default number of events per block; a block of 3-axis samples is about 21 kB
+   */
+  public static final int DEFAULT_BLOCK_CAPACITY = 1024;
+  /**
+   * The maximum number of values per event
+   */
+  public static final int MAX_VALUES = SensorTraceFormat.MAX_VALUES;
+  /**
+   * The file name extension of columnar traces
+   */
+  public static final String FILE_EXTENSION = ".sftc";
+
+  /**
+   * Offsets of the fields in a block header
+   */
+  static final int BLOCK_SENSOR_TYPE = 4;
+  static final int BLOCK_EVENT_COUNT = 8;
+  static final int BLOCK_VALUE_COUNT = 12;
+  static final int BLOCK_FIRST_TIMESTAMP = 16;
+  static final int BLOCK_LAST_TIMESTAMP = 24;
+  static final int BLOCK_PAYLOAD_SIZE = 32;
+  static final int BLOCK_CRC = 36;
+
+  private ColumnarTraceFormat() {
+  }
+
+  /**
+   * @param eventCount The number of events in the block
+   * @param valueCount The number of values per event
+   * @return The size of the payload of a block in bytes
+   */
+  public static int payloadSize(int eventCount, int valueCount) {
+    int size = eventCount * (8 + 4 * valueCount + 1);
+    return (size + 7) & ~7;
+  }
+
+  /**
+   * @param blockCapacity The maximum number of events per block
+   * @return The size of the largest possible block in bytes
+   */
+  public static int maxBlockSize(int blockCapacity) {
+    return BLOCK_HEADER_SIZE + payloadSize(blockCapacity, MAX_VALUES);
+  }
+}
@@ -0,0 +1,361 @@
+package org.sl.sensor_fusion_demo.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Records sensor events into a trace in the {@link ColumnarTraceFormat}, e.g. for recordings that run for hours.
+ *
+ * The events of each sensor type are collected in primitive columns until a block is full. The block is then encoded
+ * into a preallocated buffer and written by a background thread, so the thread delivering the sensor events neither
+ * waits for I/O nor allocates. If the storage is so slow that no buffer is free, the block is dropped and counted,
+ * unless the writer was created to block. The block index is kept in memory and written when the writer is closed.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class ColumnarTraceWriter implements SensorEventRecorder {
+
+  /**
+   * The number of block buffers
+   */
+  private static final int BUFFER_COUNT = 4;
+
+  /**
+   * Writes the encoded blocks on a background thread
+   */
+  private final AsyncBufferWriter writer;
+  /**
+   * The maximum number of events per block
+   */
+  private final int blockCapacity;
+  /**
+   * Computes the block and index checksums
+   */
+  private final CRC32 crc = new CRC32();
+  /**
+   * The events collected per sensor type
+   */
+  private Column[] columns = new Column[0];
+  /**
+   * The index of the written blocks
+   */
+  private long[] indexOffsets;
+  private long[] indexFirstTimestamps;
+  private long[] indexLastTimestamps;
+  private int[] indexSensorTypes;
+  private int[] indexEventCounts;
+  private int indexSize;
+  /**
+   * The file offset at which the next block is written
+   */
+  private long nextOffset;
+  private volatile long recordedEvents;
+  private volatile long droppedEvents;
+  private boolean closed;
+
+  /**
+   * Creates a new trace file with the default block capacity that drops events when the storage cannot keep up.
+   *
+   * @param file The file, which is overwritten
+   * @return The writer
+   * @throws IOException If the file cannot be created
+   */
+  public static ColumnarTraceWriter create(File file) throws IOException {
+    return create(file, ColumnarTraceFormat.DEFAULT_BLOCK_CAPACITY, false);
+  }
+
+  /**
+   * Creates a new trace file.
+   *
+   * @param file The file, which is overwritten
+   * @param blockCapacity The maximum number of events per block
+   * @param blockWhenFull True to wait for the storage when it cannot keep up, false to drop events
+   * @return The writer
+   * @throws IOException If the file cannot be created
+   */
+  public static ColumnarTraceWriter create(File file, int blockCapacity, boolean blockWhenFull) throws IOException {
+    if (blockCapacity <= 0) {
+      throw new IllegalArgumentException("blockCapacity must be positive");
+    }
+    OutputStream out = new FileOutputStream(file);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(ColumnarTraceFormat.HEADER_SIZE);
+      header.putInt(ColumnarTraceFormat.MAGIC);
+      header.putShort(ColumnarTraceFormat.VERSION);
+      header.putShort((short) 0);
+      header.putInt(blockCapacity);
+      header.putInt(0);
+      out.write(header.array());
+    } catch (IOException e) {
+      out.close();
+      throw e;
+    }
+    return new ColumnarTraceWriter(out, blockCapacity, blockWhenFull, ColumnarTraceFormat.HEADER_SIZE, null);
+  }
+
+  /**
+   * Opens an existing trace file to append events to it. The index at the end of the file is removed and rewritten
+   * on close; a block that was cut off is discarded. The events appended must not be older than the recorded ones.
+   *
+   * @param file The file
+   * @param blockWhenFull True to wait for the storage when it cannot keep up, false to drop events
+   * @return The writer
+   * @throws IOException If the file cannot be read or is not a columnar trace
+   */
+  public static ColumnarTraceWriter append(File file, boolean blockWhenFull) throws IOException {
+    ColumnarTrace trace = ColumnarTrace.open(file);
+    long dataEnd;
+    try {
+      dataEnd = trace.getDataEnd();
+    } finally {
+      trace.close();
+    }
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(dataEnd);
+    } finally {
+      randomAccessFile.close();
+    }
+    return new ColumnarTraceWriter(new FileOutputStream(file, true), trace.getBlockCapacity(), blockWhenFull, dataEnd,
+        trace);
+  }
+
+  /**
+   * Initialises a new ColumnarTraceWriter
+   *
+   * @param out The stream positioned after the last block
+   * @param blockCapacity The maximum number of events per block
+   * @param blockWhenFull True to wait for the storage when it cannot keep up
+   * @param dataEnd The file offset after the last block
+   * @param existing The trace that is appended to, whose index is carried over, or null
+   */
+  private ColumnarTraceWriter(OutputStream out, int blockCapacity, boolean blockWhenFull, long dataEnd,
+      ColumnarTrace existing) {
+    this.blockCapacity = blockCapacity;
+    this.nextOffset = dataEnd;
+
+    int initialIndexCapacity = 64;
+    if (existing != null) {
+      initialIndexCapacity = Math.max(initialIndexCapacity, existing.getBlockCount() * 2);
+    }
+    indexOffsets = new long[initialIndexCapacity];
+    indexFirstTimestamps = new long[initialIndexCapacity];
+    indexLastTimestamps = new long[initialIndexCapacity];
+    indexSensorTypes = new int[initialIndexCapacity];
+    indexEventCounts = new int[initialIndexCapacity];
+    if (existing != null) {
+      for (int i = 0; i < existing.getBlockCount(); i++) {
+        addIndexEntry(existing.getBlockOffset(i), existing.getBlockFirstTimestamp(i),
+            existing.getBlockLastTimestamp(i), existing.getBlockSensorType(i), existing.getBlockEventCount(i));
+      }
+    }
+
+    writer = new AsyncBufferWriter(out, ColumnarTraceFormat.maxBlockSize(blockCapacity), BUFFER_COUNT, blockWhenFull,
+        "ColumnarTraceWriter");
+  }
+
+  @Override
+  public synchronized void record(int sensorType, int accuracy, long timestamp, float[] values) {
+    if (closed) {
+      return;
+    }
+    Column column = column(sensorType);
+    int valueCount = Math.min(values.length, ColumnarTraceFormat.MAX_VALUES);
+    if (column.count > 0 && column.valueCount != valueCount) {
+      // All events of a block have the same number of values
+      flush(column, false);
+    }
+
+    int row = column.count;
+    column.valueCount = valueCount;
+    column.timestamps[row] = timestamp;
+    column.accuracies[row] = (byte) accuracy;
+    for (int i = 0; i < valueCount; i++) {
+      column.values[i * blockCapacity + row] = values[i];
+    }
+    column.count++;
+    recordedEvents++;
+
+    if (column.count == blockCapacity) {
+      flush(column, false);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Column column : columns) {
+      if (column.count > 0) {
+        flush(column, true);
+      }
+    }
+    try {
+      writeIndex();
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Override
+  public long getRecordedEvents() {
+    return recordedEvents;
+  }
+
+  @Override
+  public long getDroppedEvents() {
+    return droppedEvents;
+  }
+
+  /**
+   * @return The column of the sensor type, which is created the first time the type is seen
+   */
+  private Column column(int sensorType) {
+    for (Column column : columns) {
+      if (column.sensorType == sensorType) {
+        return column;
+      }
+    }
+    Column column = new Column(sensorType, blockCapacity);
+    columns = Arrays.copyOf(columns, columns.length + 1);
+    columns[columns.length - 1] = column;
+    return column;
+  }
+
+  /**
+   * Encodes the collected events of a column into a block and hands it to the writer thread
+   *
+   * @param column The column
+   * @param wait True to wait for a free buffer, false to drop the events if none is free
+   */
+  private void flush(Column column, boolean wait) {
+    ByteBuffer buffer = wait ? writer.acquireWaiting() : writer.acquire();
+    int count = column.count;
+    column.count = 0;
+    if (buffer == null) {
+      droppedEvents += count;
+      return;
+    }
+
+    int valueCount = column.valueCount;
+    int payloadSize = ColumnarTraceFormat.payloadSize(count, valueCount);
+    long firstTimestamp = column.timestamps[0];
+    long lastTimestamp = column.timestamps[count - 1];
+
+    buffer.position(ColumnarTraceFormat.BLOCK_HEADER_SIZE);
+    for (int row = 0; row < count; row++) {
+      buffer.putLong(column.timestamps[row]);
+    }
+    for (int i = 0; i < valueCount; i++) {
+      int columnOffset = i * blockCapacity;
+      for (int row = 0; row < count; row++) {
+        buffer.putFloat(column.values[columnOffset + row]);
+      }
+    }
+    buffer.put(column.accuracies, 0, count);
+    while (buffer.position() < ColumnarTraceFormat.BLOCK_HEADER_SIZE + payloadSize) {
+      buffer.put((byte) 0);
+    }
+
+    crc.reset();
+    crc.update(buffer.array(), ColumnarTraceFormat.BLOCK_HEADER_SIZE, payloadSize);
+    buffer.putInt(0, ColumnarTraceFormat.BLOCK_MAGIC);
+    buffer.putInt(ColumnarTraceFormat.BLOCK_SENSOR_TYPE, column.sensorType);
+    buffer.putInt(ColumnarTraceFormat.BLOCK_EVENT_COUNT, count);
+    buffer.putInt(ColumnarTraceFormat.BLOCK_VALUE_COUNT, valueCount);
+    buffer.putLong(ColumnarTraceFormat.BLOCK_FIRST_TIMESTAMP, firstTimestamp);
+    buffer.putLong(ColumnarTraceFormat.BLOCK_LAST_TIMESTAMP, lastTimestamp);
+    buffer.putInt(ColumnarTraceFormat.BLOCK_PAYLOAD_SIZE, payloadSize);
+    buffer.putInt(ColumnarTraceFormat.BLOCK_CRC, (int) crc.getValue());
+    buffer.putLong(ColumnarTraceFormat.BLOCK_CRC + 4, 0);
+    writer.submit(buffer);
+
+    addIndexEntry(nextOffset, firstTimestamp, lastTimestamp, column.sensorType, count);
+    nextOffset += ColumnarTraceFormat.BLOCK_HEADER_SIZE + payloadSize;
+  }
+
+  /**
+   * Writes the index of all blocks and the trailer
+   */
+  private void writeIndex() throws IOException {
+    long indexOffset = nextOffset;
+    crc.reset();
+    ByteBuffer buffer = acquireIndexBuffer();
+    for (int i = 0; i < indexSize; i++) {
+      if (buffer.remaining() < ColumnarTraceFormat.INDEX_ENTRY_SIZE + ColumnarTraceFormat.TRAILER_SIZE) {
+        crc.update(buffer.array(), 0, buffer.position());
+        writer.submit(buffer);
+        buffer = acquireIndexBuffer();
+      }
+      buffer.putLong(indexOffsets[i]);
+      buffer.putLong(indexFirstTimestamps[i]);
+      buffer.putLong(indexLastTimestamps[i]);
+      buffer.putInt(indexSensorTypes[i]);
+      buffer.putInt(indexEventCounts[i]);
+    }
+    crc.update(buffer.array(), 0, buffer.position());
+
+    buffer.putLong(indexOffset);
+    buffer.putInt(indexSize);
+    buffer.putInt((int) crc.getValue());
+    buffer.putInt(ColumnarTraceFormat.INDEX_MAGIC);
+    buffer.putInt(0);
+    writer.submit(buffer);
+  }
+
+  private ByteBuffer acquireIndexBuffer() throws IOException {
+    ByteBuffer buffer = writer.acquireWaiting();
+    if (buffer == null) {
+      throw new IOException("Interrupted while writing the trace index");
+    }
+    return buffer;
+  }
+
+  private void addIndexEntry(long offset, long firstTimestamp, long lastTimestamp, int sensorType, int eventCount) {
+    if (indexSize == indexOffsets.length) {
+      int capacity = indexSize * 2;
+      indexOffsets = Arrays.copyOf(indexOffsets, capacity);
+      indexFirstTimestamps = Arrays.copyOf(indexFirstTimestamps, capacity);
+      indexLastTimestamps = Arrays.copyOf(indexLastTimestamps, capacity);
+      indexSensorTypes = Arrays.copyOf(indexSensorTypes, capacity);
+      indexEventCounts = Arrays.copyOf(indexEventCounts, capacity);
+    }
+    indexOffsets[indexSize] = offset;
+    indexFirstTimestamps[indexSize] = firstTimestamp;
+    indexLastTimestamps[indexSize] = lastTimestamp;
+    indexSensorTypes[indexSize] = sensorType;
+    indexEventCounts[indexSize] = eventCount;
+    indexSize++;
+  }
+
+  /**
+   * The events of one sensor type that have not been written yet, in columns
+   */
+  private static final class Column {
+    final int sensorType;
+    final long[] timestamps;
+    final byte[] accuracies;
+    /**
+     * Value i of row r is at i * capacity + r
+     */
+    final float[] values;
+    int valueCount;
+    int count;
+
+    Column(int sensorType, int capacity) {
+      this.sensorType = sensorType;
+      timestamps = new long[capacity];
+      accuracies = new byte[capacity];
+      values = new float[capacity * ColumnarTraceFormat.MAX_VALUES];
+    }
+  }
+}
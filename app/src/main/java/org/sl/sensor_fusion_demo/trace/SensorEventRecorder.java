@@ -0,0 +1,41 @@
+package org.sl.sensor_fusion_demo.trace;
+
+import java.io.IOException;
+
+/**
+ * Something that records the sensor events an orientation provider receives, see
+ * {@link org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider#setTraceRecorder(SensorEventRecorder)}.
+ *
+ * @author Stanislav Lelyuk
+ */
+public interface SensorEventRecorder {
+
+  /**
+   * Records a sensor event. Called on the thread that delivers the sensor events, so it must not block on I/O and
+   * should not allocate. Does nothing once the recorder is closed.
+   *
+   * @param sensorType The sensor type
+   * @param accuracy The accuracy of the event
+   * @param timestamp The timestamp of the event in nanoseconds
+   * @param values The values of the event
+   */
+  void record(int sensorType, int accuracy, long timestamp, float[] values);
+
+  /**
+   * Writes the remaining events and closes the recording. May be called from any thread; events recorded afterwards
+   * are ignored.
+   *
+   * @throws IOException If writing failed at any point
+   */
+  void close() throws IOException;
+
+  /**
+   * @return The number of events that were recorded
+   */
+  long getRecordedEvents();
+
+  /**
+   * @return The number of events that were dropped because the storage could not keep up
+   */
+  long getDroppedEvents();
+}
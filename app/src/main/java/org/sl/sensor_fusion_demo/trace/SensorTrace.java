@@ -0,0 +1,262 @@
+package org.sl.sensor_fusion_demo.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorSampleListener;
+
+/**
+ * A recorded sequence of sensor events, decoded into primitive arrays so that it can be replayed as fast as the
+ * listener can take it.
+ *
+ * Replaying hands the events to a {@link SensorSampleListener} (e.g. an orientation provider) in recorded order on
+ * the calling thread, without allocating. The providers do not depend on anything but the events, so replaying the
+ * same trace into a new provider always produces the same orientations.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class SensorTrace {
+
+  private int[] types;
+  private byte[] accuracies;
+  private long[] timestamps;
+  /**
+   * The offset of each event's values in {@link #values}; the values of event i end at offsets[i + 1]
+   */
+  private int[] offsets;
+  private float[] values;
+  private int size;
+  private int valueCount;
+  /**
+   * Buffers that are handed to the listener, one per number of values
+   */
+  private final float[][] valueBuffers = new float[SensorTraceFormat.MAX_VALUES + 1][];
+
+  /**
+   * Initialises a new, empty SensorTrace
+   */
+  public SensorTrace() {
+    types = new int[1024];
+    accuracies = new byte[1024];
+    timestamps = new long[1024];
+    offsets = new int[1025];
+    values = new float[4096];
+    for (int i = 0; i <= SensorTraceFormat.MAX_VALUES; i++) {
+      valueBuffers[i] = new float[i];
+    }
+  }
+
+  /**
+   * Reads a trace file.
+   *
+   * @param file The file
+   * @return The decoded trace
+   * @throws IOException If the file cannot be read or is not a trace
+   */
+  public static SensorTrace read(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      return read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads a trace from a stream until its end.
+   *
+   * @param in The stream, which is not closed
+   * @return The decoded trace
+   * @throws IOException If the stream cannot be read or does not contain a trace
+   */
+  public static SensorTrace read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    if (data.readInt() != SensorTraceFormat.MAGIC) {
+      throw new IOException("Not a sensor trace");
+    }
+    short version = data.readShort();
+    if (version != SensorTraceFormat.VERSION) {
+      throw new IOException("Unsupported sensor trace version " + version);
+    }
+    data.readShort();
+
+    SensorTrace trace = new SensorTrace();
+    float[] eventValues = new float[SensorTraceFormat.MAX_VALUES];
+    long timestamp = 0;
+    while (true) {
+      int first = data.read();
+      if (first < 0) {
+        break;
+      }
+      try {
+        int type = (int) readVarLong(data, first);
+        int accuracy = data.readByte();
+        int count = data.readUnsignedByte();
+        if (count > SensorTraceFormat.MAX_VALUES) {
+          throw new IOException("Corrupt sensor trace: " + count + " values in event " + trace.size);
+        }
+        long zigZag = readVarLong(data, data.readUnsignedByte());
+        timestamp += (zigZag >>> 1) ^ -(zigZag & 1);
+        for (int i = 0; i < count; i++) {
+          eventValues[i] = data.readFloat();
+        }
+        trace.add(type, accuracy, timestamp, eventValues, count);
+      } catch (EOFException e) {
+        // The last record was cut off
+        break;
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Appends an event.
+   *
+   * @param sensorType The sensor type
+   * @param accuracy The accuracy of the event
+   * @param timestamp The timestamp in nanoseconds
+   * @param eventValues The values of the event
+   * @param count The number of values, at most {@link SensorTraceFormat#MAX_VALUES}
+   */
+  public void add(int sensorType, int accuracy, long timestamp, float[] eventValues, int count) {
+    if (count > SensorTraceFormat.MAX_VALUES) {
+      throw new IllegalArgumentException("At most " + SensorTraceFormat.MAX_VALUES + " values per event");
+    }
+    if (size == types.length) {
+      int capacity = size * 2;
+      types = Arrays.copyOf(types, capacity);
+      accuracies = Arrays.copyOf(accuracies, capacity);
+      timestamps = Arrays.copyOf(timestamps, capacity);
+      offsets = Arrays.copyOf(offsets, capacity + 1);
+    }
+    if (valueCount + count > values.length) {
+      values = Arrays.copyOf(values, Math.max(values.length * 2, valueCount + count));
+    }
+    types[size] = sensorType;
+    accuracies[size] = (byte) accuracy;
+    timestamps[size] = timestamp;
+    System.arraycopy(eventValues, 0, values, valueCount, count);
+    valueCount += count;
+    size++;
+    offsets[size] = valueCount;
+  }
+
+  /**
+   * @return The number of events
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The time between the first and the last event in nanoseconds
+   */
+  public long getDuration() {
+    return size == 0 ? 0 : timestamps[size - 1] - timestamps[0];
+  }
+
+  /**
+   * @param index The index of the event
+   * @return The sensor type of the event
+   */
+  public int getType(int index) {
+    return types[index];
+  }
+
+  /**
+   * @param index The index of the event
+   * @return The accuracy of the event
+   */
+  public int getAccuracy(int index) {
+    return accuracies[index];
+  }
+
+  /**
+   * @param index The index of the event
+   * @return The timestamp of the event in nanoseconds
+   */
+  public long getTimestamp(int index) {
+    return timestamps[index];
+  }
+
+  /**
+   * @param index The index of the event
+   * @return The number of values of the event
+   */
+  public int getLength(int index) {
+    return offsets[index + 1] - offsets[index];
+  }
+
+  /**
+   * Copies the values of an event.
+   *
+   * @param index The index of the event
+   * @param output The array that receives the values; it must hold at least {@link #getLength(int)} values
+   */
+  public void getValues(int index, float[] output) {
+    System.arraycopy(values, offsets[index], output, 0, getLength(index));
+  }
+
+  /**
+   * Hands all events to the listener in recorded order.
+   *
+   * @param listener The listener
+   */
+  public void replay(SensorSampleListener listener) {
+    replay(listener, 0, size, 0);
+  }
+
+  /**
+   * Hands the events from..to (exclusive) to the listener in recorded order.
+   *
+   * @param listener The listener
+   * @param from The index of the first event
+   * @param to The index after the last event
+   * @param timestampOffset Added to every timestamp, e.g. to replay a trace several times into the same listener
+   */
+  public void replay(SensorSampleListener listener, int from, int to, long timestampOffset) {
+    for (int i = from; i < to; i++) {
+      int offset = offsets[i];
+      float[] buffer = valueBuffers[offsets[i + 1] - offset];
+      System.arraycopy(values, offset, buffer, 0, buffer.length);
+      listener.onSensorSample(types[i], timestamps[i] + timestampOffset, buffer);
+    }
+  }
+
+  /**
+   * Writes the trace to a recorder, e.g. to convert it to the {@link ColumnarTraceFormat}.
+   *
+   * @param recorder The recorder to write to
+   */
+  public void writeTo(SensorEventRecorder recorder) {
+    for (int i = 0; i < size; i++) {
+      int offset = offsets[i];
+      float[] buffer = valueBuffers[offsets[i + 1] - offset];
+      System.arraycopy(values, offset, buffer, 0, buffer.length);
+      recorder.record(types[i], accuracies[i], timestamps[i], buffer);
+    }
+  }
+
+  /**
+   * Reads the rest of an unsigned variable-length number whose first byte was already read
+   */
+  private static long readVarLong(DataInputStream data, int first) throws IOException {
+    long value = first & 0x7F;
+    int shift = 7;
+    int b = first;
+    while ((b & 0x80) != 0) {
+      if (shift > 63) {
+        throw new IOException("Corrupt sensor trace: variable-length number too long");
+      }
+      b = data.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    }
+    return value;
+  }
+}
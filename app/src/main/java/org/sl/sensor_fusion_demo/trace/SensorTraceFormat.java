@@ -0,0 +1,54 @@
+package org.sl.sensor_fusion_demo.trace;
+
+/**
+ * The binary format of a sensor trace, as written by {@link SensorTraceRecorder} and read by {@link SensorTrace}.
+ *
+ * All numbers are big-endian. The file starts with a header:
+ * <pre>
+ * int   magic       'S' 'F' 'T' 'R'
+ * short version     {@link #VERSION}
+ * short reserved    0
+ * </pre>
+ * followed by one record per sensor event until the end of the file:
+ * <pre>
+ * varint  sensor type
+ * byte    accuracy
+ * byte    number of values n
+ * varlong timestamp minus the timestamp of the previous record (the first record is relative to 0), zig-zag encoded
+ * float[n] values
+ * </pre>
+ * A gyroscope event at 200 Hz takes 18 bytes. A record that was cut off at the end of the file (e.g. because the app
+ * was killed while recording) is ignored.
+ *
+ * @author Stanislav Lelyuk
+ */
+public final class SensorTraceFormat {
+
+  /**
+   * The first four bytes of a trace
+   */
+  public static final int MAGIC = ('S' << 24) | ('F' << 16) | ('T' << 8) | 'R';
+  /**
+   * The version of the format
+   */
+  public static final short VERSION = 1;
+  /**
+   * The size of the header in bytes
+   */
+  public static final int HEADER_SIZE = 8;
+  /**
+   * The maximum number of values per event; Android sensor events have at most 16
+   */
+  public static final int MAX_VALUES = 16;
+  /**
+   * The maximum size of a record in bytes
+   */
+  public static final int MAX_RECORD_SIZE = 5 + 1 + 1 + 10 + 4 * MAX_VALUES;
+  /**
+   * The file name extension of traces
+   */
+  public static final String FILE_EXTENSION = ".sftr";
+
+  private SensorTraceFormat() {
+  }
+}
@@ -0,0 +1,151 @@
+package org.sl.sensor_fusion_demo.trace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Records sensor events into a trace in the {@link SensorTraceFormat}.
+ *
+ * {@link #record(int, int, long, float[])} is called on the thread that delivers the sensor events and must not stall
+ * it, so it only encodes the event into a preallocated buffer. Full buffers are written to the stream by a background
+ * thread and then reused; nothing is allocated per event. If the stream is so slow that no buffer is free, events are
+ * dropped and counted rather than blocking the sensors, unless the recorder was created to block (e.g. to write a
+ * trace offline).
+ *
+ * @author Stanislav Lelyuk
+ */
+public class SensorTraceRecorder implements SensorEventRecorder {
+
+  /**
+   * The size of one buffer in bytes
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /**
+   * The number of buffers; together they hold a few seconds of all sensors at their fastest rate
+   */
+  private static final int BUFFER_COUNT = 8;
+
+  /**
+   * Writes the filled buffers on a background thread
+   */
+  private final AsyncBufferWriter writer;
+  /**
+   * The buffer that is currently filled, or null if none was free
+   */
+  private ByteBuffer currentBuffer;
+  /**
+   * The timestamp of the previously recorded event
+   */
+  private long previousTimestamp;
+  private volatile long recordedEvents;
+  private volatile long droppedEvents;
+  private boolean closed;
+
+  /**
+   * Initialises a new SensorTraceRecorder that drops events when the stream cannot keep up, and writes the header of
+   * the trace.
+   *
+   * @param out The stream the trace is written to; it is closed by {@link #close()}
+   * @throws IOException If the header cannot be written
+   */
+  public SensorTraceRecorder(OutputStream out) throws IOException {
+    this(out, false);
+  }
+
+  /**
+   * Initialises a new SensorTraceRecorder and writes the header of the trace.
+   *
+   * @param out The stream the trace is written to; it is closed by {@link #close()}
+   * @param blockWhenFull True to wait for the stream when it cannot keep up, false to drop events
+   * @throws IOException If the header cannot be written
+   */
+  public SensorTraceRecorder(OutputStream out, boolean blockWhenFull) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(SensorTraceFormat.HEADER_SIZE);
+    header.putInt(SensorTraceFormat.MAGIC);
+    header.putShort(SensorTraceFormat.VERSION);
+    header.putShort((short) 0);
+    out.write(header.array());
+
+    writer = new AsyncBufferWriter(out, BUFFER_SIZE, BUFFER_COUNT, blockWhenFull, "SensorTraceRecorder");
+    currentBuffer = writer.acquire();
+  }
+
+  /**
+   * Records a sensor event. Does nothing once the recorder is closed.
+   *
+   * @param sensorType The sensor type
+   * @param accuracy The accuracy of the event
+   * @param timestamp The timestamp of the event in nanoseconds
+   * @param values The values of the event; only the first {@link SensorTraceFormat#MAX_VALUES} are recorded
+   */
+  @Override
+  public synchronized void record(int sensorType, int accuracy, long timestamp, float[] values) {
+    if (closed) {
+      return;
+    }
+    if (currentBuffer == null || currentBuffer.remaining() < SensorTraceFormat.MAX_RECORD_SIZE) {
+      if (currentBuffer != null) {
+        writer.submit(currentBuffer);
+      }
+      currentBuffer = writer.acquire();
+      if (currentBuffer == null) {
+        droppedEvents++;
+        return;
+      }
+    }
+
+    ByteBuffer buffer = currentBuffer;
+    int count = Math.min(values.length, SensorTraceFormat.MAX_VALUES);
+    putVarLong(buffer, sensorType & 0xFFFFFFFFL);
+    buffer.put((byte) accuracy);
+    buffer.put((byte) count);
+    long delta = timestamp - previousTimestamp;
+    putVarLong(buffer, (delta << 1) ^ (delta >> 63));
+    for (int i = 0; i < count; i++) {
+      buffer.putFloat(values[i]);
+    }
+    previousTimestamp = timestamp;
+    recordedEvents++;
+  }
+
+  /**
+   * Writes the remaining events, waits for the writer thread and closes the stream. May be called from any thread;
+   * events recorded afterwards are ignored.
+   *
+   * @throws IOException If writing failed at any point
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (currentBuffer != null) {
+      writer.submit(currentBuffer);
+      currentBuffer = null;
+    }
+    writer.close();
+  }
+
+  @Override
+  public long getRecordedEvents() {
+    return recordedEvents;
+  }
+
+  @Override
+  public long getDroppedEvents() {
+    return droppedEvents;
+  }
+
+  /**
+   * Writes an unsigned variable-length number, 7 bits per byte, least significant first
+   */
+  private static void putVarLong(ByteBuffer buffer, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+}
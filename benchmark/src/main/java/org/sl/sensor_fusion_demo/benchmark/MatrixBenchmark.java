@@ -0,0 +1,171 @@
+package org.sl.sensor_fusion_demo.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sl.sensor_fusion_demo.representation.Matrix;
+import org.sl.sensor_fusion_demo.representation.Matrixf4x4;
+import org.sl.sensor_fusion_demo.representation.Vector4f;
+
+/**
+ * Benchmarks the matrix operations of the fusion loops and the renderer.
+ *
+ * Matrix.multiplyMM does not support an output that overlaps an operand (like android.opengl.Matrix), so it is only
+ * measured with a separate output; invertM and Matrixf4x4.multiplyMatrix4x4ByMatrix are also measured in place. As
+ * in {@link QuaternionBenchmark}, every invocation that changes an operand restores it first, and so do the other
+ * variants.
+ *
+ * @author Stanislav Lelyuk
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatrixBenchmark {
+
+  /**
+   * Two column major 4x4 transformations, a vector and the arrays results are stored in
+   */
+  @State(Scope.Thread)
+  public static class Operands {
+    final float[] lhs = new float[16];
+    final float[] rhs = new float[16];
+    final float[] output = new float[16];
+    final float[] vector = {0.3f, -0.4f, 0.5f, 1};
+    final float[] outputVector = new float[4];
+    /**
+     * The lhs transformation and the vector as Matrixf4x4 and Vector4f
+     */
+    final Matrixf4x4 matrix = new Matrixf4x4();
+    final Vector4f vector4f = new Vector4f();
+    private final float[] lhsValues = new float[16];
+
+    @Setup
+    public void setUpOperands() {
+      Matrix.setRotateM(lhsValues, 0, 30, 1, 2, 2);
+      Matrix.translateM(lhsValues, 0, 0.5f, -1, 2);
+      Matrix.setRotateM(rhs, 0, -75, 0, 0.6f, 0.8f);
+      matrix.setMatrix(lhsValues.clone());
+      restore();
+    }
+
+    void restore() {
+      System.arraycopy(lhsValues, 0, lhs, 0, 16);
+      vector4f.setXYZW(vector[0], vector[1], vector[2], vector[3]);
+    }
+  }
+
+  /**
+   * The operands of invertM and where its result is stored
+   */
+  @State(Scope.Thread)
+  public static class Inversion extends Operands {
+
+    /**
+     * "separate" stores the inverse in another array, "inPlace" overwrites the input
+     */
+    @Param({"separate", "inPlace"})
+    public String aliasing;
+
+    float[] inverse;
+
+    @Setup
+    public void setUpOutput() {
+      inverse = aliasing.equals("inPlace") ? lhs : output;
+    }
+  }
+
+  /**
+   * Two Matrixf4x4 holding transformations
+   */
+  @State(Scope.Thread)
+  public static class Matrices {
+
+    /**
+     * "separate" multiplies two matrices, "argumentIsThis" multiplies a matrix with itself
+     */
+    @Param({"separate", "argumentIsThis"})
+    public String aliasing;
+
+    final Matrixf4x4 matrix = new Matrixf4x4();
+    Matrixf4x4 argument;
+    private final float[] argumentValues = new float[16];
+
+    @Setup
+    public void setUp() {
+      float[] values = new float[16];
+      Matrix.setRotateM(values, 0, 30, 1, 2, 2);
+      Matrix.translateM(values, 0, 0.5f, -1, 2);
+      matrix.setMatrix(values);
+      if (aliasing.equals("argumentIsThis")) {
+        argument = matrix;
+        System.arraycopy(values, 0, argumentValues, 0, 16);
+      } else {
+        argument = new Matrixf4x4();
+        Matrix.setRotateM(argumentValues, 0, -75, 0, 0.6f, 0.8f);
+      }
+      restore();
+    }
+
+    /**
+     * multiplyMatrix4x4ByMatrix replaces the array of its argument, so restoring it only hands the original back
+     */
+    void restore() {
+      argument.setMatrix(argumentValues);
+    }
+  }
+
+  @Benchmark
+  public float[] multiplyMM(Operands operands) {
+    operands.restore();
+    Matrix.multiplyMM(operands.output, 0, operands.lhs, 0, operands.rhs, 0);
+    return operands.output;
+  }
+
+  /**
+   * The form without offsets
+   */
+  @Benchmark
+  public float[] multiplyMMNoOffsets(Operands operands) {
+    operands.restore();
+    Matrix.multiplyMM(operands.output, operands.lhs, operands.rhs);
+    return operands.output;
+  }
+
+  @Benchmark
+  public float[] multiplyMV(Operands operands) {
+    operands.restore();
+    Matrix.multiplyMV(operands.outputVector, 0, operands.lhs, 0, operands.vector, 0);
+    return operands.outputVector;
+  }
+
+  @Benchmark
+  public boolean invertM(Inversion inversion) {
+    inversion.restore();
+    return Matrix.invertM(inversion.inverse, 0, inversion.lhs, 0);
+  }
+
+  @Benchmark
+  public Matrixf4x4 multiplyMatrix4x4ByMatrix(Matrices matrices) {
+    matrices.restore();
+    matrices.matrix.multiplyMatrix4x4ByMatrix(matrices.argument);
+    return matrices.argument;
+  }
+
+  @Benchmark
+  public Vector4f multiplyVector4fByMatrix(Operands operands) {
+    operands.restore();
+    operands.matrix.multiplyVector4fByMatrix(operands.vector4f);
+    return operands.vector4f;
+  }
+}
@@ -0,0 +1,188 @@
+package org.sl.sensor_fusion_demo.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Benchmarks the quaternion operations of the fusion loops.
+ *
+ * The products are measured with the output separate from the operands and aliasing either of them, as the providers
+ * use all three. Because an aliased output changes an operand, every invocation first restores the operands, which
+ * costs the same few stores in every variant.
+ *
+ * @author Stanislav Lelyuk
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuaternionBenchmark {
+
+  /**
+   * Two unit quaternions
+   */
+  @State(Scope.Thread)
+  public static class Operands {
+    final Quaternion left = new Quaternion();
+    final Quaternion right = new Quaternion();
+    /**
+     * A quaternion in the hemisphere opposite to left, which slerp has to flip
+     */
+    final Quaternion opposite = new Quaternion();
+    private final Quaternion leftValues = new Quaternion();
+    private final Quaternion rightValues = new Quaternion();
+    private final Quaternion oppositeValues = new Quaternion();
+
+    @Setup
+    public void setUpOperands() {
+      leftValues.setXYZW(0.1f, -0.2f, 0.3f, 0.927f);
+      leftValues.normalise();
+      rightValues.setXYZW(-0.25f, 0.05f, 0.15f, 0.954f);
+      rightValues.normalise();
+      oppositeValues.setXYZW(0.25f, -0.05f, -0.15f, -0.954f);
+      oppositeValues.normalise();
+      restore();
+    }
+
+    void restore() {
+      left.copyVec4(leftValues);
+      right.copyVec4(rightValues);
+      opposite.copyVec4(oppositeValues);
+    }
+  }
+
+  /**
+   * Two unit quaternions and the quaternion their product is stored in
+   */
+  @State(Scope.Thread)
+  public static class Product extends Operands {
+
+    /**
+     * Where the result is stored: a separate quaternion, the quaternion the method is called on or the argument
+     */
+    @Param({"separate", "outputIsThis", "outputIsInput"})
+    public String aliasing;
+
+    Quaternion output;
+    /**
+     * Where the slerp towards the opposite quaternion is stored
+     */
+    Quaternion oppositeOutput;
+
+    @Setup
+    public void setUpOutput() {
+      if (aliasing.equals("outputIsThis")) {
+        output = left;
+        oppositeOutput = left;
+      } else if (aliasing.equals("outputIsInput")) {
+        output = right;
+        oppositeOutput = opposite;
+      } else {
+        output = new Quaternion();
+        oppositeOutput = output;
+      }
+    }
+  }
+
+  /**
+   * A rotation matrix in row major order, as delivered by SensorManager.getRotationMatrix
+   */
+  @State(Scope.Thread)
+  public static class Conversion {
+
+    /**
+     * "small" takes the common branch of the conversion (positive trace), "halfTurn" one of the branches for
+     * rotations of about 180 degrees
+     */
+    @Param({"small", "halfTurn"})
+    public String rotation;
+
+    /**
+     * The size of the matrix, 3x3 or 4x4
+     */
+    @Param({"9", "16"})
+    public int matrixSize;
+
+    final Quaternion output = new Quaternion();
+    float[] matrix;
+
+    @Setup
+    public void setUp() {
+      // A rotation about (1, 2, 2) / 3
+      double angle = Math.toRadians(rotation.equals("halfTurn") ? 179 : 20);
+      double x = 1 / 3.0;
+      double y = 2 / 3.0;
+      double z = 2 / 3.0;
+      double c = Math.cos(angle);
+      double s = Math.sin(angle);
+      double t = 1 - c;
+      double[] rotationMatrix = {
+          t * x * x + c, t * x * y - s * z, t * x * z + s * y,
+          t * x * y + s * z, t * y * y + c, t * y * z - s * x,
+          t * x * z - s * y, t * y * z + s * x, t * z * z + c};
+
+      matrix = new float[matrixSize];
+      int stride = matrixSize == 16 ? 4 : 3;
+      for (int row = 0; row < 3; row++) {
+        for (int column = 0; column < 3; column++) {
+          matrix[row * stride + column] = (float) rotationMatrix[row * 3 + column];
+        }
+      }
+      if (matrixSize == 16) {
+        matrix[15] = 1;
+      }
+    }
+  }
+
+  @Benchmark
+  public Quaternion multiplyByQuat(Product product) {
+    product.restore();
+    product.left.multiplyByQuat(product.right, product.output);
+    return product.output;
+  }
+
+  /**
+   * The single argument form, which multiplies in place through a buffer quaternion
+   */
+  @Benchmark
+  public Quaternion multiplyByQuatInPlace(Operands operands) {
+    operands.restore();
+    operands.left.multiplyByQuat(operands.right);
+    return operands.left;
+  }
+
+  @Benchmark
+  public Quaternion slerp(Product product) {
+    product.restore();
+    product.left.slerp(product.right, product.output, 0.3f);
+    return product.output;
+  }
+
+  @Benchmark
+  public Quaternion slerpOpposite(Product product) {
+    product.restore();
+    product.left.slerp(product.opposite, product.oppositeOutput, 0.3f);
+    return product.oppositeOutput;
+  }
+
+  /**
+   * setRowMajor converts the matrix with generateQuaternionFromMatrix
+   */
+  @Benchmark
+  public Quaternion setRowMajor(Conversion conversion) {
+    conversion.output.setRowMajor(conversion.matrix);
+    return conversion.output;
+  }
+}
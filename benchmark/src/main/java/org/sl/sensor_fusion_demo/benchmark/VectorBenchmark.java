@@ -0,0 +1,180 @@
+package org.sl.sensor_fusion_demo.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sl.sensor_fusion_demo.representation.Vector3f;
+import org.sl.sensor_fusion_demo.representation.Vector4f;
+
+/**
+ * Benchmarks the Vector3f and Vector4f operations of the fusion loops. As in {@link QuaternionBenchmark}, every
+ * invocation restores the operands first.
+ *
+ * @author Stanislav Lelyuk
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorBenchmark {
+
+  /**
+   * Two vectors of each size
+   */
+  @State(Scope.Thread)
+  public static class Operands {
+    final Vector3f a3 = new Vector3f();
+    final Vector3f b3 = new Vector3f();
+    final Vector4f a4 = new Vector4f();
+    final Vector4f b4 = new Vector4f();
+
+    @Setup
+    public void setUpOperands() {
+      restore();
+    }
+
+    void restore() {
+      a3.setXYZ(0.3f, -0.4f, 9.6f);
+      b3.setXYZ(-12.5f, 30.1f, -40.2f);
+      a4.setXYZW(0.3f, -0.4f, 0.5f, 0.7f);
+      b4.setXYZW(-0.2f, 0.1f, 0.6f, 0.77f);
+    }
+  }
+
+  /**
+   * The operands of the operations with an output vector and where the result is stored
+   */
+  @State(Scope.Thread)
+  public static class Outputs extends Operands {
+
+    /**
+     * Where the result is stored: a separate vector, the vector the method is called on or the argument
+     */
+    @Param({"separate", "outputIsThis", "outputIsInput"})
+    public String aliasing;
+
+    Vector3f output3;
+    Vector4f output4;
+
+    @Setup
+    public void setUpOutputs() {
+      if (aliasing.equals("outputIsThis")) {
+        output3 = a3;
+        output4 = a4;
+      } else if (aliasing.equals("outputIsInput")) {
+        output3 = b3;
+        output4 = b4;
+      } else {
+        output3 = new Vector3f();
+        output4 = new Vector4f();
+      }
+    }
+  }
+
+  @Benchmark
+  public Vector3f add3(Operands operands) {
+    operands.restore();
+    operands.a3.add(operands.b3);
+    return operands.a3;
+  }
+
+  @Benchmark
+  public Vector3f subtract3(Operands operands) {
+    operands.restore();
+    operands.a3.subtract(operands.b3);
+    return operands.a3;
+  }
+
+  @Benchmark
+  public Vector3f multiplyByScalar3(Operands operands) {
+    operands.restore();
+    operands.a3.multiplyByScalar(0.25f);
+    return operands.a3;
+  }
+
+  @Benchmark
+  public Vector3f normalize3(Operands operands) {
+    operands.restore();
+    operands.a3.normalize();
+    return operands.a3;
+  }
+
+  @Benchmark
+  public float dotProduct3(Operands operands) {
+    operands.restore();
+    return operands.a3.dotProduct(operands.b3);
+  }
+
+  @Benchmark
+  public float getLength3(Operands operands) {
+    operands.restore();
+    return operands.a3.getLength();
+  }
+
+  @Benchmark
+  public Vector3f crossProduct3(Outputs outputs) {
+    outputs.restore();
+    outputs.a3.crossProduct(outputs.b3, outputs.output3);
+    return outputs.output3;
+  }
+
+  /**
+   * The form that returns a new vector
+   */
+  @Benchmark
+  public Vector3f crossProduct3Allocating(Operands operands) {
+    operands.restore();
+    return operands.a3.crossProduct(operands.b3);
+  }
+
+  @Benchmark
+  public Vector4f add4(Operands operands) {
+    operands.restore();
+    operands.a4.add(operands.b4);
+    return operands.a4;
+  }
+
+  @Benchmark
+  public Vector4f subtract4(Outputs outputs) {
+    outputs.restore();
+    outputs.a4.subtract(outputs.b4, outputs.output4);
+    return outputs.output4;
+  }
+
+  @Benchmark
+  public Vector4f multiplyByScalar4(Operands operands) {
+    operands.restore();
+    operands.a4.multiplyByScalar(0.25f);
+    return operands.a4;
+  }
+
+  @Benchmark
+  public Vector4f normalize4(Operands operands) {
+    operands.restore();
+    operands.a4.normalize();
+    return operands.a4;
+  }
+
+  @Benchmark
+  public float dotProduct4(Operands operands) {
+    operands.restore();
+    return operands.a4.dotProduct(operands.b4);
+  }
+
+  @Benchmark
+  public Vector4f lerp4(Outputs outputs) {
+    outputs.restore();
+    outputs.a4.lerp(outputs.b4, outputs.output4, 0.3f);
+    return outputs.output4;
+  }
+}
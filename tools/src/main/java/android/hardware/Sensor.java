@@ -0,0 +1,50 @@
+package android.hardware;
+
+/**
+ * JVM stand-in for the Android sensor of the same name, so that the orientation providers can run without a device.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class Sensor {
+
+  public static final int TYPE_ACCELEROMETER = 1;
+  public static final int TYPE_MAGNETIC_FIELD = 2;
+  public static final int TYPE_GYROSCOPE = 4;
+  public static final int TYPE_GRAVITY = 9;
+  public static final int TYPE_LINEAR_ACCELERATION = 10;
+  public static final int TYPE_ROTATION_VECTOR = 11;
+  public static final int TYPE_MAGNETIC_FIELD_UNCALIBRATED = 14;
+  public static final int TYPE_GAME_ROTATION_VECTOR = 15;
+  public static final int TYPE_GYROSCOPE_UNCALIBRATED = 16;
+
+  private final int type;
+  private final int fifoMaxEventCount;
+
+  /**
+   * Initialises a new Sensor
+   *
+   * @param type The sensor type, one of the TYPE_ constants
+   * @param fifoMaxEventCount The number of events the simulated hardware FIFO can hold
+   */
+  public Sensor(int type, int fifoMaxEventCount) {
+    this.type = type;
+    this.fifoMaxEventCount = fifoMaxEventCount;
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public String getName() {
+    return "Simulated sensor " + type;
+  }
+
+  public int getFifoMaxEventCount() {
+    return fifoMaxEventCount;
+  }
+
+  @Override
+  public String toString() {
+    return getName();
+  }
+}
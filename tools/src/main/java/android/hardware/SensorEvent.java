@@ -0,0 +1,24 @@
+package android.hardware;
+
+/**
+ * JVM stand-in for the Android sensor event of the same name. Unlike on Android, events can be created and reused
+ * freely.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class SensorEvent {
+
+  public final float[] values;
+  public Sensor sensor;
+  public int accuracy;
+  public long timestamp;
+
+  /**
+   * Initialises a new SensorEvent
+   *
+   * @param valueSize The number of values
+   */
+  public SensorEvent(int valueSize) {
+    values = new float[valueSize];
+  }
+}
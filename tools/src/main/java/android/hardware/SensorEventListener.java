@@ -0,0 +1,13 @@
+package android.hardware;
+
+/**
+ * JVM stand-in for the Android listener of the same name.
+ *
+ * @author Stanislav Lelyuk
+ */
+public interface SensorEventListener {
+
+  void onSensorChanged(SensorEvent event);
+
+  void onAccuracyChanged(Sensor sensor, int accuracy);
+}
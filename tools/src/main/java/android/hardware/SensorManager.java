@@ -0,0 +1,286 @@
+package android.hardware;
+
+import android.os.Handler;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JVM stand-in for the Android sensor manager.
+ *
+ * It offers every sensor type and keeps track of the registered listeners; events are delivered by calling
+ * {@link #dispatch(SensorEvent)} on the thread that should run the fusion. The static helpers are ports of the
+ * Android implementations, so the providers compute exactly what they compute on a device.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class SensorManager {
+
+  public static final float GRAVITY_EARTH = 9.80665f;
+  public static final int SENSOR_DELAY_FASTEST = 0;
+  public static final int SENSOR_DELAY_GAME = 1;
+  public static final int SENSOR_DELAY_UI = 2;
+  public static final int SENSOR_DELAY_NORMAL = 3;
+
+  /**
+   * The number of events the simulated hardware FIFOs hold
+   */
+  private static final int FIFO_MAX_EVENT_COUNT = 3000;
+
+  /**
+   * The sensors handed out so far
+   */
+  private final List<Sensor> sensors = new ArrayList<Sensor>();
+  /**
+   * The registered listeners and the sensors they are registered for, at the same index
+   */
+  private final List<SensorEventListener> listeners = new ArrayList<SensorEventListener>();
+  private final List<Sensor> listenerSensors = new ArrayList<Sensor>();
+
+  public synchronized Sensor getDefaultSensor(int type) {
+    for (Sensor sensor : sensors) {
+      if (sensor.getType() == type) {
+        return sensor;
+      }
+    }
+    Sensor sensor = new Sensor(type, FIFO_MAX_EVENT_COUNT);
+    sensors.add(sensor);
+    return sensor;
+  }
+
+  public boolean registerListener(SensorEventListener listener, Sensor sensor, int samplingPeriodUs) {
+    return registerListener(listener, sensor, samplingPeriodUs, (Handler) null);
+  }
+
+  public boolean registerListener(SensorEventListener listener, Sensor sensor, int samplingPeriodUs,
+      Handler handler) {
+    return registerListener(listener, sensor, samplingPeriodUs, 0, handler);
+  }
+
+  public boolean registerListener(SensorEventListener listener, Sensor sensor, int samplingPeriodUs,
+      int maxReportLatencyUs) {
+    return registerListener(listener, sensor, samplingPeriodUs, maxReportLatencyUs, null);
+  }
+
+  public synchronized boolean registerListener(SensorEventListener listener, Sensor sensor, int samplingPeriodUs,
+      int maxReportLatencyUs, Handler handler) {
+    if (listener == null || sensor == null) {
+      return false;
+    }
+    listeners.add(listener);
+    listenerSensors.add(sensor);
+    return true;
+  }
+
+  public synchronized void unregisterListener(SensorEventListener listener, Sensor sensor) {
+    for (int i = listeners.size() - 1; i >= 0; i--) {
+      if (listeners.get(i) == listener && listenerSensors.get(i) == sensor) {
+        listeners.remove(i);
+        listenerSensors.remove(i);
+      }
+    }
+  }
+
+  public synchronized void unregisterListener(SensorEventListener listener) {
+    for (int i = listeners.size() - 1; i >= 0; i--) {
+      if (listeners.get(i) == listener) {
+        listeners.remove(i);
+        listenerSensors.remove(i);
+      }
+    }
+  }
+
+  /**
+   * Delivers an event to every listener that is registered for its sensor. Not part of the Android API.
+   *
+   * @param event The event; its sensor must have been obtained from {@link #getDefaultSensor(int)}
+   */
+  public void dispatch(SensorEvent event) {
+    // Index based, so that delivering does not allocate an iterator
+    for (int i = 0; i < listeners.size(); i++) {
+      if (listenerSensors.get(i) == event.sensor) {
+        listeners.get(i).onSensorChanged(event);
+      }
+    }
+  }
+
+  public static boolean getRotationMatrix(float[] R, float[] I, float[] gravity, float[] geomagnetic) {
+    float Ax = gravity[0];
+    float Ay = gravity[1];
+    float Az = gravity[2];
+
+    final float normsqA = (Ax * Ax + Ay * Ay + Az * Az);
+    final float g = 9.81f;
+    final float freeFallGravitySquared = 0.01f * g * g;
+    if (normsqA < freeFallGravitySquared) {
+      // gravity less than 10% of normal value
+      return false;
+    }
+
+    final float Ex = geomagnetic[0];
+    final float Ey = geomagnetic[1];
+    final float Ez = geomagnetic[2];
+    float Hx = Ey * Az - Ez * Ay;
+    float Hy = Ez * Ax - Ex * Az;
+    float Hz = Ex * Ay - Ey * Ax;
+    final float normH = (float) Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+    if (normH < 0.1f) {
+      // device is close to free fall (or in space?), or close to
+      // magnetic north pole. Typical values are  > 100.
+      return false;
+    }
+    final float invH = 1.0f / normH;
+    Hx *= invH;
+    Hy *= invH;
+    Hz *= invH;
+    final float invA = 1.0f / (float) Math.sqrt(Ax * Ax + Ay * Ay + Az * Az);
+    Ax *= invA;
+    Ay *= invA;
+    Az *= invA;
+    final float Mx = Ay * Hz - Az * Hy;
+    final float My = Az * Hx - Ax * Hz;
+    final float Mz = Ax * Hy - Ay * Hx;
+    if (R != null) {
+      if (R.length == 9) {
+        R[0] = Hx;
+        R[1] = Hy;
+        R[2] = Hz;
+        R[3] = Mx;
+        R[4] = My;
+        R[5] = Mz;
+        R[6] = Ax;
+        R[7] = Ay;
+        R[8] = Az;
+      } else if (R.length == 16) {
+        R[0] = Hx;
+        R[1] = Hy;
+        R[2] = Hz;
+        R[3] = 0;
+        R[4] = Mx;
+        R[5] = My;
+        R[6] = Mz;
+        R[7] = 0;
+        R[8] = Ax;
+        R[9] = Ay;
+        R[10] = Az;
+        R[11] = 0;
+        R[12] = 0;
+        R[13] = 0;
+        R[14] = 0;
+        R[15] = 1;
+      }
+    }
+    if (I != null) {
+      // compute the inclination matrix by projecting the geomagnetic
+      // vector onto the Z (gravity) and X (horizontal component
+      // of geomagnetic vector) axes.
+      final float invE = 1.0f / (float) Math.sqrt(Ex * Ex + Ey * Ey + Ez * Ez);
+      final float c = (Ex * Mx + Ey * My + Ez * Mz) * invE;
+      final float s = (Ex * Ax + Ey * Ay + Ez * Az) * invE;
+      if (I.length == 9) {
+        I[0] = 1;
+        I[1] = 0;
+        I[2] = 0;
+        I[3] = 0;
+        I[4] = c;
+        I[5] = s;
+        I[6] = 0;
+        I[7] = -s;
+        I[8] = c;
+      } else if (I.length == 16) {
+        I[0] = 1;
+        I[1] = 0;
+        I[2] = 0;
+        I[4] = 0;
+        I[5] = c;
+        I[6] = s;
+        I[8] = 0;
+        I[9] = -s;
+        I[10] = c;
+        I[3] = I[7] = I[11] = I[12] = I[13] = I[14] = 0;
+        I[15] = 1;
+      }
+    }
+    return true;
+  }
+
+  public static float[] getOrientation(float[] R, float[] values) {
+    if (R.length == 9) {
+      values[0] = (float) Math.atan2(R[1], R[4]);
+      values[1] = (float) Math.asin(-R[7]);
+      values[2] = (float) Math.atan2(-R[6], R[8]);
+    } else {
+      values[0] = (float) Math.atan2(R[1], R[5]);
+      values[1] = (float) Math.asin(-R[9]);
+      values[2] = (float) Math.atan2(-R[8], R[10]);
+    }
+    return values;
+  }
+
+  public static void getRotationMatrixFromVector(float[] R, float[] rotationVector) {
+    float q0;
+    float q1 = rotationVector[0];
+    float q2 = rotationVector[1];
+    float q3 = rotationVector[2];
+
+    if (rotationVector.length >= 4) {
+      q0 = rotationVector[3];
+    } else {
+      q0 = 1 - q1 * q1 - q2 * q2 - q3 * q3;
+      q0 = (q0 > 0) ? (float) Math.sqrt(q0) : 0;
+    }
+
+    float sq_q1 = 2 * q1 * q1;
+    float sq_q2 = 2 * q2 * q2;
+    float sq_q3 = 2 * q3 * q3;
+    float q1_q2 = 2 * q1 * q2;
+    float q3_q0 = 2 * q3 * q0;
+    float q1_q3 = 2 * q1 * q3;
+    float q2_q0 = 2 * q2 * q0;
+    float q2_q3 = 2 * q2 * q3;
+    float q1_q0 = 2 * q1 * q0;
+
+    if (R.length == 9) {
+      R[0] = 1 - sq_q2 - sq_q3;
+      R[1] = q1_q2 - q3_q0;
+      R[2] = q1_q3 + q2_q0;
+
+      R[3] = q1_q2 + q3_q0;
+      R[4] = 1 - sq_q1 - sq_q3;
+      R[5] = q2_q3 - q1_q0;
+
+      R[6] = q1_q3 - q2_q0;
+      R[7] = q2_q3 + q1_q0;
+      R[8] = 1 - sq_q1 - sq_q2;
+    } else if (R.length == 16) {
+      R[0] = 1 - sq_q2 - sq_q3;
+      R[1] = q1_q2 - q3_q0;
+      R[2] = q1_q3 + q2_q0;
+      R[3] = 0.0f;
+
+      R[4] = q1_q2 + q3_q0;
+      R[5] = 1 - sq_q1 - sq_q3;
+      R[6] = q2_q3 - q1_q0;
+      R[7] = 0.0f;
+
+      R[8] = q1_q3 - q2_q0;
+      R[9] = q2_q3 + q1_q0;
+      R[10] = 1 - sq_q1 - sq_q2;
+      R[11] = 0.0f;
+
+      R[12] = R[13] = R[14] = 0.0f;
+      R[15] = 1.0f;
+    }
+  }
+
+  public static void getQuaternionFromVector(float[] Q, float[] rv) {
+    if (rv.length >= 4) {
+      Q[0] = rv[3];
+    } else {
+      Q[0] = 1 - rv[0] * rv[0] - rv[1] * rv[1] - rv[2] * rv[2];
+      Q[0] = (Q[0] > 0) ? (float) Math.sqrt(Q[0]) : 0;
+    }
+    Q[1] = rv[0];
+    Q[2] = rv[1];
+    Q[3] = rv[2];
+  }
+}
@@ -0,0 +1,26 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android build information. Reports the oldest supported version, so that the providers take
+ * the paths that need no newer platform API.
+ *
+ * @author Stanislav Lelyuk
+ */
+public final class Build {
+
+  private Build() {
+  }
+
+  public static final class VERSION {
+    public static final int SDK_INT = VERSION_CODES.ICE_CREAM_SANDWICH_MR1;
+  }
+
+  public static final class VERSION_CODES {
+    public static final int ICE_CREAM_SANDWICH_MR1 = 15;
+    public static final int JELLY_BEAN = 16;
+    public static final int JELLY_BEAN_MR1 = 17;
+    public static final int JELLY_BEAN_MR2 = 18;
+    public static final int KITKAT = 19;
+    public static final int LOLLIPOP = 21;
+  }
+}
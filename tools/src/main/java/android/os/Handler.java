@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android handler. Messages are not supported; the simulated sensor manager delivers events on
+ * the thread that dispatches them, whatever handler was given.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class Handler {
+
+  private final Looper looper;
+
+  public Handler(Looper looper) {
+    this.looper = looper;
+  }
+
+  public final Looper getLooper() {
+    return looper;
+  }
+}
@@ -0,0 +1,47 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android handler thread. The thread does not run a message loop; it ends when it is quit.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class HandlerThread extends Thread {
+
+  private final Looper looper = new Looper(this);
+  private boolean quit;
+
+  public HandlerThread(String name) {
+    super(name);
+  }
+
+  public HandlerThread(String name, int priority) {
+    super(name);
+  }
+
+  @Override
+  public void run() {
+    synchronized (this) {
+      while (!quit) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  public Looper getLooper() {
+    return looper;
+  }
+
+  public synchronized boolean quit() {
+    quit = true;
+    notifyAll();
+    return true;
+  }
+
+  public boolean quitSafely() {
+    return quit();
+  }
+}
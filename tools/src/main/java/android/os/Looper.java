@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android looper. It only identifies the thread of a {@link HandlerThread}.
+ *
+ * @author Stanislav Lelyuk
+ */
+public final class Looper {
+
+  final HandlerThread thread;
+
+  Looper(HandlerThread thread) {
+    this.thread = thread;
+  }
+}
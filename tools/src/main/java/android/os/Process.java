@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android process utilities.
+ *
+ * @author Stanislav Lelyuk
+ */
+public final class Process {
+
+  public static final int THREAD_PRIORITY_DEFAULT = 0;
+  public static final int THREAD_PRIORITY_DISPLAY = -4;
+  public static final int THREAD_PRIORITY_URGENT_DISPLAY = -8;
+
+  private Process() {
+  }
+
+  public static void setThreadPriority(int priority) {
+  }
+}
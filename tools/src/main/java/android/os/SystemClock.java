@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android system clock.
+ *
+ * @author Stanislav Lelyuk
+ */
+public final class SystemClock {
+
+  private SystemClock() {
+  }
+
+  public static long elapsedRealtimeNanos() {
+    return System.nanoTime();
+  }
+
+  public static long elapsedRealtime() {
+    return System.nanoTime() / 1000000L;
+  }
+}
@@ -0,0 +1,36 @@
+package android.util;
+
+/**
+ * JVM stand-in for the Android log. Debug messages are dropped, warnings and errors go to standard error.
+ *
+ * @author Stanislav Lelyuk
+ */
+public final class Log {
+
+  private Log() {
+  }
+
+  public static int d(String tag, String msg) {
+    return 0;
+  }
+
+  public static int i(String tag, String msg) {
+    return 0;
+  }
+
+  public static int w(String tag, String msg) {
+    System.err.println("W/" + tag + ": " + msg);
+    return 0;
+  }
+
+  public static int e(String tag, String msg) {
+    System.err.println("E/" + tag + ": " + msg);
+    return 0;
+  }
+
+  public static int e(String tag, String msg, Throwable tr) {
+    System.err.println("E/" + tag + ": " + msg);
+    tr.printStackTrace();
+    return 0;
+  }
+}
@@ -0,0 +1,433 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorManager;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.sl.sensor_fusion_demo.orientationProvider.CalibratedGyroscopeProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.trace.ColumnarTraceFormat;
+import org.sl.sensor_fusion_demo.trace.ColumnarTraceWriter;
+import org.sl.sensor_fusion_demo.trace.SensorEventRecorder;
+import org.sl.sensor_fusion_demo.trace.SensorTraceFormat;
+import org.sl.sensor_fusion_demo.trace.SensorTraceRecorder;
+
+/**
+ * Measures the accuracy of the orientation providers on a directory of recordings with reference orientations (see
+ * {@link ReferenceTrace}) and reports, per recording and per provider, the RMS and the largest error, the drift and
+ * the time until the provider converged (see {@link ProviderAccuracy}), and all recordings together per provider.
+ *
+ * The recordings are processed in parallel on a ForkJoinPool. The recordings are split in halves until a task holds
+ * one; that task decodes it and forks one task per provider, which all replay the same decoded events. Nothing but
+ * the decoded recording is shared, it is only read, and every task writes its result into a slot of its own, so the
+ * tasks do not wait for each other; a recording is dropped from memory once its providers are done. With --scaling,
+ * the whole evaluation is timed with 1, 2, 4... threads up to the number of processors.
+ *
+ * Usage:
+ * <pre>
+ * AccuracyEvaluation directory [--threads n] [--scaling] [--details] [provider class name...]
+ * AccuracyEvaluation --synthetic directory count seconds
+ * </pre>
+ * The second form writes count recordings of the {@link SyntheticSensorStream} with different seeds and motions,
+ * with the true orientation as reference, to have something to evaluate without a motion capture system.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class AccuracyEvaluation {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] DEFAULT_PROVIDERS = {"ImprovedOrientationSensor1Provider",
+      "ImprovedOrientationSensor2Provider", "CalibratedGyroscopeProvider", "RotationVectorProvider",
+      "GravityCompassProvider", "AccelerometerCompassProvider", "ErrorStateKalmanFilterProvider", "MadgwickProvider",
+      "MahonyProvider"};
+  /**
+   * The accuracy of the synthetic events (SENSOR_STATUS_ACCURACY_HIGH)
+   */
+  private static final int SYNTHETIC_ACCURACY = 3;
+  /**
+   * The evaluations before --scaling starts timing, and the evaluations per thread count it takes the fastest of
+   */
+  private static final int SCALING_WARMUP_RUNS = 3;
+  private static final int SCALING_RUNS = 3;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 4 && args[0].equals("--synthetic")) {
+      writeSynthetic(new File(args[1]), Integer.parseInt(args[2]), Double.parseDouble(args[3]));
+      return;
+    }
+    if (args.length == 0) {
+      System.err.println("Usage: AccuracyEvaluation directory [--threads n] [--scaling] [--details] [provider...]");
+      System.err.println("       AccuracyEvaluation --synthetic directory count seconds");
+      System.exit(1);
+    }
+
+    File directory = new File(args[0]);
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean scaling = false;
+    boolean details = false;
+    List<String> providers = new ArrayList<String>();
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--threads")) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--scaling")) {
+        scaling = true;
+      } else if (args[i].equals("--details")) {
+        details = true;
+      } else {
+        providers.add(args[i]);
+      }
+    }
+    if (providers.isEmpty()) {
+      providers.addAll(Arrays.asList(DEFAULT_PROVIDERS));
+    }
+    Class<?>[] providerClasses = new Class<?>[providers.size()];
+    for (int i = 0; i < providerClasses.length; i++) {
+      String provider = providers.get(i);
+      providerClasses[i] = Class.forName(provider.contains(".") ? provider : PROVIDER_PACKAGE + provider);
+    }
+
+    File[] files = directory.listFiles();
+    List<File> recordings = new ArrayList<File>();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(SensorTraceFormat.FILE_EXTENSION)
+            || file.getName().endsWith(ColumnarTraceFormat.FILE_EXTENSION)) {
+          recordings.add(file);
+        }
+      }
+    }
+    if (recordings.isEmpty()) {
+      System.err.println("No recordings in " + directory);
+      System.exit(1);
+    }
+    File[] recordingFiles = recordings.toArray(new File[recordings.size()]);
+    Arrays.sort(recordingFiles);
+
+    if (scaling) {
+      measureScaling(recordingFiles, providerClasses, threads);
+      return;
+    }
+    long start = System.nanoTime();
+    Evaluation evaluation = evaluate(recordingFiles, providerClasses, threads);
+    long elapsed = System.nanoTime() - start;
+    report(evaluation, providerClasses, details);
+    System.out.println(String.format(Locale.US, "%d recordings x %d providers on %d threads in %.2f s, %.2f s CPU",
+        recordingFiles.length, providerClasses.length, threads, elapsed / 1e9, evaluation.getCpuNs() / 1e9));
+  }
+
+  /**
+   * Evaluates every provider on every recording.
+   *
+   * @param recordings The recording files
+   * @param providerClasses The provider classes
+   * @param threads The parallelism of the pool
+   * @return The results per recording and provider
+   */
+  public static Evaluation evaluate(File[] recordings, Class<?>[] providerClasses, int threads) {
+    Evaluation evaluation = new Evaluation(recordings, providerClasses.length);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(new RecordingsTask(evaluation, providerClasses, 0, recordings.length));
+    } finally {
+      pool.shutdown();
+    }
+    return evaluation;
+  }
+
+  private static void measureScaling(File[] recordings, Class<?>[] providerClasses, int maxThreads) {
+    // Until the JIT has compiled the fusion code, the first evaluations take several times as long
+    for (int i = 0; i < SCALING_WARMUP_RUNS; i++) {
+      evaluate(recordings, providerClasses, maxThreads);
+    }
+
+    System.out.println(String.format(Locale.US, "%d recordings x %d providers, %d processors, fastest of %d runs",
+        recordings.length, providerClasses.length, Runtime.getRuntime().availableProcessors(), SCALING_RUNS));
+    System.out.println(String.format(Locale.US, "%8s %10s %10s %9s %11s", "threads", "wall s", "CPU s", "speedup",
+        "efficiency"));
+    double singleThreaded = 0;
+    for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+      double elapsed = Double.POSITIVE_INFINITY;
+      long cpuNs = 0;
+      for (int run = 0; run < SCALING_RUNS; run++) {
+        long start = System.nanoTime();
+        Evaluation evaluation = evaluate(recordings, providerClasses, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (seconds < elapsed) {
+          elapsed = seconds;
+          cpuNs = evaluation.getCpuNs();
+        }
+      }
+      if (threads == 1) {
+        singleThreaded = elapsed;
+      }
+      System.out.println(String.format(Locale.US, "%8d %10.2f %10.2f %8.2fx %10.0f%%", threads, elapsed, cpuNs / 1e9,
+          singleThreaded / elapsed, 100 * singleThreaded / elapsed / threads));
+      if (threads == maxThreads) {
+        break;
+      }
+    }
+  }
+
+  private static void report(Evaluation evaluation, Class<?>[] providerClasses, boolean details) {
+    String header = String.format(Locale.US, "%-36s %9s %9s %9s %13s %12s %9s", "provider", "rms deg", "max deg",
+        "converged", "after s", "drift deg/min", "ns/event");
+    if (details) {
+      for (int r = 0; r < evaluation.getRecordingCount(); r++) {
+        System.out.println();
+        if (evaluation.getFailure(r) != null) {
+          System.out.println(evaluation.getRecording(r).getName() + ": " + evaluation.getFailure(r));
+          continue;
+        }
+        System.out.println(evaluation.getRecording(r).getName());
+        System.out.println(header);
+        for (int p = 0; p < providerClasses.length; p++) {
+          ProviderAccuracy accuracy = evaluation.getResult(r, p);
+          if (!accuracy.isPublished()) {
+            System.out.println(String.format(Locale.US, "%-36s no orientation, a sensor is missing",
+                providerClasses[p].getSimpleName()));
+            continue;
+          }
+          System.out.println(String.format(Locale.US, "%-36s %9.3f %9.3f %9s %13.1f %12.3f %9.0f",
+              providerClasses[p].getSimpleName(), accuracy.getRmsDeg(), accuracy.getMaxDeg(),
+              accuracy.isConverged() ? "yes" : "no", accuracy.getConvergenceSeconds(),
+              accuracy.getDriftDegPerMinute(), (double) accuracy.getCpuNs() / accuracy.getEvents()));
+        }
+      }
+    }
+
+    // All recordings together: the RMS over all evaluated reference orientations, the largest error of any, the
+    // mean drift and the mean time to converge of those that did; recordings without an orientation are left out
+    System.out.println();
+    int failed = 0;
+    for (int r = 0; r < evaluation.getRecordingCount(); r++) {
+      if (evaluation.getFailure(r) != null) {
+        System.out.println(evaluation.getRecording(r).getName() + ": " + evaluation.getFailure(r));
+        failed++;
+      }
+    }
+    System.out.println(String.format(Locale.US, "All %d recordings", evaluation.getRecordingCount() - failed));
+    System.out.println(header);
+    for (int p = 0; p < providerClasses.length; p++) {
+      double squares = 0;
+      long evaluated = 0;
+      double max = 0;
+      double drift = 0;
+      int recordings = 0;
+      int converged = 0;
+      double convergenceSeconds = 0;
+      long cpuNs = 0;
+      long events = 0;
+      for (int r = 0; r < evaluation.getRecordingCount(); r++) {
+        ProviderAccuracy accuracy = evaluation.getResult(r, p);
+        if (accuracy == null || !accuracy.isPublished()) {
+          continue;
+        }
+        squares += accuracy.getRmsDeg() * accuracy.getRmsDeg() * accuracy.getEvaluatedCount();
+        evaluated += accuracy.getEvaluatedCount();
+        max = Math.max(max, accuracy.getMaxDeg());
+        drift += accuracy.getDriftDegPerMinute();
+        recordings++;
+        if (accuracy.isConverged()) {
+          converged++;
+          convergenceSeconds += accuracy.getConvergenceSeconds();
+        }
+        cpuNs += accuracy.getCpuNs();
+        events += accuracy.getEvents();
+      }
+      if (recordings == 0) {
+        System.out.println(String.format(Locale.US, "%-36s no orientation on any recording",
+            providerClasses[p].getSimpleName()));
+        continue;
+      }
+      System.out.println(String.format(Locale.US, "%-36s %9.3f %9.3f %9s %13.1f %12.3f %9.0f",
+          providerClasses[p].getSimpleName(), Math.sqrt(squares / evaluated), max, converged + "/" + recordings,
+          convergenceSeconds / converged, drift / recordings, (double) cpuNs / events));
+    }
+  }
+
+  private static void writeSynthetic(File directory, int count, double seconds) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    for (int i = 0; i < count; i++) {
+      SyntheticSensorStream stream = newSyntheticStream(i, seconds);
+      // Every fourth recording in the columnar format
+      File file = new File(directory, String.format(Locale.US, "synthetic-%03d%s", i,
+          i % 4 == 3 ? ColumnarTraceFormat.FILE_EXTENSION : SensorTraceFormat.FILE_EXTENSION));
+      SensorEventRecorder recorder = i % 4 == 3
+          ? ColumnarTraceWriter.create(file, ColumnarTraceFormat.DEFAULT_BLOCK_CAPACITY, true)
+          : new SensorTraceRecorder(new BufferedOutputStream(new FileOutputStream(file)), true);
+      ReferenceTrace.write(stream, SYNTHETIC_ACCURACY, recorder);
+      recorder.close();
+    }
+    System.out.println(String.format(Locale.US, "Wrote %d recordings of %.0f s to %s", count, seconds, directory));
+  }
+
+  /**
+   * @param index The index of the recording
+   * @param seconds The duration of the recording in seconds
+   * @return The synthetic stream of a recording: every second one has a biased gyroscope, every third one lies still
+   * now and then
+   */
+  static SyntheticSensorStream newSyntheticStream(int index, double seconds) {
+    float bias = index % 2 == 1 ? 0.01f * (1 + index % 5) : 0;
+    return new SyntheticSensorStream(1000 + index, seconds, new float[] {bias, -bias / 2, bias / 3},
+        index % 3 == 2 ? 10 : seconds, index % 3 == 2 ? 5 : 0);
+  }
+
+  /**
+   * The results of evaluating every provider on every recording, filled in by the tasks
+   */
+  public static final class Evaluation {
+    private final File[] recordings;
+    private final ProviderAccuracy[][] results;
+    private final String[] failures;
+    private final long[] decodingCpuNs;
+
+    private Evaluation(File[] recordings, int providerCount) {
+      this.recordings = recordings;
+      results = new ProviderAccuracy[recordings.length][providerCount];
+      failures = new String[recordings.length];
+      decodingCpuNs = new long[recordings.length];
+    }
+
+    /**
+     * @return The number of recordings
+     */
+    public int getRecordingCount() {
+      return recordings.length;
+    }
+
+    /**
+     * @return The file of a recording
+     */
+    public File getRecording(int recording) {
+      return recordings[recording];
+    }
+
+    /**
+     * @return Why the recording could not be evaluated, null if it was
+     */
+    public String getFailure(int recording) {
+      return failures[recording];
+    }
+
+    /**
+     * @return The accuracy of a provider on a recording, null if the recording could not be evaluated
+     */
+    public ProviderAccuracy getResult(int recording, int provider) {
+      return results[recording][provider];
+    }
+
+    /**
+     * @return The CPU time all tasks spent decoding, replaying and fusing in nanoseconds
+     */
+    public long getCpuNs() {
+      long cpuNs = 0;
+      for (long decoding : decodingCpuNs) {
+        cpuNs += decoding;
+      }
+      for (ProviderAccuracy[] recording : results) {
+        for (ProviderAccuracy result : recording) {
+          if (result != null) {
+            cpuNs += result.getCpuNs();
+          }
+        }
+      }
+      return cpuNs;
+    }
+  }
+
+  /**
+   * Splits the recordings from..to in halves until one is left, which it decodes and evaluates
+   */
+  private static final class RecordingsTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Evaluation evaluation;
+    private final Class<?>[] providerClasses;
+    private final int from;
+    private final int to;
+
+    private RecordingsTask(Evaluation evaluation, Class<?>[] providerClasses, int from, int to) {
+      this.evaluation = evaluation;
+      this.providerClasses = providerClasses;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new RecordingsTask(evaluation, providerClasses, from, middle),
+            new RecordingsTask(evaluation, providerClasses, middle, to));
+        return;
+      }
+
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      long cpuStart = threads.getCurrentThreadCpuTime();
+      ReferenceTrace trace;
+      try {
+        trace = ReferenceTrace.read(evaluation.recordings[from]);
+      } catch (IOException e) {
+        evaluation.failures[from] = e.toString();
+        return;
+      } finally {
+        evaluation.decodingCpuNs[from] = threads.getCurrentThreadCpuTime() - cpuStart;
+      }
+      if (trace.getReferenceCount() == 0) {
+        evaluation.failures[from] = "no reference orientations";
+        return;
+      }
+      List<ProviderTask> tasks = new ArrayList<ProviderTask>();
+      for (int i = 0; i < providerClasses.length; i++) {
+        tasks.add(new ProviderTask(trace, providerClasses[i], evaluation.results[from], i));
+      }
+      invokeAll(tasks);
+    }
+  }
+
+  /**
+   * Replays a decoded recording into a new instance of one provider
+   */
+  private static final class ProviderTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final ReferenceTrace trace;
+    private final Class<?> providerClass;
+    private final ProviderAccuracy[] results;
+    private final int index;
+
+    private ProviderTask(ReferenceTrace trace, Class<?> providerClass, ProviderAccuracy[] results, int index) {
+      this.trace = trace;
+      this.providerClass = providerClass;
+      this.results = results;
+      this.index = index;
+    }
+
+    @Override
+    protected void compute() {
+      OrientationProvider provider;
+      try {
+        provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+            .newInstance(new SensorManager());
+      } catch (Exception e) {
+        throw new IllegalStateException("Cannot create " + providerClass.getName(), e);
+      }
+      // Solving the magnetometer calibration on a thread of its own would make the result depend on the timing and
+      // take processors from the pool
+      provider.getMagnetometerCalibrator().setUseBackgroundThread(false);
+      results[index] = ProviderAccuracy.measure(trace, provider, provider instanceof CalibratedGyroscopeProvider);
+    }
+  }
+}
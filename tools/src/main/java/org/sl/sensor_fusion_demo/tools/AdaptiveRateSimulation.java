@@ -0,0 +1,152 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.StillnessRateController;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Simulates the {@link StillnessRateController} on a {@link SyntheticSensorStream} in which the device alternates
+ * between moving and lying still, and reports what it saves and what it costs.
+ *
+ * Each provider runs twice through onSensorChanged: at the fixed rate of the providers (SENSOR_DELAY_GAME, 50 Hz) and
+ * with the rate controller. The stream has samples at 200 Hz; an event is delivered only if its sensor's previous
+ * delivered event is at least the current sampling period of the controller ago, which is what the sensor hub does
+ * with the registered rate. Reported are the delivered events, the time at the low rate, the transitions, the time
+ * from the start of a motion until the full rate was requested again, and the RMS error of the latest orientation
+ * against the truth at every sample of the stream, separately for the moving and the still phases.
+ *
+ * Usage: AdaptiveRateSimulation [provider class name...]; defaults to the providers of an absolute orientation that
+ * use a gyroscope or an accelerometer.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class AdaptiveRateSimulation {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] DEFAULT_PROVIDERS = {"ImprovedOrientationSensor1Provider",
+      "ImprovedOrientationSensor2Provider", "AccelerometerCompassProvider", "ErrorStateKalmanFilterProvider",
+      "MadgwickProvider", "MahonyProvider"};
+  private static final double STREAM_SECONDS = 300;
+  private static final double MOVING_SECONDS = 10;
+  private static final double STILL_SECONDS = 20;
+  /**
+   * The sampling period of the stream in microseconds; a sampling period is met if it is within half of it
+   */
+  private static final int STREAM_PERIOD_US = 5000;
+  /**
+   * The accuracy of the synthetic events (SENSOR_STATUS_ACCURACY_HIGH)
+   */
+  private static final int ACCURACY = 3;
+  /**
+   * The sensor types are below this, so they can index arrays
+   */
+  private static final int MAX_SENSOR_TYPE = 32;
+
+  public static void main(String[] args) throws Exception {
+    String[] providers = args.length > 0 ? args : DEFAULT_PROVIDERS;
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS, new float[3], MOVING_SECONDS,
+        STILL_SECONDS);
+    System.out.println(String.format(Locale.US, "%.0f s, moving %.0f s / still %.0f s", STREAM_SECONDS,
+        MOVING_SECONDS, STILL_SECONDS));
+    System.out.println(String.format(Locale.US, "%-36s %-8s %9s %7s %6s %14s %15s %14s", "provider", "rate",
+        "events", "still", "trans", "ramp-up ms", "moving err deg", "still err deg"));
+    System.out.println(String.format(Locale.US, "%-36s %-8s %9s %7s %6s %14s %15s %14s", "", "", "", "", "",
+        "mean / max", "", ""));
+
+    for (String provider : providers) {
+      String className = provider.contains(".") ? provider : PROVIDER_PACKAGE + provider;
+      run(className, stream, false);
+      run(className, stream, true);
+    }
+  }
+
+  private static void run(String className, SyntheticSensorStream stream, boolean adaptive) throws Exception {
+    Class<?> providerClass = Class.forName(className);
+    SensorManager sensorManager = new SensorManager();
+    SensorEvent[] events = stream.createEvents(sensorManager, ACCURACY);
+    OrientationProvider provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+        .newInstance(sensorManager);
+    StillnessRateController controller = adaptive ? new StillnessRateController() : null;
+    provider.setRateController(controller);
+    provider.setUseSensorThread(false);
+    provider.start();
+
+    long[] lastDelivered = new long[MAX_SENSOR_TYPE];
+    long delivered = 0;
+    Quaternion estimate = new Quaternion();
+    Quaternion truth = new Quaternion();
+    double movingErrors = 0;
+    double stillErrors = 0;
+    int movingCount = 0;
+    int stillCount = 0;
+    long motionStart = -1;
+    long rampUpTotal = 0;
+    long rampUpMax = 0;
+    int rampUps = 0;
+    boolean wasStill = false;
+
+    for (int i = 0; i < events.length; i++) {
+      SensorEvent event = events[i];
+      int type = event.sensor.getType();
+      int periodUs = controller != null ? controller.getSamplingPeriodUs()
+          : StillnessRateController.DEFAULT_MOVING_SAMPLING_PERIOD_US;
+      long minIntervalNs = (periodUs - STREAM_PERIOD_US / 2) * 1000L;
+      if (lastDelivered[type] == 0 || event.timestamp - lastDelivered[type] >= minIntervalNs) {
+        lastDelivered[type] = event.timestamp;
+        sensorManager.dispatch(event);
+        delivered++;
+      }
+
+      boolean still = stream.isStill(event.timestamp);
+      if (wasStill && !still) {
+        motionStart = event.timestamp;
+      }
+      wasStill = still;
+      if (controller != null && motionStart >= 0 && !controller.isStill()) {
+        long rampUp = event.timestamp - motionStart;
+        rampUpTotal += rampUp;
+        rampUpMax = Math.max(rampUpMax, rampUp);
+        rampUps++;
+        motionStart = -1;
+      }
+
+      stream.getTruth(i, truth);
+      provider.getQuaternion(estimate);
+      double error = angle(estimate, truth);
+      if (still) {
+        stillErrors += error * error;
+        stillCount++;
+      } else {
+        movingErrors += error * error;
+        movingCount++;
+      }
+    }
+    provider.stop();
+
+    String still = "-";
+    String transitions = "-";
+    String rampUp = "-";
+    if (controller != null) {
+      still = String.format(Locale.US, "%.1f%%", 100.0 * controller.getStillTimeNs() / controller.getTotalTimeNs());
+      transitions = String.valueOf(controller.getStillTransitions() + controller.getMovingTransitions());
+      rampUp = rampUps == 0 ? "-" : String.format(Locale.US, "%.1f / %.1f", rampUpTotal / 1e6 / rampUps,
+          rampUpMax / 1e6);
+    }
+    System.out.println(String.format(Locale.US, "%-36s %-8s %9d %7s %6s %14s %15.3f %14.3f",
+        adaptive ? "" : providerClass.getSimpleName(), adaptive ? "adaptive" : "fixed", delivered, still,
+        transitions, rampUp, Math.sqrt(movingErrors / movingCount), Math.sqrt(stillErrors / stillCount)));
+  }
+
+  /**
+   * @return The angle in degrees between two orientations, which need not be normalised
+   */
+  private static double angle(Quaternion a, Quaternion b) {
+    double dot = a.getX() * b.getX() + a.getY() * b.getY() + a.getZ() * b.getZ() + a.getW() * b.getW();
+    double norms = Math.sqrt((a.getX() * a.getX() + a.getY() * a.getY() + a.getZ() * a.getZ() + a.getW() * a.getW())
+        * (b.getX() * b.getX() + b.getY() * b.getY() + b.getZ() * b.getZ() + b.getW() * b.getW()));
+    return Math.toDegrees(2 * Math.acos(Math.min(1, Math.abs(dot) / norms)));
+  }
+}
@@ -0,0 +1,117 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+
+/**
+ * Checks that the improved orientation providers do not allocate per sensor event once they are warmed up.
+ *
+ * The {@link SyntheticSensorStream} is turned into SensorEvents, which the JVM stand-in of the SensorManager delivers
+ * to the provider through onSensorChanged, with the sensor thread disabled so that the events are fused on the calling
+ * thread. Warm-up rounds on new providers let the JIT compile the fusion code. The measured round starts a new provider
+ * and delivers the first {@link #WARMUP_SECONDS} of the stream before it counts the bytes the calling thread allocates
+ * for the rest of the stream, as a provider allocates some buffers on its first samples. Any byte allocated fails the
+ * check.
+ *
+ * Usage: AllocationCheck [provider class name...]; defaults to both improved providers. Exits with status 1 if a
+ * provider allocated, or if the JVM cannot count allocated bytes.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class AllocationCheck {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] DEFAULT_PROVIDERS = {"ImprovedOrientationSensor1Provider",
+      "ImprovedOrientationSensor2Provider"};
+  private static final int WARMUP_ROUNDS = 10;
+  private static final double STREAM_SECONDS = 60;
+  /**
+   * The part of the stream that is delivered to the measured provider before counting starts
+   */
+  private static final double WARMUP_SECONDS = 5;
+  /**
+   * The accuracy of the synthetic events (SENSOR_STATUS_ACCURACY_HIGH)
+   */
+  private static final int ACCURACY = 3;
+
+  public static void main(String[] args) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)
+        || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+      System.err.println("This JVM cannot count the bytes a thread allocates");
+      System.exit(1);
+    }
+    ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+
+    String[] providers = args.length > 0 ? args : DEFAULT_PROVIDERS;
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS);
+    int firstMeasured = stream.findSample(stream.getTimestamp(0) + (long) (WARMUP_SECONDS * 1e9));
+    System.out.println(String.format(Locale.US, "%d events per round, %d warm-up rounds, %d events measured",
+        stream.size(), WARMUP_ROUNDS, stream.size() - firstMeasured));
+    System.out.println(String.format(Locale.US, "%-40s %14s %12s", "provider", "bytes", "bytes/event"));
+
+    boolean failed = false;
+    for (String provider : providers) {
+      Class<?> providerClass = Class.forName(provider.contains(".") ? provider : PROVIDER_PACKAGE + provider);
+      long bytes = measure(providerClass, stream, firstMeasured, threads);
+      int events = stream.size() - firstMeasured;
+      System.out.println(String.format(Locale.US, "%-40s %14d %12.4f %s", providerClass.getSimpleName(), bytes,
+          (double) bytes / events, bytes > 0 ? "FAILED" : "ok"));
+      failed |= bytes > 0;
+    }
+    if (failed) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return The bytes the calling thread allocated while the provider fused the events from firstMeasured on
+   */
+  private static long measure(Class<?> providerClass, SyntheticSensorStream stream, int firstMeasured,
+      ThreadMXBean threads) throws Exception {
+    SensorManager sensorManager = new SensorManager();
+    SensorEvent[] events = stream.createEvents(sensorManager, ACCURACY);
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      OrientationProvider provider = startProvider(providerClass, sensorManager);
+      for (SensorEvent event : events) {
+        sensorManager.dispatch(event);
+      }
+      provider.stop();
+    }
+
+    OrientationProvider provider = startProvider(providerClass, sensorManager);
+    for (int i = 0; i < firstMeasured; i++) {
+      sensorManager.dispatch(events[i]);
+    }
+    // Also warms up the counting itself
+    allocatedBytes(threads);
+    long bytesBefore = allocatedBytes(threads);
+    for (int i = firstMeasured; i < events.length; i++) {
+      sensorManager.dispatch(events[i]);
+    }
+    long bytesAfter = allocatedBytes(threads);
+    provider.stop();
+    return bytesAfter - bytesBefore;
+  }
+
+  /**
+   * @return A new provider of the class that is registered with the sensor manager and fuses on the calling thread
+   */
+  private static OrientationProvider startProvider(Class<?> providerClass, SensorManager sensorManager)
+      throws Exception {
+    OrientationProvider provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+        .newInstance(sensorManager);
+    provider.setUseSensorThread(false);
+    provider.getMagnetometerCalibrator().setUseBackgroundThread(false);
+    provider.start();
+    return provider;
+  }
+
+  private static long allocatedBytes(ThreadMXBean threads) {
+    return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,282 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorManager;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.CubeScene;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.representation.Matrix;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Checks on the JVM that the OpenGL ES 2 cube renderer draws the same picture as the OpenGL ES 1 renderer it
+ * replaced, and compares what both hand to OpenGL per frame.
+ *
+ * The mesh of the {@link CubeScene} is checked once per mode: the index range must lie within the index buffer and
+ * hold one cube of {@link #OLD_INDICES} per draw call of the old renderer, every index must point into the vertex
+ * buffer, and every corner must have the colour the old cube had at that corner.
+ *
+ * The providers run over the {@link SyntheticSensorStream}. At every {@link #CHECK_INTERVAL}th sample, the old
+ * pipeline is computed as OpenGL ES 1 did: the frustum, the translation and the rotation by the angle and the axis of
+ * the provider's quaternion (glRotatef), and, outside-in, one translated copy of the cube per draw call, with the
+ * geometry of the old cube. The new model-view-projection matrix is computed from the rotation matrix of the same
+ * quaternion. Both pipelines get the quaternion normalised: the providers' quaternions drift off unit length by up to
+ * 2e-4, and the old acos(w) angle and the rotation matrix would each turn that into a different error of their own,
+ * which is not what is checked here. The new matrix has to match the old projection times model-view matrix within
+ * {@link #MATRIX_TOLERANCE} per element, and every corner of every triangle drawn from the merged mesh has to be
+ * within {@link #CLIP_TOLERANCE} in clip coordinates of the same corner drawn by the old renderer (the corners at the
+ * viewer's position have no normalised device coordinates).
+ *
+ * Usage: CubeRenderingComparison [provider class name...]; defaults to a provider of each kind. Exits with status 1
+ * if a check fails.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class CubeRenderingComparison {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] DEFAULT_PROVIDERS = {"ImprovedOrientationSensor1Provider",
+      "AccelerometerCompassProvider", "MadgwickProvider", "MahonyProvider"};
+  private static final double STREAM_SECONDS = 30;
+  private static final int CHECK_INTERVAL = 50;
+  private static final int VIEW_WIDTH = 1080;
+  private static final int VIEW_HEIGHT = 1200;
+  /**
+   * The largest difference allowed between an element of the new model-view-projection matrix and the old one; the
+   * elements are at most about 10, so this allows a few float roundings
+   */
+  private static final double MATRIX_TOLERANCE = 1e-5;
+  /**
+   * The largest distance allowed in clip coordinates between a corner drawn by the old and by the new renderer. For a
+   * corner beyond the near plane, where the clip w is at least 1, that is less than a tenth of a pixel on the view.
+   */
+  private static final double CLIP_TOLERANCE = 1e-4;
+
+  /**
+   * The geometry of the cube of the OpenGL ES 1 renderer
+   */
+  private static final float[] OLD_VERTICES = {-1, -1, -1, 1, -1, -1, 1, 1, -1, -1, 1, -1, -1, -1, 1, 1, -1, 1, 1, 1,
+      1, -1, 1, 1};
+  private static final float[] OLD_COLORS = {0, 0, 0, 1, 1, 0, 0, 1, 1, 1, 0, 1, 0, 1, 0, 1, 0, 0, 1, 1, 1, 0, 1, 1, 1,
+      1, 1, 1, 0, 1, 1, 1};
+  private static final byte[] OLD_INDICES = {0, 4, 5, 0, 5, 1, 1, 5, 6, 1, 6, 2, 2, 6, 7, 2, 7, 3, 3, 7, 4, 3, 4, 0,
+      4, 7, 6, 4, 6, 5, 3, 0, 1, 3, 1, 2};
+  /**
+   * The translations of the cubes the OpenGL ES 1 renderer drew outside-in, one call each
+   */
+  private static final float[][] OLD_OUTSIDE_IN_TRANSLATIONS = {{0, 0, -3}, {0, 0, 3}, {0, -3, 0}, {0, 3, 0},
+      {-3, 0, 0}, {3, 0, 0}, {0, 0, 0}};
+  private static final float[][] OLD_INSIDE_OUT_TRANSLATIONS = {{0, 0, 0}};
+
+  private final CubeScene scene = new CubeScene();
+  private final float[] projection = new float[16];
+  private final List<String> failures = new ArrayList<String>();
+
+  private CubeRenderingComparison() {
+    scene.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+    Matrix.frustumM(projection, 0, -(float) VIEW_WIDTH / VIEW_HEIGHT, (float) VIEW_WIDTH / VIEW_HEIGHT, -1, 1, 1, 10);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String[] providers = args.length > 0 ? args : DEFAULT_PROVIDERS;
+    CubeRenderingComparison comparison = new CubeRenderingComparison();
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS);
+
+    for (int mode = 0; mode < 2; mode++) {
+      comparison.checkMesh(mode == 0);
+    }
+    System.out.println(String.format(Locale.US, "%-36s %-12s %8s %16s %14s", "provider", "mode", "frames",
+        "max matrix diff", "max clip diff"));
+    // The corners can only be compared on a mesh that has the cubes of the old renderer
+    if (comparison.failures.isEmpty()) {
+      for (String provider : providers) {
+        comparison.run(provider.contains(".") ? provider : PROVIDER_PACKAGE + provider, stream);
+      }
+    }
+
+    // The old renderer handed the client-side arrays of the cube to OpenGL with every draw call, and drew the cube
+    // inside-out a second time
+    int oldBytesPerDraw = OLD_VERTICES.length * 4 + OLD_COLORS.length * 4 + OLD_INDICES.length;
+    System.out.println();
+    System.out.println(String.format(Locale.US, "%-12s %18s %18s %18s", "mode", "draw calls old/new",
+        "bytes/frame old", "bytes/frame new"));
+    System.out.println(String.format(Locale.US, "%-12s %18s %18d %18d", "inside-out", "2/1", 2 * oldBytesPerDraw, 64));
+    System.out.println(String.format(Locale.US, "%-12s %18s %18d %18d", "outside-in",
+        OLD_OUTSIDE_IN_TRANSLATIONS.length + "/1", OLD_OUTSIDE_IN_TRANSLATIONS.length * oldBytesPerDraw, 64));
+    System.out.println(String.format(Locale.US, "The new renderer uploads %d bytes of geometry once",
+        comparison.scene.getVertices().capacity() * 4 + comparison.scene.getIndices().capacity() * 2));
+
+    System.out.println();
+    if (!comparison.failures.isEmpty()) {
+      for (String failure : comparison.failures) {
+        System.out.println("FAILED: " + failure);
+      }
+      System.exit(1);
+    }
+    System.out.println(String.format(Locale.US, "ok: matrices within %.0e, corners within %.0e in clip coordinates",
+        MATRIX_TOLERANCE, CLIP_TOLERANCE));
+  }
+
+  /**
+   * Checks the index range of the mode and the indices and colours of its corners against the old cubes
+   */
+  private void checkMesh(boolean insideOut) {
+    String mode = insideOut ? "inside-out" : "outside-in";
+    float[][] translations = insideOut ? OLD_INSIDE_OUT_TRANSLATIONS : OLD_OUTSIDE_IN_TRANSLATIONS;
+    FloatBuffer vertices = scene.getVertices();
+    ShortBuffer indices = scene.getIndices();
+    int vertexCount = vertices.capacity() / CubeScene.FLOATS_PER_VERTEX;
+    int first = scene.getFirstIndex(insideOut);
+    int count = scene.getIndexCount(insideOut);
+    if (count != translations.length * OLD_INDICES.length) {
+      failures.add(String.format(Locale.US, "%s: %d indices instead of %d for %d cubes", mode, count,
+          translations.length * OLD_INDICES.length, translations.length));
+      return;
+    }
+    if (first < 0 || first + count > indices.capacity()) {
+      failures.add(String.format(Locale.US, "%s: indices %d to %d are outside the index buffer of %d", mode, first,
+          first + count, indices.capacity()));
+      return;
+    }
+    for (int i = first; i < first + count; i++) {
+      int vertex = indices.get(i);
+      if (vertex < 0 || vertex >= vertexCount) {
+        failures.add(String.format(Locale.US, "%s: index %d points to vertex %d of %d", mode, i, vertex,
+            vertexCount));
+        return;
+      }
+      int oldVertex = OLD_INDICES[(i - first) % OLD_INDICES.length];
+      for (int component = 0; component < 4; component++) {
+        if (vertices.get(vertex * CubeScene.FLOATS_PER_VERTEX + 3 + component)
+            != OLD_COLORS[oldVertex * 4 + component]) {
+          failures.add(String.format(Locale.US, "%s: the corner of index %d has another colour than the old cube",
+              mode, i));
+          return;
+        }
+      }
+    }
+  }
+
+  private void run(String className, SyntheticSensorStream stream) throws Exception {
+    Class<?> providerClass = Class.forName(className);
+    OrientationProvider provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+        .newInstance(new SensorManager());
+    Quaternion quaternion = new Quaternion();
+    float[] rotationVector = new float[4];
+    float[] rotation = new float[16];
+    float[] oldMatrix = new float[16];
+
+    double[] maxMatrixDifference = new double[2];
+    double[] maxClipDifference = new double[2];
+    int frames = 0;
+    for (int i = 0; i < stream.size(); i++) {
+      stream.replay(provider, i, i + 1);
+      if (i % CHECK_INTERVAL != 0) {
+        continue;
+      }
+      provider.getQuaternion(quaternion);
+      float norm = (float) Math.sqrt(quaternion.getX() * quaternion.getX() + quaternion.getY() * quaternion.getY()
+          + quaternion.getZ() * quaternion.getZ() + quaternion.getW() * quaternion.getW());
+      quaternion.setXYZW(quaternion.getX() / norm, quaternion.getY() / norm, quaternion.getZ() / norm,
+          quaternion.getW() / norm);
+      // The matrix the provider publishes for the quaternion, which it stores with an inverted w
+      rotationVector[0] = quaternion.getX();
+      rotationVector[1] = quaternion.getY();
+      rotationVector[2] = quaternion.getZ();
+      rotationVector[3] = -quaternion.getW();
+      SensorManager.getRotationMatrixFromVector(rotation, rotationVector);
+
+      for (int mode = 0; mode < 2; mode++) {
+        boolean insideOut = mode == 0;
+        float[] newMatrix = scene.getModelViewProjection(rotation, insideOut);
+        oldModelViewProjection(quaternion, insideOut, oldMatrix);
+        double matrixDifference = 0;
+        for (int element = 0; element < 16; element++) {
+          matrixDifference = Math.max(matrixDifference, Math.abs(newMatrix[element] - oldMatrix[element]));
+        }
+        maxMatrixDifference[mode] = Math.max(maxMatrixDifference[mode], matrixDifference);
+        maxClipDifference[mode] = Math.max(maxClipDifference[mode], compareCorners(oldMatrix, insideOut,
+            newMatrix));
+      }
+      frames++;
+    }
+
+    for (int mode = 0; mode < 2; mode++) {
+      String modeName = mode == 0 ? "inside-out" : "outside-in";
+      System.out.println(String.format(Locale.US, "%-36s %-12s %8d %16.2e %14.2e",
+          mode == 0 ? providerClass.getSimpleName() : "", modeName, frames, maxMatrixDifference[mode],
+          maxClipDifference[mode]));
+      if (maxMatrixDifference[mode] > MATRIX_TOLERANCE) {
+        failures.add(String.format(Locale.US, "%s %s: matrix differs by %.2e", providerClass.getSimpleName(),
+            modeName, maxMatrixDifference[mode]));
+      }
+      if (maxClipDifference[mode] > CLIP_TOLERANCE) {
+        failures.add(String.format(Locale.US, "%s %s: corners differ by %.2e in clip coordinates",
+            providerClass.getSimpleName(), modeName, maxClipDifference[mode]));
+      }
+    }
+  }
+
+  /**
+   * Computes the projection times model-view matrix of the old renderer, before the translation of a cube
+   */
+  private void oldModelViewProjection(Quaternion q, boolean insideOut, float[] output) {
+    float[] modelView = new float[16];
+    Matrix.setIdentityM(modelView, 0);
+    if (insideOut) {
+      Matrix.translateM(modelView, 0, 0, 0, -3);
+    }
+    // glRotatef leaves the matrix as it is for a zero axis, e.g. before the first sample
+    if (Matrix.length(q.getX(), q.getY(), q.getZ()) > 0) {
+      double w = Math.max(-1, Math.min(1, q.getW()));
+      Matrix.rotateM(modelView, 0, (float) (2.0f * Math.acos(w) * 180.0f / Math.PI), q.getX(), q.getY(), q.getZ());
+    }
+    Matrix.multiplyMM(output, 0, projection, 0, modelView, 0);
+  }
+
+  /**
+   * @return The largest distance in clip coordinates between a corner of a triangle drawn by the old renderer and the
+   * same corner drawn from the merged mesh
+   */
+  private double compareCorners(float[] oldMatrix, boolean insideOut, float[] newMatrix) {
+    float[][] translations = insideOut ? OLD_INSIDE_OUT_TRANSLATIONS : OLD_OUTSIDE_IN_TRANSLATIONS;
+    FloatBuffer vertices = scene.getVertices();
+    ShortBuffer indices = scene.getIndices();
+    int firstIndex = scene.getFirstIndex(insideOut);
+
+    double maxDifference = 0;
+    float[] cubeMatrix = new float[16];
+    float[] position = new float[4];
+    float[] oldCorner = new float[4];
+    float[] newCorner = new float[4];
+    for (int cube = 0; cube < translations.length; cube++) {
+      Matrix.translateM(cubeMatrix, 0, oldMatrix, 0, translations[cube][0], translations[cube][1],
+          translations[cube][2]);
+      for (int corner = 0; corner < OLD_INDICES.length; corner++) {
+        int oldVertex = OLD_INDICES[corner];
+        position[0] = OLD_VERTICES[oldVertex * 3];
+        position[1] = OLD_VERTICES[oldVertex * 3 + 1];
+        position[2] = OLD_VERTICES[oldVertex * 3 + 2];
+        position[3] = 1;
+        Matrix.multiplyMV(oldCorner, 0, cubeMatrix, 0, position, 0);
+
+        int offset = indices.get(firstIndex + cube * OLD_INDICES.length + corner) * CubeScene.FLOATS_PER_VERTEX;
+        position[0] = vertices.get(offset);
+        position[1] = vertices.get(offset + 1);
+        position[2] = vertices.get(offset + 2);
+        position[3] = 1;
+        Matrix.multiplyMV(newCorner, 0, newMatrix, 0, position, 0);
+
+        double squares = 0;
+        for (int component = 0; component < 4; component++) {
+          squares += (oldCorner[component] - newCorner[component]) * (oldCorner[component] - newCorner[component]);
+        }
+        maxDifference = Math.max(maxDifference, Math.sqrt(squares));
+      }
+    }
+    return maxDifference;
+  }
+}
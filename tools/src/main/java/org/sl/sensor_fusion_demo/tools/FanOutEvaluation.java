@@ -0,0 +1,126 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import org.sl.sensor_fusion_demo.orientationProvider.LatencyStatistics;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorFanOut;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorSampleQueue;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Runs the providers side by side through a {@link SensorFanOut} on a {@link SyntheticSensorStream} and checks that
+ * each of them ends with the same orientation as when it runs alone on the same events, which it does exactly if it
+ * saw the same samples in the same order.
+ *
+ * The events are dispatched twice: paced at {@link #SPEEDUP} times the rate of the stream, as a device would deliver
+ * them only faster, and then all at once, which fills the queues faster than the workers can empty them. Reported are
+ * per provider the largest queue depth, the dropped samples, the mean and the largest time per sample, and whether
+ * the final orientation matches the provider running alone.
+ *
+ * Usage: FanOutEvaluation [provider class name...]; defaults to the providers that fuse the raw sensors.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class FanOutEvaluation {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] DEFAULT_PROVIDERS = {"ImprovedOrientationSensor1Provider",
+      "ImprovedOrientationSensor2Provider", "CalibratedGyroscopeProvider", "AccelerometerCompassProvider",
+      "ErrorStateKalmanFilterProvider", "MadgwickProvider", "MahonyProvider"};
+  private static final double STREAM_SECONDS = 60;
+  /**
+   * How many times faster than the stream the paced run dispatches the events
+   */
+  private static final int SPEEDUP = 10;
+  /**
+   * The accuracy of the synthetic events (SENSOR_STATUS_ACCURACY_HIGH)
+   */
+  private static final int ACCURACY = 3;
+
+  public static void main(String[] args) throws Exception {
+    String[] providers = args.length > 0 ? args : DEFAULT_PROVIDERS;
+    for (int i = 0; i < providers.length; i++) {
+      providers[i] = providers[i].contains(".") ? providers[i] : PROVIDER_PACKAGE + providers[i];
+    }
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS);
+
+    // Each provider alone, on the thread that dispatches
+    Quaternion[] expected = new Quaternion[providers.length];
+    for (int i = 0; i < providers.length; i++) {
+      SensorManager sensorManager = new SensorManager();
+      SensorEvent[] events = stream.createEvents(sensorManager, ACCURACY);
+      OrientationProvider provider = create(providers[i], sensorManager);
+      provider.setUseSensorThread(false);
+      provider.start();
+      for (SensorEvent event : events) {
+        sensorManager.dispatch(event);
+      }
+      provider.stop();
+      expected[i] = provider.getQuaternion();
+    }
+
+    run(stream, providers, expected, true);
+    run(stream, providers, expected, false);
+  }
+
+  private static void run(SyntheticSensorStream stream, String[] classNames, Quaternion[] expected, boolean paced)
+      throws Exception {
+    SensorManager sensorManager = new SensorManager();
+    SensorEvent[] events = stream.createEvents(sensorManager, ACCURACY);
+    List<OrientationProvider> providers = new ArrayList<OrientationProvider>();
+    for (String className : classNames) {
+      providers.add(create(className, sensorManager));
+    }
+    SensorFanOut fanOut = new SensorFanOut(sensorManager, providers, SensorFanOut.DEFAULT_QUEUE_CAPACITY);
+
+    fanOut.start();
+    long start = System.nanoTime();
+    for (SensorEvent event : events) {
+      if (paced) {
+        long due = start + (event.timestamp - events[0].timestamp) / SPEEDUP;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+      }
+      sensorManager.dispatch(event);
+    }
+    long dispatchNs = System.nanoTime() - start;
+    fanOut.stop();
+
+    System.out.println();
+    System.out.println(String.format(Locale.US, "%d events of %.0f s %s in %.2f s (%.0f events/s), %d providers",
+        events.length, STREAM_SECONDS, paced ? "paced at " + SPEEDUP + "x" : "at once", dispatchNs / 1e9,
+        events.length / (dispatchNs / 1e9), providers.size()));
+    System.out.println(String.format(Locale.US, "%-36s %10s %9s %9s %18s %13s", "provider", "samples", "max queue",
+        "dropped", "us/sample mean/max", "same as alone"));
+    Quaternion actual = new Quaternion();
+    for (int i = 0; i < fanOut.getProviderCount(); i++) {
+      SensorSampleQueue queue = fanOut.getQueue(i);
+      LatencyStatistics processing = fanOut.getProcessingTime(i);
+      fanOut.getProvider(i).getQuaternion(actual);
+      boolean same = actual.getX() == expected[i].getX() && actual.getY() == expected[i].getY()
+          && actual.getZ() == expected[i].getZ() && actual.getW() == expected[i].getW();
+      System.out.println(String.format(Locale.US, "%-36s %10d %5d/%3d %9d %9.1f / %6.0f %13s",
+          fanOut.getProvider(i).getClass().getSimpleName(), processing.getCount(), queue.getMaxSize(),
+          queue.getCapacity(), queue.getDropped(), processing.getMeanNs() / 1e3, processing.getMaxNs() / 1e3,
+          same ? "yes" : queue.getDropped() > 0 ? "no (drops)" : "NO"));
+    }
+  }
+
+  /**
+   * @return A new provider whose magnetometer calibration is solved on the fusion thread, so that its orientation
+   * only depends on the samples and not on the timing of a background solver
+   */
+  private static OrientationProvider create(String className, SensorManager sensorManager) throws Exception {
+    OrientationProvider provider = (OrientationProvider) Class.forName(className)
+        .getConstructor(SensorManager.class).newInstance(sensorManager);
+    provider.getMagnetometerCalibrator().setUseBackgroundThread(false);
+    return provider;
+  }
+}
@@ -0,0 +1,618 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorManager;
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import org.sl.sensor_fusion_demo.orientationProvider.ImprovedOrientationSensor1Provider;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.RotationVectorFusionConfig;
+import org.sl.sensor_fusion_demo.trace.ColumnarTraceFormat;
+import org.sl.sensor_fusion_demo.trace.SensorTraceFormat;
+
+/**
+ * Searches for the {@link RotationVectorFusionConfig} with which {@link ImprovedOrientationSensor1Provider} or
+ * ImprovedOrientationSensor2Provider is most accurate on recordings with reference orientations (see
+ * {@link ReferenceTrace}), and ranks the configurations by their error and their CPU cost.
+ *
+ * The recordings are decoded once and kept in memory; every candidate configuration replays the same decoded events.
+ * The replays of a batch of candidates run in parallel on a ForkJoinPool, one task per candidate and recording, which
+ * share nothing but the read-only recordings. The error of a candidate is the RMS error over all recordings as
+ * {@link ProviderAccuracy} measures it, its cost the CPU time per sensor event.
+ *
+ * The search covers the interpolation weight on a logarithmic scale, the outlier threshold, the outlier panic
+ * threshold as a fraction of the outlier threshold, and the panic threshold on a logarithmic scale:
+ * <ul>
+ * <li>grid: every combination of {@link #GRID_LEVELS} values per parameter</li>
+ * <li>random: uniformly random candidates</li>
+ * <li>bayesian: random candidates first, then batches of the candidates with the largest expected improvement of
+ * the logarithm of the error under a Gaussian process fitted to the candidates so far. Within a batch, each chosen
+ * candidate is assumed to score the predicted error, so that the next one is chosen elsewhere.</li>
+ * </ul>
+ * The defaults of the provider are always evaluated as well, and shown with their rank.
+ *
+ * Usage: FusionParameterTuner [directory | --synthetic count seconds] [--provider name] [--search grid|random|bayesian]
+ * [--candidates n] [--batch n] [--threads n] [--seed n]; defaults to 8 synthetic recordings of 60 s, which are created
+ * in memory, ImprovedOrientationSensor1Provider and a bayesian search of 64 candidates.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class FusionParameterTuner {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String DEFAULT_PROVIDER = "ImprovedOrientationSensor1Provider";
+  private static final int SYNTHETIC_RECORDINGS = 8;
+  private static final double SYNTHETIC_SECONDS = 60;
+  /**
+   * The accuracy of the synthetic events (SENSOR_STATUS_ACCURACY_HIGH)
+   */
+  private static final int SYNTHETIC_ACCURACY = 3;
+  private static final int DEFAULT_CANDIDATES = 64;
+  /**
+   * The values per parameter of the grid search: interpolation weight, outlier threshold, outlier panic threshold
+   * and panic threshold
+   */
+  private static final int[] GRID_LEVELS = {6, 3, 3, 3};
+  /**
+   * The ranges of the interpolation weight per provider; the weight of ImprovedOrientationSensor2Provider is
+   * multiplied by a rotation velocity of up to about 25
+   */
+  private static final float[] DIRECT_WEIGHT_RANGE = {0.0005f, 0.2f};
+  private static final float[] VELOCITY_WEIGHT_RANGE = {0.0005f, 0.04f};
+  private static final float[] OUTLIER_RANGE = {0.5f, 0.99f};
+  private static final float[] PANIC_FRACTION_RANGE = {0.5f, 1};
+  private static final int[] PANIC_RANGE = {5, 200};
+  /**
+   * The random points the expected improvement is evaluated at for each candidate of the bayesian search
+   */
+  private static final int EXPECTED_IMPROVEMENT_SAMPLES = 2000;
+  /**
+   * The length scale of the squared exponential kernel on the parameters scaled to [0, 1], and the noise variance
+   * of the standardised errors
+   */
+  private static final double KERNEL_LENGTH = 0.25;
+  private static final double KERNEL_NOISE = 1e-3;
+  private static final int SHOWN_CANDIDATES = 10;
+
+  private final List<ReferenceTrace> traces;
+  private final Constructor<?> providerConstructor;
+  private final float[] weightRange;
+  private final ForkJoinPool pool;
+  private final List<Candidate> evaluated = new ArrayList<Candidate>();
+
+  private FusionParameterTuner(List<ReferenceTrace> traces, Class<?> providerClass, ForkJoinPool pool)
+      throws NoSuchMethodException {
+    this.traces = traces;
+    this.pool = pool;
+    providerConstructor = providerClass.getConstructor(SensorManager.class, RotationVectorFusionConfig.class);
+    weightRange = providerClass == ImprovedOrientationSensor1Provider.class ? DIRECT_WEIGHT_RANGE
+        : VELOCITY_WEIGHT_RANGE;
+  }
+
+  public static void main(String[] args) throws Exception {
+    File directory = null;
+    int syntheticRecordings = SYNTHETIC_RECORDINGS;
+    double syntheticSeconds = SYNTHETIC_SECONDS;
+    String provider = DEFAULT_PROVIDER;
+    String search = "bayesian";
+    int candidates = DEFAULT_CANDIDATES;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int batch = 0;
+    long seed = 42;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--synthetic")) {
+        syntheticRecordings = Integer.parseInt(args[++i]);
+        syntheticSeconds = Double.parseDouble(args[++i]);
+      } else if (args[i].equals("--provider")) {
+        provider = args[++i];
+      } else if (args[i].equals("--search")) {
+        search = args[++i];
+      } else if (args[i].equals("--candidates")) {
+        candidates = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--batch")) {
+        batch = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--threads")) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--seed")) {
+        seed = Long.parseLong(args[++i]);
+      } else {
+        directory = new File(args[i]);
+      }
+    }
+    if (!search.equals("grid") && !search.equals("random") && !search.equals("bayesian")) {
+      System.err.println("Usage: FusionParameterTuner [directory | --synthetic count seconds] [--provider name] "
+          + "[--search grid|random|bayesian] [--candidates n] [--batch n] [--threads n] [--seed n]");
+      System.exit(1);
+    }
+    // A batch keeps every thread busy with a few candidates, as the recordings take different times
+    batch = batch > 0 ? batch : Math.max(4, threads);
+    Class<?> providerClass = Class.forName(provider.contains(".") ? provider : PROVIDER_PACKAGE + provider);
+    RotationVectorFusionConfig defaults = (RotationVectorFusionConfig) providerClass.getField("DEFAULT_CONFIG")
+        .get(null);
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      long start = System.nanoTime();
+      List<ReferenceTrace> traces = directory != null ? read(directory, pool)
+          : create(syntheticRecordings, syntheticSeconds, pool);
+      long events = 0;
+      long references = 0;
+      for (ReferenceTrace trace : traces) {
+        events += trace.getEventCount();
+        references += trace.getReferenceCount();
+      }
+      System.out.println(String.format(Locale.US, "%d recordings, %d events, %d reference orientations, loaded in "
+          + "%.2f s", traces.size(), events, references, (System.nanoTime() - start) / 1e9));
+
+      FusionParameterTuner tuner = new FusionParameterTuner(traces, providerClass, pool);
+      // Lets the JIT compile the fusion code, so the CPU cost of the first candidates is comparable
+      tuner.evaluate(Collections.singletonList(new Candidate(defaults, tuner.toPoint(defaults))));
+      tuner.evaluated.clear();
+
+      start = System.nanoTime();
+      Candidate baseline = new Candidate(defaults, tuner.toPoint(defaults));
+      tuner.evaluate(Collections.singletonList(baseline));
+      Random random = new Random(seed);
+      if (search.equals("grid")) {
+        tuner.searchGrid();
+      } else if (search.equals("random")) {
+        tuner.searchRandom(candidates, batch, random);
+      } else {
+        tuner.searchBayesian(candidates, batch, random);
+      }
+      long elapsed = System.nanoTime() - start;
+
+      tuner.report(providerClass, baseline);
+      int replays = tuner.evaluated.size() * traces.size();
+      System.out.println(String.format(Locale.US, "%s search, %d candidates, %d replays on %d threads in %.2f s "
+          + "(%.1f replays/s)", search, tuner.evaluated.size(), replays, threads, elapsed / 1e9,
+          replays / (elapsed / 1e9)));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Decodes every recording of a directory in parallel
+   */
+  private static List<ReferenceTrace> read(File directory, ForkJoinPool pool) throws Exception {
+    File[] files = directory.listFiles();
+    List<Callable<ReferenceTrace>> tasks = new ArrayList<Callable<ReferenceTrace>>();
+    if (files != null) {
+      Arrays.sort(files);
+      for (final File file : files) {
+        if (file.getName().endsWith(SensorTraceFormat.FILE_EXTENSION)
+            || file.getName().endsWith(ColumnarTraceFormat.FILE_EXTENSION)) {
+          tasks.add(new Callable<ReferenceTrace>() {
+            @Override
+            public ReferenceTrace call() throws Exception {
+              return ReferenceTrace.read(file);
+            }
+          });
+        }
+      }
+    }
+    List<ReferenceTrace> traces = new ArrayList<ReferenceTrace>();
+    for (Future<ReferenceTrace> future : pool.invokeAll(tasks)) {
+      ReferenceTrace trace = future.get();
+      if (trace.getReferenceCount() > 0) {
+        traces.add(trace);
+      } else {
+        System.err.println(trace.getName() + ": no reference orientations, skipped");
+      }
+    }
+    if (traces.isEmpty()) {
+      throw new IllegalArgumentException("No recordings with reference orientations in " + directory);
+    }
+    return traces;
+  }
+
+  /**
+   * Creates the synthetic recordings of {@link AccuracyEvaluation} in memory in parallel
+   */
+  private static List<ReferenceTrace> create(int count, final double seconds, ForkJoinPool pool) throws Exception {
+    List<Callable<ReferenceTrace>> tasks = new ArrayList<Callable<ReferenceTrace>>();
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      tasks.add(new Callable<ReferenceTrace>() {
+        @Override
+        public ReferenceTrace call() {
+          return ReferenceTrace.from(AccuracyEvaluation.newSyntheticStream(index, seconds), SYNTHETIC_ACCURACY,
+              String.format(Locale.US, "synthetic-%03d", index));
+        }
+      });
+    }
+    List<ReferenceTrace> traces = new ArrayList<ReferenceTrace>();
+    for (Future<ReferenceTrace> future : pool.invokeAll(tasks)) {
+      traces.add(future.get());
+    }
+    return traces;
+  }
+
+  private void searchGrid() {
+    List<Candidate> candidates = new ArrayList<Candidate>();
+    int[] level = new int[GRID_LEVELS.length];
+    while (true) {
+      double[] point = new double[GRID_LEVELS.length];
+      for (int i = 0; i < point.length; i++) {
+        point[i] = GRID_LEVELS[i] > 1 ? (double) level[i] / (GRID_LEVELS[i] - 1) : 0.5;
+      }
+      candidates.add(new Candidate(toConfig(point), point));
+
+      int i = 0;
+      while (i < level.length && ++level[i] == GRID_LEVELS[i]) {
+        level[i] = 0;
+        i++;
+      }
+      if (i == level.length) {
+        break;
+      }
+    }
+    evaluate(candidates);
+  }
+
+  private void searchRandom(int count, int batch, Random random) {
+    for (int done = 0; done < count; done += batch) {
+      List<Candidate> candidates = new ArrayList<Candidate>();
+      for (int i = done; i < Math.min(count, done + batch); i++) {
+        double[] point = randomPoint(random);
+        candidates.add(new Candidate(toConfig(point), point));
+      }
+      evaluate(candidates);
+    }
+  }
+
+  private void searchBayesian(int count, int batch, Random random) {
+    // Random candidates until the Gaussian process has something to go by
+    int initial = Math.min(count, Math.max(batch, count / 4));
+    searchRandom(initial, batch, random);
+
+    for (int done = initial; done < count; done += batch) {
+      List<double[]> points = new ArrayList<double[]>();
+      List<Double> values = new ArrayList<Double>();
+      double best = Double.POSITIVE_INFINITY;
+      for (Candidate candidate : evaluated) {
+        if (!Double.isInfinite(candidate.rmsDeg)) {
+          points.add(candidate.point);
+          values.add(Math.log(candidate.rmsDeg));
+          best = Math.min(best, Math.log(candidate.rmsDeg));
+        }
+      }
+
+      List<Candidate> candidates = new ArrayList<Candidate>();
+      for (int i = done; i < Math.min(count, done + batch); i++) {
+        if (points.isEmpty()) {
+          // Nothing to fit yet, as no candidate had any errors
+          double[] point = randomPoint(random);
+          candidates.add(new Candidate(toConfig(point), point));
+          continue;
+        }
+        GaussianProcess process = new GaussianProcess(points, values);
+        double[] next = null;
+        double nextImprovement = -1;
+        double[] prediction = new double[2];
+        for (int sample = 0; sample < EXPECTED_IMPROVEMENT_SAMPLES; sample++) {
+          double[] point = randomPoint(random);
+          process.predict(point, prediction);
+          double improvement = expectedImprovement(best, prediction[0], prediction[1]);
+          if (improvement > nextImprovement) {
+            next = point;
+            nextImprovement = improvement;
+          }
+        }
+        candidates.add(new Candidate(toConfig(next), next));
+        // Believe the prediction until the batch has been evaluated
+        process.predict(next, prediction);
+        points.add(next);
+        values.add(prediction[0]);
+      }
+      evaluate(candidates);
+    }
+  }
+
+  /**
+   * @return The expected amount by which a value from the normal distribution is below the best so far
+   */
+  private static double expectedImprovement(double best, double mean, double variance) {
+    double deviation = Math.sqrt(Math.max(variance, 1e-12));
+    double improvement = best - mean;
+    double z = improvement / deviation;
+    double density = Math.exp(-z * z / 2) / Math.sqrt(2 * Math.PI);
+    return improvement * normalDistribution(z) + deviation * density;
+  }
+
+  /**
+   * @return The standard normal cumulative distribution function, from the approximation of the error function by
+   * Abramowitz and Stegun (7.1.26), which is off by less than 1.5e-7
+   */
+  private static double normalDistribution(double z) {
+    double x = Math.abs(z) / Math.sqrt(2);
+    double t = 1 / (1 + 0.3275911 * x);
+    double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027
+        + t * 1.061405429)))) * Math.exp(-x * x);
+    return z >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+  }
+
+  private static double[] randomPoint(Random random) {
+    double[] point = new double[GRID_LEVELS.length];
+    for (int i = 0; i < point.length; i++) {
+      point[i] = random.nextDouble();
+    }
+    return point;
+  }
+
+  /**
+   * @param point The parameters scaled to [0, 1]
+   * @return The configuration
+   */
+  private RotationVectorFusionConfig toConfig(double[] point) {
+    float weight = (float) (weightRange[0] * Math.pow(weightRange[1] / weightRange[0], point[0]));
+    float outlier = (float) (OUTLIER_RANGE[0] + (OUTLIER_RANGE[1] - OUTLIER_RANGE[0]) * point[1]);
+    float panicOutlier = outlier
+        * (float) (PANIC_FRACTION_RANGE[0] + (PANIC_FRACTION_RANGE[1] - PANIC_FRACTION_RANGE[0]) * point[2]);
+    int panic = (int) Math.round(PANIC_RANGE[0] * Math.pow((double) PANIC_RANGE[1] / PANIC_RANGE[0], point[3]));
+    return new RotationVectorFusionConfig(weight, outlier, Math.min(panicOutlier, outlier), panic);
+  }
+
+  /**
+   * @return The parameters of the configuration scaled to [0, 1], the inverse of {@link #toConfig(double[])}
+   */
+  private double[] toPoint(RotationVectorFusionConfig config) {
+    return new double[] {
+        Math.log(config.getInterpolationWeight() / weightRange[0]) / Math.log(weightRange[1] / weightRange[0]),
+        (config.getOutlierThreshold() - OUTLIER_RANGE[0]) / (OUTLIER_RANGE[1] - OUTLIER_RANGE[0]),
+        (config.getOutlierPanicThreshold() / config.getOutlierThreshold() - PANIC_FRACTION_RANGE[0])
+            / (PANIC_FRACTION_RANGE[1] - PANIC_FRACTION_RANGE[0]),
+        Math.log((double) config.getPanicThreshold() / PANIC_RANGE[0])
+            / Math.log((double) PANIC_RANGE[1] / PANIC_RANGE[0])};
+  }
+
+  /**
+   * Replays every recording with every candidate in parallel, and adds the candidates to the evaluated ones. A
+   * candidate with which the provider published no orientation on any recording gets an infinite error, so it is
+   * ranked last and left out of the Gaussian process.
+   */
+  private void evaluate(List<Candidate> candidates) {
+    ProviderAccuracy[][] results = new ProviderAccuracy[candidates.size()][traces.size()];
+    pool.invoke(new ReplayTask(candidates, results, 0, candidates.size() * traces.size()));
+
+    for (int c = 0; c < candidates.size(); c++) {
+      Candidate candidate = candidates.get(c);
+      double squares = 0;
+      long count = 0;
+      long cpuNs = 0;
+      long events = 0;
+      for (ProviderAccuracy result : results[c]) {
+        cpuNs += result.getCpuNs();
+        events += result.getEvents();
+        if (!result.isPublished()) {
+          continue;
+        }
+        squares += result.getRmsDeg() * result.getRmsDeg() * result.getEvaluatedCount();
+        count += result.getEvaluatedCount();
+        candidate.maxDeg = Math.max(candidate.maxDeg, result.getMaxDeg());
+        if (result.isConverged()) {
+          candidate.converged++;
+        }
+      }
+      if (count == 0) {
+        // No recording had what the provider needs to publish an orientation
+        candidate.rmsDeg = Double.POSITIVE_INFINITY;
+        candidate.maxDeg = Double.POSITIVE_INFINITY;
+      } else {
+        candidate.rmsDeg = Math.sqrt(squares / count);
+      }
+      candidate.nsPerEvent = (double) cpuNs / events;
+      evaluated.add(candidate);
+    }
+  }
+
+  private void report(Class<?> providerClass, Candidate baseline) {
+    List<Candidate> ranked = new ArrayList<Candidate>(evaluated);
+    Collections.sort(ranked, new Comparator<Candidate>() {
+      @Override
+      public int compare(Candidate a, Candidate b) {
+        return Double.compare(a.rmsDeg, b.rmsDeg);
+      }
+    });
+
+    System.out.println();
+    System.out.println(providerClass.getSimpleName() + ", ranked by RMS error; * = no other candidate is both more "
+        + "accurate and cheaper");
+    System.out.println(String.format(Locale.US, "%5s %9s %9s %9s %9s  %s", "rank", "rms deg", "max deg",
+        "converged", "ns/event", "configuration"));
+    for (int i = 0; i < ranked.size(); i++) {
+      Candidate candidate = ranked.get(i);
+      if (i < SHOWN_CANDIDATES || candidate == baseline) {
+        boolean paretoOptimal = !Double.isInfinite(candidate.rmsDeg);
+        for (Candidate other : ranked) {
+          if (other.rmsDeg < candidate.rmsDeg && other.nsPerEvent < candidate.nsPerEvent) {
+            paretoOptimal = false;
+            break;
+          }
+        }
+        System.out.println(String.format(Locale.US, "%5d %9.3f %9.3f %9s %9.0f%s %s%s", i + 1, candidate.rmsDeg,
+            candidate.maxDeg, candidate.converged + "/" + traces.size(), candidate.nsPerEvent,
+            paretoOptimal ? "*" : " ", candidate.config, candidate == baseline ? " (defaults)" : ""));
+      }
+    }
+  }
+
+  /**
+   * A configuration and, once evaluated, its errors and cost over all recordings
+   */
+  private static final class Candidate {
+    private final RotationVectorFusionConfig config;
+    /**
+     * The parameters scaled to [0, 1]
+     */
+    private final double[] point;
+    private double rmsDeg;
+    private double maxDeg;
+    private int converged;
+    private double nsPerEvent;
+
+    private Candidate(RotationVectorFusionConfig config, double[] point) {
+      this.config = config;
+      this.point = point;
+    }
+  }
+
+  /**
+   * Splits the pairs of candidate and recording from..to in halves until one is left, which it replays
+   */
+  private final class ReplayTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Candidate> candidates;
+    private final ProviderAccuracy[][] results;
+    private final int from;
+    private final int to;
+
+    private ReplayTask(List<Candidate> candidates, ProviderAccuracy[][] results, int from, int to) {
+      this.candidates = candidates;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new ReplayTask(candidates, results, from, middle), new ReplayTask(candidates, results, middle, to));
+        return;
+      }
+
+      int candidate = from / traces.size();
+      int trace = from % traces.size();
+      OrientationProvider provider;
+      try {
+        provider = (OrientationProvider) providerConstructor.newInstance(new SensorManager(),
+            candidates.get(candidate).config);
+      } catch (Exception e) {
+        throw new IllegalStateException("Cannot create " + providerConstructor.getDeclaringClass().getName(), e);
+      }
+      provider.getMagnetometerCalibrator().setUseBackgroundThread(false);
+      results[candidate][trace] = ProviderAccuracy.measure(traces.get(trace), provider, false);
+    }
+  }
+
+  /**
+   * Gaussian process regression with a squared exponential kernel on standardised values
+   */
+  private static final class GaussianProcess {
+    private final List<double[]> points;
+    private final double mean;
+    private final double deviation;
+    /**
+     * The lower triangular Cholesky factor of the kernel matrix plus noise
+     */
+    private final double[][] cholesky;
+    /**
+     * The kernel matrix plus noise inverted, times the standardised values
+     */
+    private final double[] weights;
+    private final double[] kernel;
+    private final double[] solved;
+
+    private GaussianProcess(List<double[]> points, List<Double> values) {
+      this.points = points;
+      int n = points.size();
+      double sum = 0;
+      for (double value : values) {
+        sum += value;
+      }
+      mean = sum / n;
+      double squares = 0;
+      for (double value : values) {
+        squares += (value - mean) * (value - mean);
+      }
+      deviation = squares > 0 ? Math.sqrt(squares / n) : 1;
+
+      cholesky = new double[n][n];
+      for (int i = 0; i < n; i++) {
+        for (int j = 0; j <= i; j++) {
+          double value = kernel(points.get(i), points.get(j)) + (i == j ? KERNEL_NOISE : 0);
+          for (int k = 0; k < j; k++) {
+            value -= cholesky[i][k] * cholesky[j][k];
+          }
+          cholesky[i][j] = i == j ? Math.sqrt(Math.max(value, 1e-12)) : value / cholesky[j][j];
+        }
+      }
+      weights = new double[n];
+      for (int i = 0; i < n; i++) {
+        weights[i] = (values.get(i) - mean) / deviation;
+      }
+      solveLower(weights);
+      solveUpper(weights);
+      kernel = new double[n];
+      solved = new double[n];
+    }
+
+    /**
+     * @param point The point
+     * @param output Receives the predicted mean and variance of the value at the point
+     */
+    private void predict(double[] point, double[] output) {
+      int n = points.size();
+      double prediction = 0;
+      for (int i = 0; i < n; i++) {
+        kernel[i] = kernel(point, points.get(i));
+        prediction += kernel[i] * weights[i];
+      }
+      System.arraycopy(kernel, 0, solved, 0, n);
+      solveLower(solved);
+      double variance = 1;
+      for (int i = 0; i < n; i++) {
+        variance -= solved[i] * solved[i];
+      }
+      output[0] = mean + deviation * prediction;
+      output[1] = Math.max(variance, 0) * deviation * deviation;
+    }
+
+    private static double kernel(double[] a, double[] b) {
+      double distance = 0;
+      for (int i = 0; i < a.length; i++) {
+        distance += (a[i] - b[i]) * (a[i] - b[i]);
+      }
+      return Math.exp(-distance / (2 * KERNEL_LENGTH * KERNEL_LENGTH));
+    }
+
+    /**
+     * Solves L x = b in place
+     */
+    private void solveLower(double[] vector) {
+      for (int i = 0; i < vector.length; i++) {
+        double value = vector[i];
+        for (int k = 0; k < i; k++) {
+          value -= cholesky[i][k] * vector[k];
+        }
+        vector[i] = value / cholesky[i][i];
+      }
+    }
+
+    /**
+     * Solves L^T x = b in place
+     */
+    private void solveUpper(double[] vector) {
+      for (int i = vector.length - 1; i >= 0; i--) {
+        double value = vector[i];
+        for (int k = i + 1; k < vector.length; k++) {
+          value -= cholesky[k][i] * vector[k];
+        }
+        vector[i] = value / cholesky[i][i];
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorManager;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.CalibratedGyroscopeProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.GyroscopeBiasEstimator;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Evaluates the online gyroscope bias calibration ({@link GyroscopeBiasEstimator}) on a biased gyroscope.
+ *
+ * The {@link SyntheticSensorStream} alternates between motion and stillness and adds a constant bias to the
+ * gyroscope. Every provider that uses the gyroscope runs with and without the calibration. For the
+ * {@link CalibratedGyroscopeProvider}, which only integrates the gyroscope, the error is the drift from the true
+ * rotation since the start; for the others, it is the error of the absolute orientation. Reported are the final and
+ * the RMS error, and the estimated bias at the end.
+ *
+ * Usage: GyroscopeBiasEvaluation [provider class name...]; defaults to all providers that use a gyroscope.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class GyroscopeBiasEvaluation {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] DEFAULT_PROVIDERS = {"CalibratedGyroscopeProvider",
+      "ImprovedOrientationSensor1Provider", "ImprovedOrientationSensor2Provider", "ErrorStateKalmanFilterProvider",
+      "MadgwickProvider", "MahonyProvider"};
+  private static final float[] GYROSCOPE_BIAS = {0.02f, -0.015f, 0.01f};
+  private static final double STREAM_SECONDS = 120;
+  private static final double MOVING_SECONDS = 10;
+  private static final double STILL_SECONDS = 10;
+
+  public static void main(String[] args) throws Exception {
+    String[] providers = args.length > 0 ? args : DEFAULT_PROVIDERS;
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS, GYROSCOPE_BIAS, MOVING_SECONDS,
+        STILL_SECONDS);
+    System.out.println(String.format(Locale.US, "Gyroscope bias %.3f %.3f %.3f rad/s, %.0f s, moving %.0f s / still "
+        + "%.0f s", GYROSCOPE_BIAS[0], GYROSCOPE_BIAS[1], GYROSCOPE_BIAS[2], STREAM_SECONDS, MOVING_SECONDS,
+        STILL_SECONDS));
+    System.out.println(String.format(Locale.US, "%-36s %-11s %10s %10s  %s", "provider", "calibration",
+        "final deg", "rms deg", "estimated bias rad/s"));
+
+    for (String provider : providers) {
+      String className = provider.contains(".") ? provider : PROVIDER_PACKAGE + provider;
+      run(className, stream, false);
+      run(className, stream, true);
+    }
+  }
+
+  private static void run(String className, SyntheticSensorStream stream, boolean calibrate) throws Exception {
+    Class<?> providerClass = Class.forName(className);
+    OrientationProvider provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+        .newInstance(new SensorManager());
+    GyroscopeBiasEstimator estimator = provider.getGyroscopeBiasEstimator();
+    estimator.setEnabled(calibrate);
+    boolean relative = provider instanceof CalibratedGyroscopeProvider;
+
+    Quaternion initialTruth = new Quaternion();
+    Quaternion truth = new Quaternion();
+    Quaternion estimate = new Quaternion();
+    stream.getTruth(0, initialTruth);
+    double squaredErrors = 0;
+    double error = 0;
+    for (int i = 0; i < stream.size(); i++) {
+      stream.replay(provider, i, i + 1);
+      stream.getTruth(i, truth);
+      provider.getQuaternion(estimate);
+      error = relative ? relativeError(initialTruth, truth, estimate) : angle(estimate, truth);
+      squaredErrors += error * error;
+    }
+
+    float[] bias = new float[3];
+    estimator.getBias(bias);
+    System.out.println(String.format(Locale.US, "%-36s %-11s %10.3f %10.3f  %.4f %.4f %.4f (%d of %d windows)",
+        calibrate ? "" : providerClass.getSimpleName(), calibrate ? "on" : "off", error,
+        Math.sqrt(squaredErrors / stream.size()), bias[0], bias[1], bias[2], estimator.getStationaryWindows(),
+        estimator.getWindows()));
+  }
+
+  /**
+   * @return The angle in degrees between two orientations, which need not be normalised
+   */
+  private static double angle(Quaternion a, Quaternion b) {
+    double dot = a.getX() * b.getX() + a.getY() * b.getY() + a.getZ() * b.getZ() + a.getW() * b.getW();
+    double norms = Math.sqrt((a.getX() * a.getX() + a.getY() * a.getY() + a.getZ() * a.getZ() + a.getW() * a.getW())
+        * (b.getX() * b.getX() + b.getY() * b.getY() + b.getZ() * b.getZ() + b.getW() * b.getW()));
+    return Math.toDegrees(2 * Math.acos(Math.min(1, Math.abs(dot) / norms)));
+  }
+
+  /**
+   * Computes the angle between the estimated orientation, which starts at the identity, and the true rotation since
+   * the start, initial^-1 * truth. All quaternions are in the convention of the orientation providers (x, y, z, -w).
+   *
+   * @return The angle in degrees
+   */
+  private static double relativeError(Quaternion initial, Quaternion truth, Quaternion estimate) {
+    // The conjugate of the initial orientation
+    double aw = -initial.getW();
+    double ax = -initial.getX();
+    double ay = -initial.getY();
+    double az = -initial.getZ();
+    double bw = -truth.getW();
+    double bx = truth.getX();
+    double by = truth.getY();
+    double bz = truth.getZ();
+    double w = aw * bw - ax * bx - ay * by - az * bz;
+    double x = aw * bx + ax * bw + ay * bz - az * by;
+    double y = aw * by - ax * bz + ay * bw + az * bx;
+    double z = aw * bz + ax * by - ay * bx + az * bw;
+    double dot = -estimate.getW() * w + estimate.getX() * x + estimate.getY() * y + estimate.getZ() * z;
+    double norm = Math.sqrt(estimate.getX() * estimate.getX() + estimate.getY() * estimate.getY()
+        + estimate.getZ() * estimate.getZ() + estimate.getW() * estimate.getW());
+    return Math.toDegrees(2 * Math.acos(Math.min(1, Math.abs(dot) / norm)));
+  }
+}
@@ -0,0 +1,206 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import org.sl.sensor_fusion_demo.HistoryChartVertices;
+import org.sl.sensor_fusion_demo.LargestTriangleDownsampler;
+import org.sl.sensor_fusion_demo.OrientationHistory;
+
+/**
+ * Micro-benchmark of the work the orientation history chart does on the CPU per redraw, for several history lengths:
+ * drawn by androidplot without and with the {@link LargestTriangleDownsampler}, and drawn with OpenGL from the
+ * {@link HistoryChartVertices}.
+ *
+ * The history is filled with a noisy, slowly turning angle at {@link #FRAME_RATE} entries per second, and every redraw
+ * comes after the frames of one interval of the chart's redrawer. A redraw brings the snapshot up to date. For
+ * androidplot, one series reduces it to {@link #CHART_WIDTH} points if downsampling, and reads every point as the
+ * chart's renderer does, boxed; drawing the lines on the canvas, which cannot run on the JVM, costs in proportion to
+ * the points as well. For OpenGL, the new entries are written into the vertex ring and the changed ranges are copied
+ * into an array that stands in for the vertex buffer object, as glBufferSubData would; after each redraw, the line
+ * strip that would be drawn from that array is checked against the snapshot, as in {@link HistoryChartVerticesCheck}.
+ * Reported are the median time and the bytes allocated per redraw, the number of points, how much of the range of the
+ * angle in the history the points still span, which shows whether the peaks were kept, and the bytes uploaded to the
+ * GPU per redraw.
+ *
+ * Usage: HistoryChartBenchmark [history length...]. Exits with status 1 if the vertex buffer differed from the
+ * history.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class HistoryChartBenchmark {
+
+  private static final int[] DEFAULT_LENGTHS = {300, 1000, 3600, 10000, 36000, 100000};
+  private static final int FRAME_RATE = 60;
+  private static final int REDRAW_INTERVAL_MS = 100;
+  private static final int CHART_WIDTH = 1080;
+  private static final int WARMUP_REDRAWS = 2000;
+  private static final int MEASURED_REDRAWS = 1000;
+
+  /**
+   * The boxed values of the last point read, so that the JIT cannot leave the boxing out
+   */
+  private static final Number[] drawnValues = new Number[2];
+
+  public static void main(String[] args) {
+    int[] lengths = DEFAULT_LENGTHS;
+    if (args.length > 0) {
+      lengths = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        lengths[i] = Integer.parseInt(args[i]);
+      }
+    }
+    System.out.println(String.format(Locale.US, "%d frames/s, redraw every %d ms, chart %d px wide", FRAME_RATE,
+        REDRAW_INTERVAL_MS, CHART_WIDTH));
+    System.out.println(String.format(Locale.US, "%8s %-16s %12s %14s %8s %12s %14s", "history", "chart",
+        "us/redraw", "bytes/redraw", "points", "range kept", "upload/redraw"));
+    boolean failed = false;
+    for (int length : lengths) {
+      run(length, false, false);
+      run(length, true, false);
+      failed |= !run(length, false, true);
+    }
+    if (failed) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return False if the vertex buffer differed from the history after a redraw
+   */
+  private static boolean run(int length, boolean downsample, boolean gl) {
+    OrientationHistory history = new OrientationHistory(length);
+    OrientationHistory.Snapshot snapshot = history.createSnapshot();
+    LargestTriangleDownsampler downsampler = new LargestTriangleDownsampler(snapshot, OrientationHistory.YAW);
+    if (downsample) {
+      downsampler.setMaxPoints(CHART_WIDTH);
+    }
+    HistoryChartVertices vertices = new HistoryChartVertices(length);
+    float[] vertexBuffer = new float[vertices.getVertices().capacity()];
+    int[] uploadRanges = new int[2 * HistoryChartVertices.MAX_UPLOAD_RANGES];
+    long uploaded = 0;
+    int mismatches = 0;
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    boolean measureAllocation = threads instanceof com.sun.management.ThreadMXBean;
+    Random random = new Random(42);
+    long frameNanos = 1000000000L / FRAME_RATE;
+    int framesPerRedraw = FRAME_RATE * REDRAW_INTERVAL_MS / 1000;
+
+    // Fill the history before the first redraw
+    long frame = 0;
+    for (; frame < length; frame++) {
+      addFrame(history, frame, frameNanos, random);
+    }
+
+    long[] nanos = new long[MEASURED_REDRAWS];
+    long allocated = 0;
+    int points = 0;
+    for (int redraw = 0; redraw < WARMUP_REDRAWS + MEASURED_REDRAWS; redraw++) {
+      for (int i = 0; i < framesPerRedraw; i++, frame++) {
+        addFrame(history, frame, frameNanos, random);
+      }
+
+      long bytesBefore = measureAllocation ? allocatedBytes(threads) : 0;
+      long start = System.nanoTime();
+      history.update(snapshot);
+      int uploadedBytes = 0;
+      if (gl) {
+        uploadedBytes = HistoryChartVerticesCheck.upload(snapshot, vertices, uploadRanges, vertexBuffer);
+        points = vertices.getVertexCount();
+      } else {
+        points = downsample ? draw(snapshot, downsampler) : draw(snapshot);
+      }
+      long end = System.nanoTime();
+      long bytesAfter = measureAllocation ? allocatedBytes(threads) : 0;
+
+      if (gl && (uploadedBytes < 0 || !HistoryChartVerticesCheck.drawsSnapshot(snapshot, vertices, vertexBuffer))) {
+        mismatches++;
+      }
+      if (redraw >= WARMUP_REDRAWS) {
+        nanos[redraw - WARMUP_REDRAWS] = end - start;
+        allocated += bytesAfter - bytesBefore;
+        uploaded += uploadedBytes;
+      }
+    }
+
+    Arrays.sort(nanos);
+    String bytes = measureAllocation ? String.format(Locale.US, "%.0f", (double) allocated / MEASURED_REDRAWS) : "n/a";
+    double rangeKept = downsample ? 100 * rangeKept(snapshot, downsampler) : 100;
+    String chart = gl ? "opengl" : downsample ? "androidplot lttb" : "androidplot";
+    System.out.println(String.format(Locale.US, "%8d %-16s %12.1f %14s %8d %11.1f%% %14s", length, chart,
+        nanos[MEASURED_REDRAWS / 2] / 1e3, bytes, points, rangeKept,
+        gl ? String.format(Locale.US, "%.0f", (double) uploaded / MEASURED_REDRAWS) : "-"));
+    if (mismatches > 0) {
+      System.out.println(String.format(Locale.US, "FAILED: the vertex buffer differed from the history in %d redraws",
+          mismatches));
+      return false;
+    }
+    return true;
+  }
+
+  private static void addFrame(OrientationHistory history, long frame, long frameNanos, Random random) {
+    double t = frame / (double) FRAME_RATE;
+    float yaw = (float) (Math.sin(0.5 * t) + 0.3 * Math.sin(3.1 * t) + 0.02 * random.nextGaussian());
+    history.add(frame * frameNanos, yaw, 0, 0);
+  }
+
+  /**
+   * Reads every entry of the snapshot like the renderer, which boxes the x and y value of each point
+   *
+   * @return The number of points
+   */
+  private static int draw(OrientationHistory.Snapshot snapshot) {
+    long latest = snapshot.getLatestTimestamp();
+    for (int i = 0; i < snapshot.size(); i++) {
+      Number x = (snapshot.getTimestamp(i) - latest) / 1e9f;
+      Number y = (float) Math.toDegrees(snapshot.getAngle(i, OrientationHistory.YAW));
+      drawnValues[0] = x;
+      drawnValues[1] = y;
+    }
+    return snapshot.size();
+  }
+
+  /**
+   * Reduces the snapshot and reads every point like the renderer
+   *
+   * @return The number of points
+   */
+  private static int draw(OrientationHistory.Snapshot snapshot, LargestTriangleDownsampler downsampler) {
+    downsampler.update();
+    long latest = snapshot.getLatestTimestamp();
+    for (int i = 0; i < downsampler.size(); i++) {
+      int index = downsampler.getIndex(i);
+      Number x = (snapshot.getTimestamp(index) - latest) / 1e9f;
+      Number y = (float) Math.toDegrees(snapshot.getAngle(index, OrientationHistory.YAW));
+      drawnValues[0] = x;
+      drawnValues[1] = y;
+    }
+    return downsampler.size();
+  }
+
+  /**
+   * @return The range of the angle at the points divided by its range in the whole snapshot
+   */
+  private static double rangeKept(OrientationHistory.Snapshot snapshot, LargestTriangleDownsampler downsampler) {
+    float min = Float.MAX_VALUE;
+    float max = -Float.MAX_VALUE;
+    for (int i = 0; i < snapshot.size(); i++) {
+      min = Math.min(min, snapshot.getAngle(i, OrientationHistory.YAW));
+      max = Math.max(max, snapshot.getAngle(i, OrientationHistory.YAW));
+    }
+    float pointMin = Float.MAX_VALUE;
+    float pointMax = -Float.MAX_VALUE;
+    for (int point = 0; point < downsampler.size(); point++) {
+      float value = snapshot.getAngle(downsampler.getIndex(point), OrientationHistory.YAW);
+      pointMin = Math.min(pointMin, value);
+      pointMax = Math.max(pointMax, value);
+    }
+    return (pointMax - pointMin) / (max - min);
+  }
+
+  private static long allocatedBytes(ThreadMXBean threads) {
+    return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,159 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import org.sl.sensor_fusion_demo.HistoryChartVertices;
+import org.sl.sensor_fusion_demo.OrientationHistory;
+
+/**
+ * Checks that the vertex buffer the OpenGL history chart draws from always holds the history, when only the ranges
+ * returned by {@link HistoryChartVertices#takeUploadRanges(int[])} are uploaded to it.
+ *
+ * For several history lengths, starting with an empty history, a random number of entries is added before every
+ * redraw: mostly a few, sometimes none, and sometimes more than the history keeps. Now and then the time jumps ahead,
+ * so that the vertices are rebased, and the GL context is lost, which leaves the vertex buffer undefined until it is
+ * uploaded again. After every redraw, the changed ranges are copied into an array that stands in for the vertex
+ * buffer object, as glBufferSubData would, and the line strip that would be drawn from it is compared with the
+ * snapshot. The ranges also have to lie within the buffer.
+ *
+ * Usage: HistoryChartVerticesCheck. Exits with status 1 if a check fails.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class HistoryChartVerticesCheck {
+
+  private static final int[] LENGTHS = {1, 2, 7, 300, 3600};
+  private static final int REDRAWS = 2000;
+  private static final long FRAME_NS = 1000000000L / 60;
+  /**
+   * The time the history jumps ahead by now and then, so that the oldest entry passes the rebase threshold every few
+   * jumps
+   */
+  private static final long JUMP_NS = HistoryChartVertices.REBASE_NS / 3;
+  /**
+   * The largest difference in seconds between the time of a vertex after the oldest one and that of its entry
+   */
+  private static final double TIME_TOLERANCE = 1e-3;
+
+  public static void main(String[] args) {
+    boolean failed = false;
+    for (int length : LENGTHS) {
+      failed |= !check(length);
+    }
+    if (failed) {
+      System.exit(1);
+    }
+    System.out.println("ok");
+  }
+
+  /**
+   * @return True if the vertex buffer held the history after every redraw
+   */
+  private static boolean check(int length) {
+    OrientationHistory history = new OrientationHistory(length);
+    OrientationHistory.Snapshot snapshot = history.createSnapshot();
+    HistoryChartVertices vertices = new HistoryChartVertices(length);
+    float[] vertexBuffer = new float[vertices.getVertices().capacity()];
+    int[] ranges = new int[2 * HistoryChartVertices.MAX_UPLOAD_RANGES];
+    Random random = new Random(length);
+
+    long timestamp = 0;
+    long uploaded = 0;
+    int rebases = 0;
+    int contextLosses = 0;
+    String failure = null;
+    for (int redraw = 0; redraw < REDRAWS && failure == null; redraw++) {
+      int added;
+      int kind = random.nextInt(20);
+      if (kind == 0) {
+        added = 0;
+      } else if (kind == 1) {
+        added = length + random.nextInt(2 * length + 1);
+      } else {
+        added = 1 + random.nextInt(Math.min(length, 8));
+      }
+      if (random.nextInt(100) == 0) {
+        timestamp += JUMP_NS;
+        rebases++;
+      }
+      for (int i = 0; i < added; i++) {
+        timestamp += FRAME_NS;
+        history.add(timestamp, random.nextFloat(), random.nextFloat(), random.nextFloat());
+      }
+      if (random.nextInt(100) == 0) {
+        Arrays.fill(vertexBuffer, Float.NaN);
+        vertices.invalidate();
+        contextLosses++;
+      }
+
+      history.update(snapshot);
+      int bytes = upload(snapshot, vertices, ranges, vertexBuffer);
+      if (bytes < 0) {
+        failure = String.format(Locale.US, "redraw %d: an upload range lies outside of the %d floats of the buffer",
+            redraw, vertexBuffer.length);
+      } else if (snapshot.size() > 0 && !drawsSnapshot(snapshot, vertices, vertexBuffer)) {
+        failure = String.format(Locale.US, "redraw %d: the line strip of %d vertices from %d differs from the %d "
+            + "entries of the history", redraw, vertices.getVertexCount(), vertices.getFirstVertex(), snapshot.size());
+      }
+      uploaded += Math.max(bytes, 0);
+    }
+
+    System.out.println(String.format(Locale.US, "history %5d: %d redraws, %d time jumps, %d context losses, %.0f "
+        + "bytes/redraw uploaded %s", length, REDRAWS, rebases, contextLosses, (double) uploaded / REDRAWS,
+        failure == null ? "ok" : "FAILED"));
+    if (failure != null) {
+      System.out.println("FAILED: history " + length + ", " + failure);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Adds the new entries to the vertex ring and copies the changed ranges into the stand-in for the vertex buffer
+   *
+   * @return The number of bytes copied, or -1 if a range lies outside of the buffer
+   */
+  static int upload(OrientationHistory.Snapshot snapshot, HistoryChartVertices vertices, int[] ranges,
+      float[] vertexBuffer) {
+    vertices.update(snapshot);
+    FloatBuffer source = vertices.getVertices();
+    int uploaded = 0;
+    int count = vertices.takeUploadRanges(ranges);
+    for (int i = 0; i < count; i++) {
+      int first = ranges[2 * i] * HistoryChartVertices.FLOATS_PER_VERTEX;
+      int floats = ranges[2 * i + 1] * HistoryChartVertices.FLOATS_PER_VERTEX;
+      if (first < 0 || floats < 0 || first + floats > vertexBuffer.length) {
+        return -1;
+      }
+      source.position(first);
+      source.get(vertexBuffer, first, floats);
+      uploaded += floats * 4;
+    }
+    return uploaded;
+  }
+
+  /**
+   * @return True if the line strip drawn from the vertex buffer has the angles of the snapshot, at times that are
+   * spaced like the timestamps of the snapshot
+   */
+  static boolean drawsSnapshot(OrientationHistory.Snapshot snapshot, HistoryChartVertices vertices,
+      float[] vertexBuffer) {
+    if (vertices.getVertexCount() != snapshot.size()) {
+      return false;
+    }
+    int first = vertices.getFirstVertex() * HistoryChartVertices.FLOATS_PER_VERTEX;
+    for (int i = 0; i < snapshot.size(); i++) {
+      int offset = first + i * HistoryChartVertices.FLOATS_PER_VERTEX;
+      double expectedTime = (snapshot.getTimestamp(i) - snapshot.getTimestamp(0)) / 1e9;
+      if (!(Math.abs(vertexBuffer[offset] - vertexBuffer[first] - expectedTime) <= TIME_TOLERANCE)
+          || vertexBuffer[offset + 1 + OrientationHistory.YAW] != snapshot.getAngle(i, OrientationHistory.YAW)
+          || vertexBuffer[offset + 1 + OrientationHistory.PITCH] != snapshot.getAngle(i, OrientationHistory.PITCH)
+          || vertexBuffer[offset + 1 + OrientationHistory.ROLL] != snapshot.getAngle(i, OrientationHistory.ROLL)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,140 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import java.util.Arrays;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.CalibratedGyroscopeProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.GyroscopeIntegrationScheme;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Compares the drift and the cost of the {@link GyroscopeIntegrationScheme gyroscope integration schemes}.
+ *
+ * The gyroscope samples of the {@link SyntheticSensorStream} (200 Hz) are thinned out to lower rates and replayed into
+ * a {@link CalibratedGyroscopeProvider} per scheme, which integrates nothing but the gyroscope. After every sample its
+ * orientation is compared with the true rotation since the first sample; the final, RMS and maximum angle between them
+ * are reported. The cost is the median time per gyroscope update of the measured rounds, after warm-up rounds that let
+ * the JIT compile the integration.
+ *
+ * Usage: IntegrationSchemeComparison [seconds]; defaults to 60 seconds.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class IntegrationSchemeComparison {
+
+  private static final int[] RATES = {200, 100, 50, 25};
+  private static final int STREAM_RATE = 200;
+  private static final int WARMUP_ROUNDS = 10;
+  private static final int MEASURED_ROUNDS = 15;
+
+  public static void main(String[] args) {
+    double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 60;
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, seconds);
+    System.out.println(String.format(Locale.US, "%d gyroscope samples over %.0f s", stream.getGyroscopeSamples(),
+        seconds));
+    System.out.println(String.format(Locale.US, "%8s %-14s %10s %10s %10s %12s", "rate Hz", "scheme", "final deg",
+        "rms deg", "max deg", "ns/update"));
+
+    for (int rate : RATES) {
+      int[] samples = gyroscopeSamples(stream, STREAM_RATE / rate);
+      for (GyroscopeIntegrationScheme scheme : GyroscopeIntegrationScheme.values()) {
+        run(stream, samples, rate, scheme);
+      }
+    }
+  }
+
+  private static void run(SyntheticSensorStream stream, int[] samples, int rate, GyroscopeIntegrationScheme scheme) {
+    // The samples in replay order, so that the timed loop only calls the provider
+    long[] timestamps = new long[samples.length];
+    float[][] values = new float[samples.length][3];
+    for (int i = 0; i < samples.length; i++) {
+      timestamps[i] = stream.getTimestamp(samples[i]);
+      stream.getValues(samples[i], values[i]);
+    }
+
+    // Accuracy
+    SensorManager sensorManager = new SensorManager();
+    CalibratedGyroscopeProvider provider = new CalibratedGyroscopeProvider(sensorManager);
+    provider.setIntegrationScheme(scheme);
+    Quaternion initialTruth = new Quaternion();
+    Quaternion truth = new Quaternion();
+    Quaternion estimate = new Quaternion();
+    stream.getTruth(samples[0], initialTruth);
+    double squaredErrors = 0;
+    double maxError = 0;
+    double error = 0;
+    for (int i = 0; i < samples.length; i++) {
+      provider.onSensorSample(Sensor.TYPE_GYROSCOPE, timestamps[i], values[i]);
+      if (i > 0) {
+        stream.getTruth(samples[i], truth);
+        provider.getQuaternion(estimate);
+        error = relativeError(initialTruth, truth, estimate);
+        squaredErrors += error * error;
+        maxError = Math.max(maxError, error);
+      }
+    }
+
+    // Cost
+    long[] nanos = new long[MEASURED_ROUNDS];
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+      provider = new CalibratedGyroscopeProvider(sensorManager);
+      provider.setIntegrationScheme(scheme);
+      long start = System.nanoTime();
+      for (int i = 0; i < samples.length; i++) {
+        provider.onSensorSample(Sensor.TYPE_GYROSCOPE, timestamps[i], values[i]);
+      }
+      long end = System.nanoTime();
+      if (round >= WARMUP_ROUNDS) {
+        nanos[round - WARMUP_ROUNDS] = end - start;
+      }
+    }
+    Arrays.sort(nanos);
+
+    System.out.println(String.format(Locale.US, "%8d %-14s %10.4f %10.4f %10.4f %12.1f", rate, scheme, error,
+        Math.sqrt(squaredErrors / (samples.length - 1)), maxError,
+        (double) nanos[MEASURED_ROUNDS / 2] / samples.length));
+  }
+
+  /**
+   * @return The indices of every n-th gyroscope sample of the stream
+   */
+  private static int[] gyroscopeSamples(SyntheticSensorStream stream, int n) {
+    int[] samples = new int[(stream.getGyroscopeSamples() + n - 1) / n];
+    int count = 0;
+    int gyroscopeIndex = 0;
+    for (int i = 0; i < stream.size(); i++) {
+      if (stream.getType(i) == Sensor.TYPE_GYROSCOPE) {
+        if (gyroscopeIndex % n == 0) {
+          samples[count++] = i;
+        }
+        gyroscopeIndex++;
+      }
+    }
+    return Arrays.copyOf(samples, count);
+  }
+
+  /**
+   * Computes the angle between the estimated orientation, which starts at the identity, and the true rotation since
+   * the start, initial^-1 * truth. All quaternions are in the convention of the orientation providers (x, y, z, -w).
+   *
+   * @return The angle in degrees
+   */
+  private static double relativeError(Quaternion initial, Quaternion truth, Quaternion estimate) {
+    // The conjugate of the initial orientation
+    double aw = -initial.getW();
+    double ax = -initial.getX();
+    double ay = -initial.getY();
+    double az = -initial.getZ();
+    double bw = -truth.getW();
+    double bx = truth.getX();
+    double by = truth.getY();
+    double bz = truth.getZ();
+    double w = aw * bw - ax * bx - ay * by - az * bz;
+    double x = aw * bx + ax * bw + ay * bz - az * by;
+    double y = aw * by - ax * bz + ay * bw + az * bx;
+    double z = aw * bz + ax * by - ay * bx + az * bw;
+    double dot = Math.abs(-estimate.getW() * w + estimate.getX() * x + estimate.getY() * y + estimate.getZ() * z);
+    return Math.toDegrees(2 * Math.acos(Math.min(1, dot)));
+  }
+}
@@ -0,0 +1,205 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.MagnetometerCalibrator;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorSampleListener;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+import org.sl.sensor_fusion_demo.trace.ColumnarTrace;
+import org.sl.sensor_fusion_demo.trace.ColumnarTraceFormat;
+import org.sl.sensor_fusion_demo.trace.SensorTrace;
+
+/**
+ * Evaluates the online magnetometer calibration ({@link MagnetometerCalibrator}) on the JVM.
+ *
+ * Without arguments, the compass samples of the {@link SyntheticSensorStream} are distorted with a known hard-iron
+ * offset and soft-iron matrix. The calibration runs over them and its metrics are reported every
+ * {@link #REPORT_INTERVAL_NS}, with the error of the estimated offset; then every provider that uses the compass runs
+ * with and without the calibration, and the RMS error of the orientation after the first minute is reported. With a
+ * recorded trace, the calibration runs over its magnetometer samples and the metrics are reported in the same way.
+ * The fit is solved on the calling thread, so the results are the same every time.
+ *
+ * Usage: MagnetometerCalibrationEvaluation [trace.sftr|trace.sftc]
+ *
+ * @author Stanislav Lelyuk
+ */
+public class MagnetometerCalibrationEvaluation {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] PROVIDERS = {"AccelerometerCompassProvider", "ErrorStateKalmanFilterProvider",
+      "MadgwickProvider", "MahonyProvider"};
+  private static final float[] HARD_IRON = {25, -15, 40};
+  private static final float[] SOFT_IRON = {1.15f, 0.08f, -0.05f, 0.08f, 0.9f, 0.04f, -0.05f, 0.04f, 1.05f};
+  private static final double STREAM_SECONDS = 300;
+  private static final long REPORT_INTERVAL_NS = 20000000000L;
+  /**
+   * The orientation errors are taken after this time, in which the calibration converges
+   */
+  private static final long CONVERGENCE_NS = 60000000000L;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 1) {
+      System.err.println("Usage: MagnetometerCalibrationEvaluation [trace.sftr|trace.sftc]");
+      System.exit(1);
+    }
+    if (args.length == 1) {
+      evaluateTrace(new File(args[0]));
+      return;
+    }
+
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS);
+    stream.distortMagneticField(HARD_IRON, SOFT_IRON);
+    System.out.println(String.format(Locale.US, "Hard iron %.1f %.1f %.1f uT, soft iron %s, %.0f s",
+        HARD_IRON[0], HARD_IRON[1], HARD_IRON[2], Arrays.toString(SOFT_IRON), STREAM_SECONDS));
+    MagnetometerCalibrator calibrator = newCalibrator();
+    stream.replay(new ReportingListener(calibrator, HARD_IRON));
+    printCalibration(calibrator);
+
+    System.out.println();
+    System.out.println(String.format(Locale.US, "%-36s %-11s %10s %10s", "provider", "calibration", "final deg",
+        "rms deg"));
+    for (String provider : PROVIDERS) {
+      run(PROVIDER_PACKAGE + provider, stream, false);
+      run(PROVIDER_PACKAGE + provider, stream, true);
+    }
+  }
+
+  private static void evaluateTrace(File file) throws IOException {
+    MagnetometerCalibrator calibrator = newCalibrator();
+    ReportingListener listener = new ReportingListener(calibrator, null);
+    if (readMagic(file) == ColumnarTraceFormat.MAGIC) {
+      ColumnarTrace trace = ColumnarTrace.open(file);
+      try {
+        trace.stream(Long.MIN_VALUE, Long.MAX_VALUE, listener, 0);
+      } finally {
+        trace.close();
+      }
+    } else {
+      SensorTrace.read(file).replay(listener);
+    }
+    printCalibration(calibrator);
+  }
+
+  private static MagnetometerCalibrator newCalibrator() {
+    MagnetometerCalibrator calibrator = new MagnetometerCalibrator();
+    calibrator.setUseBackgroundThread(false);
+    return calibrator;
+  }
+
+  private static void printCalibration(MagnetometerCalibrator calibrator) {
+    float[] offset = new float[3];
+    float[] matrix = new float[9];
+    calibrator.getOffset(offset);
+    calibrator.getSoftIronMatrix(matrix);
+    System.out.println(calibrator);
+    System.out.println(String.format(Locale.US, "Offset %.2f %.2f %.2f uT, soft iron correction %s", offset[0],
+        offset[1], offset[2], Arrays.toString(matrix)));
+  }
+
+  private static void run(String className, SyntheticSensorStream stream, boolean calibrate) throws Exception {
+    Class<?> providerClass = Class.forName(className);
+    OrientationProvider provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+        .newInstance(new SensorManager());
+    MagnetometerCalibrator calibrator = provider.getMagnetometerCalibrator();
+    calibrator.setEnabled(calibrate);
+    calibrator.setUseBackgroundThread(false);
+
+    Quaternion truth = new Quaternion();
+    Quaternion estimate = new Quaternion();
+    long start = stream.getTimestamp(0);
+    double squaredErrors = 0;
+    double error = 0;
+    int count = 0;
+    for (int i = 0; i < stream.size(); i++) {
+      stream.replay(provider, i, i + 1);
+      if (stream.getTimestamp(i) - start < CONVERGENCE_NS) {
+        continue;
+      }
+      stream.getTruth(i, truth);
+      provider.getQuaternion(estimate);
+      error = angle(estimate, truth);
+      squaredErrors += error * error;
+      count++;
+    }
+    System.out.println(String.format(Locale.US, "%-36s %-11s %10.3f %10.3f", calibrate ? ""
+        : providerClass.getSimpleName(), calibrate ? "on" : "off", error, Math.sqrt(squaredErrors / count)));
+  }
+
+  private static int readMagic(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return in.readInt();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return The angle in degrees between two orientations, which need not be normalised
+   */
+  private static double angle(Quaternion a, Quaternion b) {
+    double dot = a.getX() * b.getX() + a.getY() * b.getY() + a.getZ() * b.getZ() + a.getW() * b.getW();
+    double norms = Math.sqrt((a.getX() * a.getX() + a.getY() * a.getY() + a.getZ() * a.getZ() + a.getW() * a.getW())
+        * (b.getX() * b.getX() + b.getY() * b.getY() + b.getZ() * b.getZ() + b.getW() * b.getW()));
+    return Math.toDegrees(2 * Math.acos(Math.min(1, Math.abs(dot) / norms)));
+  }
+
+  /**
+   * Hands the magnetometer samples to the calibrator and prints its metrics every {@link #REPORT_INTERVAL_NS}
+   */
+  private static class ReportingListener implements SensorSampleListener {
+    private final MagnetometerCalibrator calibrator;
+    /**
+     * The true offset, null if unknown
+     */
+    private final float[] hardIron;
+    private final float[] corrected = new float[3];
+    private final float[] offset = new float[3];
+    private long start;
+    private long nextReport;
+
+    ReportingListener(MagnetometerCalibrator calibrator, float[] hardIron) {
+      this.calibrator = calibrator;
+      this.hardIron = hardIron;
+      System.out.println(String.format(Locale.US, "%8s %9s %9s %10s %9s %10s %9s %11s %10s", "time s", "samples",
+          "added", "fits", "coverage", "residual", "field uT", "offset err", "magn err"));
+    }
+
+    @Override
+    public void onSensorSample(int sensorType, long timestamp, float[] values) {
+      if (sensorType != Sensor.TYPE_MAGNETIC_FIELD) {
+        return;
+      }
+      if (start == 0) {
+        start = timestamp;
+        nextReport = timestamp + REPORT_INTERVAL_NS;
+      }
+      calibrator.correct(timestamp, values, corrected);
+      if (timestamp < nextReport) {
+        return;
+      }
+      nextReport += REPORT_INTERVAL_NS;
+
+      String offsetError = "-";
+      if (hardIron != null && calibrator.isCalibrated()) {
+        calibrator.getOffset(offset);
+        double dx = offset[0] - hardIron[0];
+        double dy = offset[1] - hardIron[1];
+        double dz = offset[2] - hardIron[2];
+        offsetError = String.format(Locale.US, "%.2f uT", Math.sqrt(dx * dx + dy * dy + dz * dz));
+      }
+      System.out.println(String.format(Locale.US, "%8.0f %9d %9d %10s %9.2f %9.2f%% %9.1f %11s %9.2f%%",
+          (timestamp - start) / 1e9, calibrator.getSampleCount(), calibrator.getAddedSamples(),
+          calibrator.getFits() + "/" + (calibrator.getFits() + calibrator.getRejectedFits()),
+          calibrator.getLastCoverage(), 100 * calibrator.getLastResidual(), calibrator.getFieldStrength(),
+          offsetError, 100 * calibrator.getMagnitudeError()));
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Evaluates the orientation prediction of the providers ({@link OrientationProvider#getPredictedQuaternion(long,
+ * Quaternion)}) against the horizon it predicts for.
+ *
+ * The {@link SyntheticSensorStream} is delivered to each provider through onSensorChanged. After every event, the
+ * orientation is predicted for several horizons after the event and compared with the true orientation at that time;
+ * so is the latest orientation as it is, which is what a renderer without prediction shows. The RMS of both errors
+ * is reported per horizon, leaving out the first two seconds in which the providers converge.
+ *
+ * Usage: PredictionEvaluation [provider class name...]; defaults to the providers of an absolute orientation that the
+ * synthetic stream has the sensors for.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class PredictionEvaluation {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] DEFAULT_PROVIDERS = {"ImprovedOrientationSensor1Provider",
+      "ImprovedOrientationSensor2Provider", "RotationVectorProvider", "AccelerometerCompassProvider",
+      "ErrorStateKalmanFilterProvider", "MadgwickProvider", "MahonyProvider"};
+  /**
+   * The horizons in milliseconds; multiples of the 5 ms sample period, so that the true orientation is known
+   */
+  private static final int[] HORIZONS_MS = {0, 10, 20, 30, 50, 100};
+  private static final double STREAM_SECONDS = 60;
+  private static final long CONVERGENCE_NS = 2000000000L;
+  /**
+   * The accuracy of the synthetic events (SENSOR_STATUS_ACCURACY_HIGH)
+   */
+  private static final int ACCURACY = 3;
+
+  public static void main(String[] args) throws Exception {
+    String[] providers = args.length > 0 ? args : DEFAULT_PROVIDERS;
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS);
+
+    StringBuilder header = new StringBuilder(String.format(Locale.US, "%-36s", "RMS error deg, latest / predicted"));
+    for (int horizon : HORIZONS_MS) {
+      header.append(String.format(Locale.US, " %15s", horizon + " ms"));
+    }
+    System.out.println(header);
+
+    for (String provider : providers) {
+      run(provider.contains(".") ? provider : PROVIDER_PACKAGE + provider, stream);
+    }
+  }
+
+  private static void run(String className, SyntheticSensorStream stream) throws Exception {
+    Class<?> providerClass = Class.forName(className);
+    SensorManager sensorManager = new SensorManager();
+    SensorEvent[] events = stream.createEvents(sensorManager, ACCURACY);
+    OrientationProvider provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+        .newInstance(sensorManager);
+    provider.setUseSensorThread(false);
+    provider.start();
+
+    Quaternion latest = new Quaternion();
+    Quaternion predicted = new Quaternion();
+    Quaternion truth = new Quaternion();
+    double[] latestErrors = new double[HORIZONS_MS.length];
+    double[] predictedErrors = new double[HORIZONS_MS.length];
+    int[] counts = new int[HORIZONS_MS.length];
+    long start = stream.getTimestamp(0);
+    long end = stream.getTimestamp(stream.size() - 1);
+
+    for (SensorEvent event : events) {
+      sensorManager.dispatch(event);
+      if (event.timestamp - start < CONVERGENCE_NS) {
+        continue;
+      }
+      provider.getQuaternion(latest);
+      for (int h = 0; h < HORIZONS_MS.length; h++) {
+        long time = event.timestamp + HORIZONS_MS[h] * 1000000L;
+        if (time > end) {
+          continue;
+        }
+        stream.getTruth(stream.findSample(time), truth);
+        provider.getPredictedQuaternion(time, predicted);
+        double latestError = angle(latest, truth);
+        double predictedError = angle(predicted, truth);
+        latestErrors[h] += latestError * latestError;
+        predictedErrors[h] += predictedError * predictedError;
+        counts[h]++;
+      }
+    }
+    provider.stop();
+
+    StringBuilder line = new StringBuilder(String.format(Locale.US, "%-36s", providerClass.getSimpleName()));
+    for (int h = 0; h < HORIZONS_MS.length; h++) {
+      line.append(String.format(Locale.US, " %7.3f/%7.3f", Math.sqrt(latestErrors[h] / counts[h]),
+          Math.sqrt(predictedErrors[h] / counts[h])));
+    }
+    System.out.println(line);
+  }
+
+  /**
+   * @return The angle in degrees between two orientations, which need not be normalised
+   */
+  private static double angle(Quaternion a, Quaternion b) {
+    double dot = a.getX() * b.getX() + a.getY() * b.getY() + a.getZ() * b.getZ() + a.getW() * b.getW();
+    double norms = Math.sqrt((a.getX() * a.getX() + a.getY() * a.getY() + a.getZ() * a.getZ() + a.getW() * a.getW())
+        * (b.getX() * b.getX() + b.getY() * b.getY() + b.getZ() * b.getZ() + b.getW() * b.getW()));
+    return Math.toDegrees(2 * Math.acos(Math.min(1, Math.abs(dot) / norms)));
+  }
+}
@@ -0,0 +1,259 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationChangeListener;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * How far the orientation of one provider was off the reference orientations of one {@link ReferenceTrace}.
+ *
+ * At every reference orientation, the provider has fused the sensor events up to its timestamp, and the error is the
+ * angle between the two orientations. A provider that only integrates the gyroscope does not know the heading, so
+ * for it the error is the angle between the rotations since the first reference orientation instead.
+ *
+ * The provider has converged at the first reference orientation from which on its error stays below
+ * {@link #CONVERGED_DEG} for {@link #CONVERGED_NS}. The RMS and the largest error and the drift, the slope of a
+ * straight line fitted to the error over time, are taken from there on, or over the whole trace if the provider never
+ * converged. A provider that never published an orientation, as the trace lacks a sensor it needs, has no errors.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class ProviderAccuracy {
+
+  /**
+   * The error in degrees below which a provider has converged
+   */
+  public static final double CONVERGED_DEG = 5;
+  /**
+   * How long the error has to stay below {@link #CONVERGED_DEG} in nanoseconds
+   */
+  public static final long CONVERGED_NS = 1000000000L;
+
+  private final boolean published;
+  private final int referenceCount;
+  private final int evaluatedCount;
+  private final boolean converged;
+  private final double convergenceSeconds;
+  private final double rmsDeg;
+  private final double maxDeg;
+  private final double driftDegPerMinute;
+  private final long events;
+  private final long cpuNs;
+
+  private ProviderAccuracy(boolean published, int referenceCount, int evaluatedCount, boolean converged,
+      double convergenceSeconds, double rmsDeg, double maxDeg, double driftDegPerMinute, long events, long cpuNs) {
+    this.published = published;
+    this.referenceCount = referenceCount;
+    this.evaluatedCount = evaluatedCount;
+    this.converged = converged;
+    this.convergenceSeconds = convergenceSeconds;
+    this.rmsDeg = rmsDeg;
+    this.maxDeg = maxDeg;
+    this.driftDegPerMinute = driftDegPerMinute;
+    this.events = events;
+    this.cpuNs = cpuNs;
+  }
+
+  /**
+   * Replays a trace into a new provider on the calling thread and measures its errors.
+   *
+   * @param trace The trace; other threads may replay it at the same time
+   * @param provider The provider, which has not seen any events yet
+   * @param relative True if the provider starts at the identity instead of the absolute orientation
+   * @return The errors, and the CPU time the calling thread spent
+   * @throws IllegalArgumentException If the trace has no reference orientations
+   */
+  public static ProviderAccuracy measure(ReferenceTrace trace, OrientationProvider provider, boolean relative) {
+    if (trace.getReferenceCount() == 0) {
+      throw new IllegalArgumentException(trace.getName() + " has no reference orientations");
+    }
+    final boolean[] published = new boolean[1];
+    // Only called for the first orientation, as none turns by more than half a turn
+    provider.setOrientationChangeListener(new OrientationChangeListener() {
+      @Override
+      public void onOrientationChanged() {
+        published[0] = true;
+      }
+    }, (float) Math.PI);
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long cpuStart = threads.getCurrentThreadCpuTime();
+
+    int count = trace.getReferenceCount();
+    double[] errors = new double[count];
+    float[][] valueBuffers = ReferenceTrace.newValueBuffers();
+    Quaternion initial = new Quaternion();
+    Quaternion reference = new Quaternion();
+    Quaternion estimate = new Quaternion();
+    trace.getReference(0, initial);
+    int event = 0;
+    for (int i = 0; i < count; i++) {
+      event = trace.replay(provider, event, trace.getReferenceTimestamp(i), valueBuffers);
+      trace.getReference(i, reference);
+      provider.getQuaternion(estimate);
+      errors[i] = relative ? relativeError(initial, reference, estimate) : angle(estimate, reference);
+    }
+    event = trace.replay(provider, event, Long.MAX_VALUE, valueBuffers);
+    long cpuNs = threads.getCurrentThreadCpuTime() - cpuStart;
+    provider.setOrientationChangeListener(null, 0);
+    if (!published[0]) {
+      return new ProviderAccuracy(false, count, 0, false, Double.NaN, Double.NaN, Double.NaN, Double.NaN, event,
+          cpuNs);
+    }
+
+    // The first reference orientation from which on the error stays below the threshold long enough, or until the
+    // end of the trace
+    int first = -1;
+    for (int i = 0; i < count; i++) {
+      if (errors[i] >= CONVERGED_DEG) {
+        first = -1;
+      } else if (first < 0) {
+        first = i;
+      } else if (trace.getReferenceTimestamp(i) - trace.getReferenceTimestamp(first) >= CONVERGED_NS) {
+        break;
+      }
+    }
+    boolean converged = first >= 0;
+    if (!converged) {
+      first = 0;
+    }
+
+    double squares = 0;
+    double max = 0;
+    // Least squares fit of the error over time in minutes
+    double sumT = 0;
+    double sumE = 0;
+    double sumTT = 0;
+    double sumTE = 0;
+    long start = trace.getReferenceTimestamp(first);
+    for (int i = first; i < count; i++) {
+      double t = (trace.getReferenceTimestamp(i) - start) / 60e9;
+      double e = errors[i];
+      squares += e * e;
+      max = Math.max(max, e);
+      sumT += t;
+      sumE += e;
+      sumTT += t * t;
+      sumTE += t * e;
+    }
+    int n = count - first;
+    double denominator = n * sumTT - sumT * sumT;
+    double drift = denominator > 0 ? (n * sumTE - sumT * sumE) / denominator : 0;
+
+    return new ProviderAccuracy(true, count, n, converged,
+        converged ? (start - trace.getReferenceTimestamp(0)) / 1e9 : Double.NaN, Math.sqrt(squares / n), max,
+        drift, event, cpuNs);
+  }
+
+  /**
+   * @return The angle in degrees between two orientations, which need not be normalised
+   */
+  static double angle(Quaternion a, Quaternion b) {
+    double dot = (double) a.getX() * b.getX() + (double) a.getY() * b.getY() + (double) a.getZ() * b.getZ()
+        + (double) a.getW() * b.getW();
+    double normA = (double) a.getX() * a.getX() + (double) a.getY() * a.getY() + (double) a.getZ() * a.getZ()
+        + (double) a.getW() * a.getW();
+    double normB = (double) b.getX() * b.getX() + (double) b.getY() * b.getY() + (double) b.getZ() * b.getZ()
+        + (double) b.getW() * b.getW();
+    return Math.toDegrees(2 * Math.acos(Math.min(1, Math.abs(dot) / Math.sqrt(normA * normB))));
+  }
+
+  /**
+   * Computes the angle between the estimated orientation, which starts at the identity, and the reference rotation
+   * since the start, initial^-1 * reference. All quaternions are in the convention of the orientation providers
+   * (x, y, z, -w).
+   *
+   * @return The angle in degrees
+   */
+  static double relativeError(Quaternion initial, Quaternion reference, Quaternion estimate) {
+    // The conjugate of the initial orientation
+    double aw = -initial.getW();
+    double ax = -initial.getX();
+    double ay = -initial.getY();
+    double az = -initial.getZ();
+    double bw = -reference.getW();
+    double bx = reference.getX();
+    double by = reference.getY();
+    double bz = reference.getZ();
+    double w = aw * bw - ax * bx - ay * by - az * bz;
+    double x = aw * bx + ax * bw + ay * bz - az * by;
+    double y = aw * by - ax * bz + ay * bw + az * bx;
+    double z = aw * bz + ax * by - ay * bx + az * bw;
+    double dot = -estimate.getW() * w + estimate.getX() * x + estimate.getY() * y + estimate.getZ() * z;
+    double norm = Math.sqrt((double) estimate.getX() * estimate.getX() + (double) estimate.getY() * estimate.getY()
+        + (double) estimate.getZ() * estimate.getZ() + (double) estimate.getW() * estimate.getW());
+    return Math.toDegrees(2 * Math.acos(Math.min(1, Math.abs(dot) / norm)));
+  }
+
+  /**
+   * @return True if the provider published an orientation; if not, the errors are NaN
+   */
+  public boolean isPublished() {
+    return published;
+  }
+
+  /**
+   * @return The number of reference orientations of the trace
+   */
+  public int getReferenceCount() {
+    return referenceCount;
+  }
+
+  /**
+   * @return The number of reference orientations the RMS, the largest error and the drift are taken from
+   */
+  public int getEvaluatedCount() {
+    return evaluatedCount;
+  }
+
+  /**
+   * @return True if the error stayed below {@link #CONVERGED_DEG} long enough from some point on
+   */
+  public boolean isConverged() {
+    return converged;
+  }
+
+  /**
+   * @return The time from the first reference orientation until the provider converged in seconds, NaN if it never
+   * did
+   */
+  public double getConvergenceSeconds() {
+    return convergenceSeconds;
+  }
+
+  /**
+   * @return The RMS error in degrees
+   */
+  public double getRmsDeg() {
+    return rmsDeg;
+  }
+
+  /**
+   * @return The largest error in degrees
+   */
+  public double getMaxDeg() {
+    return maxDeg;
+  }
+
+  /**
+   * @return How fast the error grew in degrees per minute; negative if it shrank
+   */
+  public double getDriftDegPerMinute() {
+    return driftDegPerMinute;
+  }
+
+  /**
+   * @return The number of sensor events fused
+   */
+  public long getEvents() {
+    return events;
+  }
+
+  /**
+   * @return The CPU time spent replaying and fusing in nanoseconds
+   */
+  public long getCpuNs() {
+    return cpuNs;
+  }
+}
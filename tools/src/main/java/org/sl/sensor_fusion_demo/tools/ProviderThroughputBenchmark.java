@@ -0,0 +1,127 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+
+/**
+ * End-to-end benchmark of the orientation providers as they run on a device: the {@link SyntheticSensorStream} is
+ * turned into SensorEvents, which the JVM stand-in of the SensorManager delivers to the registered provider through
+ * onSensorChanged, including the latency bookkeeping and the publishing of every orientation.
+ *
+ * Every round starts a new provider (without its sensor thread, so that the events are fused on the calling thread)
+ * and delivers the whole stream twice: once timing each event on its own for the p50 and p99 latency, and once timing
+ * the whole stream for the throughput, which the per event clock reads would distort. The bytes allocated per event
+ * are taken from the throughput pass. The medians of the measured rounds are reported after warm-up rounds that let
+ * the JIT compile the fusion code.
+ *
+ * Usage: ProviderThroughputBenchmark [provider class name...]; defaults to all providers.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class ProviderThroughputBenchmark {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] DEFAULT_PROVIDERS = {"ImprovedOrientationSensor1Provider",
+      "ImprovedOrientationSensor2Provider", "CalibratedGyroscopeProvider", "RotationVectorProvider",
+      "GravityCompassProvider", "AccelerometerCompassProvider", "ErrorStateKalmanFilterProvider", "MadgwickProvider",
+      "MahonyProvider"};
+  private static final int WARMUP_ROUNDS = 10;
+  private static final int MEASURED_ROUNDS = 10;
+  private static final double STREAM_SECONDS = 60;
+  /**
+   * The accuracy of the synthetic events (SENSOR_STATUS_ACCURACY_HIGH)
+   */
+  private static final int ACCURACY = 3;
+
+  public static void main(String[] args) throws Exception {
+    String[] providers = args.length > 0 ? args : DEFAULT_PROVIDERS;
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS);
+    System.out.println(String.format(Locale.US, "%d events per round, %d warm-up and %d measured rounds",
+        stream.size(), WARMUP_ROUNDS, MEASURED_ROUNDS));
+    System.out.println(String.format(Locale.US, "%-40s %14s %10s %10s %12s", "provider", "events/s", "p50 ns",
+        "p99 ns", "bytes/event"));
+
+    for (String provider : providers) {
+      run(provider.contains(".") ? provider : PROVIDER_PACKAGE + provider, stream);
+    }
+  }
+
+  private static void run(String className, SyntheticSensorStream stream) throws Exception {
+    Class<?> providerClass = Class.forName(className);
+    SensorManager sensorManager = new SensorManager();
+    SensorEvent[] events = stream.createEvents(sensorManager, ACCURACY);
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    boolean measureAllocation = threads instanceof com.sun.management.ThreadMXBean;
+
+    long[] latencies = new long[events.length * MEASURED_ROUNDS];
+    long[] roundNanos = new long[MEASURED_ROUNDS];
+    long[] roundBytes = new long[MEASURED_ROUNDS];
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+      boolean measured = round >= WARMUP_ROUNDS;
+      int measuredRound = round - WARMUP_ROUNDS;
+
+      // Latency pass
+      OrientationProvider provider = startProvider(providerClass, sensorManager);
+      int latencyOffset = measured ? measuredRound * events.length : 0;
+      for (int i = 0; i < events.length; i++) {
+        long start = System.nanoTime();
+        sensorManager.dispatch(events[i]);
+        long end = System.nanoTime();
+        if (measured) {
+          latencies[latencyOffset + i] = end - start;
+        }
+      }
+      provider.stop();
+
+      // Throughput pass
+      provider = startProvider(providerClass, sensorManager);
+      long bytesBefore = measureAllocation ? allocatedBytes(threads) : 0;
+      long start = System.nanoTime();
+      for (SensorEvent event : events) {
+        sensorManager.dispatch(event);
+      }
+      long end = System.nanoTime();
+      long bytesAfter = measureAllocation ? allocatedBytes(threads) : 0;
+      provider.stop();
+
+      if (measured) {
+        roundNanos[measuredRound] = end - start;
+        roundBytes[measuredRound] = bytesAfter - bytesBefore;
+      }
+    }
+
+    Arrays.sort(latencies);
+    Arrays.sort(roundNanos);
+    Arrays.sort(roundBytes);
+    long medianNanos = roundNanos[MEASURED_ROUNDS / 2];
+    System.out.println(String.format(Locale.US, "%-40s %14.0f %10d %10d %12s", providerClass.getSimpleName(),
+        events.length / (medianNanos / 1e9), percentile(latencies, 0.5), percentile(latencies, 0.99),
+        measureAllocation ? String.format(Locale.US, "%.2f", (double) roundBytes[MEASURED_ROUNDS / 2] / events.length)
+            : "n/a"));
+  }
+
+  /**
+   * @return A new provider of the class that is registered with the sensor manager and fuses on the calling thread
+   */
+  private static OrientationProvider startProvider(Class<?> providerClass, SensorManager sensorManager)
+      throws Exception {
+    OrientationProvider provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+        .newInstance(sensorManager);
+    provider.setUseSensorThread(false);
+    provider.start();
+    return provider;
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+  }
+
+  private static long allocatedBytes(ThreadMXBean threads) {
+    return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
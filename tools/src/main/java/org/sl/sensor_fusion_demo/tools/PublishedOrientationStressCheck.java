@@ -0,0 +1,197 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorManager;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Checks that readers of an orientation provider never see a quaternion and a rotation matrix from different updates.
+ *
+ * One writer thread publishes a new orientation q(t), which turns by a different angle around a different axis on
+ * every update, together with the matrix of q(t), as fast as it can. Several reader threads call
+ * {@link OrientationProvider#getOrientation(Quaternion, float[])} in a loop and compute the matrix of the quaternion
+ * they read the same way the provider does. Any element that differs means the pair is torn and fails the check. The
+ * readers also count how often the orientation changed between two of their reads, and the check fails if they hardly
+ * saw any change, as it would then have proved nothing.
+ *
+ * With --separate-reads, the readers read the quaternion and the matrix with two calls instead, which can tear; that
+ * shows that the check catches torn pairs.
+ *
+ * Usage: PublishedOrientationStressCheck [--readers n] [--seconds s] [--separate-reads]; defaults to one reader per
+ * processor, at least 3, for 5 s. Exits with status 1 if a reader saw a torn pair or too few changes.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class PublishedOrientationStressCheck {
+
+  private static final double DEFAULT_SECONDS = 5;
+  private static final int MIN_READERS = 3;
+  /**
+   * The fewest changes of the orientation the readers have to see in total for the check to count
+   */
+  private static final long MIN_CHANGES_SEEN = 100;
+  /**
+   * The updates after which the writer yields the processor
+   */
+  private static final int YIELD_INTERVAL = 256;
+
+  private final StressProvider provider = new StressProvider(new SensorManager());
+  private final boolean separateReads;
+  private volatile boolean running = true;
+  private volatile long updates;
+
+  private PublishedOrientationStressCheck(boolean separateReads) {
+    this.separateReads = separateReads;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int readers = Math.max(MIN_READERS, Runtime.getRuntime().availableProcessors());
+    double seconds = DEFAULT_SECONDS;
+    boolean separateReads = false;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--readers")) {
+        readers = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--seconds")) {
+        seconds = Double.parseDouble(args[++i]);
+      } else if (args[i].equals("--separate-reads")) {
+        separateReads = true;
+      } else {
+        System.err.println("Usage: PublishedOrientationStressCheck [--readers n] [--seconds s] [--separate-reads]");
+        System.exit(1);
+      }
+    }
+
+    PublishedOrientationStressCheck check = new PublishedOrientationStressCheck(separateReads);
+    Reader[] readerTasks = new Reader[readers];
+    Thread[] threads = new Thread[readers];
+    for (int i = 0; i < readers; i++) {
+      readerTasks[i] = check.new Reader();
+      threads[i] = new Thread(readerTasks[i], "reader " + i);
+      threads[i].start();
+    }
+    Thread writer = new Thread(check.new Writer(), "writer");
+    writer.start();
+    Thread.sleep((long) (seconds * 1000));
+    check.running = false;
+    writer.join();
+
+    long reads = 0;
+    long changes = 0;
+    long torn = 0;
+    String firstTorn = null;
+    for (int i = 0; i < readers; i++) {
+      threads[i].join();
+      reads += readerTasks[i].reads;
+      changes += readerTasks[i].changes;
+      torn += readerTasks[i].torn;
+      if (firstTorn == null) {
+        firstTorn = readerTasks[i].firstTorn;
+      }
+    }
+    System.out.println(String.format(Locale.US, "%d updates, %d readers, %d reads, %d changes seen, %d torn pairs%s",
+        check.updates, readers, reads, changes, torn, separateReads ? " (separate reads)" : ""));
+    if (torn > 0) {
+      System.out.println("FAILED: " + firstTorn);
+      System.exit(1);
+    }
+    if (changes < MIN_CHANGES_SEEN) {
+      System.out.println("FAILED: the readers saw fewer than " + MIN_CHANGES_SEEN + " changes");
+      System.exit(1);
+    }
+    System.out.println("ok");
+  }
+
+  /**
+   * Publishes a new orientation on every iteration until the check stops
+   */
+  private final class Writer implements Runnable {
+    @Override
+    public void run() {
+      long update = 0;
+      while (running) {
+        update++;
+        double angle = update * 1e-3;
+        double axisX = Math.sin(update * 0.37);
+        double axisY = Math.cos(update * 0.37);
+        double axisZ = 0.5;
+        double scale = Math.sin(angle / 2) / Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+        provider.publish((float) Math.cos(angle / 2), (float) (axisX * scale), (float) (axisY * scale),
+            (float) (axisZ * scale));
+        if (update % YIELD_INTERVAL == 0) {
+          // Lets the readers in between updates on machines with fewer processors than threads
+          Thread.yield();
+        }
+      }
+      updates = update;
+    }
+  }
+
+  /**
+   * Reads the orientation until the check stops, and compares the matrix with the one of the quaternion
+   */
+  private final class Reader implements Runnable {
+    private final Quaternion quaternion = new Quaternion();
+    private final float[] matrix = new float[16];
+    private final float[] expected = new float[16];
+    private final float[] rotationVector = new float[4];
+    private long reads;
+    private long changes;
+    private long torn;
+    private String firstTorn;
+
+    @Override
+    public void run() {
+      float previousX = Float.NaN;
+      while (running) {
+        if (separateReads) {
+          provider.getQuaternion(quaternion);
+          provider.getRotationMatrix(matrix);
+        } else {
+          provider.getOrientation(quaternion, matrix);
+        }
+        reads++;
+        if (quaternion.getX() != previousX) {
+          changes++;
+          previousX = quaternion.getX();
+        }
+
+        // The provider stores the quaternion with an inverted w
+        rotationVector[0] = quaternion.getX();
+        rotationVector[1] = quaternion.getY();
+        rotationVector[2] = quaternion.getZ();
+        rotationVector[3] = -quaternion.getW();
+        SensorManager.getRotationMatrixFromVector(expected, rotationVector);
+        for (int i = 0; i < 16; i++) {
+          if (matrix[i] != expected[i]) {
+            if (firstTorn == null) {
+              firstTorn = String.format(Locale.US, "quaternion %s, matrix element %d is %f instead of %f",
+                  quaternion, i, matrix[i], expected[i]);
+            }
+            torn++;
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A provider without sensors that publishes the orientations it is handed
+   */
+  private static final class StressProvider extends OrientationProvider {
+
+    private StressProvider(SensorManager sensorManager) {
+      super(sensorManager);
+      disableAngularVelocityEstimation();
+    }
+
+    @Override
+    public void onSensorSample(int sensorType, long timestamp, float[] values) {
+    }
+
+    private void publish(float w, float x, float y, float z) {
+      publishOrientation(w, x, y, z);
+    }
+  }
+}
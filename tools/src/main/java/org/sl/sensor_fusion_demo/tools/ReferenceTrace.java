@@ -0,0 +1,260 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.Sensor;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorSampleListener;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+import org.sl.sensor_fusion_demo.trace.ColumnarSampleListener;
+import org.sl.sensor_fusion_demo.trace.ColumnarTrace;
+import org.sl.sensor_fusion_demo.trace.ColumnarTraceFormat;
+import org.sl.sensor_fusion_demo.trace.SensorEventRecorder;
+import org.sl.sensor_fusion_demo.trace.SensorTrace;
+import org.sl.sensor_fusion_demo.trace.SensorTraceFormat;
+
+/**
+ * A recorded sensor trace together with reference orientations of the device, e.g. from a motion capture system, to
+ * measure how far the orientation providers are off.
+ *
+ * The reference orientations are stored in the trace itself, in either format, as events of the sensor type
+ * {@link #REFERENCE_ORIENTATION_TYPE} that no device sensor has. Each holds the rotation from device to world
+ * coordinates as an [x, y, z, w] quaternion like the rotation vector, and is recorded after the sensor events up to
+ * its timestamp. Reading splits them from the sensor events.
+ *
+ * Once read, a trace is not changed anymore, so any number of threads can replay it at the same time, e.g. into
+ * every provider at once, without decoding the file again.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class ReferenceTrace {
+
+  /**
+   * The sensor type of the reference orientation events; the first type Android leaves to device specific sensors
+   * (Sensor.TYPE_DEVICE_PRIVATE_BASE)
+   */
+  public static final int REFERENCE_ORIENTATION_TYPE = 0x10000;
+
+  private final String name;
+  private final SensorTrace events = new SensorTrace();
+  private long[] referenceTimestamps = new long[256];
+  /**
+   * The reference orientations as [x, y, z, w] quaternions
+   */
+  private float[] references = new float[256 * 4];
+  private int referenceCount;
+
+  private ReferenceTrace(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Reads a trace file in either format.
+   *
+   * @param file The file
+   * @return The decoded trace
+   * @throws IOException If the file cannot be read or is not a trace
+   */
+  public static ReferenceTrace read(File file) throws IOException {
+    final ReferenceTrace trace = new ReferenceTrace(file.getName());
+    if (readMagic(file) == ColumnarTraceFormat.MAGIC) {
+      ColumnarTrace columnar = ColumnarTrace.open(file);
+      try {
+        final float[] values = new float[ColumnarTraceFormat.MAX_VALUES];
+        columnar.stream(Long.MIN_VALUE, Long.MAX_VALUE, new ColumnarSampleListener() {
+          @Override
+          public void onSample(ColumnarTrace.Sample sample) {
+            sample.getValues(values);
+            trace.add(sample.getType(), sample.getAccuracy(), sample.getTimestamp(), values,
+                sample.getValueCount());
+          }
+        });
+      } finally {
+        columnar.close();
+      }
+    } else {
+      SensorTrace compact = SensorTrace.read(file);
+      float[] values = new float[SensorTraceFormat.MAX_VALUES];
+      for (int i = 0; i < compact.size(); i++) {
+        compact.getValues(i, values);
+        trace.add(compact.getType(i), compact.getAccuracy(i), compact.getTimestamp(i), values, compact.getLength(i));
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Writes the samples of a synthetic stream with its true orientation as reference at every rotation vector sample.
+   *
+   * @param stream The stream
+   * @param accuracy The accuracy of the events
+   * @param recorder The recorder to write to; it is not closed
+   */
+  public static void write(SyntheticSensorStream stream, int accuracy, SensorEventRecorder recorder) {
+    float[][] buffers = new float[5][];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = new float[i];
+    }
+    Quaternion truth = new Quaternion();
+    for (int i = 0; i < stream.size(); i++) {
+      float[] values = buffers[stream.getLength(i)];
+      stream.getValues(i, values);
+      recorder.record(stream.getType(i), accuracy, stream.getTimestamp(i), values);
+      if (stream.getType(i) == Sensor.TYPE_ROTATION_VECTOR) {
+        // The stream's truth is in the convention of the providers (x, y, z, -w)
+        stream.getTruth(i, truth);
+        float[] reference = buffers[4];
+        reference[0] = truth.getX();
+        reference[1] = truth.getY();
+        reference[2] = truth.getZ();
+        reference[3] = -truth.getW();
+        recorder.record(REFERENCE_ORIENTATION_TYPE, accuracy, stream.getTimestamp(i), reference);
+      }
+    }
+  }
+
+  /**
+   * Creates a trace in memory from the samples of a synthetic stream with its true orientation as reference, as
+   * {@link #write(SyntheticSensorStream, int, SensorEventRecorder)} would write it.
+   *
+   * @param stream The stream
+   * @param accuracy The accuracy of the events
+   * @param name The name of the trace
+   * @return The trace
+   */
+  public static ReferenceTrace from(SyntheticSensorStream stream, int accuracy, String name) {
+    final ReferenceTrace trace = new ReferenceTrace(name);
+    write(stream, accuracy, new SensorEventRecorder() {
+      private long recordedEvents;
+
+      @Override
+      public void record(int sensorType, int eventAccuracy, long timestamp, float[] values) {
+        trace.add(sensorType, eventAccuracy, timestamp, values, values.length);
+        recordedEvents++;
+      }
+
+      @Override
+      public void close() {
+      }
+
+      @Override
+      public long getRecordedEvents() {
+        return recordedEvents;
+      }
+
+      @Override
+      public long getDroppedEvents() {
+        return 0;
+      }
+    });
+    return trace;
+  }
+
+  private static int readMagic(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return in.readInt();
+    } finally {
+      in.close();
+    }
+  }
+
+  private void add(int sensorType, int accuracy, long timestamp, float[] values, int count) {
+    if (sensorType != REFERENCE_ORIENTATION_TYPE) {
+      events.add(sensorType, accuracy, timestamp, values, count);
+      return;
+    }
+    if (count != 4) {
+      throw new IllegalArgumentException("A reference orientation has 4 values, not " + count);
+    }
+    if (referenceCount == referenceTimestamps.length) {
+      referenceTimestamps = Arrays.copyOf(referenceTimestamps, referenceCount * 2);
+      references = Arrays.copyOf(references, referenceCount * 2 * 4);
+    }
+    referenceTimestamps[referenceCount] = timestamp;
+    System.arraycopy(values, 0, references, referenceCount * 4, 4);
+    referenceCount++;
+  }
+
+  /**
+   * @return The name of the file the trace was read from
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return The number of sensor events, without the reference orientations
+   */
+  public int getEventCount() {
+    return events.size();
+  }
+
+  /**
+   * @return The time between the first and the last sensor event in nanoseconds
+   */
+  public long getDuration() {
+    return events.getDuration();
+  }
+
+  /**
+   * @return New buffers for {@link #replay(SensorSampleListener, int, long, float[][])}, one per number of values
+   */
+  public static float[][] newValueBuffers() {
+    float[][] valueBuffers = new float[SensorTraceFormat.MAX_VALUES + 1][];
+    for (int i = 0; i < valueBuffers.length; i++) {
+      valueBuffers[i] = new float[i];
+    }
+    return valueBuffers;
+  }
+
+  /**
+   * Hands the sensor events from an index on up to a timestamp to the listener in recorded order. Unlike
+   * {@link SensorTrace#replay(SensorSampleListener)}, several threads can do this at the same time, as each hands in
+   * its own buffers.
+   *
+   * @param listener The listener
+   * @param from The index of the first event
+   * @param to The timestamp up to which (inclusive) the events are handed over
+   * @param valueBuffers The buffers the values are copied into, from {@link #newValueBuffers()}
+   * @return The index of the first event that was not handed over
+   */
+  public int replay(SensorSampleListener listener, int from, long to, float[][] valueBuffers) {
+    int index = from;
+    while (index < events.size() && events.getTimestamp(index) <= to) {
+      float[] buffer = valueBuffers[events.getLength(index)];
+      events.getValues(index, buffer);
+      listener.onSensorSample(events.getType(index), events.getTimestamp(index), buffer);
+      index++;
+    }
+    return index;
+  }
+
+  /**
+   * @return The number of reference orientations
+   */
+  public int getReferenceCount() {
+    return referenceCount;
+  }
+
+  /**
+   * @param index The index of the reference orientation
+   * @return Its timestamp in nanoseconds
+   */
+  public long getReferenceTimestamp(int index) {
+    return referenceTimestamps[index];
+  }
+
+  /**
+   * Copies a reference orientation into the quaternion, in the convention of the orientation providers (x, y, z, -w).
+   *
+   * @param index The index of the reference orientation
+   * @param output The quaternion that receives the orientation
+   */
+  public void getReference(int index, Quaternion output) {
+    int offset = index * 4;
+    output.setXYZW(references[offset], references[offset + 1], references[offset + 2], -references[offset + 3]);
+  }
+}
@@ -0,0 +1,153 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationChangeListener;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.StillnessRateController;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Simulates drawing the cube only when the orientation has turned by more than a threshold on a
+ * {@link SyntheticSensorStream} in which the device alternates between moving and lying still, and reports the frames
+ * drawn per minute against drawing continuously.
+ *
+ * The events are delivered through onSensorChanged at the rate of the providers (SENSOR_DELAY_GAME). The display
+ * refreshes at {@link #REFRESH_RATE} Hz: drawing continuously, every refresh draws a frame; drawing on changes, a
+ * refresh draws a frame only if the provider notified its {@link OrientationChangeListener} since the previous frame,
+ * however often, as the GL thread of a GLSurfaceView coalesces the requests. Reported are the frames per minute while
+ * the device is still and while it moves, and how far the orientation on the display lags behind the latest published
+ * one at a refresh, which drawing continuously never does.
+ *
+ * Usage: RenderOnChangeSimulation [provider class name...]; defaults to the providers of an absolute orientation that
+ * use a gyroscope or an accelerometer.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class RenderOnChangeSimulation {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] DEFAULT_PROVIDERS = {"ImprovedOrientationSensor1Provider",
+      "ImprovedOrientationSensor2Provider", "AccelerometerCompassProvider", "ErrorStateKalmanFilterProvider",
+      "MadgwickProvider", "MahonyProvider"};
+  private static final double STREAM_SECONDS = 300;
+  private static final double MOVING_SECONDS = 10;
+  private static final double STILL_SECONDS = 20;
+  /**
+   * The thresholds in degrees drawing on changes is simulated with
+   */
+  private static final double[] THRESHOLDS_DEG = {0.02, 0.05, 0.1, 0.5};
+  private static final double REFRESH_RATE = 60;
+  /**
+   * The sampling period of the stream in microseconds; a sampling period is met if it is within half of it
+   */
+  private static final int STREAM_PERIOD_US = 5000;
+  /**
+   * The accuracy of the synthetic events (SENSOR_STATUS_ACCURACY_HIGH)
+   */
+  private static final int ACCURACY = 3;
+  /**
+   * The sensor types are below this, so they can index arrays
+   */
+  private static final int MAX_SENSOR_TYPE = 32;
+
+  public static void main(String[] args) throws Exception {
+    String[] providers = args.length > 0 ? args : DEFAULT_PROVIDERS;
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS, new float[3], MOVING_SECONDS,
+        STILL_SECONDS);
+    System.out.println(String.format(Locale.US, "%.0f s, moving %.0f s / still %.0f s, display at %.0f Hz",
+        STREAM_SECONDS, MOVING_SECONDS, STILL_SECONDS, REFRESH_RATE));
+    System.out.println(String.format(Locale.US, "%-36s %-12s %12s %13s %16s", "provider", "drawn", "still fr/min",
+        "moving fr/min", "lag deg rms/max"));
+
+    for (String provider : providers) {
+      String className = provider.contains(".") ? provider : PROVIDER_PACKAGE + provider;
+      run(className, stream, -1);
+      for (double threshold : THRESHOLDS_DEG) {
+        run(className, stream, threshold);
+      }
+    }
+  }
+
+  /**
+   * @param thresholdDeg The threshold in degrees, negative to draw continuously
+   */
+  private static void run(String className, SyntheticSensorStream stream, double thresholdDeg) throws Exception {
+    Class<?> providerClass = Class.forName(className);
+    SensorManager sensorManager = new SensorManager();
+    SensorEvent[] events = stream.createEvents(sensorManager, ACCURACY);
+    OrientationProvider provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+        .newInstance(sensorManager);
+    final boolean[] requested = new boolean[1];
+    if (thresholdDeg >= 0) {
+      provider.setOrientationChangeListener(new OrientationChangeListener() {
+        @Override
+        public void onOrientationChanged() {
+          requested[0] = true;
+        }
+      }, (float) Math.toRadians(thresholdDeg));
+    }
+    provider.setUseSensorThread(false);
+    provider.start();
+
+    long refreshNs = (long) (1e9 / REFRESH_RATE);
+    long minIntervalNs = (StillnessRateController.DEFAULT_MOVING_SAMPLING_PERIOD_US - STREAM_PERIOD_US / 2) * 1000L;
+    long[] lastDelivered = new long[MAX_SENSOR_TYPE];
+    long nextRefresh = events[0].timestamp + refreshNs;
+    Quaternion drawn = new Quaternion();
+    Quaternion latest = new Quaternion();
+    long[] frames = new long[2];
+    long[] refreshes = new long[2];
+    double lagSquares = 0;
+    double maxLag = 0;
+    long lagCount = 0;
+
+    for (SensorEvent event : events) {
+      // The refreshes before this event see the orientation published so far
+      while (nextRefresh <= event.timestamp) {
+        int phase = stream.isStill(nextRefresh) ? 0 : 1;
+        provider.getQuaternion(latest);
+        if (thresholdDeg < 0 || requested[0]) {
+          requested[0] = false;
+          drawn.copyVec4(latest);
+          frames[phase]++;
+        }
+        refreshes[phase]++;
+        double lag = angle(drawn, latest);
+        lagSquares += lag * lag;
+        maxLag = Math.max(maxLag, lag);
+        lagCount++;
+        nextRefresh += refreshNs;
+      }
+
+      int type = event.sensor.getType();
+      if (lastDelivered[type] == 0 || event.timestamp - lastDelivered[type] >= minIntervalNs) {
+        lastDelivered[type] = event.timestamp;
+        sensorManager.dispatch(event);
+      }
+    }
+    provider.stop();
+
+    double minutesPerRefresh = 1 / (REFRESH_RATE * 60);
+    System.out.println(String.format(Locale.US, "%-36s %-12s %12.0f %13.0f %16s",
+        thresholdDeg < 0 ? providerClass.getSimpleName() : "",
+        thresholdDeg < 0 ? "continuously" : String.format(Locale.US, "> %.2f deg", thresholdDeg),
+        frames[0] / (refreshes[0] * minutesPerRefresh), frames[1] / (refreshes[1] * minutesPerRefresh),
+        String.format(Locale.US, "%.3f / %.3f", Math.sqrt(lagSquares / lagCount), maxLag)));
+  }
+
+  /**
+   * @return The angle in degrees between two orientations, which need not be normalised. Computed in double, as the
+   * lags are close to the float resolution of the cosine.
+   */
+  private static double angle(Quaternion a, Quaternion b) {
+    double dot = (double) a.getX() * b.getX() + (double) a.getY() * b.getY() + (double) a.getZ() * b.getZ()
+        + (double) a.getW() * b.getW();
+    double normA = (double) a.getX() * a.getX() + (double) a.getY() * a.getY() + (double) a.getZ() * a.getZ()
+        + (double) a.getW() * a.getW();
+    double normB = (double) b.getX() * b.getX() + (double) b.getY() * b.getY() + (double) b.getZ() * b.getZ()
+        + (double) b.getW() * b.getW();
+    return Math.toDegrees(2 * Math.acos(Math.min(1, Math.abs(dot) / Math.sqrt(normA * normB))));
+  }
+}
@@ -0,0 +1,242 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.Sensor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorBatchMerger;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorSampleListener;
+
+/**
+ * Checks the burst processing of {@link SensorBatchMerger} with synthetic bursts like a hardware FIFO delivers them:
+ * all buffered samples of one sensor, then all of the next one.
+ * <ul>
+ * <li>ordering: the samples of the {@link SyntheticSensorStream} are delivered in bursts of {@link #BURST_NS}, one
+ * sensor after the other. The merged samples must come out in timestamp order across the sensors, and per sensor the
+ * same samples with the same values as went in.</li>
+ * <li>watermark: a gyroscope burst is held back completely while the accelerometer has not delivered yet, and an
+ * accelerometer burst up to half of it releases exactly the samples of both sensors up to that timestamp.</li>
+ * <li>maximum delay: while only the gyroscope delivers, exactly the samples older than the newest one minus the
+ * maximum delay are released after every sample.</li>
+ * <li>flush: after flush() nothing is held back, and every sample that went in has come out, in order.</li>
+ * </ul>
+ *
+ * Usage: SensorBatchMergerCheck. Exits with status 1 if a check fails.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class SensorBatchMergerCheck {
+
+  /**
+   * The time span of the samples of one burst in nanoseconds
+   */
+  private static final long BURST_NS = 200000000L;
+  /**
+   * The sample period of the synthetic gyroscope and accelerometer bursts in nanoseconds
+   */
+  private static final long PERIOD_NS = 5000000L;
+  private static final double STREAM_SECONDS = 10;
+  private static final int CAPACITY = 1000;
+
+  private final List<String> failures = new ArrayList<String>();
+
+  public static void main(String[] args) {
+    SensorBatchMergerCheck check = new SensorBatchMergerCheck();
+    check.checkOrdering();
+    check.checkWatermark();
+    check.checkMaxDelay();
+    check.checkFlush();
+    if (!check.failures.isEmpty()) {
+      for (String failure : check.failures) {
+        System.out.println("FAILED: " + failure);
+      }
+      System.exit(1);
+    }
+    System.out.println("ok");
+  }
+
+  private void checkOrdering() {
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS);
+    int[] types = {Sensor.TYPE_GYROSCOPE, Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_ROTATION_VECTOR,
+        Sensor.TYPE_GRAVITY, Sensor.TYPE_MAGNETIC_FIELD};
+    Recorder recorder = new Recorder();
+    // Every sample of a burst is held back until the last sensor of the burst has delivered
+    SensorBatchMerger merger = new SensorBatchMerger(types, CAPACITY, 2 * BURST_NS, recorder);
+
+    float[][] buffers = new float[5][];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = new float[i];
+    }
+    long burstStart = stream.getTimestamp(0);
+    int bursts = 0;
+    int heldBack = 0;
+    while (burstStart <= stream.getTimestamp(stream.size() - 1)) {
+      int from = stream.findSample(burstStart);
+      int to = stream.findSample(burstStart + BURST_NS);
+      for (int type : types) {
+        for (int i = from; i < to; i++) {
+          if (stream.getType(i) == type) {
+            float[] values = buffers[stream.getLength(i)];
+            stream.getValues(i, values);
+            merger.add(type, stream.getTimestamp(i), values);
+            heldBack = Math.max(heldBack, merger.size());
+          }
+        }
+      }
+      burstStart += BURST_NS;
+      bursts++;
+    }
+    merger.flush();
+
+    report("ordering", String.format(Locale.US, "%d samples in %d bursts, up to %d held back", stream.size(), bursts,
+        heldBack));
+    expect(recorder.size() == stream.size(), "ordering: " + recorder.size() + " of " + stream.size()
+        + " samples came out");
+    expectOrdered(recorder, "ordering");
+    for (int type : types) {
+      Recorder expected = new Recorder();
+      for (int i = 0; i < stream.size(); i++) {
+        if (stream.getType(i) == type) {
+          float[] values = buffers[stream.getLength(i)];
+          stream.getValues(i, values);
+          expected.onSensorSample(type, stream.getTimestamp(i), values);
+        }
+      }
+      Recorder actual = recorder.ofType(type);
+      boolean same = actual.size() == expected.size();
+      for (int i = 0; same && i < actual.size(); i++) {
+        same = actual.timestamps.get(i).equals(expected.timestamps.get(i))
+            && actual.firstValues.get(i).equals(expected.firstValues.get(i));
+      }
+      expect(same, "ordering: the samples of sensor type " + type + " changed on the way through");
+    }
+  }
+
+  private void checkWatermark() {
+    Recorder recorder = new Recorder();
+    SensorBatchMerger merger = new SensorBatchMerger(new int[] {Sensor.TYPE_GYROSCOPE, Sensor.TYPE_ACCELEROMETER},
+        CAPACITY, 10 * BURST_NS, recorder);
+    int samples = (int) (BURST_NS / PERIOD_NS);
+    for (int i = 1; i <= samples; i++) {
+      merger.add(Sensor.TYPE_GYROSCOPE, i * PERIOD_NS, new float[] {i, 0, 0});
+    }
+    expect(recorder.size() == 0 && merger.size() == samples, "watermark: " + recorder.size()
+        + " gyroscope samples were released before the accelerometer delivered");
+
+    // The accelerometer burst covers half of the gyroscope burst
+    for (int i = 1; i <= samples / 2; i++) {
+      merger.add(Sensor.TYPE_ACCELEROMETER, i * PERIOD_NS, new float[] {-i, 0, 0});
+    }
+    long watermark = samples / 2 * PERIOD_NS;
+    expect(recorder.size() == samples / 2 * 2, "watermark: " + recorder.size() + " samples were released instead of "
+        + samples / 2 * 2 + " up to the watermark");
+    expect(recorder.size() == 0 || recorder.timestamps.get(recorder.size() - 1) <= watermark,
+        "watermark: a sample after the watermark was released");
+    expect(merger.size() == samples - samples / 2, "watermark: " + merger.size() + " samples are held back instead of "
+        + (samples - samples / 2));
+    expectOrdered(recorder, "watermark");
+    report("watermark", String.format(Locale.US, "%d of %d gyroscope samples held back without accelerometer, %d "
+        + "samples released up to %d ms", samples, samples, recorder.size(), watermark / 1000000));
+  }
+
+  private void checkMaxDelay() {
+    Recorder recorder = new Recorder();
+    long maxDelay = 10 * PERIOD_NS;
+    SensorBatchMerger merger = new SensorBatchMerger(new int[] {Sensor.TYPE_GYROSCOPE, Sensor.TYPE_ACCELEROMETER},
+        CAPACITY, maxDelay, recorder);
+    int samples = (int) (BURST_NS / PERIOD_NS);
+    int wrong = 0;
+    for (int i = 1; i <= samples; i++) {
+      long timestamp = i * PERIOD_NS;
+      merger.add(Sensor.TYPE_GYROSCOPE, timestamp, new float[] {i, 0, 0});
+      // Released are exactly the samples at or before timestamp - maxDelay
+      long released = Math.max(0, (timestamp - maxDelay) / PERIOD_NS);
+      if (recorder.size() != released || merger.size() != i - released) {
+        wrong++;
+      }
+    }
+    expect(wrong == 0, "maximum delay: after " + wrong + " of " + samples
+        + " samples the wrong samples were held back");
+    expectOrdered(recorder, "maximum delay");
+    report("maximum delay", String.format(Locale.US, "%d of %d samples released by a delay of %d ms, %d held back",
+        recorder.size(), samples, maxDelay / 1000000, merger.size()));
+  }
+
+  private void checkFlush() {
+    Recorder recorder = new Recorder();
+    SensorBatchMerger merger = new SensorBatchMerger(new int[] {Sensor.TYPE_GYROSCOPE, Sensor.TYPE_ACCELEROMETER,
+        Sensor.TYPE_MAGNETIC_FIELD}, CAPACITY, 10 * BURST_NS, recorder);
+    int samples = (int) (BURST_NS / PERIOD_NS);
+    for (int i = 1; i <= samples; i++) {
+      merger.add(Sensor.TYPE_GYROSCOPE, i * PERIOD_NS, new float[] {i, 0, 0});
+    }
+    for (int i = 1; i <= samples / 2; i++) {
+      merger.add(Sensor.TYPE_ACCELEROMETER, i * 2 * PERIOD_NS + 1, new float[] {-i, 0, 0});
+    }
+    // The compass never delivers, so nothing is released before the flush
+    int held = merger.size();
+    expect(recorder.size() == 0 && held == samples + samples / 2, "flush: " + held + " samples held back instead of "
+        + (samples + samples / 2));
+    merger.flush();
+    expect(merger.size() == 0, "flush: " + merger.size() + " samples are still held back");
+    expect(recorder.size() == held, "flush: " + recorder.size() + " of " + held + " samples came out");
+    expectOrdered(recorder, "flush");
+    report("flush", String.format(Locale.US, "%d held back samples released, %d left", recorder.size(),
+        merger.size()));
+  }
+
+  private void expectOrdered(Recorder recorder, String name) {
+    for (int i = 1; i < recorder.size(); i++) {
+      if (recorder.timestamps.get(i) < recorder.timestamps.get(i - 1)) {
+        failures.add(String.format(Locale.US, "%s: sample %d at %d ns came out after one at %d ns", name, i,
+            recorder.timestamps.get(i), recorder.timestamps.get(i - 1)));
+        return;
+      }
+    }
+  }
+
+  private void expect(boolean condition, String failure) {
+    if (!condition) {
+      failures.add(failure);
+    }
+  }
+
+  private static void report(String name, String result) {
+    System.out.println(String.format(Locale.US, "%-14s %s", name, result));
+  }
+
+  /**
+   * Records the type, the timestamp and the first value of every sample it receives
+   */
+  private static final class Recorder implements SensorSampleListener {
+    private final List<Integer> types = new ArrayList<Integer>();
+    private final List<Long> timestamps = new ArrayList<Long>();
+    private final List<Float> firstValues = new ArrayList<Float>();
+
+    @Override
+    public void onSensorSample(int sensorType, long timestamp, float[] values) {
+      types.add(sensorType);
+      timestamps.add(timestamp);
+      firstValues.add(values[0]);
+    }
+
+    private int size() {
+      return timestamps.size();
+    }
+
+    /**
+     * @return The samples of one sensor type in the order they were received
+     */
+    private Recorder ofType(int sensorType) {
+      Recorder recorder = new Recorder();
+      for (int i = 0; i < size(); i++) {
+        if (types.get(i) == sensorType) {
+          recorder.types.add(sensorType);
+          recorder.timestamps.add(timestamps.get(i));
+          recorder.firstValues.add(firstValues.get(i));
+        }
+      }
+      return recorder;
+    }
+  }
+}
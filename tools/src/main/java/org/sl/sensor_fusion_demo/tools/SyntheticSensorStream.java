@@ -0,0 +1,403 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import java.util.Arrays;
+import java.util.Random;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorSampleListener;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * A deterministic stream of gyroscope, accelerometer, gravity, compass and rotation vector samples of a device that
+ * wobbles around all three axes, together with the true orientation at every sample. Optionally the device alternates
+ * between wobbling and lying still.
+ *
+ * The motion is integrated in 1 ms steps. Every 5 ms the gyroscope and the accelerometer deliver a sample (200 Hz),
+ * every 10 ms the rotation vector and the gravity sensor (100 Hz) and every 20 ms the compass (50 Hz), each with
+ * Gaussian noise. The gravity noise is drawn from a random generator of its own, so the other samples are the same as
+ * in a stream without gravity samples. The samples
+ * are stored in primitive arrays, so replaying them does not allocate and costs next to nothing compared with the
+ * fusion.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class SyntheticSensorStream {
+
+  /**
+   * Integration step of the true motion in nanoseconds
+   */
+  private static final long STEP_NS = 1000000L;
+  /**
+   * The timestamp of the first sample in nanoseconds
+   */
+  private static final long START_NS = 1000000000L;
+  /**
+   * Number of integration steps per gyroscope sample
+   */
+  private static final int STEPS_PER_SAMPLE = 5;
+  /**
+   * Number of values stored per sample
+   */
+  private static final int STRIDE = 4;
+  /**
+   * The magnetic field in world coordinates (east, north, up) in micro Tesla
+   */
+  private static final float[] MAGNETIC_FIELD = {0, 20, -40};
+
+  private static final float GYROSCOPE_NOISE = 0.005f;
+  private static final float ACCELEROMETER_NOISE = 0.05f;
+  private static final float MAGNETOMETER_NOISE = 0.5f;
+  private static final float ROTATION_VECTOR_NOISE = 0.001f;
+  /**
+   * The gravity sensor is a low-pass filtered accelerometer, so it is far less noisy
+   */
+  private static final float GRAVITY_NOISE = 0.01f;
+
+  private final int[] types;
+  private final long[] timestamps;
+  private final int[] lengths;
+  private final float[] values;
+  /**
+   * The true orientation as [x, y, z, w] quaternion per sample, rotating from device to world coordinates
+   */
+  private final float[] truth;
+  private final int size;
+  private final int gyroscopeSamples;
+  /**
+   * The length of the moving and the still phases in nanoseconds; no still phases if stillNs is 0
+   */
+  private final long movingNs;
+  private final long stillNs;
+  /**
+   * Buffers that are handed to the listener, one per number of values
+   */
+  private final float[][] valueBuffers = new float[STRIDE + 1][];
+
+  /**
+   * Initialises a new SyntheticSensorStream with an unbiased gyroscope
+   *
+   * @param seed The seed of the noise
+   * @param durationSeconds The duration of the stream in seconds
+   */
+  public SyntheticSensorStream(long seed, double durationSeconds) {
+    this(seed, durationSeconds, new float[3]);
+  }
+
+  /**
+   * Initialises a new SyntheticSensorStream
+   *
+   * @param seed The seed of the noise
+   * @param durationSeconds The duration of the stream in seconds
+   * @param gyroscopeBias The constant bias added to every gyroscope sample in rad/s
+   */
+  public SyntheticSensorStream(long seed, double durationSeconds, float[] gyroscopeBias) {
+    this(seed, durationSeconds, gyroscopeBias, durationSeconds, 0);
+  }
+
+  /**
+   * Initialises a new SyntheticSensorStream of a device that moves for a while, then lies still for a while, and so
+   * on. The sensors keep delivering at the same rates while it is still.
+   *
+   * @param seed The seed of the noise
+   * @param durationSeconds The duration of the stream in seconds
+   * @param gyroscopeBias The constant bias added to every gyroscope sample in rad/s
+   * @param movingSeconds The length of the phases in which the device moves
+   * @param stillSeconds The length of the phases in which the device is still, 0 to move all the time
+   */
+  public SyntheticSensorStream(long seed, double durationSeconds, float[] gyroscopeBias, double movingSeconds,
+      double stillSeconds) {
+    movingNs = (long) (movingSeconds * 1e9);
+    stillNs = (long) (stillSeconds * 1e9);
+    int samples = (int) (durationSeconds * 1e9 / (STEP_NS * STEPS_PER_SAMPLE));
+    // gyroscope and accelerometer every sample, rotation vector and gravity every second, compass every fourth
+    int capacity = samples * 2 + samples + samples / 4 + 3;
+    types = new int[capacity];
+    timestamps = new long[capacity];
+    lengths = new int[capacity];
+    values = new float[capacity * STRIDE];
+    truth = new float[capacity * 4];
+    for (int i = 0; i <= STRIDE; i++) {
+      valueBuffers[i] = new float[i];
+    }
+
+    Random random = new Random(seed);
+    Random gravityRandom = new Random(~seed);
+    double[] q = {Math.sin(0.2), 0, 0, Math.cos(0.2)};
+    double[] rate = new double[3];
+    double[] vector = new double[3];
+    long timestamp = START_NS;
+    int count = 0;
+    int gyroscopeCount = 0;
+
+    for (int sample = 0; sample < samples; sample++) {
+      for (int step = 0; step < STEPS_PER_SAMPLE; step++) {
+        double t = timestamp * 1e-9;
+        angularRate(t, rate);
+        if (isStill(timestamp)) {
+          rate[0] = 0;
+          rate[1] = 0;
+          rate[2] = 0;
+        }
+
+        if (step == 0) {
+          count = add(count, Sensor.TYPE_GYROSCOPE, timestamp, q,
+              (float) (rate[0] + gyroscopeBias[0] + random.nextGaussian() * GYROSCOPE_NOISE),
+              (float) (rate[1] + gyroscopeBias[1] + random.nextGaussian() * GYROSCOPE_NOISE),
+              (float) (rate[2] + gyroscopeBias[2] + random.nextGaussian() * GYROSCOPE_NOISE));
+          gyroscopeCount++;
+        } else if (step == 1) {
+          toDevice(q, 0, 0, 9.81, vector);
+          count = add(count, Sensor.TYPE_ACCELEROMETER, timestamp, q,
+              (float) (vector[0] + random.nextGaussian() * ACCELEROMETER_NOISE),
+              (float) (vector[1] + random.nextGaussian() * ACCELEROMETER_NOISE),
+              (float) (vector[2] + random.nextGaussian() * ACCELEROMETER_NOISE));
+        } else if (step == 2 && sample % 2 == 0) {
+          float x = (float) (q[0] + random.nextGaussian() * ROTATION_VECTOR_NOISE);
+          float y = (float) (q[1] + random.nextGaussian() * ROTATION_VECTOR_NOISE);
+          float z = (float) (q[2] + random.nextGaussian() * ROTATION_VECTOR_NOISE);
+          float w = (float) q[3];
+          float norm = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+          if (w < 0) {
+            // The rotation vector always has a positive w, as Android's does
+            norm = -norm;
+          }
+          count = add(count, Sensor.TYPE_ROTATION_VECTOR, timestamp, q, x / norm, y / norm, z / norm);
+          values[(count - 1) * STRIDE + 3] = w / norm;
+          lengths[count - 1] = 4;
+        } else if (step == 3 && sample % 4 == 0) {
+          toDevice(q, MAGNETIC_FIELD[0], MAGNETIC_FIELD[1], MAGNETIC_FIELD[2], vector);
+          count = add(count, Sensor.TYPE_MAGNETIC_FIELD, timestamp, q,
+              (float) (vector[0] + random.nextGaussian() * MAGNETOMETER_NOISE),
+              (float) (vector[1] + random.nextGaussian() * MAGNETOMETER_NOISE),
+              (float) (vector[2] + random.nextGaussian() * MAGNETOMETER_NOISE));
+        } else if (step == 4 && sample % 2 == 0) {
+          toDevice(q, 0, 0, 9.81, vector);
+          count = add(count, Sensor.TYPE_GRAVITY, timestamp, q,
+              (float) (vector[0] + gravityRandom.nextGaussian() * GRAVITY_NOISE),
+              (float) (vector[1] + gravityRandom.nextGaussian() * GRAVITY_NOISE),
+              (float) (vector[2] + gravityRandom.nextGaussian() * GRAVITY_NOISE));
+        }
+
+        rotate(q, rate, STEP_NS * 1e-9);
+        timestamp += STEP_NS;
+      }
+    }
+
+    size = count;
+    gyroscopeSamples = gyroscopeCount;
+  }
+
+  /**
+   * @return The number of samples
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The number of gyroscope samples
+   */
+  public int getGyroscopeSamples() {
+    return gyroscopeSamples;
+  }
+
+  /**
+   * @param index The index of the sample
+   * @return The sensor type of the sample
+   */
+  public int getType(int index) {
+    return types[index];
+  }
+
+  /**
+   * @param index The index of the sample
+   * @return The timestamp of the sample in nanoseconds
+   */
+  public long getTimestamp(int index) {
+    return timestamps[index];
+  }
+
+  /**
+   * Copies the values of a sample.
+   *
+   * @param index The index of the sample
+   * @param output The array that receives the values; it must hold at least {@link #getLength(int)} values
+   */
+  public void getValues(int index, float[] output) {
+    System.arraycopy(values, index * STRIDE, output, 0, lengths[index]);
+  }
+
+  /**
+   * @param index The index of the sample
+   * @return The number of values of the sample
+   */
+  public int getLength(int index) {
+    return lengths[index];
+  }
+
+  /**
+   * Copies the true orientation at a sample into the quaternion, in the convention of the orientation providers
+   * (x, y, z, -w).
+   *
+   * @param index The index of the sample
+   * @param output The quaternion that receives the orientation
+   */
+  public void getTruth(int index, Quaternion output) {
+    int offset = index * 4;
+    output.setXYZW(truth[offset], truth[offset + 1], truth[offset + 2], -truth[offset + 3]);
+  }
+
+  /**
+   * Distorts the compass samples like magnetised parts of a device do: every sample m becomes softIron * m + hardIron.
+   * The true orientation is unchanged.
+   *
+   * @param hardIron The offset in micro Tesla
+   * @param softIron The row-major 3x3 matrix
+   */
+  public void distortMagneticField(float[] hardIron, float[] softIron) {
+    for (int i = 0; i < size; i++) {
+      if (types[i] != Sensor.TYPE_MAGNETIC_FIELD) {
+        continue;
+      }
+      int offset = i * STRIDE;
+      float x = values[offset];
+      float y = values[offset + 1];
+      float z = values[offset + 2];
+      for (int row = 0; row < 3; row++) {
+        values[offset + row] = softIron[row * 3] * x + softIron[row * 3 + 1] * y + softIron[row * 3 + 2] * z
+            + hardIron[row];
+      }
+    }
+  }
+
+  /**
+   * @param timestamp A timestamp in nanoseconds
+   * @return True if the device is still at the timestamp
+   */
+  public boolean isStill(long timestamp) {
+    return stillNs > 0 && (timestamp - START_NS) % (movingNs + stillNs) >= movingNs;
+  }
+
+  /**
+   * @param timestamp A timestamp in nanoseconds
+   * @return The index of the first sample at or after the timestamp, {@link #size()} if there is none
+   */
+  public int findSample(long timestamp) {
+    int index = Arrays.binarySearch(timestamps, 0, size, timestamp);
+    if (index < 0) {
+      return -index - 1;
+    }
+    // Several sensors share a timestamp
+    while (index > 0 && timestamps[index - 1] == timestamp) {
+      index--;
+    }
+    return index;
+  }
+
+  /**
+   * Creates one event per sample, for the sensors of the sensor manager, e.g. to deliver them to a provider through
+   * {@link SensorManager#dispatch(SensorEvent)}.
+   *
+   * @param sensorManager The sensor manager
+   * @param accuracy The accuracy of the events
+   * @return The events in the order of the samples
+   */
+  public SensorEvent[] createEvents(SensorManager sensorManager, int accuracy) {
+    SensorEvent[] events = new SensorEvent[size];
+    for (int i = 0; i < size; i++) {
+      SensorEvent event = new SensorEvent(lengths[i]);
+      event.sensor = sensorManager.getDefaultSensor(types[i]);
+      event.accuracy = accuracy;
+      event.timestamp = timestamps[i];
+      getValues(i, event.values);
+      events[i] = event;
+    }
+    return events;
+  }
+
+  /**
+   * Hands the samples from..to (exclusive) to the listener in order.
+   *
+   * @param listener The listener
+   * @param from The index of the first sample
+   * @param to The index after the last sample
+   */
+  public void replay(SensorSampleListener listener, int from, int to) {
+    for (int i = from; i < to; i++) {
+      float[] buffer = valueBuffers[lengths[i]];
+      System.arraycopy(values, i * STRIDE, buffer, 0, buffer.length);
+      listener.onSensorSample(types[i], timestamps[i], buffer);
+    }
+  }
+
+  /**
+   * Hands all samples to the listener in order.
+   *
+   * @param listener The listener
+   */
+  public void replay(SensorSampleListener listener) {
+    replay(listener, 0, size);
+  }
+
+  private int add(int index, int type, long timestamp, double[] q, float v0, float v1, float v2) {
+    types[index] = type;
+    timestamps[index] = timestamp;
+    lengths[index] = 3;
+    values[index * STRIDE] = v0;
+    values[index * STRIDE + 1] = v1;
+    values[index * STRIDE + 2] = v2;
+    for (int i = 0; i < 4; i++) {
+      truth[index * 4 + i] = (float) q[i];
+    }
+    return index + 1;
+  }
+
+  /**
+   * The angular rate of the device in device coordinates at the given time
+   */
+  private static void angularRate(double t, double[] rate) {
+    rate[0] = 0.8 * Math.sin(1.3 * t);
+    rate[1] = 0.6 * Math.cos(0.7 * t);
+    rate[2] = 0.5 * Math.sin(0.4 * t) + 0.2;
+  }
+
+  /**
+   * Rotates the [x, y, z, w] device to world quaternion by the angular rate in device coordinates over dT seconds
+   */
+  private static void rotate(double[] q, double[] rate, double dT) {
+    double magnitude = Math.sqrt(rate[0] * rate[0] + rate[1] * rate[1] + rate[2] * rate[2]);
+    if (magnitude == 0) {
+      return;
+    }
+    double half = magnitude * dT / 2;
+    double s = Math.sin(half) / magnitude;
+    double dx = rate[0] * s;
+    double dy = rate[1] * s;
+    double dz = rate[2] * s;
+    double dw = Math.cos(half);
+
+    double x = q[3] * dx + q[0] * dw + q[1] * dz - q[2] * dy;
+    double y = q[3] * dy + q[1] * dw + q[2] * dx - q[0] * dz;
+    double z = q[3] * dz + q[2] * dw + q[0] * dy - q[1] * dx;
+    double w = q[3] * dw - q[0] * dx - q[1] * dy - q[2] * dz;
+    double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+    q[0] = x / norm;
+    q[1] = y / norm;
+    q[2] = z / norm;
+    q[3] = w / norm;
+  }
+
+  /**
+   * Transforms a vector from world into device coordinates with the [x, y, z, w] device to world quaternion
+   */
+  private static void toDevice(double[] q, double vx, double vy, double vz, double[] output) {
+    double x = q[0];
+    double y = q[1];
+    double z = q[2];
+    double w = q[3];
+    output[0] = (1 - 2 * (y * y + z * z)) * vx + 2 * (x * y + w * z) * vy + 2 * (x * z - w * y) * vz;
+    output[1] = 2 * (x * y - w * z) * vx + (1 - 2 * (x * x + z * z)) * vy + 2 * (y * z + w * x) * vz;
+    output[2] = 2 * (x * z + w * y) * vx + 2 * (y * z - w * x) * vy + (1 - 2 * (x * x + y * y)) * vz;
+  }
+}
@@ -0,0 +1,290 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorManager;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.orientationProvider.SensorSampleListener;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+import org.sl.sensor_fusion_demo.trace.ColumnarTrace;
+import org.sl.sensor_fusion_demo.trace.ColumnarTraceFormat;
+import org.sl.sensor_fusion_demo.trace.ColumnarTraceWriter;
+import org.sl.sensor_fusion_demo.trace.SensorEventRecorder;
+import org.sl.sensor_fusion_demo.trace.SensorTrace;
+import org.sl.sensor_fusion_demo.trace.SensorTraceRecorder;
+
+/**
+ * Replays a recorded sensor trace into orientation providers on the JVM, as fast as they can take it.
+ *
+ * For every provider the trace is first replayed into two new instances to check that the result is deterministic,
+ * then it is replayed back to back (with shifted timestamps, so the provider sees one long recording) and the
+ * throughput is reported, which makes this usable as a load generator.
+ *
+ * Usage:
+ * <pre>
+ * TraceReplay trace.sftr|trace.sftc [--from s] [--to s] [--loops n] [provider class name...]
+ * TraceReplay --synthetic trace.sftr|trace.sftc seconds
+ * TraceReplay --columnar trace.sftr trace.sftc
+ * </pre>
+ * Both trace formats are replayed; a columnar trace is streamed from the mapped file, and --from and --to select a
+ * window in seconds after its start. The second form writes a trace of the {@link SyntheticSensorStream} to have
+ * something to replay without a device, the third converts a compact trace into a columnar one.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class TraceReplay {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final String[] DEFAULT_PROVIDERS = {"ImprovedOrientationSensor1Provider",
+      "ImprovedOrientationSensor2Provider", "CalibratedGyroscopeProvider", "RotationVectorProvider",
+      "GravityCompassProvider", "AccelerometerCompassProvider", "ErrorStateKalmanFilterProvider", "MadgwickProvider",
+      "MahonyProvider"};
+  /**
+   * The accuracy recorded for synthetic events (SENSOR_STATUS_ACCURACY_HIGH)
+   */
+  private static final int SYNTHETIC_ACCURACY = 3;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 3 && args[0].equals("--synthetic")) {
+      writeSynthetic(new File(args[1]), Double.parseDouble(args[2]));
+      return;
+    }
+    if (args.length == 3 && args[0].equals("--columnar")) {
+      convert(new File(args[1]), new File(args[2]));
+      return;
+    }
+    if (args.length == 0) {
+      System.err.println("Usage: TraceReplay trace.sftr|trace.sftc [--from s] [--to s] [--loops n] [provider...]");
+      System.err.println("       TraceReplay --synthetic trace.sftr|trace.sftc seconds");
+      System.err.println("       TraceReplay --columnar trace.sftr trace.sftc");
+      System.exit(1);
+    }
+
+    File file = new File(args[0]);
+    int loops = 20;
+    double fromSeconds = 0;
+    double toSeconds = Double.POSITIVE_INFINITY;
+    List<String> providers = new ArrayList<String>();
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--loops")) {
+        loops = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--from")) {
+        fromSeconds = Double.parseDouble(args[++i]);
+      } else if (args[i].equals("--to")) {
+        toSeconds = Double.parseDouble(args[++i]);
+      } else {
+        providers.add(args[i]);
+      }
+    }
+    if (providers.isEmpty()) {
+      for (String provider : DEFAULT_PROVIDERS) {
+        providers.add(provider);
+      }
+    }
+
+    Replayable trace;
+    if (readMagic(file) == ColumnarTraceFormat.MAGIC) {
+      trace = openColumnar(file, fromSeconds, toSeconds);
+    } else {
+      if (fromSeconds != 0 || toSeconds != Double.POSITIVE_INFINITY) {
+        System.err.println("--from and --to need a columnar trace");
+        System.exit(1);
+      }
+      trace = readCompact(file);
+    }
+    try {
+      for (String provider : providers) {
+        replay(provider.contains(".") ? provider : PROVIDER_PACKAGE + provider, trace, loops);
+      }
+    } finally {
+      trace.close();
+    }
+  }
+
+  private static Replayable readCompact(File file) throws IOException {
+    long start = System.nanoTime();
+    final SensorTrace trace = SensorTrace.read(file);
+    long end = System.nanoTime();
+    System.out.println(String.format(Locale.US, "%s: %d events over %.1f s, %d bytes, decoded in %.1f ms",
+        file.getName(), trace.size(), trace.getDuration() / 1e9, file.length(), (end - start) / 1e6));
+
+    return new Replayable() {
+      @Override
+      public long size() {
+        return trace.size();
+      }
+
+      @Override
+      public long getDuration() {
+        return trace.getDuration();
+      }
+
+      @Override
+      public void replay(SensorSampleListener listener, long timestampOffset) {
+        trace.replay(listener, 0, trace.size(), timestampOffset);
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  private static Replayable openColumnar(File file, double fromSeconds, double toSeconds) throws IOException {
+    long start = System.nanoTime();
+    final ColumnarTrace trace = ColumnarTrace.open(file);
+    long opened = System.nanoTime();
+    int corruptBlocks = trace.verify();
+    long verified = System.nanoTime();
+
+    long traceStart = trace.getStartTimestamp();
+    final long from = traceStart + (long) (fromSeconds * 1e9);
+    final long to = Double.isInfinite(toSeconds) ? Long.MAX_VALUE : traceStart + (long) (toSeconds * 1e9);
+    // Count the events of the window once, which also maps the file
+    final long size = trace.stream(from, to, new SensorSampleListener() {
+      @Override
+      public void onSensorSample(int sensorType, long eventTimestamp, float[] values) {
+      }
+    }, 0);
+    final long duration = Math.min(to, trace.getEndTimestamp()) - from;
+
+    System.out.println(String.format(Locale.US,
+        "%s: %d of %d events over %.1f s, %d bytes in %d blocks%s, opened in %.1f ms, verified in %.1f ms%s",
+        file.getName(), size, trace.size(), duration / 1e9, file.length(), trace.getBlockCount(),
+        trace.isIndexRebuilt() ? " (index rebuilt)" : "", (opened - start) / 1e6, (verified - opened) / 1e6,
+        corruptBlocks > 0 ? ", " + corruptBlocks + " CORRUPT BLOCKS" : ""));
+    trace.setVerifyChecksums(false);
+
+    return new Replayable() {
+      @Override
+      public long size() {
+        return size;
+      }
+
+      @Override
+      public long getDuration() {
+        return duration;
+      }
+
+      @Override
+      public void replay(SensorSampleListener listener, long timestampOffset) throws IOException {
+        trace.stream(from, to, listener, timestampOffset);
+      }
+
+      @Override
+      public void close() throws IOException {
+        trace.close();
+      }
+    };
+  }
+
+  private static int readMagic(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return in.readInt();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void replay(String className, Replayable trace, int loops) throws Exception {
+    Class<?> providerClass = Class.forName(className);
+    SensorManager sensorManager = new SensorManager();
+
+    // Two independent replays must end in exactly the same orientation
+    Quaternion first = replayOnce(providerClass, sensorManager, trace);
+    Quaternion second = replayOnce(providerClass, sensorManager, trace);
+    boolean deterministic = first.getX() == second.getX() && first.getY() == second.getY()
+        && first.getZ() == second.getZ() && first.getW() == second.getW();
+
+    // Back to back replays; the first few let the JIT compile the fusion code
+    OrientationProvider provider = newProvider(providerClass, sensorManager);
+    long loopOffset = trace.getDuration() + 1000000L;
+    int warmupLoops = Math.max(1, loops / 4);
+    long start = 0;
+    for (int loop = 0; loop < warmupLoops + loops; loop++) {
+      if (loop == warmupLoops) {
+        start = System.nanoTime();
+      }
+      trace.replay(provider, loop * loopOffset);
+    }
+    long elapsed = System.nanoTime() - start;
+
+    double eventsPerSecond = (double) trace.size() * loops / (elapsed / 1e9);
+    System.out.println(String.format(Locale.US, "%-40s %12.0f events/s %8.1f ns/event  deterministic: %s  %s",
+        providerClass.getSimpleName(), eventsPerSecond, (double) elapsed / (trace.size() * loops),
+        deterministic ? "yes" : "NO", first));
+  }
+
+  private static Quaternion replayOnce(Class<?> providerClass, SensorManager sensorManager, Replayable trace)
+      throws Exception {
+    OrientationProvider provider = newProvider(providerClass, sensorManager);
+    trace.replay(provider, 0);
+    return provider.getQuaternion();
+  }
+
+  private static OrientationProvider newProvider(Class<?> providerClass, SensorManager sensorManager)
+      throws Exception {
+    OrientationProvider provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+        .newInstance(sensorManager);
+    // Solving the magnetometer calibration on a background thread would apply it at a different sample every time
+    provider.getMagnetometerCalibrator().setUseBackgroundThread(false);
+    return provider;
+  }
+
+  private static void writeSynthetic(File file, double seconds) throws IOException {
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, seconds);
+    SensorEventRecorder recorder = newRecorder(file);
+    float[][] buffers = new float[5][];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = new float[i];
+    }
+    for (int i = 0; i < stream.size(); i++) {
+      float[] values = buffers[stream.getLength(i)];
+      stream.getValues(i, values);
+      recorder.record(stream.getType(i), SYNTHETIC_ACCURACY, stream.getTimestamp(i), values);
+    }
+    recorder.close();
+    System.out.println(String.format(Locale.US, "Wrote %d events to %s (%d bytes)", recorder.getRecordedEvents(),
+        file, file.length()));
+  }
+
+  private static void convert(File compactFile, File columnarFile) throws IOException {
+    SensorTrace trace = SensorTrace.read(compactFile);
+    SensorEventRecorder recorder = newRecorder(columnarFile);
+    trace.writeTo(recorder);
+    recorder.close();
+    System.out.println(String.format(Locale.US, "Wrote %d events to %s (%d bytes, %d before)",
+        recorder.getRecordedEvents(), columnarFile, columnarFile.length(), compactFile.length()));
+  }
+
+  /**
+   * @return A recorder that writes every event, in the format given by the file name extension
+   */
+  private static SensorEventRecorder newRecorder(File file) throws IOException {
+    if (file.getName().endsWith(ColumnarTraceFormat.FILE_EXTENSION)) {
+      return ColumnarTraceWriter.create(file, ColumnarTraceFormat.DEFAULT_BLOCK_CAPACITY, true);
+    }
+    return new SensorTraceRecorder(new BufferedOutputStream(new FileOutputStream(file)), true);
+  }
+
+  /**
+   * The events of a trace in either format
+   */
+  private interface Replayable {
+    long size();
+
+    long getDuration();
+
+    void replay(SensorSampleListener listener, long timestampOffset) throws IOException;
+
+    void close() throws IOException;
+  }
+}
@@ -0,0 +1,92 @@
+package org.sl.sensor_fusion_demo.tools;
+
+import android.hardware.SensorManager;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import org.sl.sensor_fusion_demo.orientationProvider.OrientationProvider;
+import org.sl.sensor_fusion_demo.representation.Quaternion;
+
+/**
+ * Micro-benchmark of the cost of one fusion update of the orientation providers.
+ *
+ * Every round replays the same {@link SyntheticSensorStream} into a new provider and measures the time per gyroscope
+ * update (including the accelerometer, compass and rotation vector samples in between), the bytes allocated per update
+ * and the final orientation error. The median of the measured rounds is reported after warm-up rounds that let the JIT
+ * compile the fusion code.
+ *
+ * Usage: UpdateCostBenchmark [provider class name...], e.g. MadgwickProvider; defaults to comparing
+ * ImprovedOrientationSensor1Provider, CalibratedGyroscopeProvider and the complementary filters.
+ *
+ * @author Stanislav Lelyuk
+ */
+public class UpdateCostBenchmark {
+
+  private static final String PROVIDER_PACKAGE = "org.sl.sensor_fusion_demo.orientationProvider.";
+  private static final int WARMUP_ROUNDS = 10;
+  private static final int MEASURED_ROUNDS = 15;
+  private static final double STREAM_SECONDS = 60;
+
+  public static void main(String[] args) throws Exception {
+    String[] providers = args.length > 0 ? args
+        : new String[] {"ImprovedOrientationSensor1Provider", "CalibratedGyroscopeProvider", "MadgwickProvider",
+            "MahonyProvider"};
+    SyntheticSensorStream stream = new SyntheticSensorStream(42, STREAM_SECONDS);
+    System.out.println(String.format(Locale.US, "%d samples, %d gyroscope updates per round", stream.size(),
+        stream.getGyroscopeSamples()));
+
+    for (String provider : providers) {
+      run(provider.contains(".") ? provider : PROVIDER_PACKAGE + provider, stream);
+    }
+  }
+
+  private static void run(String className, SyntheticSensorStream stream) throws Exception {
+    Class<?> providerClass = Class.forName(className);
+    SensorManager sensorManager = new SensorManager();
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    boolean measureAllocation = threads instanceof com.sun.management.ThreadMXBean;
+
+    long[] nanos = new long[MEASURED_ROUNDS];
+    long allocated = 0;
+    float error = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+      OrientationProvider provider = (OrientationProvider) providerClass.getConstructor(SensorManager.class)
+          .newInstance(sensorManager);
+
+      long bytesBefore = measureAllocation ? allocatedBytes(threads) : 0;
+      long start = System.nanoTime();
+      stream.replay(provider);
+      long end = System.nanoTime();
+      long bytesAfter = measureAllocation ? allocatedBytes(threads) : 0;
+
+      if (round >= WARMUP_ROUNDS) {
+        nanos[round - WARMUP_ROUNDS] = end - start;
+        allocated = bytesAfter - bytesBefore;
+        error = orientationError(provider, stream);
+      }
+    }
+
+    Arrays.sort(nanos);
+    long median = nanos[MEASURED_ROUNDS / 2];
+    System.out.println(String.format(Locale.US, "%-40s %8.1f ns/update %8.1f ns/sample %8s bytes/update %7.3f deg",
+        providerClass.getSimpleName(), (double) median / stream.getGyroscopeSamples(), (double) median / stream.size(),
+        measureAllocation ? String.format(Locale.US, "%.2f", (double) allocated / stream.getGyroscopeSamples()) : "n/a",
+        error));
+  }
+
+  private static long allocatedBytes(ThreadMXBean threads) {
+    return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * @return The angle in degrees between the published orientation and the true orientation at the end of the stream
+   */
+  private static float orientationError(OrientationProvider provider, SyntheticSensorStream stream) {
+    Quaternion estimate = provider.getQuaternion();
+    Quaternion truth = new Quaternion();
+    stream.getTruth(stream.size() - 1, truth);
+    float dot = Math.abs(estimate.dotProduct(truth));
+    return (float) Math.toDegrees(2 * Math.acos(Math.min(1, dot)));
+  }
+}